@@ -0,0 +1,103 @@
+package com.wetrack.cache;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableSet;
+import com.wetrack.dao.ChatRepository;
+import com.wetrack.model.Chat;
+
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Bounded in-memory cache of chat memberships, so that hot paths like WebSocket chat messages
+ * do not need a database round trip to check membership and list recipients.
+ * <p>
+ * Every code path that changes the members of a chat must call {@link #update(Chat)} (or
+ * {@link #invalidate(String)}) after persisting the change. Both tell the change listener, which
+ * the {@link ClusterCacheSync} uses to have the other nodes drop the chat too. Since the bus may
+ * lose that message, entries also expire {@code expireAfterWriteMinutes} after they were loaded,
+ * which bounds how long another node may go on with the old members.
+ */
+public class ChatMembershipCache {
+
+    private final LoadingCache<String, Optional<Set<String>>> members;
+    private volatile Consumer<String> changeListener = chatId -> {};
+
+    public ChatMembershipCache(ChatRepository chatRepository, long maximumSize, long expireAfterWriteMinutes) {
+        this.members = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(expireAfterWriteMinutes, TimeUnit.MINUTES)
+                .recordStats()
+                .build(new CacheLoader<String, Optional<Set<String>>>() {
+                    @Override
+                    public Optional<Set<String>> load(String chatId) {
+                        return Optional.ofNullable(chatRepository.findById(chatId)).map(ChatMembershipCache::snapshot);
+                    }
+                });
+    }
+
+    /**
+     * Returns an immutable snapshot of the members of the given chat, or {@code null} if the chat
+     * does not exist.
+     */
+    public Set<String> getMembers(String chatId) {
+        if (chatId == null)
+            return null;
+        return members.getUnchecked(chatId).orElse(null);
+    }
+
+    public boolean chatExists(String chatId) {
+        return getMembers(chatId) != null;
+    }
+
+    public boolean isMember(String chatId, String username) {
+        Set<String> memberNames = getMembers(chatId);
+        return memberNames != null && memberNames.contains(username);
+    }
+
+    /** Sets the listener told the ID of every chat changed through this cache. */
+    public void setChangeListener(Consumer<String> changeListener) {
+        this.changeListener = changeListener;
+    }
+
+    /** Replaces the cached members of the given chat with its current members. */
+    public void update(Chat chat) {
+        members.put(chat.getId(), Optional.of(snapshot(chat)));
+        changeListener.accept(chat.getId());
+    }
+
+    /** Drops the given chat, so that the next read loads it from the database again. */
+    public void invalidate(String chatId) {
+        members.invalidate(chatId);
+        changeListener.accept(chatId);
+    }
+
+    /**
+     * Like {@link #invalidate(String)}, but without telling the change listener, e.g. for a chat
+     * changed on another node.
+     */
+    public void evict(String chatId) {
+        members.invalidate(chatId);
+    }
+
+    public void invalidateAll() {
+        members.invalidateAll();
+    }
+
+    public long size() {
+        return members.size();
+    }
+
+    public CacheStats stats() {
+        return members.stats();
+    }
+
+    private static Set<String> snapshot(Chat chat) {
+        return chat.getMemberNames() == null ? ImmutableSet.of() : ImmutableSet.copyOf(chat.getMemberNames());
+    }
+}
@@ -0,0 +1,60 @@
+package com.wetrack.cache;
+
+import com.google.gson.Gson;
+import com.wetrack.cluster.BusMessage;
+import com.wetrack.cluster.MessageBus;
+import com.wetrack.event.LocationListener;
+import com.wetrack.model.Location;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+/**
+ * Keeps the caches of this node in line with changes made on the other nodes of the cluster. The
+ * newest fix of each user persisted here is broadcast to every other node, whose
+ * {@link LatestLocationCache} takes it like a fix of its own. Chats and friend lists changed here
+ * are broadcast by key, and the other nodes drop them from their {@link ChatMembershipCache} and
+ * {@link FriendCache}, to load them again on the next read.
+ * <p>
+ * The bus delivers at most once, so a lost message leaves an entry stale until it expires; the
+ * caches therefore expire their entries a fixed time after they were written, however often they
+ * are read.
+ */
+public class ClusterCacheSync implements LocationListener {
+
+    private final MessageBus messageBus;
+    private final Gson gson;
+    private final LatestLocationCache latestLocationCache;
+
+    public ClusterCacheSync(MessageBus messageBus, Gson gson, LatestLocationCache latestLocationCache,
+                            ChatMembershipCache chatMembershipCache, FriendCache friendCache) {
+        this.messageBus = messageBus;
+        this.gson = gson;
+        this.latestLocationCache = latestLocationCache;
+
+        chatMembershipCache.setChangeListener(chatId -> broadcast(BusMessage.Type.CHAT_MEMBERS_CHANGED, chatId));
+        friendCache.setChangeListener(username -> broadcast(BusMessage.Type.FRIENDS_CHANGED, username));
+        messageBus.setHandler(BusMessage.Type.LATEST_LOCATION, this::onLatestLocation);
+        messageBus.setHandler(BusMessage.Type.CHAT_MEMBERS_CHANGED,
+                message -> chatMembershipCache.evict(payload(message)));
+        messageBus.setHandler(BusMessage.Type.FRIENDS_CHANGED, message -> friendCache.evict(payload(message)));
+    }
+
+    @Override
+    public void onLocation(Location location) {
+        broadcast(BusMessage.Type.LATEST_LOCATION, gson.toJson(location, Location.class));
+    }
+
+    private void onLatestLocation(BusMessage message) {
+        latestLocationCache.onLocation(gson.fromJson(payload(message), Location.class));
+    }
+
+    private void broadcast(BusMessage.Type type, String payload) {
+        messageBus.broadcast(new BusMessage(type, messageBus.getNodeId(), Collections.emptySet(),
+                payload.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String payload(BusMessage message) {
+        return new String(message.getPayload(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,94 @@
+package com.wetrack.cache;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableSet;
+import com.wetrack.dao.FriendRepository;
+import com.wetrack.model.Friend;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Bounded in-memory cache of friend lists, so that every ingested location fix can be routed to
+ * the owner's friends without a database round trip.
+ * <p>
+ * Every code path that changes a friend list must call {@link #update(Friend)} (or
+ * {@link #invalidate(String)}) after persisting the change. Both tell the change listener, which
+ * the {@link ClusterCacheSync} uses to have the other nodes drop the list too. Since the bus may
+ * lose that message, entries also expire {@code expireAfterWriteMinutes} after they were loaded,
+ * which bounds how long another node may go on with the old list.
+ */
+public class FriendCache {
+
+    private final LoadingCache<String, Set<String>> friends;
+    private volatile Consumer<String> changeListener = username -> {};
+
+    public FriendCache(FriendRepository friendRepository, long maximumSize, long expireAfterWriteMinutes) {
+        this.friends = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(expireAfterWriteMinutes, TimeUnit.MINUTES)
+                .recordStats()
+                .build(new CacheLoader<String, Set<String>>() {
+                    @Override
+                    public Set<String> load(String username) {
+                        return snapshot(friendRepository.findById(username));
+                    }
+                });
+    }
+
+    /**
+     * Returns an immutable snapshot of the friend names of the given user, which is empty if the
+     * user has no friend list yet.
+     */
+    public Set<String> getFriends(String username) {
+        if (username == null)
+            return ImmutableSet.of();
+        return friends.getUnchecked(username);
+    }
+
+    /** Sets the listener told the owner of every friend list changed through this cache. */
+    public void setChangeListener(Consumer<String> changeListener) {
+        this.changeListener = changeListener;
+    }
+
+    /** Replaces the cached friend names of the owner of the given list with its current names. */
+    public void update(Friend friend) {
+        friends.put(friend.getOwnerUsername(), snapshot(friend));
+        changeListener.accept(friend.getOwnerUsername());
+    }
+
+    /** Drops the friend list of the given user, so that the next read loads it from the database again. */
+    public void invalidate(String username) {
+        friends.invalidate(username);
+        changeListener.accept(username);
+    }
+
+    /**
+     * Like {@link #invalidate(String)}, but without telling the change listener, e.g. for a list
+     * changed on another node.
+     */
+    public void evict(String username) {
+        friends.invalidate(username);
+    }
+
+    public void invalidateAll() {
+        friends.invalidateAll();
+    }
+
+    public long size() {
+        return friends.size();
+    }
+
+    public CacheStats stats() {
+        return friends.stats();
+    }
+
+    private static Set<String> snapshot(Friend friend) {
+        return friend == null || friend.getFriendNames() == null
+                ? ImmutableSet.of() : ImmutableSet.copyOf(friend.getFriendNames());
+    }
+}
@@ -0,0 +1,97 @@
+package com.wetrack.cache;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.wetrack.dao.LocationRepository;
+import com.wetrack.event.LocationListener;
+import com.wetrack.model.Location;
+
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded in-memory table of the latest location fix of each user, so that reading where a user
+ * is now does not need a sorted query. Only a cold miss goes to the database.
+ * <p>
+ * Kept up to date as a {@link LocationListener} of every persisted fix, and an entry is only
+ * replaced by a newer fix, so fixes uploaded late do not take the place of the latest one. Fixes
+ * of a user who is not cached are ignored, since the database knows better whether they are the
+ * latest, unless the user is being loaded: the load may have read the database before the fix was
+ * written, so such fixes are kept aside and merged into the loaded entry once it is in place.
+ * <p>
+ * Fixes persisted on other nodes arrive through the {@link ClusterCacheSync}. Since the bus may
+ * lose them, entries expire {@code expireAfterWriteMinutes} after they were last written, which
+ * bounds how long a read may return a stale fix.
+ */
+public class LatestLocationCache implements LocationListener {
+
+    private final LoadingCache<String, Optional<Location>> latest;
+    /** Newest fix published for each user while the user was being loaded. */
+    private final ConcurrentHashMap<String, Optional<Location>> publishedWhileLoading = new ConcurrentHashMap<>();
+
+    public LatestLocationCache(LocationRepository locationRepository, long maximumSize, long expireAfterWriteMinutes) {
+        this.latest = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(expireAfterWriteMinutes, TimeUnit.MINUTES)
+                .recordStats()
+                .build(new CacheLoader<String, Optional<Location>>() {
+                    @Override
+                    public Optional<Location> load(String username) {
+                        publishedWhileLoading.putIfAbsent(username, Optional.empty());
+                        return Optional.ofNullable(locationRepository.getLatestLocation(username));
+                    }
+                });
+    }
+
+    /** Returns the latest fix of the given user, or {@code null} if the user has none. */
+    public Location getLatestLocation(String username) {
+        if (username == null)
+            return null;
+        Optional<Location> location;
+        Optional<Location> published;
+        try {
+            location = latest.getUnchecked(username);
+        } finally {
+            published = publishedWhileLoading.remove(username);
+        }
+        if (published == null || !published.isPresent())
+            return location.orElse(null);
+        Location fix = published.get();
+        Optional<Location> merged = latest.asMap().computeIfPresent(username, (key, current) -> newer(current, fix));
+        return (merged != null ? merged : newer(location, fix)).orElse(null);
+    }
+
+    @Override
+    public void onLocation(Location location) {
+        if (location.getUsername() == null || location.getTime() == null)
+            return;
+        // Recorded for a load in progress first, so that the fix cannot fall between the two
+        publishedWhileLoading.computeIfPresent(location.getUsername(), (username, current) -> newer(current, location));
+        latest.asMap().computeIfPresent(location.getUsername(), (username, current) -> newer(current, location));
+    }
+
+    private static Optional<Location> newer(Optional<Location> current, Location location) {
+        return current.isPresent() && !location.getTime().isAfter(current.get().getTime())
+                ? current : Optional.of(location);
+    }
+
+    /** Drops the fix of the given user, so that the next read loads it from the database again. */
+    public void invalidate(String username) {
+        latest.invalidate(username);
+    }
+
+    public void invalidateAll() {
+        latest.invalidateAll();
+    }
+
+    public long size() {
+        return latest.size();
+    }
+
+    public CacheStats stats() {
+        return latest.stats();
+    }
+}
@@ -0,0 +1,61 @@
+package com.wetrack.cluster;
+
+import java.util.Set;
+
+/**
+ * Message exchanged between nodes. For deliveries, the payload is an already encoded WebSocket
+ * frame, so the receiving node can hand it to its local sessions without encoding it again.
+ */
+public class BusMessage {
+
+    public enum Type {
+        /** Deliver the frame to every local session of the recipients. */
+        DELIVER,
+        /** A friend's location fix; the receiving node applies its own per-subscriber rate limits. */
+        LOCATION,
+        /** The newest persisted fix of a user, as JSON, for the caches of every other node. */
+        LATEST_LOCATION,
+        /** The members of the chat whose ID is the payload have changed. */
+        CHAT_MEMBERS_CHANGED,
+        /** The friend list of the user whose name is the payload has changed. */
+        FRIENDS_CHANGED
+    }
+
+    private final Type type;
+    private final String sourceNodeId;
+    private final Set<String> recipients;
+    private final byte[] payload;
+    private final String coalesceKey;
+
+    public BusMessage(Type type, String sourceNodeId, Set<String> recipients, byte[] payload) {
+        this(type, sourceNodeId, recipients, payload, null);
+    }
+
+    /**
+     * @param coalesceKey if not {@code null}, the frame supersedes a frame with the same key still
+     *                    queued for a recipient session on the receiving node.
+     */
+    public BusMessage(Type type, String sourceNodeId, Set<String> recipients, byte[] payload, String coalesceKey) {
+        this.type = type;
+        this.sourceNodeId = sourceNodeId;
+        this.recipients = recipients;
+        this.payload = payload;
+        this.coalesceKey = coalesceKey;
+    }
+
+    public Type getType() {
+        return type;
+    }
+    public String getSourceNodeId() {
+        return sourceNodeId;
+    }
+    public Set<String> getRecipients() {
+        return recipients;
+    }
+    public byte[] getPayload() {
+        return payload;
+    }
+    public String getCoalesceKey() {
+        return coalesceKey;
+    }
+}
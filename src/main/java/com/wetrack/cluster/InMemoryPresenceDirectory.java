@@ -0,0 +1,52 @@
+package com.wetrack.cluster;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link PresenceDirectory} kept in the memory of a single JVM, shared by all nodes of an
+ * {@link InProcessCluster}.
+ */
+public class InMemoryPresenceDirectory implements PresenceDirectory {
+
+    private final ConcurrentHashMap<String, Set<String>> userNodes = new ConcurrentHashMap<>();
+
+    @Override
+    public void online(String username, String nodeId) {
+        userNodes.compute(username, (name, nodes) -> {
+            if (nodes == null)
+                nodes = ConcurrentHashMap.newKeySet();
+            nodes.add(nodeId);
+            return nodes;
+        });
+    }
+
+    @Override
+    public void offline(String username, String nodeId) {
+        userNodes.computeIfPresent(username, (name, nodes) -> {
+            nodes.remove(nodeId);
+            return nodes.isEmpty() ? null : nodes;
+        });
+    }
+
+    @Override
+    public Map<String, Set<String>> findNodes(Collection<String> usernames) {
+        Map<String, Set<String>> result = new HashMap<>();
+        for (String username : usernames) {
+            Set<String> nodes = userNodes.get(username);
+            if (nodes != null)
+                result.put(username, Collections.unmodifiableSet(nodes));
+        }
+        return result;
+    }
+
+    @Override
+    public void removeNode(String nodeId) {
+        for (String username : userNodes.keySet())
+            offline(username, nodeId);
+    }
+}
@@ -0,0 +1,111 @@
+package com.wetrack.cluster;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Cluster whose nodes all live in one JVM. It backs a single-node deployment and lets multi-node
+ * delivery be tested on one machine: every node joins with its own ID and gets its own
+ * {@link MessageBus} endpoint, and all of them share one {@link InMemoryPresenceDirectory}.
+ * <p>
+ * Each node receives messages on its own thread, which keeps the per-sender ordering guarantee
+ * and makes delivery asynchronous just like a network transport would.
+ */
+public class InProcessCluster {
+    private static final Logger LOG = LoggerFactory.getLogger(InProcessCluster.class);
+
+    private final Map<String, Node> nodes = new ConcurrentHashMap<>();
+    private final PresenceDirectory presenceDirectory = new InMemoryPresenceDirectory();
+
+    public PresenceDirectory getPresenceDirectory() {
+        return presenceDirectory;
+    }
+
+    /**
+     * Adds a node with the given ID to the cluster.
+     *
+     * @throws IllegalStateException if a node with the same ID has already joined.
+     */
+    public MessageBus join(String nodeId) {
+        Node node = new Node(nodeId);
+        if (nodes.putIfAbsent(nodeId, node) != null)
+            throw new IllegalStateException("Node `" + nodeId + "` has already joined the cluster.");
+        return node;
+    }
+
+    private class Node implements MessageBus {
+        private final String nodeId;
+        private final ExecutorService inbox;
+        private final Map<BusMessage.Type, Consumer<BusMessage>> handlers = new ConcurrentHashMap<>();
+
+        private Node(String nodeId) {
+            this.nodeId = nodeId;
+            this.inbox = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "bus-" + nodeId);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        @Override
+        public String getNodeId() {
+            return nodeId;
+        }
+
+        @Override
+        public void send(String targetNodeId, BusMessage message) {
+            Node target = nodes.get(targetNodeId);
+            if (target == null) {
+                LOG.debug("Dropped message for unknown node `{}`", targetNodeId);
+                return;
+            }
+            target.receive(message);
+        }
+
+        @Override
+        public void broadcast(BusMessage message) {
+            for (Node target : nodes.values()) {
+                if (target != this)
+                    target.receive(message);
+            }
+        }
+
+        @Override
+        public void setHandler(BusMessage.Type type, Consumer<BusMessage> handler) {
+            handlers.put(type, handler);
+        }
+
+        @Override
+        public void close() {
+            nodes.remove(nodeId, this);
+            presenceDirectory.removeNode(nodeId);
+            inbox.shutdown();
+        }
+
+        private void receive(BusMessage message) {
+            try {
+                inbox.execute(() -> {
+                    Consumer<BusMessage> handler = handlers.get(message.getType());
+                    if (handler == null) {
+                        LOG.debug("Node `{}` dropped a message of unhandled type `{}`", nodeId, message.getType());
+                        return;
+                    }
+                    try {
+                        handler.accept(message);
+                    } catch (Exception ex) {
+                        LOG.warn("Node `" + nodeId + "` failed to handle a message from `"
+                                + message.getSourceNodeId() + "`: ", ex);
+                    }
+                });
+            } catch (RuntimeException ex) {
+                LOG.debug("Dropped message for closed node `{}`", nodeId);
+            }
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.wetrack.cluster;
+
+import java.util.function.Consumer;
+
+/**
+ * Transport between the backend nodes of a cluster. Each node owns one bus endpoint, identified
+ * by its node ID, and only ever addresses other nodes directly; which node a user is connected
+ * to is looked up in the {@link PresenceDirectory}.
+ * <p>
+ * Delivery is asynchronous and at most once. Messages from one node to another are handed to the
+ * receiving handler in the order they were sent.
+ */
+public interface MessageBus {
+
+    String getNodeId();
+
+    /**
+     * Sends the given message to the given node. Messages to unknown or departed nodes are dropped.
+     */
+    void send(String nodeId, BusMessage message);
+
+    /** Sends the given message to every other node of the cluster. */
+    void broadcast(BusMessage message);
+
+    /**
+     * Sets the handler for messages of the given type addressed to this node. It is called on a
+     * bus thread. Messages of a type without a handler are dropped.
+     */
+    void setHandler(BusMessage.Type type, Consumer<BusMessage> handler);
+
+    /** Leaves the cluster. Messages sent to this node afterwards are dropped. */
+    void close();
+
+}
@@ -0,0 +1,27 @@
+package com.wetrack.cluster;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Cluster-wide record of which nodes each online user has at least one session on.
+ */
+public interface PresenceDirectory {
+
+    /** Records that the given user now has a session on the given node. */
+    void online(String username, String nodeId);
+
+    /** Records that the given user no longer has any session on the given node. */
+    void offline(String username, String nodeId);
+
+    /**
+     * Looks up the nodes of all the given users in one call. Users who are not online anywhere
+     * are absent from the result.
+     */
+    Map<String, Set<String>> findNodes(Collection<String> usernames);
+
+    /** Forgets every user registered on the given node, e.g. after it left the cluster. */
+    void removeNode(String nodeId);
+
+}
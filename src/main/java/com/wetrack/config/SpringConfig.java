@@ -6,16 +6,27 @@ import com.google.gson.GsonBuilder;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoCredential;
 import com.mongodb.ServerAddress;
+import com.wetrack.cache.ChatMembershipCache;
+import com.wetrack.cache.ClusterCacheSync;
+import com.wetrack.cache.FriendCache;
+import com.wetrack.cache.LatestLocationCache;
+import com.wetrack.cluster.InProcessCluster;
+import com.wetrack.cluster.MessageBus;
+import com.wetrack.cluster.PresenceDirectory;
 import com.wetrack.dao.*;
 import com.wetrack.dao.morphia.*;
+import com.wetrack.event.LocationPublisher;
 import com.wetrack.json.LocalDateTimeTypeAdapter;
 import com.wetrack.json.LocalDateTypeAdapter;
 import com.wetrack.json.LocationTypeAdapter;
 import com.wetrack.json.UserSerializer;
+import com.wetrack.metrics.MetricsRegistry;
+import com.wetrack.metrics.ScrapeAllowList;
 import com.wetrack.model.Location;
 import com.wetrack.model.User;
 import com.wetrack.morphia.converter.EnumOrdinalConverter;
 import com.wetrack.morphia.converter.Java8TimeConverter;
+import com.wetrack.ws.NotificationStreams;
 import org.mongodb.morphia.Datastore;
 import org.mongodb.morphia.Morphia;
 import org.mongodb.morphia.converters.EnumConverter;
@@ -25,6 +36,7 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -48,6 +60,17 @@ public class SpringConfig {
     static final String PORTRAIT_FOLDER = "portrait";
     static final String DEFAULT_USERNAME = "";
     static final String DEFAULT_PASSWORD = "";
+    static final String DEFAULT_METRICS_ALLOWED_ADDRESSES = "127.0.0.1,::1";
+
+    static final long CHAT_MEMBERSHIP_CACHE_SIZE = 100_000;
+    static final long CHAT_MEMBERSHIP_CACHE_EXPIRE_MINUTES = 5;
+    static final long FRIEND_CACHE_SIZE = 100_000;
+    static final long FRIEND_CACHE_EXPIRE_MINUTES = 5;
+    static final long LATEST_LOCATION_CACHE_SIZE = 100_000;
+    static final long LATEST_LOCATION_CACHE_EXPIRE_MINUTES = 5;
+    static final String MESSAGE_BUS_IN_PROCESS = "in-process";
+    static final int LONG_POLL_CAPACITY = 1024;
+    static final long LONG_POLL_TIMEOUT_MILLIS = 25_000;
 
     /** Name of package where the mapping classes are */
     private static final String PACKAGE_NAME = "com.wetrack.model";
@@ -185,10 +208,127 @@ public class SpringConfig {
         return chatMessageRepository;
     }
 
+    @Bean
+    public ChatMembershipCache chatMembershipCache(ChatRepository chatRepository) {
+        return new ChatMembershipCache(chatRepository, CHAT_MEMBERSHIP_CACHE_SIZE, CHAT_MEMBERSHIP_CACHE_EXPIRE_MINUTES);
+    }
+
+    @Bean
+    public FriendCache friendCache(FriendRepository friendRepository) {
+        return new FriendCache(friendRepository, FRIEND_CACHE_SIZE, FRIEND_CACHE_EXPIRE_MINUTES);
+    }
+
+    @Bean
+    public LocationPublisher locationPublisher() {
+        return new LocationPublisher();
+    }
+
+    @Bean
+    public LatestLocationCache latestLocationCache(LocationRepository locationRepository) {
+        LatestLocationCache latestLocationCache = new LatestLocationCache(locationRepository,
+                LATEST_LOCATION_CACHE_SIZE, LATEST_LOCATION_CACHE_EXPIRE_MINUTES);
+        locationPublisher().addListener(latestLocationCache);
+        return latestLocationCache;
+    }
+
+    /** Shares the changes made on this node with the caches of the other nodes. */
+    @Bean
+    public ClusterCacheSync clusterCacheSync(MessageBus messageBus, LatestLocationCache latestLocationCache,
+                                             ChatMembershipCache chatMembershipCache, FriendCache friendCache) {
+        ClusterCacheSync clusterCacheSync = new ClusterCacheSync(messageBus, gson(), latestLocationCache,
+                chatMembershipCache, friendCache);
+        locationPublisher().addListener(clusterCacheSync);
+        return clusterCacheSync;
+    }
+
+    @Bean
+    public DeliveryCursorRepository deliveryCursorRepository(Datastore datastore) {
+        DeliveryCursorRepositoryImpl deliveryCursorRepository = new DeliveryCursorRepositoryImpl();
+        deliveryCursorRepository.setDatastore(datastore);
+        return deliveryCursorRepository;
+    }
+
+    @Bean
+    public PresenceRepository presenceRepository(Datastore datastore) {
+        PresenceRepositoryImpl presenceRepository = new PresenceRepositoryImpl();
+        presenceRepository.setDatastore(datastore);
+        return presenceRepository;
+    }
+
+    /**
+     * The cluster this node belongs to. Only the in-process implementation is available so far,
+     * which on its own makes this node a cluster of one.
+     */
+    @Bean
+    public InProcessCluster cluster() {
+        String messageBus = loadConfigs().getProperty("MessageBus", MESSAGE_BUS_IN_PROCESS);
+        if (!MESSAGE_BUS_IN_PROCESS.equals(messageBus))
+            throw new IllegalArgumentException("Unsupported message bus `" + messageBus + "`.");
+        return new InProcessCluster();
+    }
+
+    @Bean
+    public MessageBus messageBus(InProcessCluster cluster) {
+        // Defaults to `pid@hostname`, which is unique among the nodes of a deployment
+        String nodeId = loadConfigs().getProperty("NodeId", ManagementFactory.getRuntimeMXBean().getName());
+        LOG.info("Joining cluster as node `{}`", nodeId);
+        return cluster.join(nodeId);
+    }
+
+    @Bean
+    public PresenceDirectory presenceDirectory(InProcessCluster cluster) {
+        return cluster.getPresenceDirectory();
+    }
+
+    /** Metrics of this node, scraped through {@code GET /metrics}. */
+    @Bean
+    public MetricsRegistry metricsRegistry() {
+        return new MetricsRegistry();
+    }
+
+    /**
+     * Addresses which may scrape {@code GET /metrics}, given as a comma-separated list in the
+     * `MetricsAllowedAddresses` config. Defaults to the local host.
+     */
+    @Bean
+    public ScrapeAllowList scrapeAllowList() {
+        String addresses = loadConfigs().getProperty("MetricsAllowedAddresses", DEFAULT_METRICS_ALLOWED_ADDRESSES);
+        return new ScrapeAllowList(Arrays.asList(addresses.split(",")));
+    }
+
+    /**
+     * Streams of the notifications served over plain HTTP. Shared with the WebSocket context,
+     * which provides their handler.
+     */
+    @Bean
+    public NotificationStreams notificationStreams() {
+        return new NotificationStreams(LONG_POLL_CAPACITY, LONG_POLL_TIMEOUT_MILLIS);
+    }
+
+    @Bean
+    public ReadWatermarkRepository readWatermarkRepository(Datastore datastore) {
+        ReadWatermarkRepositoryImpl readWatermarkRepository = new ReadWatermarkRepositoryImpl();
+        readWatermarkRepository.setDatastore(datastore);
+        return readWatermarkRepository;
+    }
+
     @Bean
     public UserPortraitRepository userPortraitRepository(Datastore datastore) {
         UserPortraitRepositoryImpl userPortraitRepository = new UserPortraitRepositoryImpl();
         userPortraitRepository.setDatastore(datastore);
         return userPortraitRepository;
     }
+
+    private static Properties loadConfigs() {
+        Properties configs = new Properties();
+        Path dbConfig = Paths.get(System.getProperty("user.home"), CONFIG_PATH, DB_CONFIG);
+        if (Files.exists(dbConfig)) {
+            try {
+                configs.load(Files.newInputStream(dbConfig));
+            } catch (IOException e) {
+                LOG.warn("Exception occurred when trying to load database config file: ", e);
+            }
+        }
+        return configs;
+    }
 }
@@ -1,8 +1,7 @@
 package com.wetrack.config;
 
-import com.wetrack.ws.ExceptionHandlerDecorator;
-import com.wetrack.ws.WebSocketService;
-import org.springframework.context.annotation.Bean;
+import com.wetrack.ws.SessionDrainer;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
 import org.springframework.web.socket.WebSocketHandler;
@@ -10,23 +9,21 @@ import org.springframework.web.socket.config.annotation.EnableWebSocket;
 import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
 import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
 
-@Import(SpringConfig.class)
+/**
+ * Configuration of the WebSocket servlet context. Its parent is the root context created from
+ * {@link SpringConfig}, whose repositories and caches are shared with the REST services.
+ */
 @Configuration
 @EnableWebSocket
+@Import(WebSocketServiceConfig.class)
 public class SpringWebSocketConfig implements WebSocketConfigurer {
 
-    @Bean
-    public WebSocketService webSocketService() {
-        return new WebSocketService();
-    }
-
-    @Bean
-    public WebSocketHandler webSocketHandler() {
-        return new ExceptionHandlerDecorator(webSocketService());
-    }
+    @Autowired private WebSocketHandler webSocketHandler;
+    @Autowired private SessionDrainer sessionDrainer;
 
     @Override
     public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
-        registry.addHandler(webSocketHandler(), "/notifications").setAllowedOrigins("*");
+        registry.addHandler(webSocketHandler, "/notifications").setAllowedOrigins("*")
+                .addInterceptors(sessionDrainer);
     }
 }
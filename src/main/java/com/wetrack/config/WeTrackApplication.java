@@ -21,10 +21,13 @@ public class WeTrackApplication extends ResourceConfig {
         register(UserUpdateService.class);
         register(LocationService.class);
         register(FriendService.class);
+        register(PresenceService.class);
         register(ChatService.class);
         register(UserChatService.class);
         register(ChatMessageService.class);
         register(UserPortraitService.class);
+        register(MetricsService.class);
+        register(NotificationService.class);
         register(MultiPartFeature.class);
         register(GsonJerseyProvider.class);
     }
@@ -0,0 +1,335 @@
+package com.wetrack.config;
+
+import com.wetrack.cache.FriendCache;
+import com.wetrack.cluster.MessageBus;
+import com.wetrack.cluster.PresenceDirectory;
+import com.wetrack.dao.BulkInsertResult;
+import com.wetrack.dao.ChatMessageRepository;
+import com.wetrack.dao.ChatRepository;
+import com.wetrack.dao.DeliveryCursorRepository;
+import com.wetrack.dao.DuplicateEntityException;
+import com.wetrack.dao.LocationRepository;
+import com.wetrack.dao.PresenceRepository;
+import com.wetrack.dao.ReadWatermarkRepository;
+import com.wetrack.metrics.MetricsRegistry;
+import com.wetrack.model.ChatMessage;
+import com.wetrack.model.DeliveryCursor;
+import com.wetrack.model.Location;
+import com.wetrack.model.Presence;
+import com.wetrack.util.GroupCommitWriter;
+import com.wetrack.util.KeyedExecutor;
+import com.wetrack.ws.ClusterRouter;
+import com.wetrack.ws.ExceptionHandlerDecorator;
+import com.wetrack.ws.ExecutorHandlerDecorator;
+import com.wetrack.ws.FanOutEngine;
+import com.wetrack.ws.FrameRateLimiter;
+import com.wetrack.ws.FriendLocationPusher;
+import com.wetrack.ws.HandlerExecutorType;
+import com.wetrack.ws.HeartbeatMonitor;
+import com.wetrack.ws.NotificationStreams;
+import com.wetrack.ws.LastSeenRecorder;
+import com.wetrack.ws.OfflineReplayer;
+import com.wetrack.ws.OutboundDispatcher;
+import com.wetrack.ws.OverflowPolicy;
+import com.wetrack.ws.ReadWatermarkTracker;
+import com.wetrack.ws.SessionDrainer;
+import com.wetrack.ws.SessionRegistry;
+import com.wetrack.ws.TypingCoalescer;
+import com.wetrack.ws.WebSocketMetrics;
+import com.wetrack.ws.WebSocketService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Beans behind the {@code /notifications} endpoint, tunable through {@code ~/.wetrack/ws.conf}.
+ * Kept apart from {@link SpringWebSocketConfig} so that they can be loaded without a servlet
+ * container supporting WebSocket upgrades, e.g. in tests.
+ */
+@Configuration
+public class WebSocketServiceConfig {
+    private static final Logger LOG = LoggerFactory.getLogger(WebSocketServiceConfig.class);
+
+    static final String WS_CONFIG = "ws.conf";
+
+    static final int DEFAULT_OUTBOUND_QUEUE_CAPACITY = 256;
+    static final String DEFAULT_OUTBOUND_OVERFLOW_POLICY = OverflowPolicy.DROP_OLDEST.name();
+    static final int DEFAULT_OUTBOUND_WRITER_THREADS = 16;
+    static final int DEFAULT_CHAT_MESSAGE_BATCH_SIZE = 256;
+    static final int DEFAULT_CHAT_MESSAGE_BATCH_DELAY_MILLIS = 5;
+    static final int DEFAULT_CHAT_MESSAGE_QUEUE_CAPACITY = 16384;
+    static final int DEFAULT_LOCATION_BATCH_SIZE = 512;
+    static final int DEFAULT_LOCATION_BATCH_DELAY_MILLIS = 20;
+    static final int DEFAULT_LOCATION_QUEUE_CAPACITY = 65536;
+    static final int DEFAULT_FRIEND_LOCATION_INTERVAL_MILLIS = 1000;
+    static final int DEFAULT_HEARTBEAT_INTERVAL_MILLIS = 30_000;
+    static final int DEFAULT_IDLE_TIMEOUT_MILLIS = 75_000;
+    static final int HEARTBEAT_TICK_MILLIS = 1000;
+    static final int HEARTBEAT_WHEEL_SIZE = 128;
+    static final int PRESENCE_BATCH_SIZE = 256;
+    static final int PRESENCE_BATCH_DELAY_MILLIS = 50;
+    static final int PRESENCE_QUEUE_CAPACITY = 16384;
+    static final int DEFAULT_REPLAY_FRAME_SIZE = 100;
+    static final int DEFAULT_REPLAY_MAX_MESSAGES = 10_000;
+    static final int REPLAY_SAFETY_MARGIN_MILLIS = 5000;
+    static final String DEFAULT_HANDLER_EXECUTOR = HandlerExecutorType.PLATFORM.name();
+    static final int DEFAULT_HANDLER_THREADS = 32;
+    static final int DEFAULT_INBOUND_QUEUE_CAPACITY = 64;
+    static final int DEFAULT_FAN_OUT_THRESHOLD = 1000;
+    static final int DEFAULT_FAN_OUT_SHARD_SIZE = 250;
+    static final int DEFAULT_SESSION_RATE_LIMIT_BURST = 40;
+    static final int DEFAULT_SESSION_RATE_LIMIT_PER_SECOND = 20;
+    static final int DEFAULT_USER_RATE_LIMIT_BURST = 80;
+    static final int DEFAULT_USER_RATE_LIMIT_PER_SECOND = 40;
+    static final int DEFAULT_DRAIN_WAVE_SIZE = 500;
+    static final int DEFAULT_DRAIN_WAVE_INTERVAL_MILLIS = 250;
+    static final int DEFAULT_DRAIN_FLUSH_TIMEOUT_MILLIS = 2000;
+    static final int DEFAULT_RECONNECT_MAX_DELAY_MILLIS = 30_000;
+    static final int DEFAULT_READ_WATERMARK_BATCH_SIZE = 512;
+    static final int DEFAULT_READ_WATERMARK_BATCH_DELAY_MILLIS = 1000;
+    static final int READ_WATERMARK_QUEUE_CAPACITY = 65536;
+    static final int DEFAULT_TYPING_INTERVAL_MILLIS = 3000;
+    static final int TYPING_STATE_SIZE = 100_000;
+
+    private final Properties configs = loadConfigs();
+
+    @Autowired private MetricsRegistry metricsRegistry;
+    @Autowired private NotificationStreams notificationStreams;
+
+    @Bean
+    public SessionRegistry sessionRegistry() {
+        return new SessionRegistry();
+    }
+
+    @Bean
+    public OutboundDispatcher outboundDispatcher() {
+        int capacity = intConfig("OutboundQueueCapacity", DEFAULT_OUTBOUND_QUEUE_CAPACITY);
+        OverflowPolicy policy = OverflowPolicy.valueOf(
+                configs.getProperty("OutboundOverflowPolicy", DEFAULT_OUTBOUND_OVERFLOW_POLICY));
+        int writerThreads = intConfig("OutboundWriterThreads", DEFAULT_OUTBOUND_WRITER_THREADS);
+        LOG.debug("Outbound queues: capacity {}, overflow policy {}, {} writer threads",
+                capacity, policy, writerThreads);
+        return new OutboundDispatcher(capacity, policy, writerThreads);
+    }
+
+    @Bean
+    public FanOutEngine fanOutEngine() {
+        return new FanOutEngine(
+                intConfig("FanOutParallelism", Runtime.getRuntime().availableProcessors()),
+                intConfig("FanOutThreshold", DEFAULT_FAN_OUT_THRESHOLD),
+                intConfig("FanOutShardSize", DEFAULT_FAN_OUT_SHARD_SIZE));
+    }
+
+    @Bean
+    public ClusterRouter clusterRouter(MessageBus messageBus, PresenceDirectory presenceDirectory) {
+        return new ClusterRouter(messageBus, presenceDirectory, sessionRegistry(), outboundDispatcher(),
+                fanOutEngine());
+    }
+
+    /**
+     * Acknowledges and fans out chat messages once their batch is durable, so that the writer
+     * thread goes on with the next batch right away. Each chat is handled by one thread, which
+     * keeps its messages in order, while other chats, e.g. small ones waiting behind the fan-out
+     * of a large one, go on in parallel.
+     */
+    @Bean
+    public KeyedExecutor chatDeliveryExecutor() {
+        return new KeyedExecutor("chat-delivery",
+                intConfig("ChatDeliveryThreads", Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Publishes streamed location fixes once their batch is durable, off the writer thread, since
+     * the listeners may load friend lists or forward the fixes to other nodes. Each user is
+     * handled by one thread, which keeps the user's fixes in order.
+     */
+    @Bean
+    public KeyedExecutor locationDeliveryExecutor() {
+        return new KeyedExecutor("location-delivery",
+                intConfig("LocationDeliveryThreads", Runtime.getRuntime().availableProcessors()));
+    }
+
+    @Bean
+    public GroupCommitWriter<ChatMessage> chatMessageWriter(ChatMessageRepository chatMessageRepository) {
+        return GroupCommitWriter.withItemFailures("chat-message-writer",
+                intConfig("ChatMessageBatchSize", DEFAULT_CHAT_MESSAGE_BATCH_SIZE),
+                intConfig("ChatMessageBatchDelayMillis", DEFAULT_CHAT_MESSAGE_BATCH_DELAY_MILLIS),
+                intConfig("ChatMessageQueueCapacity", DEFAULT_CHAT_MESSAGE_QUEUE_CAPACITY),
+                messages -> insertFailures(messages, chatMessageRepository.bulkInsert(messages)));
+    }
+
+    /** Fails the messages a bulk insert did not write, so that only their senders are told. */
+    private static Map<Integer, Throwable> insertFailures(List<ChatMessage> messages, BulkInsertResult result) {
+        Map<Integer, Throwable> failures = new HashMap<>();
+        for (int index : result.indicesOf(BulkInsertResult.Outcome.DUPLICATE))
+            failures.put(index, new DuplicateEntityException("Chat message `" + messages.get(index).getId() + "` already exists."));
+        for (int index : result.indicesOf(BulkInsertResult.Outcome.FAILED))
+            failures.put(index, new IllegalStateException("Failed to insert chat message `" + messages.get(index).getId() + "`."));
+        return failures;
+    }
+
+    @Bean
+    public GroupCommitWriter<Location> locationWriter(LocationRepository locationRepository) {
+        return new GroupCommitWriter<>("location-writer",
+                intConfig("LocationBatchSize", DEFAULT_LOCATION_BATCH_SIZE),
+                intConfig("LocationBatchDelayMillis", DEFAULT_LOCATION_BATCH_DELAY_MILLIS),
+                intConfig("LocationQueueCapacity", DEFAULT_LOCATION_QUEUE_CAPACITY),
+                locationRepository::insertAll);
+    }
+
+    @Bean
+    public FriendLocationPusher friendLocationPusher(FriendCache friendCache, ClusterRouter clusterRouter) {
+        return new FriendLocationPusher(friendCache, clusterRouter, sessionRegistry(), outboundDispatcher(),
+                intConfig("FriendLocationIntervalMillis", DEFAULT_FRIEND_LOCATION_INTERVAL_MILLIS));
+    }
+
+    @Bean
+    public HeartbeatMonitor heartbeatMonitor() {
+        return new HeartbeatMonitor(outboundDispatcher(), handlerExecutor(),
+                intConfig("HeartbeatIntervalMillis", DEFAULT_HEARTBEAT_INTERVAL_MILLIS),
+                intConfig("IdleTimeoutMillis", DEFAULT_IDLE_TIMEOUT_MILLIS),
+                HEARTBEAT_TICK_MILLIS, HEARTBEAT_WHEEL_SIZE);
+    }
+
+    @Bean
+    public GroupCommitWriter<Presence> presenceWriter(PresenceRepository presenceRepository) {
+        return new GroupCommitWriter<>("presence-writer", PRESENCE_BATCH_SIZE, PRESENCE_BATCH_DELAY_MILLIS,
+                PRESENCE_QUEUE_CAPACITY, presenceRepository::insertAll);
+    }
+
+    @Bean
+    public LastSeenRecorder lastSeenRecorder(GroupCommitWriter<Presence> presenceWriter) {
+        webSocketMetrics().monitor("presence", presenceWriter);
+        return new LastSeenRecorder(sessionRegistry(), presenceWriter);
+    }
+
+    @Bean
+    public GroupCommitWriter<DeliveryCursor> deliveryCursorWriter(DeliveryCursorRepository deliveryCursorRepository) {
+        return new GroupCommitWriter<>("delivery-cursor-writer", PRESENCE_BATCH_SIZE, PRESENCE_BATCH_DELAY_MILLIS,
+                PRESENCE_QUEUE_CAPACITY, deliveryCursorRepository::insertAll);
+    }
+
+    @Bean
+    public OfflineReplayer offlineReplayer(ChatRepository chatRepository, ChatMessageRepository chatMessageRepository,
+                                           DeliveryCursorRepository deliveryCursorRepository,
+                                           GroupCommitWriter<DeliveryCursor> deliveryCursorWriter) {
+        webSocketMetrics().monitor("delivery_cursor", deliveryCursorWriter);
+        return new OfflineReplayer(chatRepository, chatMessageRepository, deliveryCursorRepository,
+                deliveryCursorWriter, sessionRegistry(), outboundDispatcher(),
+                intConfig("ReplayFrameSize", DEFAULT_REPLAY_FRAME_SIZE),
+                intConfig("ReplayMaxMessages", DEFAULT_REPLAY_MAX_MESSAGES),
+                REPLAY_SAFETY_MARGIN_MILLIS);
+    }
+
+    /**
+     * Drains the sessions when this context shuts down. Depending on every write-behind writer
+     * and delivery executor makes sure they are still running, and flushed, until the last
+     * session is closed.
+     */
+    @Bean
+    public SessionDrainer sessionDrainer(GroupCommitWriter<ChatMessage> chatMessageWriter,
+                                         GroupCommitWriter<Location> locationWriter,
+                                         GroupCommitWriter<Presence> presenceWriter,
+                                         GroupCommitWriter<DeliveryCursor> deliveryCursorWriter,
+                                         ReadWatermarkTracker readWatermarkTracker) {
+        return new SessionDrainer(heartbeatMonitor(), outboundDispatcher(),
+                Arrays.asList(chatMessageWriter, locationWriter, presenceWriter, deliveryCursorWriter,
+                        readWatermarkTracker.getWriter()),
+                Arrays.asList(chatDeliveryExecutor(), locationDeliveryExecutor()),
+                intConfig("DrainWaveSize", DEFAULT_DRAIN_WAVE_SIZE),
+                intConfig("DrainWaveIntervalMillis", DEFAULT_DRAIN_WAVE_INTERVAL_MILLIS),
+                intConfig("DrainFlushTimeoutMillis", DEFAULT_DRAIN_FLUSH_TIMEOUT_MILLIS),
+                intConfig("ReconnectMaxDelayMillis", DEFAULT_RECONNECT_MAX_DELAY_MILLIS));
+    }
+
+    @Bean
+    public ReadWatermarkTracker readWatermarkTracker(ReadWatermarkRepository readWatermarkRepository) {
+        ReadWatermarkTracker tracker = new ReadWatermarkTracker(readWatermarkRepository,
+                intConfig("ReadWatermarkBatchSize", DEFAULT_READ_WATERMARK_BATCH_SIZE),
+                intConfig("ReadWatermarkBatchDelayMillis", DEFAULT_READ_WATERMARK_BATCH_DELAY_MILLIS),
+                READ_WATERMARK_QUEUE_CAPACITY);
+        webSocketMetrics().monitor(tracker);
+        return tracker;
+    }
+
+    @Bean
+    public TypingCoalescer typingCoalescer() {
+        TypingCoalescer coalescer = new TypingCoalescer(
+                intConfig("TypingIntervalMillis", DEFAULT_TYPING_INTERVAL_MILLIS), TYPING_STATE_SIZE);
+        webSocketMetrics().monitor(coalescer);
+        return coalescer;
+    }
+
+    @Bean
+    public FrameRateLimiter frameRateLimiter() {
+        return new FrameRateLimiter(sessionRegistry(),
+                intConfig("SessionRateLimitBurst", DEFAULT_SESSION_RATE_LIMIT_BURST),
+                intConfig("SessionRateLimitPerSecond", DEFAULT_SESSION_RATE_LIMIT_PER_SECOND),
+                intConfig("UserRateLimitBurst", DEFAULT_USER_RATE_LIMIT_BURST),
+                intConfig("UserRateLimitPerSecond", DEFAULT_USER_RATE_LIMIT_PER_SECOND));
+    }
+
+    @Bean
+    public WebSocketMetrics webSocketMetrics() {
+        return new WebSocketMetrics(metricsRegistry);
+    }
+
+    @Bean
+    public WebSocketService webSocketService() {
+        return new WebSocketService();
+    }
+
+    @Bean
+    public ExecutorService handlerExecutor() {
+        HandlerExecutorType type = HandlerExecutorType.valueOf(
+                configs.getProperty("HandlerExecutor", DEFAULT_HANDLER_EXECUTOR));
+        int threads = intConfig("HandlerThreads", DEFAULT_HANDLER_THREADS);
+        LOG.debug("Handler executor: {} with {} threads", type, threads);
+        return type.create(threads);
+    }
+
+    @Bean
+    public ExecutorHandlerDecorator webSocketHandler(SessionDrainer sessionDrainer) {
+        ExecutorHandlerDecorator handler = new ExecutorHandlerDecorator(
+                new ExceptionHandlerDecorator(webSocketService(), outboundDispatcher(), webSocketMetrics()), handlerExecutor(),
+                intConfig("InboundQueueCapacity", DEFAULT_INBOUND_QUEUE_CAPACITY));
+        webSocketMetrics().monitor(sessionRegistry(), heartbeatMonitor(), outboundDispatcher(), handler,
+                frameRateLimiter());
+        webSocketMetrics().monitor(notificationStreams);
+        // Activity is recorded before the handler queue, which may be backed up
+        handler.setActivityListener(heartbeatMonitor()::touch);
+        notificationStreams.setHandler(handler, sessionDrainer);
+        return handler;
+    }
+
+    private int intConfig(String key, int defaultValue) {
+        return configs.containsKey(key) ? Integer.parseInt(configs.getProperty(key)) : defaultValue;
+    }
+
+    private static Properties loadConfigs() {
+        Properties configs = new Properties();
+        Path wsConfig = Paths.get(System.getProperty("user.home"), SpringConfig.CONFIG_PATH, WS_CONFIG);
+        if (Files.exists(wsConfig)) {
+            try {
+                configs.load(Files.newInputStream(wsConfig));
+            } catch (IOException e) {
+                LOG.warn("Exception occurred when trying to load WebSocket config file: ", e);
+            }
+        } else
+            LOG.info("WebSocket config file could not be found. Using default setting...");
+        return configs;
+    }
+}
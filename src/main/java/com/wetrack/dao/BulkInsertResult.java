@@ -0,0 +1,56 @@
+package com.wetrack.dao;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Outcome of each entity of a bulk insert, by the entity's position in the inserted list.
+ */
+public class BulkInsertResult {
+
+    public enum Outcome {
+        INSERTED,
+        /** An entity with the same ID already existed, possibly earlier in the same list. */
+        DUPLICATE,
+        FAILED
+    }
+
+    private final Outcome[] outcomes;
+
+    public BulkInsertResult(int size) {
+        this.outcomes = new Outcome[size];
+        Arrays.fill(outcomes, Outcome.INSERTED);
+    }
+
+    public void set(int index, Outcome outcome) {
+        outcomes[index] = outcome;
+    }
+
+    public Outcome get(int index) {
+        return outcomes[index];
+    }
+
+    public int size() {
+        return outcomes.length;
+    }
+
+    public int count(Outcome outcome) {
+        int count = 0;
+        for (Outcome each : outcomes) {
+            if (each == outcome)
+                count++;
+        }
+        return count;
+    }
+
+    /** Positions of the entities with the given outcome, in ascending order. */
+    public List<Integer> indicesOf(Outcome outcome) {
+        List<Integer> indices = new ArrayList<>();
+        for (int i = 0; i < outcomes.length; i++) {
+            if (outcomes[i] == outcome)
+                indices.add(i);
+        }
+        return indices;
+    }
+}
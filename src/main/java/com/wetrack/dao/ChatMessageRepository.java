@@ -3,12 +3,41 @@ package com.wetrack.dao;
 import com.wetrack.model.ChatMessage;
 
 import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 
+/**
+ * Chat messages get a dense per-chat sequence number when they are inserted through
+ * {@link #insert}, {@link #insertAll} or {@link #bulkInsert}, unless they already have one. Numbers are reserved
+ * before the insert, so a number can be missing from a chat for good, if the insert failed or the
+ * message was withdrawn, or briefly, while a concurrent insert of a lower number is in flight.
+ * Clients syncing by sequence should therefore ask again for the gaps they see.
+ */
 public interface ChatMessageRepository extends Repository<String, ChatMessage> {
 
     List<ChatMessage> getChatMessages(String chatId, LocalDateTime since, LocalDateTime before);
 
     List<ChatMessage> getChatMessages(String chatId, LocalDateTime before, int limit);
 
+    /**
+     * Returns up to {@code limit} messages of the given chats which come after the given position,
+     * ordered by send time and then by ID. If {@code afterId} is {@code null}, only messages sent
+     * strictly after {@code afterTime} are returned.
+     */
+    List<ChatMessage> getChatMessagesAfter(Collection<String> chatIds, LocalDateTime afterTime, String afterId, int limit);
+
+    /**
+     * Returns up to {@code limit} messages of the given chat whose sequence number is greater than
+     * {@code afterSequence}, in sequence order.
+     */
+    List<ChatMessage> getChatMessagesAfterSequence(String chatId, long afterSequence, int limit);
+
+    /**
+     * Inserts the given messages with one unordered bulk write. Unlike {@link #insertAll}, an
+     * existing message is never replaced: a message whose ID is taken is reported as a duplicate,
+     * and a failed message does not keep the others from being inserted. The sequence numbers of
+     * messages that were not inserted stay unused.
+     */
+    BulkInsertResult bulkInsert(List<ChatMessage> messages);
+
 }
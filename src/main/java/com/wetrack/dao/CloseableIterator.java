@@ -0,0 +1,13 @@
+package com.wetrack.dao;
+
+import java.util.Iterator;
+
+/**
+ * An iterator over the results of a query which holds a database cursor until it is closed.
+ */
+public interface CloseableIterator<T> extends Iterator<T>, AutoCloseable {
+
+    @Override
+    void close();
+
+}
@@ -0,0 +1,6 @@
+package com.wetrack.dao;
+
+import com.wetrack.model.DeliveryCursor;
+
+public interface DeliveryCursorRepository extends Repository<String, DeliveryCursor> {
+}
@@ -0,0 +1,11 @@
+package com.wetrack.dao;
+
+/**
+ * Thrown for an entity which was not inserted because another one with the same ID exists.
+ */
+public class DuplicateEntityException extends RuntimeException {
+
+    public DuplicateEntityException(String message) {
+        super(message);
+    }
+}
@@ -11,4 +11,40 @@ public interface LocationRepository extends Repository<String, Location> {
 
     Location getLatestLocation(String username);
 
+    /**
+     * Returns the fix of the given user at {@code offset} among those after the given position and
+     * no later than {@code until}, ordered by time and then by ID, or {@code null} if there are
+     * not that many. If {@code afterId} is {@code null}, only fixes strictly after
+     * {@code afterTime} count, and a {@code null} {@code until} sets no upper bound. Only the time
+     * and ID of the fix are loaded.
+     */
+    Location findLocationAt(String username, LocalDateTime afterTime, String afterId,
+                            LocalDateTime until, int offset);
+
+    /**
+     * Iterates over up to {@code limit} fixes of the given user after the given position and up to
+     * the given one, ordered by time and then by ID. Positions are read like in
+     * {@link #findLocationAt}; if {@code untilId} is {@code null}, fixes at {@code untilTime} are
+     * included. A {@code limit} of {@code 0} sets no limit.
+     */
+    CloseableIterator<Location> iterateLocations(String username, LocalDateTime afterTime, String afterId,
+                                                 LocalDateTime untilTime, String untilId, int limit);
+
+    /**
+     * Inserts the given fixes with unordered bulk writes of a bounded size. Unlike
+     * {@link #insertAll}, an existing fix is never replaced: a fix whose ID is taken is reported
+     * as a duplicate, and a failed fix does not keep the others from being inserted.
+     */
+    BulkInsertResult bulkInsert(List<Location> locations);
+
+    /**
+     * Moves every fix stored under an ID other than its {@link Location#generateId() content-based}
+     * one to that ID, dropping the copies of fixes that were stored more than once. Meant to be
+     * run once over fixes stored before IDs were derived from content; running it again finds
+     * nothing to do.
+     *
+     * @return the number of documents removed as duplicates.
+     */
+    long deduplicate();
+
 }
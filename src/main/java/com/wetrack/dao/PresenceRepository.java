@@ -0,0 +1,12 @@
+package com.wetrack.dao;
+
+import com.wetrack.model.Presence;
+
+import java.util.Collection;
+import java.util.List;
+
+public interface PresenceRepository extends Repository<String, Presence> {
+
+    List<Presence> findByUsernames(Collection<String> usernames);
+
+}
@@ -0,0 +1,19 @@
+package com.wetrack.dao;
+
+import com.wetrack.model.ReadWatermark;
+
+import java.util.Collection;
+import java.util.List;
+
+public interface ReadWatermarkRepository extends Repository<String, ReadWatermark> {
+
+    /**
+     * Moves each given watermark forward to the given sequence number, creating it if needed, with
+     * a single unordered bulk write. A watermark which is further ahead already is left as it is,
+     * so batches written out of order never move a watermark back.
+     */
+    void advanceAll(Collection<ReadWatermark> watermarks);
+
+    List<ReadWatermark> findByChatId(String chatId);
+
+}
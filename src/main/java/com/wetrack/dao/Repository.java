@@ -2,9 +2,16 @@ package com.wetrack.dao;
 
 import com.wetrack.model.DbEntity;
 
+import java.util.Collection;
+
 public interface Repository<S, T extends DbEntity<S>> {
     T findById(S id);
     void insert(T t);
+
+    /**
+     * Inserts or replaces all given entities with a single unordered bulk write.
+     */
+    void insertAll(Collection<T> ts);
     void update(T t);
     void delete(T t);
 }
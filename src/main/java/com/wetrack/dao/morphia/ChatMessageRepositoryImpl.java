@@ -1,12 +1,33 @@
 package com.wetrack.dao.morphia;
 
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.MongoException;
+import com.wetrack.dao.BulkInsertResult;
 import com.wetrack.dao.ChatMessageRepository;
 import com.wetrack.model.ChatMessage;
+import com.wetrack.model.ChatSequence;
+import org.mongodb.morphia.Datastore;
+import org.mongodb.morphia.mapping.Mapper;
+import org.mongodb.morphia.query.Query;
+import org.mongodb.morphia.query.UpdateOperations;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class ChatMessageRepositoryImpl extends MorphiaRepository<String, ChatMessage> implements ChatMessageRepository {
+    private static final Logger LOG = LoggerFactory.getLogger(ChatMessageRepositoryImpl.class);
+
+    private static final int DUPLICATE_KEY = 11000;
+
     @Override
     public List<ChatMessage> getChatMessages(String chatId, LocalDateTime since, LocalDateTime before) {
         return createQuery().field("chatId").equal(chatId)
@@ -21,6 +42,97 @@ public class ChatMessageRepositoryImpl extends MorphiaRepository<String, ChatMes
                 .limit(limit).asList();
     }
 
+    @Override
+    public List<ChatMessage> getChatMessagesAfter(Collection<String> chatIds, LocalDateTime afterTime,
+                                                  String afterId, int limit) {
+        Query<ChatMessage> query = createQuery().field("chatId").in(chatIds);
+        if (afterId == null)
+            query.field("sendTime").greaterThan(afterTime);
+        else
+            query.or(
+                    query.criteria("sendTime").greaterThan(afterTime),
+                    query.and(query.criteria("sendTime").equal(afterTime), query.criteria("_id").greaterThan(afterId))
+            );
+        return query.order("sendTime, _id").limit(limit).asList();
+    }
+
+    @Override
+    public List<ChatMessage> getChatMessagesAfterSequence(String chatId, long afterSequence, int limit) {
+        return createQuery().field("chatId").equal(chatId)
+                .field("sequence").greaterThan(afterSequence)
+                .order("sequence").limit(limit).asList();
+    }
+
+    @Override
+    public void insert(ChatMessage message) {
+        assignSequences(Collections.singletonList(message));
+        super.insert(message);
+    }
+
+    @Override
+    public void insertAll(Collection<ChatMessage> messages) {
+        assignSequences(messages);
+        super.insertAll(messages);
+    }
+
+    @Override
+    public BulkInsertResult bulkInsert(List<ChatMessage> messages) {
+        BulkInsertResult result = new BulkInsertResult(messages.size());
+        if (messages.isEmpty())
+            return result;
+        assignSequences(messages);
+        Mapper mapper = getMapper();
+        BulkWriteOperation bulk = getDatastore().getCollection(getEntityClass()).initializeUnorderedBulkOperation();
+        for (ChatMessage message : messages)
+            bulk.insert(mapper.toDBObject(message));
+        try {
+            bulk.execute();
+        } catch (BulkWriteException ex) {
+            for (BulkWriteError error : ex.getWriteErrors())
+                result.set(error.getIndex(), error.getCode() == DUPLICATE_KEY
+                        ? BulkInsertResult.Outcome.DUPLICATE : BulkInsertResult.Outcome.FAILED);
+            if (ex.getWriteConcernError() != null)
+                LOG.warn("Bulk insert of chat messages was not acknowledged as requested: {}",
+                        ex.getWriteConcernError().getMessage());
+        } catch (MongoException ex) {
+            // A lone message refused for its ID is a duplicate, however the error was reported
+            if (messages.size() == 1 && ex.getCode() == DUPLICATE_KEY) {
+                result.set(0, BulkInsertResult.Outcome.DUPLICATE);
+                return result;
+            }
+            LOG.warn("Bulk insert of " + messages.size() + " chat messages failed: ", ex);
+            for (int i = 0; i < messages.size(); i++)
+                result.set(i, BulkInsertResult.Outcome.FAILED);
+        }
+        return result;
+    }
+
+    /**
+     * Numbers the given messages which have no sequence number yet, in the order given. One block
+     * of numbers is reserved per chat.
+     */
+    private void assignSequences(Collection<ChatMessage> messages) {
+        Map<String, List<ChatMessage>> messagesByChat = new LinkedHashMap<>();
+        for (ChatMessage message : messages) {
+            if (message.getSequence() == null && message.getChatId() != null)
+                messagesByChat.computeIfAbsent(message.getChatId(), key -> new ArrayList<>()).add(message);
+        }
+        for (Map.Entry<String, List<ChatMessage>> entry : messagesByChat.entrySet()) {
+            List<ChatMessage> chatMessages = entry.getValue();
+            long sequence = reserveSequences(entry.getKey(), chatMessages.size());
+            for (ChatMessage message : chatMessages)
+                message.setSequence(sequence++);
+        }
+    }
+
+    /** Reserves {@code count} consecutive sequence numbers of the given chat and returns the first. */
+    private long reserveSequences(String chatId, int count) {
+        Datastore datastore = getDatastore();
+        Query<ChatSequence> query = datastore.createQuery(ChatSequence.class).field("_id").equal(chatId);
+        UpdateOperations<ChatSequence> increment = datastore.createUpdateOperations(ChatSequence.class).inc("last", count);
+        return datastore.findAndModify(query, increment, false, true).getLast() - count + 1;
+    }
+
     @Override
     protected Class<ChatMessage> getEntityClass() {
         return ChatMessage.class;
@@ -0,0 +1,13 @@
+package com.wetrack.dao.morphia;
+
+import com.wetrack.dao.DeliveryCursorRepository;
+import com.wetrack.model.DeliveryCursor;
+
+public class DeliveryCursorRepositoryImpl extends MorphiaRepository<String, DeliveryCursor>
+        implements DeliveryCursorRepository {
+
+    @Override
+    protected Class<DeliveryCursor> getEntityClass() {
+        return DeliveryCursor.class;
+    }
+}
@@ -1,12 +1,33 @@
 package com.wetrack.dao.morphia;
 
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.wetrack.dao.BulkInsertResult;
+import com.wetrack.dao.CloseableIterator;
 import com.wetrack.dao.LocationRepository;
 import com.wetrack.model.Location;
+import org.mongodb.morphia.mapping.Mapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class LocationRepositoryImpl extends MorphiaRepository<String, Location> implements LocationRepository {
+    private static final Logger LOG = LoggerFactory.getLogger(LocationRepositoryImpl.class);
+
+    static final int BULK_INSERT_CHUNK_SIZE = 1000;
+    private static final int DUPLICATE_KEY = 11000;
+    private static final DBObject HISTORY_ORDER = new BasicDBObject("time", 1).append("_id", 1);
+
     @Override
     public List<Location> findLocationsSince(String username, LocalDateTime sinceTime) {
         return createQuery().field("username").equal(username)
@@ -18,6 +39,140 @@ public class LocationRepositoryImpl extends MorphiaRepository<String, Location>
         return createQuery().field("username").equal(username).order("-time").get();
     }
 
+    @Override
+    public Location findLocationAt(String username, LocalDateTime afterTime, String afterId,
+                                   LocalDateTime until, int offset) {
+        DBCollection collection = getDatastore().getCollection(getEntityClass());
+        try (DBCursor cursor = collection.find(locationsBetween(username, afterTime, afterId, until, null),
+                new BasicDBObject("time", 1)).sort(HISTORY_ORDER).skip(offset).limit(1)) {
+            return cursor.hasNext() ? toLocation(cursor.next()) : null;
+        }
+    }
+
+    @Override
+    public CloseableIterator<Location> iterateLocations(String username, LocalDateTime afterTime, String afterId,
+                                                        LocalDateTime untilTime, String untilId, int limit) {
+        DBCursor cursor = getDatastore().getCollection(getEntityClass())
+                .find(locationsBetween(username, afterTime, afterId, untilTime, untilId))
+                .sort(HISTORY_ORDER).limit(limit);
+        return new CloseableIterator<Location>() {
+            @Override
+            public boolean hasNext() {
+                return cursor.hasNext();
+            }
+
+            @Override
+            public Location next() {
+                return toLocation(cursor.next());
+            }
+
+            @Override
+            public void close() {
+                cursor.close();
+            }
+        };
+    }
+
+    /**
+     * Built on the driver, since Morphia puts both {@code $or}s of a query into the same document,
+     * where the second replaces the first.
+     */
+    private DBObject locationsBetween(String username, LocalDateTime afterTime, String afterId,
+                                      LocalDateTime untilTime, String untilId) {
+        Object after = getMapper().getConverters().encode(afterTime);
+        List<DBObject> bounds = new ArrayList<>();
+        bounds.add(new BasicDBObject("username", username));
+        if (afterId == null)
+            bounds.add(new BasicDBObject("time", new BasicDBObject("$gt", after)));
+        else
+            bounds.add(new BasicDBObject("$or", Arrays.asList(
+                    new BasicDBObject("time", new BasicDBObject("$gt", after)),
+                    new BasicDBObject("time", after).append("_id", new BasicDBObject("$gt", afterId)))));
+        if (untilTime != null) {
+            Object until = getMapper().getConverters().encode(untilTime);
+            if (untilId == null)
+                bounds.add(new BasicDBObject("time", new BasicDBObject("$lte", until)));
+            else
+                bounds.add(new BasicDBObject("$or", Arrays.asList(
+                        new BasicDBObject("time", new BasicDBObject("$lt", until)),
+                        new BasicDBObject("time", until).append("_id", new BasicDBObject("$lte", untilId)))));
+        }
+        return new BasicDBObject("$and", bounds);
+    }
+
+    private Location toLocation(DBObject dbObject) {
+        return getMapper().fromDBObject(getDatastore(), Location.class, dbObject, getMapper().createEntityCache());
+    }
+
+    @Override
+    public BulkInsertResult bulkInsert(List<Location> locations) {
+        BulkInsertResult result = new BulkInsertResult(locations.size());
+        DBCollection collection = getDatastore().getCollection(getEntityClass());
+        Mapper mapper = getMapper();
+        for (int from = 0; from < locations.size(); from += BULK_INSERT_CHUNK_SIZE) {
+            int to = Math.min(from + BULK_INSERT_CHUNK_SIZE, locations.size());
+            BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+            for (Location location : locations.subList(from, to))
+                bulk.insert(mapper.toDBObject(location));
+            try {
+                bulk.execute();
+            } catch (BulkWriteException ex) {
+                // Indices of write errors are relative to the chunk
+                for (BulkWriteError error : ex.getWriteErrors())
+                    result.set(from + error.getIndex(), error.getCode() == DUPLICATE_KEY
+                            ? BulkInsertResult.Outcome.DUPLICATE : BulkInsertResult.Outcome.FAILED);
+                if (ex.getWriteConcernError() != null)
+                    LOG.warn("Bulk insert of locations was not acknowledged as requested: {}",
+                            ex.getWriteConcernError().getMessage());
+            } catch (MongoException ex) {
+                LOG.warn("Bulk insert of " + (to - from) + " locations failed: ", ex);
+                for (int i = from; i < to; i++)
+                    result.set(i, BulkInsertResult.Outcome.FAILED);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public long deduplicate() {
+        DBCollection collection = getDatastore().getCollection(getEntityClass());
+        Mapper mapper = getMapper();
+        long moved = 0;
+        long created = 0;
+        BulkWriteOperation bulk = collection.initializeOrderedBulkOperation();
+        int pending = 0;
+        // Old IDs are read raw, since fixes stored without one got an ObjectId.
+        // Fixes moved to their new ID may come up again, but are left alone by then.
+        try (DBCursor cursor = collection.find()) {
+            for (DBObject dbObject : cursor) {
+                Object oldId = dbObject.removeField("_id");
+                Location location = toLocation(dbObject);
+                if (location.getUsername() == null || location.getPoint() == null || location.getTime() == null)
+                    continue;
+                location.generateId();
+                if (location.getId().equals(oldId))
+                    continue;
+
+                // The first copy creates the document under the new ID, the others only disappear.
+                // The bulk is ordered, so it stops before the removal if the upsert fails, and the
+                // fix is moved on the next run.
+                bulk.find(new BasicDBObject("_id", location.getId())).upsert()
+                        .updateOne(new BasicDBObject("$setOnInsert", mapper.toDBObject(location)));
+                bulk.find(new BasicDBObject("_id", oldId)).removeOne();
+                moved++;
+                if (++pending >= BULK_INSERT_CHUNK_SIZE) {
+                    created += bulk.execute().getUpserts().size();
+                    bulk = collection.initializeOrderedBulkOperation();
+                    pending = 0;
+                }
+            }
+        }
+        if (pending > 0)
+            created += bulk.execute().getUpserts().size();
+        LOG.info("Moved {} locations to content-based IDs, of which {} were duplicates", moved, moved - created);
+        return moved - created;
+    }
+
     @Override
     protected Class<Location> getEntityClass() {
         return Location.class;
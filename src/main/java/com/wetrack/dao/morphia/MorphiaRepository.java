@@ -1,10 +1,17 @@
 package com.wetrack.dao.morphia;
 
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBObject;
 import com.wetrack.dao.Repository;
 import com.wetrack.model.DbEntity;
 import org.mongodb.morphia.Datastore;
+import org.mongodb.morphia.DatastoreImpl;
+import org.mongodb.morphia.mapping.Mapper;
 import org.mongodb.morphia.query.Query;
 
+import java.util.Collection;
+
 public abstract class MorphiaRepository<S, T extends DbEntity<S>> implements Repository<S, T> {
 
     private Datastore datastore;
@@ -23,6 +30,10 @@ public abstract class MorphiaRepository<S, T extends DbEntity<S>> implements Rep
         return datastore.createQuery(getEntityClass());
     }
 
+    protected Mapper getMapper() {
+        return ((DatastoreImpl) datastore).getMapper();
+    }
+
     @Override
     public T findById(S id) {
         return createQuery().field("_id").equal(id).get();
@@ -33,6 +44,20 @@ public abstract class MorphiaRepository<S, T extends DbEntity<S>> implements Rep
         datastore.save(t);
     }
 
+    @Override
+    public void insertAll(Collection<T> ts) {
+        if (ts.isEmpty())
+            return;
+        // Replace-by-ID upserts keep the semantics of `insert`, which is a `save`
+        Mapper mapper = getMapper();
+        BulkWriteOperation bulk = datastore.getCollection(getEntityClass()).initializeUnorderedBulkOperation();
+        for (T t : ts) {
+            DBObject dbObject = mapper.toDBObject(t);
+            bulk.find(new BasicDBObject("_id", dbObject.get("_id"))).upsert().replaceOne(dbObject);
+        }
+        bulk.execute();
+    }
+
     @Override
     public void update(T t) {
         datastore.save(t);
@@ -0,0 +1,20 @@
+package com.wetrack.dao.morphia;
+
+import com.wetrack.dao.PresenceRepository;
+import com.wetrack.model.Presence;
+
+import java.util.Collection;
+import java.util.List;
+
+public class PresenceRepositoryImpl extends MorphiaRepository<String, Presence> implements PresenceRepository {
+
+    @Override
+    protected Class<Presence> getEntityClass() {
+        return Presence.class;
+    }
+
+    @Override
+    public List<Presence> findByUsernames(Collection<String> usernames) {
+        return createQuery().field("_id").in(usernames).asList();
+    }
+}
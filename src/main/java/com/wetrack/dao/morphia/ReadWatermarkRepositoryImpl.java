@@ -0,0 +1,37 @@
+package com.wetrack.dao.morphia;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import com.wetrack.dao.ReadWatermarkRepository;
+import com.wetrack.model.ReadWatermark;
+
+import java.util.Collection;
+import java.util.List;
+
+public class ReadWatermarkRepositoryImpl extends MorphiaRepository<String, ReadWatermark>
+        implements ReadWatermarkRepository {
+
+    @Override
+    public void advanceAll(Collection<ReadWatermark> watermarks) {
+        if (watermarks.isEmpty())
+            return;
+        BulkWriteOperation bulk = getDatastore().getCollection(getEntityClass()).initializeUnorderedBulkOperation();
+        for (ReadWatermark watermark : watermarks) {
+            BasicDBObject update = new BasicDBObject("$max", new BasicDBObject("sequence", watermark.getSequence()))
+                    .append("$setOnInsert", new BasicDBObject("chatId", watermark.getChatId())
+                            .append("username", watermark.getUsername()));
+            bulk.find(new BasicDBObject("_id", watermark.getId())).upsert().updateOne(update);
+        }
+        bulk.execute();
+    }
+
+    @Override
+    public List<ReadWatermark> findByChatId(String chatId) {
+        return createQuery().field("chatId").equal(chatId).asList();
+    }
+
+    @Override
+    protected Class<ReadWatermark> getEntityClass() {
+        return ReadWatermark.class;
+    }
+}
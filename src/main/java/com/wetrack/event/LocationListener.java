@@ -0,0 +1,16 @@
+package com.wetrack.event;
+
+import com.wetrack.model.Location;
+
+/**
+ * Receives the newest persisted location fix of a user.
+ */
+@FunctionalInterface
+public interface LocationListener {
+
+    /**
+     * Called on the thread which ingested the fix, so implementations must not block.
+     */
+    void onLocation(Location location);
+
+}
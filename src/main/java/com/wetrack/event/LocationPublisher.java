@@ -0,0 +1,56 @@
+package com.wetrack.event;
+
+import com.wetrack.model.Location;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Hands location fixes to interested parties once they have been persisted, no matter whether
+ * they were uploaded over REST or streamed over the WebSocket.
+ */
+public class LocationPublisher {
+    private static final Logger LOG = LoggerFactory.getLogger(LocationPublisher.class);
+
+    private final List<LocationListener> listeners = new CopyOnWriteArrayList<>();
+
+    public void addListener(LocationListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(LocationListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Publishes the given persisted fixes. Only the newest fix of each user is passed on, since
+     * listeners only care about where a user is now.
+     */
+    public void publish(Collection<Location> locations) {
+        if (locations.isEmpty() || listeners.isEmpty())
+            return;
+
+        Map<String, Location> newest = new HashMap<>();
+        for (Location location : locations) {
+            if (location.getUsername() == null || location.getTime() == null)
+                continue;
+            newest.merge(location.getUsername(), location,
+                    (current, candidate) -> candidate.getTime().isAfter(current.getTime()) ? candidate : current);
+        }
+
+        for (Location location : newest.values()) {
+            for (LocationListener listener : listeners) {
+                try {
+                    listener.onLocation(location);
+                } catch (Exception ex) {
+                    LOG.warn("Location listener failed for user `" + location.getUsername() + "`: ", ex);
+                }
+            }
+        }
+    }
+}
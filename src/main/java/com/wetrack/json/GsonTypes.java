@@ -2,6 +2,8 @@ package com.wetrack.json;
 
 import com.google.gson.reflect.TypeToken;
 import com.wetrack.model.Chat;
+import com.wetrack.model.ChatMessage;
+import com.wetrack.model.Location;
 import com.wetrack.model.User;
 
 import java.lang.reflect.Type;
@@ -12,5 +14,7 @@ public abstract class GsonTypes {
     public static final Type userListType = new TypeToken<List<User>>(){}.getType();
     public static final Type stringListType = new TypeToken<List<String>>(){}.getType();
     public static final Type chatListType = new TypeToken<List<Chat>>(){}.getType();
+    public static final Type chatMessageListType = new TypeToken<List<ChatMessage>>(){}.getType();
+    public static final Type locationListType = new TypeToken<List<Location>>(){}.getType();
 
 }
@@ -0,0 +1,104 @@
+package com.wetrack.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with exponential buckets.
+ * <p>
+ * Bucket {@code i} holds durations of up to {@code 10µs * 2^i}; the last one holds everything
+ * longer than about 10 seconds. The bucket of a duration is computed with a single
+ * leading-zeros count instead of a search, and every bucket is a {@link LongAdder}, so recording
+ * never blocks and concurrent recorders hardly contend. The relative error of a quantile read
+ * from the buckets is at most a factor of two, which is enough to tell where time goes.
+ */
+public class Histogram {
+    static final long BASE_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+    static final int BUCKETS = 22;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder sumNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    public Histogram() {
+        for (int i = 0; i < BUCKETS; i++)
+            buckets[i] = new LongAdder();
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        buckets[bucketOf(nanos)].increment();
+        sumNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+    }
+
+    /** Records the time passed since {@code startNanos}, a reading of {@link System#nanoTime()}. */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /** Upper bound of the given bucket in nanoseconds; {@link Long#MAX_VALUE} for the last one. */
+    static long upperBoundNanos(int bucket) {
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : BASE_NANOS << bucket;
+    }
+
+    static int bucketOf(long nanos) {
+        if (nanos <= BASE_NANOS)
+            return 0;
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros((nanos - 1) / BASE_NANOS));
+    }
+
+    /** Takes a snapshot of the counts. Concurrent recordings may or may not be included. */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+            counts[i] = buckets[i].sum();
+        return new Snapshot(counts, sumNanos.sum(), maxNanos.get());
+    }
+
+    public static class Snapshot {
+        private final long[] counts;
+        private final long sumNanos;
+        private final long maxNanos;
+
+        private Snapshot(long[] counts, long sumNanos, long maxNanos) {
+            this.counts = counts;
+            this.sumNanos = sumNanos;
+            this.maxNanos = maxNanos;
+        }
+
+        public long getCount() {
+            long count = 0;
+            for (long bucketCount : counts)
+                count += bucketCount;
+            return count;
+        }
+
+        /** Number of recorded durations in the given bucket. */
+        public long getBucketCount(int bucket) { return counts[bucket]; }
+
+        public long getSumNanos() { return sumNanos; }
+
+        public long getMaxNanos() { return maxNanos; }
+
+        /**
+         * Upper bound of the bucket holding the given quantile, e.g. 0.99, in nanoseconds; the
+         * maximum if that is smaller. 0 if nothing has been recorded.
+         */
+        public long getQuantileNanos(double quantile) {
+            long count = getCount();
+            if (count == 0)
+                return 0;
+            long rank = (long) Math.ceil(quantile * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank)
+                    return Math.min(upperBoundNanos(i), maxNanos);
+            }
+            return maxNanos;
+        }
+    }
+}
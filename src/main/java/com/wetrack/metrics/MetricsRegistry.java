@@ -0,0 +1,142 @@
+package com.wetrack.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Registry of the metrics of this node, rendered in the Prometheus text exposition format by
+ * {@link #scrape()}.
+ * <p>
+ * Metrics are registered once, when their component is created; recording only touches the
+ * {@link Counter} or {@link Histogram} itself. Values that a component counts anyway, e.g. its
+ * queue depth, are registered as callbacks and read at scrape time, so they cost nothing in
+ * between. Labels are given as alternating names and values.
+ */
+public class MetricsRegistry {
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private enum Type { COUNTER, GAUGE, HISTOGRAM }
+
+    private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+    public Counter counter(String name, String help, String... labels) {
+        Counter counter = new Counter();
+        register(name, help, Type.COUNTER, labels, counter::get, null);
+        return counter;
+    }
+
+    /** Registers a counter whose value is kept by the caller and read on every scrape. */
+    public void counter(String name, String help, DoubleSupplier value, String... labels) {
+        register(name, help, Type.COUNTER, labels, value, null);
+    }
+
+    public void gauge(String name, String help, DoubleSupplier value, String... labels) {
+        register(name, help, Type.GAUGE, labels, value, null);
+    }
+
+    /** Registers a histogram of durations, exposed in seconds. */
+    public Histogram histogram(String name, String help, String... labels) {
+        Histogram histogram = new Histogram();
+        register(name, help, Type.HISTOGRAM, labels, null, histogram);
+        return histogram;
+    }
+
+    /** Renders every registered metric in the Prometheus text exposition format, version 0.0.4. */
+    public String scrape() {
+        StringBuilder builder = new StringBuilder(4096);
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            builder.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            builder.append("# TYPE ").append(name).append(' ').append(family.type.name().toLowerCase()).append('\n');
+            for (Series series : family.series) {
+                if (family.type == Type.HISTOGRAM)
+                    writeHistogram(builder, name, series);
+                else
+                    writeSample(builder, name, series.labels, null, series.value.getAsDouble());
+            }
+        }
+        return builder.toString();
+    }
+
+    private void register(String name, String help, Type type, String[] labels, DoubleSupplier value,
+                          Histogram histogram) {
+        if (labels.length % 2 != 0)
+            throw new IllegalArgumentException("Labels of metric `" + name + "` must be name-value pairs.");
+        Family family = families.computeIfAbsent(name, key -> new Family(help, type));
+        if (family.type != type)
+            throw new IllegalArgumentException("Metric `" + name + "` is already registered as a " + family.type + ".");
+        String renderedLabels = renderLabels(labels);
+        for (Series series : family.series) {
+            if (series.labels.equals(renderedLabels))
+                throw new IllegalArgumentException("Metric `" + name + "{" + renderedLabels + "}` is already registered.");
+        }
+        family.series.add(new Series(renderedLabels, value, histogram));
+    }
+
+    private static void writeHistogram(StringBuilder builder, String name, Series series) {
+        Histogram.Snapshot snapshot = series.histogram.snapshot();
+        long cumulative = 0;
+        for (int i = 0; i < Histogram.BUCKETS; i++) {
+            cumulative += snapshot.getBucketCount(i);
+            long bound = Histogram.upperBoundNanos(i);
+            String le = bound == Long.MAX_VALUE ? "+Inf" : formatDouble(bound / NANOS_PER_SECOND);
+            writeSample(builder, name + "_bucket", series.labels, "le=\"" + le + "\"", cumulative);
+        }
+        writeSample(builder, name + "_sum", series.labels, null, snapshot.getSumNanos() / NANOS_PER_SECOND);
+        writeSample(builder, name + "_count", series.labels, null, cumulative);
+    }
+
+    private static void writeSample(StringBuilder builder, String name, String labels, String extraLabel, double value) {
+        builder.append(name);
+        if (!labels.isEmpty() || extraLabel != null) {
+            builder.append('{').append(labels);
+            if (extraLabel != null)
+                builder.append(labels.isEmpty() ? "" : ",").append(extraLabel);
+            builder.append('}');
+        }
+        builder.append(' ').append(formatDouble(value)).append('\n');
+    }
+
+    private static String renderLabels(String[] labels) {
+        List<String> pairs = new ArrayList<>(labels.length / 2);
+        for (int i = 0; i < labels.length; i += 2) {
+            String value = labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+            pairs.add(labels[i] + "=\"" + value + "\"");
+        }
+        return String.join(",", pairs);
+    }
+
+    private static String formatDouble(double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15)
+            return Long.toString((long) value);
+        return Double.toString(value);
+    }
+
+    private static class Family {
+        private final String help;
+        private final Type type;
+        private final List<Series> series = new CopyOnWriteArrayList<>();
+
+        private Family(String help, Type type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private static class Series {
+        private final String labels;
+        private final DoubleSupplier value;
+        private final Histogram histogram;
+
+        private Series(String labels, DoubleSupplier value, Histogram histogram) {
+            this.labels = labels;
+            this.value = value;
+            this.histogram = histogram;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.wetrack.metrics;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Addresses which may scrape the metrics of this node. Given as IP literals; blank entries are
+ * ignored, so an empty list allows no one.
+ */
+public class ScrapeAllowList {
+
+    private final Set<InetAddress> allowed = new HashSet<>();
+
+    public ScrapeAllowList(Collection<String> addresses) {
+        for (String address : addresses) {
+            if (address.trim().isEmpty())
+                continue;
+            InetAddress parsed = parse(address.trim());
+            if (parsed == null)
+                throw new IllegalArgumentException("`" + address.trim() + "` is not an IP address.");
+            allowed.add(parsed);
+        }
+    }
+
+    public boolean isAllowed(String remoteAddress) {
+        InetAddress parsed = remoteAddress == null ? null : parse(remoteAddress);
+        return parsed != null && allowed.contains(parsed);
+    }
+
+    private static InetAddress parse(String literal) {
+        // Only literals are accepted, so that nothing is ever resolved through DNS
+        if (!literal.contains(":") && !literal.matches("[0-9.]+"))
+            return null;
+        try {
+            return InetAddress.getByName(literal);
+        } catch (UnknownHostException ex) {
+            return null;
+        }
+    }
+}
@@ -10,11 +10,15 @@ import org.mongodb.morphia.utils.IndexType;
 @Entity(value = "messages", noClassnameStored = true)
 @Indexes({
         @Index(fields = @Field("chatId")),
-        @Index(fields = @Field(value = "sendTime", type = IndexType.DESC))
+        @Index(fields = @Field(value = "sendTime", type = IndexType.DESC)),
+        @Index(fields = { @Field("chatId"), @Field("sendTime") }),
+        @Index(fields = { @Field("chatId"), @Field("sequence") })
 })
 public class ChatMessage extends Notification {
     private String chatId;
     @SerializedName("from") private String fromUsername;
+    /** Position of the message in its chat, assigned when it is inserted; starts at 1. */
+    private Long sequence;
 
     public ChatMessage() {}
 
@@ -36,4 +40,10 @@ public class ChatMessage extends Notification {
     public void setFromUsername(String fromUsername) {
         this.fromUsername = fromUsername;
     }
+    public Long getSequence() {
+        return sequence;
+    }
+    public void setSequence(Long sequence) {
+        this.sequence = sequence;
+    }
 }
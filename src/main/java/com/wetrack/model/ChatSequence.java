@@ -0,0 +1,39 @@
+package com.wetrack.model;
+
+import org.mongodb.morphia.annotations.Entity;
+import org.mongodb.morphia.annotations.Id;
+
+/**
+ * Last sequence number handed out to a message of a chat. Blocks of numbers are reserved with an
+ * atomic increment, so numbers are never handed out twice, even by different nodes.
+ */
+@Entity(value = "chat_sequences", noClassnameStored = true)
+public class ChatSequence extends DbEntity<String> {
+    @Id
+    private String chatId;
+    private long last;
+
+    public ChatSequence() {}
+
+    public String getChatId() {
+        return chatId;
+    }
+    public void setChatId(String chatId) {
+        this.chatId = chatId;
+    }
+    public long getLast() {
+        return last;
+    }
+    public void setLast(long last) {
+        this.last = last;
+    }
+
+    @Override
+    public String getId() {
+        return chatId;
+    }
+    @Override
+    public void setId(String id) {
+        this.chatId = id;
+    }
+}
@@ -0,0 +1,55 @@
+package com.wetrack.model;
+
+import org.mongodb.morphia.annotations.Entity;
+import org.mongodb.morphia.annotations.Id;
+
+import java.time.LocalDateTime;
+
+/**
+ * Position up to which a user's chat messages have been delivered over the WebSocket. Messages
+ * are ordered by send time, then by ID; the message ID is absent if the position was taken from
+ * the clock rather than from a delivered message.
+ */
+@Entity(value = "delivery_cursors", noClassnameStored = true)
+public class DeliveryCursor extends DbEntity<String> {
+    @Id
+    private String username;
+    private LocalDateTime sendTime;
+    private String messageId;
+
+    public DeliveryCursor() {}
+
+    public DeliveryCursor(String username, LocalDateTime sendTime, String messageId) {
+        this.username = username;
+        this.sendTime = sendTime;
+        this.messageId = messageId;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+    public void setUsername(String username) {
+        this.username = username;
+    }
+    public LocalDateTime getSendTime() {
+        return sendTime;
+    }
+    public void setSendTime(LocalDateTime sendTime) {
+        this.sendTime = sendTime;
+    }
+    public String getMessageId() {
+        return messageId;
+    }
+    public void setMessageId(String messageId) {
+        this.messageId = messageId;
+    }
+
+    @Override
+    public String getId() {
+        return username;
+    }
+    @Override
+    public void setId(String id) {
+        this.username = id;
+    }
+}
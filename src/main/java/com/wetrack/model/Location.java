@@ -7,12 +7,14 @@ import org.mongodb.morphia.geo.Point;
 import org.mongodb.morphia.utils.IndexType;
 
 import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
 
 @Entity(value = "locations", noClassnameStored = true)
 @Indexes({
     @Index(fields = @Field("username")),
     @Index(fields = @Field(value = "point", type = IndexType.GEO2DSPHERE)),
-    @Index(fields = @Field(value = "time", type = IndexType.DESC))
+    @Index(fields = @Field(value = "time", type = IndexType.DESC)),
+    @Index(fields = { @Field("username"), @Field("time"), @Field("_id") })
 })
 public class Location extends DbEntity<String> {
     @Id
@@ -35,9 +37,15 @@ public class Location extends DbEntity<String> {
         generateId();
     }
 
+    /**
+     * Derives the ID from the user, time and position of the fix, so uploading the same fix again
+     * hits the existing document instead of adding another one. The time is taken to the
+     * millisecond, which is all the database keeps of it, so the ID can be derived again from the
+     * stored fix.
+     */
     public void generateId() {
-        this.id = HashedIDGenerator.get(username, String.valueOf(point.getLatitude()),
-                String.valueOf(point.getLongitude()), time.toString());
+        this.id = HashedIDGenerator.getStable(username, time.truncatedTo(ChronoUnit.MILLIS).toString(),
+                String.valueOf(point.getLatitude()), String.valueOf(point.getLongitude()));
     }
 
     @Override
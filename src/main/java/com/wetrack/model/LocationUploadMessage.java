@@ -0,0 +1,51 @@
+package com.wetrack.model;
+
+import java.util.List;
+
+/**
+ * Reply to a location upload. Fixes are referred to by their position in the uploaded list.
+ * {@code failed} fixes could not be saved and may be uploaded again, while {@code invalid} ones
+ * lack a time or position and never will be.
+ */
+public class LocationUploadMessage extends Message {
+    private int inserted;
+    private List<Integer> duplicates;
+    private List<Integer> failed;
+    private List<Integer> invalid;
+
+    public LocationUploadMessage() {}
+
+    public LocationUploadMessage(int statusCode, String message, int inserted,
+                                 List<Integer> duplicates, List<Integer> failed, List<Integer> invalid) {
+        super(statusCode, message);
+        this.inserted = inserted;
+        this.duplicates = duplicates;
+        this.failed = failed;
+        this.invalid = invalid;
+    }
+
+    public int getInserted() {
+        return inserted;
+    }
+    public void setInserted(int inserted) {
+        this.inserted = inserted;
+    }
+    public List<Integer> getDuplicates() {
+        return duplicates;
+    }
+    public void setDuplicates(List<Integer> duplicates) {
+        this.duplicates = duplicates;
+    }
+    public List<Integer> getFailed() {
+        return failed;
+    }
+    public void setFailed(List<Integer> failed) {
+        this.failed = failed;
+    }
+    public List<Integer> getInvalid() {
+        return invalid;
+    }
+    public void setInvalid(List<Integer> invalid) {
+        this.invalid = invalid;
+    }
+}
@@ -0,0 +1,55 @@
+package com.wetrack.model;
+
+import org.mongodb.morphia.annotations.Entity;
+import org.mongodb.morphia.annotations.Id;
+import org.mongodb.morphia.annotations.Transient;
+
+import java.time.LocalDateTime;
+
+@Entity(value = "presences", noClassnameStored = true)
+public class Presence extends DbEntity<String> {
+    @Id
+    private String username;
+
+    /** When the user's last WebSocket session on any node went away. */
+    private LocalDateTime lastSeen;
+
+    /** Whether the user has a session on any node right now; never persisted. */
+    @Transient
+    private boolean online;
+
+    public Presence() {}
+
+    public Presence(String username, LocalDateTime lastSeen) {
+        this.username = username;
+        this.lastSeen = lastSeen;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+    public void setUsername(String username) {
+        this.username = username;
+    }
+    public LocalDateTime getLastSeen() {
+        return lastSeen;
+    }
+    public void setLastSeen(LocalDateTime lastSeen) {
+        this.lastSeen = lastSeen;
+    }
+    public boolean isOnline() {
+        return online;
+    }
+    public void setOnline(boolean online) {
+        this.online = online;
+    }
+
+    @Override
+    public String getId() {
+        return username;
+    }
+    @Override
+    public void setId(String id) {
+        this.username = id;
+    }
+}
@@ -0,0 +1,63 @@
+package com.wetrack.model;
+
+import org.mongodb.morphia.annotations.Entity;
+import org.mongodb.morphia.annotations.Field;
+import org.mongodb.morphia.annotations.Id;
+import org.mongodb.morphia.annotations.Index;
+import org.mongodb.morphia.annotations.Indexes;
+
+/**
+ * Sequence number of the last message of a chat a user has read. Read receipts only ever move
+ * the watermark forward, so every receipt up to it is implied.
+ */
+@Entity(value = "read_watermarks", noClassnameStored = true)
+@Indexes(@Index(fields = @Field("chatId")))
+public class ReadWatermark extends DbEntity<String> {
+    @Id
+    private String id;
+    private String chatId;
+    private String username;
+    private long sequence;
+
+    public ReadWatermark() {}
+
+    public ReadWatermark(String chatId, String username, long sequence) {
+        this.id = idOf(chatId, username);
+        this.chatId = chatId;
+        this.username = username;
+        this.sequence = sequence;
+    }
+
+    /** The ID of the watermark of the given user in the given chat. */
+    public static String idOf(String chatId, String username) {
+        return chatId + ":" + username;
+    }
+
+    public String getChatId() {
+        return chatId;
+    }
+    public void setChatId(String chatId) {
+        this.chatId = chatId;
+    }
+    public String getUsername() {
+        return username;
+    }
+    public void setUsername(String username) {
+        this.username = username;
+    }
+    public long getSequence() {
+        return sequence;
+    }
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+    @Override
+    public void setId(String id) {
+        this.id = id;
+    }
+}
@@ -2,8 +2,8 @@ package com.wetrack.service;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
+import com.wetrack.cache.ChatMembershipCache;
 import com.wetrack.dao.ChatMessageRepository;
-import com.wetrack.dao.ChatRepository;
 import com.wetrack.dao.UserTokenRepository;
 import com.wetrack.model.ChatMessage;
 import com.wetrack.model.UserToken;
@@ -26,7 +26,7 @@ public class ChatMessageService {
 
     @Autowired private Gson gson;
     @Autowired private UserTokenRepository userTokenRepository;
-    @Autowired private ChatRepository chatRepository;
+    @Autowired private ChatMembershipCache chatMembershipCache;
     @Autowired private ChatMessageRepository chatMessageRepository;
 
     @GET
@@ -34,17 +34,28 @@ public class ChatMessageService {
                                    @QueryParam("token") @DefaultValue("") String token,
                                    @QueryParam("since") @DefaultValue("") String sinceTimeStr,
                                    @QueryParam("before") @DefaultValue("") String beforeTimeStr,
+                                   @QueryParam("afterSequence") @DefaultValue("") String afterSequenceStr,
                                    @QueryParam("limit") @DefaultValue("50") int limit) {
         LOG.debug("GET  /chats/{}/messages", chatId);
 
-        if (!chatRepository.chatExists(chatId))
+        if (!chatMembershipCache.chatExists(chatId))
             return notFound("Chat with ID `" + chatId + "` does not exist.");
         UserToken tokenInDB = userTokenRepository.findByTokenStr(token);
         if (tokenInDB == null || tokenInDB.getExpireTime().isBefore(LocalDateTime.now()))
             return unauthorized("The given token is invalid or has expired. Please log in again.");
-        if (!chatRepository.isMember(chatId, tokenInDB.getUsername()))
+        if (!chatMembershipCache.isMember(chatId, tokenInDB.getUsername()))
             return unauthorized("You are not a member of this chat.");
 
+        if (!afterSequenceStr.isEmpty()) {
+            long afterSequence;
+            try {
+                afterSequence = Long.parseLong(afterSequenceStr);
+            } catch (NumberFormatException ex) {
+                return badRequest("The given sequence number `" + afterSequenceStr + "` is not a number.");
+            }
+            return ok(gson.toJson(chatMessageRepository.getChatMessagesAfterSequence(chatId, afterSequence, limit)));
+        }
+
         LocalDateTime sinceTime = parseTime(sinceTimeStr);
         LocalDateTime beforeTime = parseTime(beforeTimeStr);
         if (beforeTime == null)
@@ -61,12 +72,12 @@ public class ChatMessageService {
                                     @QueryParam("token") @DefaultValue("") String token) {
         LOG.debug("DELETE /chats/{}/messages", chatId);
 
-        if (!chatRepository.chatExists(chatId))
+        if (!chatMembershipCache.chatExists(chatId))
             return notFound("Chat with ID `" + chatId + "` does not exist.");
         UserToken tokenInDB = userTokenRepository.findByTokenStr(token);
         if (tokenInDB == null || tokenInDB.getExpireTime().isBefore(LocalDateTime.now()))
             return unauthorized("The given token is invalid or has expired. Please log in again.");
-        if (!chatRepository.isMember(chatId, tokenInDB.getUsername()))
+        if (!chatMembershipCache.isMember(chatId, tokenInDB.getUsername()))
             return unauthorized("You are not a member of this chat.");
 
         ChatMessage message = chatMessageRepository.findById(messageId);
@@ -88,12 +99,12 @@ public class ChatMessageService {
                                 @DefaultValue("") String requestBody) {
         LOG.debug("POST /chats/{}/messages", chatId);
 
-        if (!chatRepository.chatExists(chatId))
+        if (!chatMembershipCache.chatExists(chatId))
             return notFound("Chat with ID `" + chatId + "` does not exist.");
         UserToken tokenInDB = userTokenRepository.findByTokenStr(token);
         if (tokenInDB == null || tokenInDB.getExpireTime().isBefore(LocalDateTime.now()))
             return unauthorized("The given token is invalid or has expired. Please log in again.");
-        if (!chatRepository.isMember(chatId, tokenInDB.getUsername()))
+        if (!chatMembershipCache.isMember(chatId, tokenInDB.getUsername()))
             return unauthorized("You are not a member of this chat.");
 
         if (requestBody.trim().isEmpty())
@@ -109,6 +120,8 @@ public class ChatMessageService {
         message.setChatId(chatId);
         message.setFromUsername(tokenInDB.getUsername());
         message.setSendTime(LocalDateTime.now());
+        // Numbers are handed out by the repository only, so that they stay dense per chat
+        message.setSequence(null);
         chatMessageRepository.insert(message);
         return created("/chats/" + chatId + "/messages/" + message.getId(), "Message sent.");
     }
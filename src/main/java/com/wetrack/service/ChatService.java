@@ -3,6 +3,7 @@ package com.wetrack.service;
 import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
 import com.google.gson.annotations.SerializedName;
+import com.wetrack.cache.ChatMembershipCache;
 import com.wetrack.dao.ChatRepository;
 import com.wetrack.dao.FriendRepository;
 import com.wetrack.dao.UserRepository;
@@ -36,6 +37,7 @@ public class ChatService {
     @Autowired private FriendRepository friendRepository;
     @Autowired private UserTokenRepository userTokenRepository;
     @Autowired private ChatRepository chatRepository;
+    @Autowired private ChatMembershipCache chatMembershipCache;
 
     // TODO Write test cases for this method
     @GET
@@ -88,6 +90,7 @@ public class ChatService {
             }
             chat.getMemberNames().add(tokenInDB.getUsername());
             chatRepository.insert(chat);
+            chatMembershipCache.update(chat);
             return created("/chats/" + chat.getId(), "Chat `" + chat.getName() + "` created.");
         } catch (JsonSyntaxException | NullPointerException | IllegalStateException | ClassCastException ex) {
             return badRequest("The given request body is not in valid JSON format.");
@@ -124,6 +127,7 @@ public class ChatService {
                     return forbidden("User with username `" + newMemberName + "` is not your friend.");
                 chat.getMemberNames().add(newMemberName);
                 chatRepository.update(chat);
+                chatMembershipCache.update(chat);
             }
             return okMessage("Users " + StringUtils.join(newMemberNames, ", ") + " are added to chat " + chat.getName());
         } catch (JsonSyntaxException | IllegalStateException | ClassCastException ex) {
@@ -150,8 +154,10 @@ public class ChatService {
                 members.add(user);
         }
 
-        if (chat.getMemberNames().removeAll(deletedNames))
+        if (chat.getMemberNames().removeAll(deletedNames)) {
             chatRepository.update(chat);
+            chatMembershipCache.update(chat);
+        }
 
         return ok(gson.toJson(members));
     }
@@ -178,6 +184,7 @@ public class ChatService {
 
         chat.getMemberNames().remove(memberName);
         chatRepository.update(chat);
+        chatMembershipCache.update(chat);
         return okMessage("User " + memberName + " is removed from chat " + chat.getName() + ".");
     }
 
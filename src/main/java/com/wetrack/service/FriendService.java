@@ -1,6 +1,7 @@
 package com.wetrack.service;
 
 import com.google.gson.Gson;
+import com.wetrack.cache.FriendCache;
 import com.wetrack.dao.FriendRepository;
 import com.wetrack.dao.UserRepository;
 import com.wetrack.dao.UserTokenRepository;
@@ -31,6 +32,7 @@ public class FriendService {
     @Autowired private UserRepository userRepository;
     @Autowired private UserTokenRepository userTokenRepository;
     @Autowired private FriendRepository friendRepository;
+    @Autowired private FriendCache friendCache;
 
     @GET
     public Response getFriends(@PathParam("username") String username,
@@ -66,8 +68,10 @@ public class FriendService {
                 friends.add(user);
         }
 
-        if (friend.getFriendNames().removeAll(deletedNames))
+        if (friend.getFriendNames().removeAll(deletedNames)) {
             friendRepository.update(friend);
+            friendCache.update(friend);
+        }
 
         return ok(gson.toJson(friends));
     }
@@ -97,6 +101,7 @@ public class FriendService {
             friend = new Friend(username);
         friend.getFriendNames().add(friendName);
         friendRepository.insert(friend);
+        friendCache.update(friend);
 
         friend = friendRepository.findById(friendName);
         if (friend == null)
@@ -105,6 +110,7 @@ public class FriendService {
             friend.setFriendNames(new HashSet<>());
         friend.getFriendNames().add(username);
         friendRepository.insert(friend);
+        friendCache.update(friend);
 
         return okMessage("You have added `" + friendName + "` as your friend.");
     }
@@ -138,14 +144,17 @@ public class FriendService {
         if (!friend.getFriendNames().remove(friendName))
             return notFound("User with username `" + friendName + "` is not your friend.");
         friendRepository.update(friend);
+        friendCache.update(friend);
 
         friend = friendRepository.findById(friendName);
         if (friend == null) {
             friend = new Friend(friendName);
             friendRepository.insert(friend);
         }
-        if (friend.getFriendNames().remove(username))
+        if (friend.getFriendNames().remove(username)) {
             friendRepository.update(friend);
+            friendCache.update(friend);
+        }
 
         return okMessage("You have deleted `" + friendName + "` from your friend list.");
     }
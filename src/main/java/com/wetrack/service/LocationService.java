@@ -1,11 +1,18 @@
 package com.wetrack.service;
 
 import com.google.gson.Gson;
-import com.google.gson.JsonObject;
-import com.google.gson.reflect.TypeToken;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.wetrack.cache.LatestLocationCache;
+import com.wetrack.dao.BulkInsertResult;
+import com.wetrack.dao.CloseableIterator;
 import com.wetrack.dao.LocationRepository;
 import com.wetrack.dao.UserTokenRepository;
+import com.wetrack.event.LocationPublisher;
 import com.wetrack.model.Location;
+import com.wetrack.model.LocationUploadMessage;
 import com.wetrack.model.UserToken;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -14,8 +21,21 @@ import org.springframework.beans.factory.annotation.Autowired;
 import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.List;
+import java.util.function.Consumer;
 
 import static com.wetrack.util.ResponseUtils.*;
 
@@ -25,77 +45,268 @@ import static com.wetrack.util.ResponseUtils.*;
 public class LocationService {
     private static final Logger LOG = LoggerFactory.getLogger(LocationService.class);
 
+    static final int INGEST_CHUNK_SIZE = 500;
+    static final int DEFAULT_HISTORY_LIMIT = 1000;
+    static final int MAX_HISTORY_LIMIT = 10_000;
+    static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+    private static final LocalDateTime EPOCH = LocalDateTime.of(1970, 1, 1, 0, 0);
+
     @Autowired private Gson gson;
     @Autowired private UserTokenRepository userTokenRepository;
     @Autowired private LocationRepository locationRepository;
+    @Autowired private LocationPublisher locationPublisher;
+    @Autowired private LatestLocationCache latestLocationCache;
 
     @GET
     @Path("/latest")
     public Response getLatestLocation(@PathParam("username") @DefaultValue("") String username) {
         LOG.debug("GET  /users/{}/locations/latest", username);
 
-        Location location = locationRepository.getLatestLocation(username);
+        Location location = latestLocationCache.getLatestLocation(username);
         if (location == null)
             return notFoundMessage();
         return ok(gson.toJson(location));
     }
 
+    /**
+     * Returns the fixes of the given user after {@code since} and up to {@code until}, both
+     * optional, ordered by time. A page holds about {@code limit} fixes; if there are more, the
+     * response carries a {@value #NEXT_CURSOR_HEADER} header whose value is passed as
+     * {@code cursor} to get the next page. The page is written straight from the database cursor.
+     */
     @GET
     public Response getLocationsSince(@PathParam("username") @DefaultValue("") String username,
-                                      @QueryParam("since") @DefaultValue("") String since) {
+                                      @QueryParam("since") @DefaultValue("") String since,
+                                      @QueryParam("until") @DefaultValue("") String until,
+                                      @QueryParam("cursor") @DefaultValue("") String cursor,
+                                      @QueryParam("limit") @DefaultValue("" + DEFAULT_HISTORY_LIMIT) int limit) {
         LOG.debug("GET  /users/{}/locations", username);
-        if (since.trim().isEmpty())
-            since = "1970-01-01T00:00:00Z";
-        LocalDateTime sinceTime = LocalDateTime.parse(since);
 
-        List<Location> foundLocations = locationRepository.findLocationsSince(username, sinceTime);
-        return ok(gson.toJson(foundLocations));
+        LocalDateTime afterTime = EPOCH;
+        String afterId = null;
+        LocalDateTime untilTime = null;
+        try {
+            if (!since.trim().isEmpty())
+                afterTime = LocalDateTime.parse(since);
+            if (!until.trim().isEmpty())
+                untilTime = LocalDateTime.parse(until);
+        } catch (DateTimeParseException ex) {
+            return badRequest("The given time `" + ex.getParsedString() + "` is not in valid format.");
+        }
+        if (!cursor.isEmpty()) {
+            String[] position = decodeCursor(cursor);
+            if (position == null)
+                return badRequest("The given cursor is invalid.");
+            afterTime = LocalDateTime.parse(position[0]);
+            afterId = position[1];
+        }
+        if (limit < 1 || limit > MAX_HISTORY_LIMIT)
+            return badRequest("The limit must be between 1 and " + MAX_HISTORY_LIMIT + ".");
+
+        // Fixes backfilled meanwhile only make the page longer, since it ends at a position
+        Location last = locationRepository.findLocationAt(username, afterTime, afterId, untilTime, limit - 1);
+        boolean more = last != null
+                && locationRepository.findLocationAt(username, last.getTime(), last.getId(), untilTime, 0) != null;
+        CloseableIterator<Location> page = more
+                ? locationRepository.iterateLocations(username, afterTime, afterId, last.getTime(), last.getId(), 0)
+                : locationRepository.iterateLocations(username, afterTime, afterId, untilTime, null, limit);
+
+        StreamingOutput output = out -> {
+            try (CloseableIterator<Location> locations = page;
+                 JsonWriter writer = gson.newJsonWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+                writer.beginArray();
+                while (locations.hasNext())
+                    gson.toJson(locations.next(), Location.class, writer);
+                writer.endArray();
+            }
+        };
+        Response.ResponseBuilder response = Response.ok(output);
+        if (more)
+            response.header(NEXT_CURSOR_HEADER, encodeCursor(last.getTime(), last.getId()));
+        return response.build();
     }
 
+    /**
+     * Saves the uploaded fixes of the given user. The body is a JSON object with the user's
+     * {@code token} and the {@code locations}, either as an array or as a string holding one.
+     * <p>
+     * The body is parsed as it arrives, and the fixes are saved {@value #INGEST_CHUNK_SIZE} at a
+     * time, so memory use does not grow with the size of the upload as long as the token comes
+     * before the fixes. Fixes that come before the token have to be held until it has been
+     * checked.
+     */
     @POST
-    public Response postLocations(@PathParam("username") String username,
-                                  @DefaultValue("") String requestBody) {
+    public Response postLocations(@PathParam("username") String username, InputStream requestBody) {
         LOG.debug("POST /users/{}/locations", username);
-        if (requestBody.trim().isEmpty())
-            ok();
 
-        JsonObject receivedJson = gson.fromJson(requestBody, JsonObject.class);
-        if (!receivedJson.has("token"))
-            return badRequest("Token must be provided in the request body.");
-        String token = receivedJson.get("token").getAsString();
-        if (token.trim().isEmpty())
+        LocationIngest ingest = null;
+        List<Location> early = null;
+        try (JsonReader reader = new JsonReader(new InputStreamReader(requestBody, StandardCharsets.UTF_8))) {
+            reader.setLenient(true);
+            if (reader.peek() == JsonToken.END_DOCUMENT)
+                return ok();
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals("token") && ingest == null) {
+                    String token = reader.peek() == JsonToken.NULL ? null : reader.nextString();
+                    if (token == null || token.trim().isEmpty())
+                        return badRequest("Token must be provided in the request body.");
+                    UserToken tokenInDB = userTokenRepository.findByTokenStr(token);
+                    if (tokenInDB == null || tokenInDB.getExpireTime().isBefore(LocalDateTime.now()))
+                        return unauthorized("The given token is invalid or has expired. Please log in again.");
+                    if (!tokenInDB.getUsername().equals(username))
+                        return unauthorized("You cannot upload others' locations.");
+
+                    ingest = new LocationIngest(tokenInDB.getUsername());
+                    if (early != null)
+                        early.forEach(ingest::accept);
+                    early = null;
+                } else if (name.equals("locations")) {
+                    if (ingest != null)
+                        readLocations(reader, ingest::accept);
+                    else {
+                        early = new ArrayList<>();
+                        readLocations(reader, early::add);
+                    }
+                } else
+                    reader.skipValue();
+            }
+            reader.endObject();
+        } catch (EOFException ex) {
+            if (ingest == null)
+                return badRequest("The request body ended unexpectedly.");
+            return ingest.finish(400, "The request body ended unexpectedly.");
+        } catch (IOException | JsonParseException | IllegalStateException ex) {
+            if (ingest == null)
+                return badRequest("The request body is not a valid location upload: " + ex.getMessage());
+            return ingest.finish(400, "The request body is not a valid location upload: " + ex.getMessage());
+        }
+
+        if (ingest == null)
             return badRequest("Token must be provided in the request body.");
+        return ingest.finish(200, null);
+    }
 
-        UserToken tokenInDB = userTokenRepository.findByTokenStr(token);
-        if (tokenInDB == null || tokenInDB.getExpireTime().isBefore(LocalDateTime.now()))
-            return unauthorized("The given token is invalid or has expired. Please log in again.");
-        if (!tokenInDB.getUsername().equals(username))
-            return unauthorized("You cannot upload others' locations.");
+    /** Reads the {@code locations} value, which is an array of fixes or a string holding one. */
+    private void readLocations(JsonReader reader, Consumer<Location> consumer) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.NULL) {
+            reader.nextNull();
+        } else if (token == JsonToken.STRING) {
+            try (JsonReader inner = new JsonReader(new StringReader(reader.nextString()))) {
+                inner.setLenient(true);
+                readLocationArray(inner, consumer);
+            }
+        } else
+            readLocationArray(reader, consumer);
+    }
 
-        if (!receivedJson.has("locations"))
-            return ok();
+    private void readLocationArray(JsonReader reader, Consumer<Location> consumer) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext())
+            consumer.accept(gson.fromJson(reader, Location.class));
+        reader.endArray();
+    }
 
-        List<Location> receivedLocations = null;
-        if (receivedJson.get("locations").isJsonArray()) {
-            receivedLocations = gson.fromJson(receivedJson.get("locations").getAsJsonArray(),
-                    new TypeToken<List<Location>>() {}.getType());
-        }
-        else if (receivedJson.get("locations").isJsonPrimitive()) {
-            receivedLocations = gson.fromJson(receivedJson.get("locations").getAsString(),
-                    new TypeToken<List<Location>>() {}.getType());
+    /**
+     * Saves the fixes of one upload in chunks, and keeps track of what became of each of them by
+     * its position in the upload.
+     */
+    private class LocationIngest {
+        private final String username;
+        private final List<Location> chunk = new ArrayList<>(INGEST_CHUNK_SIZE);
+        private final List<Integer> chunkIndices = new ArrayList<>(INGEST_CHUNK_SIZE);
+        private final List<Integer> duplicates = new ArrayList<>();
+        private final List<Integer> failed = new ArrayList<>();
+        private final List<Integer> invalid = new ArrayList<>();
+        private int received;
+        private int valid;
+        private int inserted;
+        private Location newest;
+
+        private LocationIngest(String username) {
+            this.username = username;
         }
-        int insertedCounter = 0;
-        for (Location location : receivedLocations) {
+
+        private void accept(Location location) {
+            int index = received++;
+            if (location == null || location.getPoint() == null || location.getTime() == null) {
+                invalid.add(index);
+                return;
+            }
             if (location.getUsername() != null && !location.getUsername().trim().isEmpty()
-                    && !tokenInDB.getUsername().equals(location.getUsername()))
-                continue;
-            location.setUsername(tokenInDB.getUsername());
+                    && !username.equals(location.getUsername()))
+                return;
+            location.setUsername(username);
             location.generateId();
-            locationRepository.insert(location);
-            insertedCounter++;
+            valid++;
+            chunk.add(location);
+            chunkIndices.add(index);
+            if (chunk.size() >= INGEST_CHUNK_SIZE)
+                flush();
+        }
+
+        private void flush() {
+            if (chunk.isEmpty())
+                return;
+            BulkInsertResult result = locationRepository.bulkInsert(chunk);
+            for (int i = 0; i < result.size(); i++) {
+                switch (result.get(i)) {
+                    case INSERTED:
+                        inserted++;
+                        Location location = chunk.get(i);
+                        if (newest == null || location.getTime().isAfter(newest.getTime()))
+                            newest = location;
+                        break;
+                    case DUPLICATE: duplicates.add(chunkIndices.get(i)); break;
+                    case FAILED: failed.add(chunkIndices.get(i)); break;
+                }
+            }
+            chunk.clear();
+            chunkIndices.clear();
+        }
+
+        /** Saves what is left and replies with the given status, or the default one if {@code 200}. */
+        private Response finish(int statusCode, String message) {
+            flush();
+            // Duplicates have been published when they were first inserted
+            if (newest != null)
+                locationPublisher.publish(Collections.singletonList(newest));
+
+            // Invalid fixes are the client's fault, and uploading them again will not help
+            if (statusCode == 200 && valid == 0 && !invalid.isEmpty())
+                return uploadResult(400, "None of the uploaded locations has a valid time and position.");
+            if (statusCode == 200 && !failed.isEmpty() && inserted == 0 && duplicates.isEmpty())
+                return uploadResult(500, "Failed to save the locations. Please try again later.");
+            return uploadResult(statusCode, message != null ? message : "Received " + inserted + " locations.");
         }
 
-        return okMessage("Received " + insertedCounter + " locations.");
+        private Response uploadResult(int statusCode, String message) {
+            return Response.status(statusCode)
+                    .entity(new LocationUploadMessage(statusCode, message, inserted, duplicates, failed, invalid))
+                    .build();
+        }
+    }
+
+    /** The position of a fix as an opaque string. */
+    private static String encodeCursor(LocalDateTime time, String id) {
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString((time + " " + id).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** @return the time and ID of the given cursor, or {@code null} if it is invalid. */
+    private static String[] decodeCursor(String cursor) {
+        try {
+            String[] position = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split(" ", 2);
+            if (position.length != 2 || position[1].isEmpty())
+                return null;
+            LocalDateTime.parse(position[0]);
+            return position;
+        } catch (IllegalArgumentException | DateTimeParseException ex) {
+            return null;
+        }
     }
 
 }
@@ -0,0 +1,47 @@
+package com.wetrack.service;
+
+import com.wetrack.metrics.MetricsRegistry;
+import com.wetrack.metrics.ScrapeAllowList;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import static com.wetrack.util.ResponseUtils.*;
+
+/**
+ * Exposes the metrics of this node in the Prometheus text format. Only served to the addresses of
+ * the {@link ScrapeAllowList}, e.g. a scraper or an agent running next to the server. Requests
+ * relayed by a proxy are refused even from an allowed address, since the proxy may well be
+ * running on the same host while the actual client is not.
+ */
+@Path("/metrics")
+public class MetricsService {
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    @Autowired private MetricsRegistry metricsRegistry;
+    @Autowired private ScrapeAllowList scrapeAllowList;
+
+    @GET
+    @Produces(CONTENT_TYPE)
+    public Response getMetrics(@Context HttpServletRequest request) {
+        if (!isAllowed(request))
+            return Response.fromResponse(forbidden("Metrics can only be scraped from an allowed address."))
+                    .type(MediaType.APPLICATION_JSON_TYPE).build();
+        return Response.ok(metricsRegistry.scrape(), CONTENT_TYPE).build();
+    }
+
+    private boolean isAllowed(HttpServletRequest request) {
+        // Not every container injects the servlet request, and then the client is unknown
+        if (request == null)
+            return false;
+        if (request.getHeader("Forwarded") != null || request.getHeader("X-Forwarded-For") != null)
+            return false;
+        return scrapeAllowList.isAllowed(request.getRemoteAddr());
+    }
+}
@@ -0,0 +1,158 @@
+package com.wetrack.service;
+
+import com.wetrack.dao.UserTokenRepository;
+import com.wetrack.model.UserToken;
+import com.wetrack.ws.HttpStreamSession;
+import com.wetrack.ws.LongPollSession;
+import com.wetrack.ws.NotificationStreams;
+import com.wetrack.ws.SseSession;
+import org.glassfish.jersey.server.ChunkedOutput;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.socket.TextMessage;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.*;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.net.InetSocketAddress;
+import java.time.LocalDateTime;
+
+import static com.wetrack.util.ResponseUtils.*;
+
+/**
+ * Serves the frames of the {@code /notifications} WebSocket endpoint over plain HTTP, for clients
+ * whose network blocks WebSockets: as Server-Sent Events from {@code /notifications/events}, or
+ * through long polls of {@code /notifications/poll}. Frames the client would send over the
+ * WebSocket are posted to {@code /notifications/{streamId}}.
+ * <p>
+ * Both transports are asynchronous, so an idle stream or a waiting poll holds no request thread.
+ */
+@Path("/notifications")
+public class NotificationService {
+    private static final Logger LOG = LoggerFactory.getLogger(NotificationService.class);
+
+    static final String EVENT_STREAM = "text/event-stream";
+    static final String STREAM_ID_HEADER = "X-Stream-Id";
+
+    @Autowired private UserTokenRepository userTokenRepository;
+    @Autowired private NotificationStreams notificationStreams;
+
+    /**
+     * Opens an event stream. Each frame is sent as the {@code data} of one event, starting with
+     * the reply to authenticating with the given token. The ID to post frames to is returned in
+     * the {@value #STREAM_ID_HEADER} header.
+     */
+    @GET
+    @Path("/events")
+    @Produces(EVENT_STREAM)
+    public Response getEvents(@QueryParam("token") @DefaultValue("") String token,
+                              @Context HttpServletRequest request) {
+        LOG.debug("GET  /notifications/events");
+
+        UserToken tokenInDB = findValidToken(token);
+        if (tokenInDB == null)
+            return json(unauthorized("The given token is invalid or has expired. Please log in again."));
+
+        ChunkedOutput<String> output = new ChunkedOutput<>(String.class);
+        SseSession session = notificationStreams.openEventStream(tokenInDB.getUsername(), token,
+                remoteAddress(request), output);
+        if (session == null)
+            return json(unavailable());
+        return Response.ok(output, EVENT_STREAM).header("Cache-Control", "no-cache")
+                .header(STREAM_ID_HEADER, session.getId()).build();
+    }
+
+    /**
+     * Long-polls for frames. A poll without a stream ID opens a new stream; the following polls
+     * pass the {@code stream_id} of the previous response as {@code streamId} and its
+     * {@code last_frame_id} as {@code after}. Responds with {@code 404} once the stream has been
+     * closed, after which the client opens a new one.
+     */
+    @GET
+    @Path("/poll")
+    @Produces(MediaType.APPLICATION_JSON)
+    public void poll(@QueryParam("token") @DefaultValue("") String token,
+                     @QueryParam("streamId") @DefaultValue("") String streamId,
+                     @QueryParam("after") @DefaultValue("0") long afterFrameId,
+                     @Context HttpServletRequest request,
+                     @Suspended AsyncResponse response) {
+        LOG.debug("GET  /notifications/poll");
+
+        UserToken tokenInDB = findValidToken(token);
+        if (tokenInDB == null) {
+            response.resume(unauthorized("The given token is invalid or has expired. Please log in again."));
+            return;
+        }
+
+        LongPollSession session;
+        if (streamId.isEmpty()) {
+            session = notificationStreams.openLongPoll(tokenInDB.getUsername(), token, remoteAddress(request));
+            if (session == null) {
+                response.resume(unavailable());
+                return;
+            }
+        } else {
+            HttpStreamSession existing = notificationStreams.get(streamId);
+            if (!(existing instanceof LongPollSession) || !existing.getUsername().equals(tokenInDB.getUsername())) {
+                response.resume(notFound("Stream with given ID `" + streamId + "` does not exist or has been closed."));
+                return;
+            }
+            session = (LongPollSession) existing;
+        }
+        session.poll(response, afterFrameId);
+    }
+
+    /** Hands a frame to the given stream as if it had been sent over the WebSocket. */
+    @POST
+    @Path("/{streamId}")
+    @Consumes(MediaType.TEXT_PLAIN)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response sendFrame(@PathParam("streamId") String streamId,
+                              @QueryParam("token") @DefaultValue("") String token,
+                              String frame) {
+        LOG.debug("POST /notifications/{}", streamId);
+
+        UserToken tokenInDB = findValidToken(token);
+        if (tokenInDB == null)
+            return unauthorized("The given token is invalid or has expired. Please log in again.");
+        HttpStreamSession session = notificationStreams.get(streamId);
+        if (session == null || !session.getUsername().equals(tokenInDB.getUsername()))
+            return notFound("Stream with given ID `" + streamId + "` does not exist or has been closed.");
+        if (frame == null || frame.isEmpty())
+            return badRequest("The frame must be provided in the request body.");
+
+        session.receive(new TextMessage(frame));
+        return ok();
+    }
+
+    private UserToken findValidToken(String token) {
+        if (token.isEmpty())
+            return null;
+        UserToken tokenInDB = userTokenRepository.findByTokenStr(token);
+        if (tokenInDB == null || tokenInDB.getExpireTime().isBefore(LocalDateTime.now()))
+            return null;
+        return tokenInDB;
+    }
+
+    private Response unavailable() {
+        return Response.fromResponse(
+                response(503, "Notifications are not available at the moment. Please try again later."))
+                .header("Retry-After", notificationStreams.getRetryAfterSeconds()).build();
+    }
+
+    private static Response json(Response response) {
+        return Response.fromResponse(response).type(MediaType.APPLICATION_JSON_TYPE).build();
+    }
+
+    /** Not every container injects the servlet request. */
+    private static InetSocketAddress remoteAddress(HttpServletRequest request) {
+        if (request == null)
+            return InetSocketAddress.createUnresolved("unknown", 0);
+        return new InetSocketAddress(request.getRemoteAddr(), request.getRemotePort());
+    }
+}
@@ -0,0 +1,79 @@
+package com.wetrack.service;
+
+import com.google.gson.Gson;
+import com.wetrack.cache.FriendCache;
+import com.wetrack.cluster.PresenceDirectory;
+import com.wetrack.dao.PresenceRepository;
+import com.wetrack.dao.UserRepository;
+import com.wetrack.dao.UserTokenRepository;
+import com.wetrack.model.Presence;
+import com.wetrack.model.UserToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import javax.ws.rs.*;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.wetrack.util.ResponseUtils.*;
+
+@Path("/users/{username}/friends/presence")
+@Produces(MediaType.APPLICATION_JSON)
+public class PresenceService {
+    private static final Logger LOG = LoggerFactory.getLogger(PresenceService.class);
+
+    @Autowired private Gson gson;
+    @Autowired private UserRepository userRepository;
+    @Autowired private UserTokenRepository userTokenRepository;
+    @Autowired private FriendCache friendCache;
+    @Autowired private PresenceDirectory presenceDirectory;
+    @Autowired private PresenceRepository presenceRepository;
+
+    /**
+     * Returns whether each friend of the given user is online, and when the offline ones were
+     * last seen. Both are looked up for all friends at once.
+     */
+    @GET
+    public Response getFriendsPresence(@PathParam("username") String username,
+                                       @QueryParam("token") @DefaultValue("") String token) {
+        LOG.debug("GET  /users/{}/friends/presence", username);
+
+        if (userRepository.countByUsername(username) == 0)
+            return notFound("User with given username does not exist.");
+
+        if (token.isEmpty())
+            return badRequest("Token must be provided in the query param");
+
+        UserToken tokenInDB = userTokenRepository.findByTokenStr(token);
+        if (tokenInDB == null || tokenInDB.getExpireTime().isBefore(LocalDateTime.now()))
+            return unauthorized("The given token is invalid or has expired. Please log in again.");
+        if (!tokenInDB.getUsername().equals(username))
+            return unauthorized("You cannot query for others' friend list.");
+
+        Set<String> friendNames = friendCache.getFriends(username);
+        if (friendNames.isEmpty())
+            return ok(gson.toJson(new ArrayList<Presence>()));
+
+        Map<String, Set<String>> onlineNodes = presenceDirectory.findNodes(friendNames);
+        Map<String, LocalDateTime> lastSeen = new HashMap<>();
+        for (Presence presence : presenceRepository.findByUsernames(friendNames))
+            lastSeen.put(presence.getUsername(), presence.getLastSeen());
+
+        LocalDateTime now = LocalDateTime.now();
+        List<Presence> presences = new ArrayList<>(friendNames.size());
+        for (String friendName : friendNames) {
+            boolean online = onlineNodes.containsKey(friendName);
+            Presence presence = new Presence(friendName, online ? now : lastSeen.get(friendName));
+            presence.setOnline(online);
+            presences.add(presence);
+        }
+        return ok(gson.toJson(presences));
+    }
+}
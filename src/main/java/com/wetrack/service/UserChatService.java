@@ -1,6 +1,7 @@
 package com.wetrack.service;
 
 import com.google.gson.Gson;
+import com.wetrack.cache.ChatMembershipCache;
 import com.wetrack.dao.ChatRepository;
 import com.wetrack.dao.UserRepository;
 import com.wetrack.dao.UserTokenRepository;
@@ -27,6 +28,7 @@ public class UserChatService {
     @Autowired private UserRepository userRepository;
     @Autowired private UserTokenRepository userTokenRepository;
     @Autowired private ChatRepository chatRepository;
+    @Autowired private ChatMembershipCache chatMembershipCache;
 
     @GET
     public Response getChatList(@PathParam("username") String username,
@@ -68,6 +70,7 @@ public class UserChatService {
 
         chat.getMemberNames().remove(username);
         chatRepository.update(chat);
+        chatMembershipCache.update(chat);
         return okMessage("You have exited chat `" + chat.getName() + "`.");
     }
 }
@@ -0,0 +1,23 @@
+package com.wetrack.tool;
+
+import com.wetrack.config.SpringConfig;
+import com.wetrack.dao.LocationRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+/**
+ * Moves the stored location fixes to their content-based IDs and drops the duplicates that
+ * retried uploads left behind while IDs were random. Connects to the database configured for the
+ * server, and is run once with {@code gradlew deduplicateLocations}.
+ */
+public class DeduplicateLocations {
+    private static final Logger LOG = LoggerFactory.getLogger(DeduplicateLocations.class);
+
+    public static void main(String[] args) {
+        try (AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext(SpringConfig.class)) {
+            long removed = context.getBean(LocationRepository.class).deduplicate();
+            LOG.info("Removed {} duplicate locations", removed);
+        }
+    }
+}
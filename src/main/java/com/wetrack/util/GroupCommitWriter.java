@@ -0,0 +1,267 @@
+package com.wetrack.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Write-behind stage which groups items submitted from many threads into micro-batches and hands
+ * every batch to a single flush function, typically one bulk write.
+ * <p>
+ * A batch is flushed once it holds {@code maxBatchSize} items or {@code maxDelayMillis} after its
+ * first item arrived, whichever comes first. Items that arrive while a batch is being written are
+ * collected into the next one, so batches grow with load. The future returned by
+ * {@link #submit(Object)} completes only after the batch containing the item has been flushed,
+ * and completes exceptionally if the flush failed. A {@link BatchFlusher} may instead fail single
+ * items of a batch, leaving the futures of the others to complete normally.
+ */
+public class GroupCommitWriter<T> {
+    private static final Logger LOG = LoggerFactory.getLogger(GroupCommitWriter.class);
+
+    private final String name;
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+    private final BatchFlusher<T> flusher;
+
+    private final BlockingQueue<Pending<T>> queue;
+    private final Thread writerThread;
+    private volatile boolean running = true;
+
+    private final LongAdder batchCount = new LongAdder();
+    private final LongAdder itemCount = new LongAdder();
+    private final LongAdder failedBatchCount = new LongAdder();
+    private final LongAdder failedItemCount = new LongAdder();
+    private final LongAdder rejectedCount = new LongAdder();
+
+    public GroupCommitWriter(String name, int maxBatchSize, long maxDelayMillis, int queueCapacity,
+                             Consumer<List<T>> flusher) {
+        this(name, maxBatchSize, maxDelayMillis, queueCapacity, (BatchFlusher<T>) items -> {
+            flusher.accept(items);
+            return Collections.emptyMap();
+        });
+    }
+
+    private GroupCommitWriter(String name, int maxBatchSize, long maxDelayMillis, int queueCapacity,
+                              BatchFlusher<T> flusher) {
+        this.name = name;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.flusher = flusher;
+        this.queue = new LinkedBlockingQueue<>(queueCapacity);
+        this.writerThread = new Thread(this::writeLoop, name);
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * Creates a writer whose flusher reports the items it could not write, so that only their
+     * futures fail.
+     */
+    public static <T> GroupCommitWriter<T> withItemFailures(String name, int maxBatchSize, long maxDelayMillis,
+                                                            int queueCapacity, BatchFlusher<T> flusher) {
+        return new GroupCommitWriter<>(name, maxBatchSize, maxDelayMillis, queueCapacity, flusher);
+    }
+
+    /**
+     * Queues the given item for the next batch. Blocks if the writer has fallen behind by more
+     * than the queue capacity, which pushes back on the submitters.
+     */
+    public CompletableFuture<Void> submit(T item) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        if (!running) {
+            future.completeExceptionally(new IllegalStateException("Writer `" + name + "` has been shut down."));
+            return future;
+        }
+        try {
+            queue.put(new Pending<>(item, future));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(ex);
+        }
+        return future;
+    }
+
+    /**
+     * Like {@link #submit}, but never blocks: if the writer has fallen behind by more than the
+     * queue capacity, the item is dropped and the future fails with a
+     * {@link RejectedExecutionException}. For callers which must not wait on the database.
+     */
+    public CompletableFuture<Void> offer(T item) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        if (!running) {
+            future.completeExceptionally(new IllegalStateException("Writer `" + name + "` has been shut down."));
+            return future;
+        }
+        if (!queue.offer(new Pending<>(item, future))) {
+            rejectedCount.increment();
+            LOG.warn("Writer `{}` is full; dropped an item.", name);
+            future.completeExceptionally(new RejectedExecutionException("Writer `" + name + "` is full."));
+        }
+        return future;
+    }
+
+    /**
+     * Writes the current batch right away, without waiting for it to fill up or for its delay to
+     * pass, and waits until every item submitted before this call has been flushed.
+     */
+    public void flush() throws InterruptedException {
+        if (!running)
+            return;
+        CompletableFuture<Void> marker = new CompletableFuture<>();
+        queue.put(new Pending<>(null, marker));
+        try {
+            marker.get();
+        } catch (ExecutionException ex) {
+            // Markers never fail
+        }
+    }
+
+    /**
+     * Flushes everything still queued and stops the writer thread.
+     */
+    public void shutdown() {
+        if (!running)
+            return;
+        running = false;
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Items which raced with the shutdown would otherwise never complete
+        List<Pending<T>> rejected = new ArrayList<>();
+        queue.drainTo(rejected);
+        for (Pending<T> pending : rejected)
+            pending.future.completeExceptionally(new IllegalStateException("Writer `" + name + "` has been shut down."));
+    }
+
+    public int getQueueDepth() { return queue.size(); }
+
+    public long getBatchCount() { return batchCount.sum(); }
+
+    public long getItemCount() { return itemCount.sum(); }
+
+    public long getFailedBatchCount() { return failedBatchCount.sum(); }
+
+    /** Number of items failed on their own by a {@link BatchFlusher}, within batches which were written. */
+    public long getFailedItemCount() { return failedItemCount.sum(); }
+
+    /** Number of items {@link #offer}ed while the queue was full. */
+    public long getRejectedCount() { return rejectedCount.sum(); }
+
+    private void writeLoop() {
+        List<Pending<T>> batch = new ArrayList<>(maxBatchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                if (!collect(batch))
+                    continue;
+            } catch (InterruptedException ex) {
+                queue.drainTo(batch, maxBatchSize - batch.size());
+            }
+            write(batch);
+            batch.clear();
+        }
+    }
+
+    private boolean collect(List<Pending<T>> batch) throws InterruptedException {
+        Pending<T> first = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (first == null)
+            return false;
+        batch.add(first);
+        // A flush marker cuts the batch short instead of waiting out the delay
+        boolean flushRequested = first.item == null;
+        long deadline = System.nanoTime() + maxDelayNanos;
+        while (!flushRequested && batch.size() < maxBatchSize) {
+            int size = batch.size();
+            if (queue.drainTo(batch, maxBatchSize - size) > 0) {
+                for (int i = size; i < batch.size(); i++)
+                    flushRequested |= batch.get(i).item == null;
+                continue;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                break;
+            Pending<T> next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null)
+                break;
+            batch.add(next);
+            flushRequested = next.item == null;
+        }
+        return true;
+    }
+
+    private void write(List<Pending<T>> batch) {
+        List<T> items = new ArrayList<>(batch.size());
+        for (Pending<T> pending : batch) {
+            if (pending.item != null)
+                items.add(pending.item);
+        }
+
+        Throwable failure = null;
+        Map<Integer, Throwable> itemFailures = Collections.emptyMap();
+        if (!items.isEmpty()) {
+            try {
+                itemFailures = flusher.flush(items);
+                batchCount.increment();
+                itemCount.add(items.size());
+                if (!itemFailures.isEmpty()) {
+                    LOG.warn("Writer `{}` failed {} of a batch of {} items.", name, itemFailures.size(), items.size());
+                    failedItemCount.add(itemFailures.size());
+                }
+            } catch (Throwable ex) {
+                LOG.warn("Writer `" + name + "` failed to flush a batch of " + items.size() + " items: ", ex);
+                failedBatchCount.increment();
+                failure = ex;
+            }
+        }
+
+        int index = 0;
+        for (Pending<T> pending : batch) {
+            if (pending.item == null) {
+                pending.future.complete(null);
+                continue;
+            }
+            Throwable itemFailure = failure != null ? failure : itemFailures.get(index);
+            index++;
+            if (itemFailure != null)
+                pending.future.completeExceptionally(itemFailure);
+            else
+                pending.future.complete(null);
+        }
+    }
+
+    /**
+     * Flush function which can fail single items of a batch without failing the whole batch.
+     */
+    @FunctionalInterface
+    public interface BatchFlusher<T> {
+        /**
+         * Writes the given batch and returns the failures of the items which were not written,
+         * keyed by their position in the batch. Throwing fails every item of the batch.
+         */
+        Map<Integer, Throwable> flush(List<T> items);
+    }
+
+    private static class Pending<T> {
+        private final T item;
+        private final CompletableFuture<Void> future;
+
+        private Pending(T item, CompletableFuture<Void> future) {
+            this.item = item;
+            this.future = future;
+        }
+    }
+}
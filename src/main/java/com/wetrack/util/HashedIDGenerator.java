@@ -12,4 +12,18 @@ public class HashedIDGenerator {
         return CryptoUtils.md5Digest(builder.toString());
     }
 
+    /**
+     * Like {@link #get}, but without the random salt, so the same arguments always give the same ID.
+     * Only use it for entities which are identified by their content.
+     */
+    public static String getStable(String... args) {
+        StringBuilder builder = new StringBuilder();
+        // Length prefixes keep `a-b`, `c` and `a`, `b-c` apart
+        for (String arg : args) {
+            String value = String.valueOf(arg);
+            builder.append(value.length()).append(':').append(value).append(';');
+        }
+        return CryptoUtils.md5Digest(builder.toString());
+    }
+
 }
@@ -0,0 +1,60 @@
+package com.wetrack.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fixed set of single-thread executors, each task running on the one its key hashes to. Tasks of
+ * the same key therefore run one at a time and in the order they were submitted, while tasks of
+ * other keys go on in parallel instead of queueing behind a slow one.
+ */
+public class KeyedExecutor {
+
+    private final ExecutorService[] stripes;
+
+    public KeyedExecutor(String name, int threads) {
+        if (threads <= 0)
+            throw new IllegalArgumentException("Thread count must be positive, but was " + threads);
+        this.stripes = new ExecutorService[threads];
+        for (int i = 0; i < threads; i++) {
+            String threadName = name + "-" + i;
+            stripes[i] = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, threadName);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /** Returns the executor which runs the tasks of the given key. */
+    public Executor forKey(Object key) {
+        return stripes[(key == null ? 0 : key.hashCode() & Integer.MAX_VALUE) % stripes.length];
+    }
+
+    /**
+     * Waits until every task submitted before this call has run.
+     *
+     * @return {@code false} if the timeout passed first.
+     */
+    public boolean awaitSubmitted(long timeout, TimeUnit unit) throws InterruptedException {
+        CountDownLatch markers = new CountDownLatch(stripes.length);
+        for (ExecutorService stripe : stripes) {
+            try {
+                stripe.execute(markers::countDown);
+            } catch (RejectedExecutionException ex) {
+                // Shut down already; the tasks it has left are not waited for
+                markers.countDown();
+            }
+        }
+        return markers.await(timeout, unit);
+    }
+
+    public void shutdown() {
+        for (ExecutorService stripe : stripes)
+            stripe.shutdown();
+    }
+}
@@ -0,0 +1,111 @@
+package com.wetrack.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timer wheel for large numbers of coarse-grained timeouts, e.g. one per connection.
+ * <p>
+ * Time is divided into ticks of {@code tickMillis}, and a timeout is placed into the bucket of
+ * the tick it expires on, modulo the wheel size. Scheduling is a lock-free enqueue, and each tick
+ * only looks at a single bucket, so the cost does not depend on how many timeouts are pending.
+ * Timeouts fire up to one tick late and cannot be cancelled; handlers are expected to check
+ * whether the item is still relevant. Expired items are handed to the expiry handler on the
+ * wheel's own thread, which must therefore not block.
+ */
+public class TimerWheel<T> {
+    private static final Logger LOG = LoggerFactory.getLogger(TimerWheel.class);
+
+    private final String name;
+    private final long tickNanos;
+    private final List<Queue<Timeout<T>>> buckets;
+    private final Consumer<T> expiryHandler;
+
+    private final Queue<Timeout<T>> scheduled = new ConcurrentLinkedQueue<>();
+    private final long startNanos = System.nanoTime();
+    private final Thread workerThread;
+    private volatile boolean running = true;
+    private long currentTick;
+
+    public TimerWheel(String name, long tickMillis, int wheelSize, Consumer<T> expiryHandler) {
+        this.name = name;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.buckets = new ArrayList<>(wheelSize);
+        for (int i = 0; i < wheelSize; i++)
+            buckets.add(new ArrayDeque<>());
+        this.expiryHandler = expiryHandler;
+        this.workerThread = new Thread(this::workLoop, name);
+        this.workerThread.setDaemon(true);
+        this.workerThread.start();
+    }
+
+    /** Hands the given item to the expiry handler once {@code delayMillis} have passed. */
+    public void schedule(T item, long delayMillis) {
+        long deadlineNanos = System.nanoTime() - startNanos + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        scheduled.add(new Timeout<>(item, (deadlineNanos + tickNanos - 1) / tickNanos));
+    }
+
+    public void stop() {
+        running = false;
+        workerThread.interrupt();
+    }
+
+    private void workLoop() {
+        while (running) {
+            long sleepNanos = (currentTick + 1) * tickNanos - (System.nanoTime() - startNanos);
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException ex) {
+                    continue;
+                }
+            }
+            currentTick++;
+            transferScheduled();
+            expire(buckets.get((int) (currentTick % buckets.size())));
+        }
+    }
+
+    private void transferScheduled() {
+        Timeout<T> timeout;
+        while ((timeout = scheduled.poll()) != null) {
+            if (timeout.deadlineTick < currentTick)
+                timeout.deadlineTick = currentTick;
+            buckets.get((int) (timeout.deadlineTick % buckets.size())).add(timeout);
+        }
+    }
+
+    private void expire(Queue<Timeout<T>> bucket) {
+        for (Iterator<Timeout<T>> iterator = bucket.iterator(); iterator.hasNext(); ) {
+            Timeout<T> timeout = iterator.next();
+            // Timeouts more than one revolution away share the bucket and wait for their round
+            if (timeout.deadlineTick > currentTick)
+                continue;
+            iterator.remove();
+            try {
+                expiryHandler.accept(timeout.item);
+            } catch (Exception ex) {
+                LOG.warn("Expiry handler of timer wheel `" + name + "` failed: ", ex);
+            }
+        }
+    }
+
+    private static class Timeout<T> {
+        private final T item;
+        private long deadlineTick;
+
+        private Timeout(T item, long deadlineTick) {
+            this.item = item;
+            this.deadlineTick = deadlineTick;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package com.wetrack.ws;
+
+import com.wetrack.model.ChatMessage;
+import com.wetrack.model.Location;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary encoding of the frames that make up most of the traffic: chat messages, their
+ * acknowledgements and location fixes.
+ * <p>
+ * Clients opt in per connection by offering the {@value #SUB_PROTOCOL} sub-protocol in the
+ * handshake. Such a session receives those frames as binary messages; every other frame, e.g. the
+ * {@code message} status frames, stays text. A session that did not negotiate the sub-protocol is
+ * served the text protocol only. Each binary frame starts with a header of two bytes, the
+ * encoding version and the opcode, followed by the body:
+ * <pre>
+ * string  := length + 1 as varint (0 for null), UTF-8 bytes
+ * time    := milliseconds since the epoch as int64
+ * seq     := per-chat sequence number as int64, 0 if the message has none
+ *
+ * 0x01 CHAT_MESSAGE      client: id:string chat_id:string content:string send_time:time
+ *                        server: id:string chat_id:string from:string content:string send_time:time sequence:seq
+ * 0x02 CHAT_MESSAGE_ACK  server: id:string send_time:time sequence:seq
+ * 0x03 CHAT_MESSAGES     server: count:varint, then count server CHAT_MESSAGE bodies
+ * 0x04 LOCATION          client: count:varint, then count (latitude:float64 longitude:float64 time:time)
+ *                        server: id:string username:string latitude:float64 longitude:float64 time:time
+ * </pre>
+ * Integers are big-endian. Decoding a frame of another version fails, so the version only has to
+ * be bumped together with the sub-protocol name.
+ */
+abstract class BinaryProtocol {
+    static final String SUB_PROTOCOL = "wetrack.binary.v1";
+    static final byte VERSION = 1;
+
+    static final byte CHAT_MESSAGE = 0x01;
+    static final byte CHAT_MESSAGE_ACK = 0x02;
+    static final byte CHAT_MESSAGES = 0x03;
+    static final byte LOCATION = 0x04;
+
+    /** Whether the given session negotiated the binary sub-protocol. */
+    static boolean isBinary(WebSocketSession session) {
+        return SUB_PROTOCOL.equals(session.getAcceptedProtocol());
+    }
+
+    static BinaryMessage chatMessage(ChatMessage message) {
+        Encoder encoder = new Encoder(CHAT_MESSAGE);
+        encoder.writeChatMessage(message);
+        return encoder.toMessage();
+    }
+
+    static BinaryMessage chatMessages(List<ChatMessage> messages) {
+        Encoder encoder = new Encoder(CHAT_MESSAGES);
+        encoder.writeVarint(messages.size());
+        for (ChatMessage message : messages)
+            encoder.writeChatMessage(message);
+        return encoder.toMessage();
+    }
+
+    static BinaryMessage messageAck(String messageId, LocalDateTime sendTime, Long sequence) {
+        Encoder encoder = new Encoder(CHAT_MESSAGE_ACK);
+        encoder.writeString(messageId);
+        encoder.writeTime(sendTime);
+        encoder.writeSequence(sequence);
+        return encoder.toMessage();
+    }
+
+    static BinaryMessage location(Location location) {
+        Encoder encoder = new Encoder(LOCATION);
+        encoder.writeString(location.getId());
+        encoder.writeString(location.getUsername());
+        encoder.writeDouble(location.getLatitude());
+        encoder.writeDouble(location.getLongitude());
+        encoder.writeTime(location.getTime());
+        return encoder.toMessage();
+    }
+
+    /**
+     * Encodes the given text frame in the binary protocol if it is one of the frame types the
+     * binary protocol covers, or returns it unchanged otherwise. Used for frames that arrive from
+     * other nodes already encoded as text.
+     */
+    static WebSocketMessage<?> transcode(TextMessage message) {
+        String payload = message.getPayload();
+        if (payload.startsWith(WsResponse.TYPE_CHAT_MESSAGE) && payload.startsWith("{", WsResponse.TYPE_CHAT_MESSAGE.length()))
+            return chatMessage(WsResponse.gson.fromJson(payload.substring(WsResponse.TYPE_CHAT_MESSAGE.length()), ChatMessage.class));
+        if (payload.startsWith(WsResponse.TYPE_LOCATION) && payload.startsWith("{", WsResponse.TYPE_LOCATION.length()))
+            return location(WsResponse.gson.fromJson(payload.substring(WsResponse.TYPE_LOCATION.length()), Location.class));
+        return message;
+    }
+
+    /**
+     * Reads the header of a frame sent by a client, leaving the buffer positioned at the body.
+     *
+     * @return the opcode of the frame.
+     * @throws IllegalArgumentException if the frame is too short or of an unsupported version.
+     */
+    static byte readHeader(ByteBuffer buffer) {
+        if (buffer.remaining() < 2)
+            throw new IllegalArgumentException("Binary frame is too short.");
+        byte version = buffer.get();
+        if (version != VERSION)
+            throw new IllegalArgumentException("Unsupported binary frame version " + version + ".");
+        return buffer.get();
+    }
+
+    /** Reads the body of a {@code CHAT_MESSAGE} frame sent by a client. */
+    static ChatMessage readChatMessage(ByteBuffer buffer) {
+        ChatMessage message = new ChatMessage();
+        message.setId(readString(buffer));
+        message.setChatId(readString(buffer));
+        message.setContent(readString(buffer));
+        message.setSendTime(readTime(buffer));
+        requireEnd(buffer);
+        return message;
+    }
+
+    /** Reads the body of a {@code LOCATION} frame sent by a client. */
+    static List<Location> readLocations(ByteBuffer buffer) {
+        int count = readVarint(buffer);
+        // Each fix takes 24 bytes, which bounds the count before anything is allocated for it
+        if (count > buffer.remaining() / 24)
+            throw new IllegalArgumentException("Location count " + count + " exceeds the frame.");
+        List<Location> locations = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            double latitude = buffer.getDouble();
+            double longitude = buffer.getDouble();
+            locations.add(new Location(null, latitude, longitude, readTime(buffer)));
+        }
+        requireEnd(buffer);
+        return locations;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = readVarint(buffer) - 1;
+        if (length < 0)
+            return null;
+        if (length > buffer.remaining())
+            throw new BufferUnderflowException();
+        if (!buffer.hasArray()) {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    private static LocalDateTime readTime(ByteBuffer buffer) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(buffer.getLong()), ZoneId.systemDefault());
+    }
+
+    private static int readVarint(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                if (value < 0)
+                    break;
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint.");
+    }
+
+    private static void requireEnd(ByteBuffer buffer) {
+        if (buffer.hasRemaining())
+            throw new IllegalArgumentException("Unexpected content after the frame body.");
+    }
+
+    /** Writes a single frame, header first. */
+    private static class Encoder extends ByteArrayOutputStream {
+
+        private Encoder(byte opcode) {
+            super(64);
+            write(VERSION);
+            write(opcode);
+        }
+
+        private void writeChatMessage(ChatMessage message) {
+            writeString(message.getId());
+            writeString(message.getChatId());
+            writeString(message.getFromUsername());
+            writeString(message.getContent());
+            writeTime(message.getSendTime());
+            writeSequence(message.getSequence());
+        }
+
+        private void writeSequence(Long sequence) {
+            writeLong(sequence == null ? 0 : sequence);
+        }
+
+        private void writeString(String value) {
+            if (value == null) {
+                writeVarint(0);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarint(bytes.length + 1);
+            write(bytes, 0, bytes.length);
+        }
+
+        private void writeTime(LocalDateTime time) {
+            writeLong(time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+        }
+
+        private void writeDouble(double value) {
+            writeLong(Double.doubleToLongBits(value));
+        }
+
+        private void writeLong(long value) {
+            for (int shift = 56; shift >= 0; shift -= 8)
+                write((int) (value >>> shift));
+        }
+
+        private void writeVarint(int value) {
+            while ((value & ~0x7f) != 0) {
+                write((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            write(value);
+        }
+
+        private BinaryMessage toMessage() {
+            return new BinaryMessage(buf, 0, count, true);
+        }
+    }
+}
@@ -8,10 +8,12 @@ import java.time.LocalDateTime;
 public class ChatMessageAck {
     private String id;
     private LocalDateTime actualSendTime;
+    private Long sequence;
 
-    public ChatMessageAck(String id, LocalDateTime actualSendTime) {
+    public ChatMessageAck(String id, LocalDateTime actualSendTime, Long sequence) {
         this.id = id;
         this.actualSendTime = actualSendTime;
+        this.sequence = sequence;
     }
 
     public String getId() { return id; }
@@ -21,4 +23,8 @@ public class ChatMessageAck {
     public LocalDateTime getActualSendTime() { return actualSendTime; }
 
     public void setActualSendTime(LocalDateTime actualSendTime) { this.actualSendTime = actualSendTime; }
+
+    public Long getSequence() { return sequence; }
+
+    public void setSequence(Long sequence) { this.sequence = sequence; }
 }
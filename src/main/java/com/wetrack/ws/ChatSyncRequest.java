@@ -0,0 +1,23 @@
+package com.wetrack.ws;
+
+/**
+ * Request for the messages of a chat following a sequence number, sent in a {@code chat_sync}
+ * frame.
+ */
+public class ChatSyncRequest {
+    private String chatId;
+    private long afterSequence;
+    private int limit;
+
+    public String getChatId() { return chatId; }
+
+    public void setChatId(String chatId) { this.chatId = chatId; }
+
+    public long getAfterSequence() { return afterSequence; }
+
+    public void setAfterSequence(long afterSequence) { this.afterSequence = afterSequence; }
+
+    public int getLimit() { return limit; }
+
+    public void setLimit(int limit) { this.limit = limit; }
+}
@@ -0,0 +1,170 @@
+package com.wetrack.ws;
+
+import com.wetrack.cluster.BusMessage;
+import com.wetrack.cluster.MessageBus;
+import com.wetrack.cluster.PresenceDirectory;
+import com.wetrack.model.Location;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Delivers WebSocket frames to users regardless of the node they are connected to.
+ * <p>
+ * Sessions on this node are served directly through the {@link OutboundDispatcher}. For all other
+ * recipients the {@link PresenceDirectory} is asked once per delivery which nodes they are on, and
+ * each of those nodes gets a single {@link BusMessage} listing its recipients and carrying the
+ * already encoded frame. The router also keeps the directory up to date with the users that have
+ * sessions on this node.
+ */
+public class ClusterRouter implements SessionRegistry.Listener {
+    private static final Logger LOG = LoggerFactory.getLogger(ClusterRouter.class);
+
+    /** Receives location fixes forwarded by other nodes for friends connected to this node. */
+    @FunctionalInterface
+    public interface RemoteLocationHandler {
+        void onRemoteLocation(Location location, OutboundFrame frame, Set<String> friendNames);
+    }
+
+    private final MessageBus messageBus;
+    private final PresenceDirectory presenceDirectory;
+    private final SessionRegistry sessionRegistry;
+    private final OutboundDispatcher outboundDispatcher;
+    private final FanOutEngine fanOutEngine;
+    private final String nodeId;
+
+    private volatile RemoteLocationHandler remoteLocationHandler = (location, frame, friendNames) -> {};
+
+    private final LongAdder forwardedCount = new LongAdder();
+    private final LongAdder receivedCount = new LongAdder();
+
+    public ClusterRouter(MessageBus messageBus, PresenceDirectory presenceDirectory,
+                         SessionRegistry sessionRegistry, OutboundDispatcher outboundDispatcher,
+                         FanOutEngine fanOutEngine) {
+        this.messageBus = messageBus;
+        this.presenceDirectory = presenceDirectory;
+        this.sessionRegistry = sessionRegistry;
+        this.outboundDispatcher = outboundDispatcher;
+        this.fanOutEngine = fanOutEngine;
+        this.nodeId = messageBus.getNodeId();
+
+        sessionRegistry.addListener(this);
+        messageBus.setHandler(BusMessage.Type.DELIVER, this::onBusMessage);
+        messageBus.setHandler(BusMessage.Type.LOCATION, this::onBusMessage);
+    }
+
+    public void setRemoteLocationHandler(RemoteLocationHandler remoteLocationHandler) {
+        this.remoteLocationHandler = remoteLocationHandler;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Sends the given frame to every session of the given users on every node, except
+     * {@code excludedSession}. Other nodes are sent the text encoding of the frame. Local sessions
+     * are served through the {@link FanOutEngine}, in parallel for large recipient sets.
+     */
+    public void deliver(Collection<String> usernames, OutboundFrame frame, WebSocketSession excludedSession) {
+        deliver(usernames, frame, excludedSession, null);
+    }
+
+    /**
+     * Like {@link #deliver(Collection, OutboundFrame, WebSocketSession)}, but the frame supersedes
+     * a frame with the same coalescing key that is still queued for a recipient session, on this
+     * node and on the others.
+     */
+    public void deliver(Collection<String> usernames, OutboundFrame frame, WebSocketSession excludedSession,
+                        String coalesceKey) {
+        fanOutEngine.fanOut(usernames, username -> {
+            for (WebSocketSession session : sessionRegistry.getSessions(username)) {
+                if (session != excludedSession)
+                    outboundDispatcher.send(session, frame.forSession(session), coalesceKey);
+            }
+        });
+        forward(BusMessage.Type.DELIVER, usernames, frame.getText(), coalesceKey);
+    }
+
+    /**
+     * Hands the given location frame to every other node on which at least one of the given
+     * friends is online. Those nodes push it to their own sessions.
+     */
+    public void forwardLocation(Collection<String> friendNames, OutboundFrame frame) {
+        forward(BusMessage.Type.LOCATION, friendNames, frame.getText(), null);
+    }
+
+    /** Leaves the cluster; users connected to this node are no longer reachable from others. */
+    public void shutdown() {
+        messageBus.close();
+    }
+
+    @Override
+    public void onUserOnline(String username) {
+        presenceDirectory.online(username, nodeId);
+    }
+
+    @Override
+    public void onUserOffline(String username) {
+        presenceDirectory.offline(username, nodeId);
+    }
+
+    public long getForwardedCount() { return forwardedCount.sum(); }
+
+    public long getReceivedCount() { return receivedCount.sum(); }
+
+    private void forward(BusMessage.Type type, Collection<String> usernames, TextMessage message,
+                         String coalesceKey) {
+        Map<String, Set<String>> recipientsByNode = null;
+        for (Map.Entry<String, Set<String>> entry : presenceDirectory.findNodes(usernames).entrySet()) {
+            for (String node : entry.getValue()) {
+                if (node.equals(nodeId))
+                    continue;
+                if (recipientsByNode == null)
+                    recipientsByNode = new HashMap<>();
+                recipientsByNode.computeIfAbsent(node, key -> new HashSet<>()).add(entry.getKey());
+            }
+        }
+        if (recipientsByNode == null)
+            return;
+
+        byte[] payload = message.asBytes();
+        for (Map.Entry<String, Set<String>> entry : recipientsByNode.entrySet()) {
+            messageBus.send(entry.getKey(), new BusMessage(type, nodeId, entry.getValue(), payload, coalesceKey));
+            forwardedCount.increment();
+        }
+    }
+
+    private void onBusMessage(BusMessage busMessage) {
+        receivedCount.increment();
+        TextMessage message = new TextMessage(busMessage.getPayload());
+        switch (busMessage.getType()) {
+            case DELIVER:
+                OutboundFrame frame = OutboundFrame.fromText(message);
+                fanOutEngine.fanOut(busMessage.getRecipients(), username -> {
+                    for (WebSocketSession session : sessionRegistry.getSessions(username))
+                        outboundDispatcher.send(session, frame.forSession(session), busMessage.getCoalesceKey());
+                });
+                break;
+            case LOCATION:
+                String json = new String(busMessage.getPayload(), StandardCharsets.UTF_8)
+                        .substring(WsResponse.TYPE_LOCATION.length());
+                Location location = WsResponse.gson.fromJson(json, Location.class);
+                remoteLocationHandler.onRemoteLocation(location,
+                        new OutboundFrame(message, () -> BinaryProtocol.location(location)), busMessage.getRecipients());
+                break;
+            default:
+                LOG.warn("Ignored bus message of unknown type `{}` from node `{}`",
+                        busMessage.getType(), busMessage.getSourceNodeId());
+        }
+    }
+}
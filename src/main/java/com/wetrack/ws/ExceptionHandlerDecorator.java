@@ -13,8 +13,14 @@ import static com.wetrack.ws.WsResponse.internalError;
 public class ExceptionHandlerDecorator extends WebSocketHandlerDecorator {
     private static final Logger LOG = LoggerFactory.getLogger(ExceptionHandlerDecorator.class);
 
-    public ExceptionHandlerDecorator(WebSocketHandler delegate) {
+    private final OutboundDispatcher outboundDispatcher;
+    private final WebSocketMetrics metrics;
+
+    public ExceptionHandlerDecorator(WebSocketHandler delegate, OutboundDispatcher outboundDispatcher,
+                                     WebSocketMetrics metrics) {
         super(delegate);
+        this.outboundDispatcher = outboundDispatcher;
+        this.metrics = metrics;
     }
 
     @Override
@@ -31,14 +37,19 @@ public class ExceptionHandlerDecorator extends WebSocketHandlerDecorator {
 
     @Override
     public void handleMessage(WebSocketSession session, WebSocketMessage<?> message) {
+        long startNanos = System.nanoTime();
         try {
             getDelegate().handleMessage(session, message);
         }
         catch (Throwable ex) {
+            metrics.onHandlerError();
             LOG.warn("Exception occurred when handling message for session `" + session + "`: ", ex);
             trySendMessage(session, internalError("Exception occurred when the server is handling message for this session: "
                     + ex.getClass().getName()));
         }
+        finally {
+            metrics.getHandlerLatency().recordSince(startNanos);
+        }
     }
 
     @Override
@@ -63,15 +74,11 @@ public class ExceptionHandlerDecorator extends WebSocketHandlerDecorator {
         }
     }
 
+    /**
+     * Queued like every other frame, since the writer threads may be sending on the session at the
+     * same time. A session the error cannot be written to is closed by the dispatcher.
+     */
     private void trySendMessage(WebSocketSession session, WebSocketMessage<?> message) {
-        try {
-            session.sendMessage(message);
-        } catch (Exception ex) {
-            LOG.warn("Exception occurred when trying to send message to session `" + session + "`: ", ex);
-            try {
-                if (session.isOpen())
-                    session.close(new CloseStatus(1011, "Server error: " + ex.getClass().getName()));
-            } catch (Exception e) {}
-        }
+        outboundDispatcher.send(session, message);
     }
 }
@@ -0,0 +1,159 @@
+package com.wetrack.ws;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.WebSocketHandlerDecorator;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Moves WebSocket handler calls off the container's I/O threads onto a dedicated executor, so that
+ * handlers blocked on the database only hold up their own session.
+ * <p>
+ * Every session has an {@link InboundQueue} of at most {@code queueCapacity} inbound messages.
+ * Calls of one session run in the order the container made them; calls of different sessions run
+ * in parallel. A session that keeps sending while its queue is full is closed with
+ * {@link CloseStatus#POLICY_VIOLATION}. Connection lifecycle callbacks are always queued. The
+ * queue goes away once the session's close has been handled; messages and transport errors the
+ * container reports after that are dropped rather than bringing the queue back.
+ * <p>
+ * The time calls spend waiting in their queue is recorded, as it is the first sign of a handler
+ * executor that is too small for the load. Inbound messages are reported to the activity
+ * listener as they arrive, before they are queued, so that a backed-up executor does not make
+ * sessions look idle.
+ */
+public class ExecutorHandlerDecorator extends WebSocketHandlerDecorator {
+    private static final Logger LOG = LoggerFactory.getLogger(ExecutorHandlerDecorator.class);
+
+    private final ExecutorService executor;
+    private final int queueCapacity;
+
+    private final ConcurrentHashMap<WebSocketSession, InboundQueue> queues = new ConcurrentHashMap<>();
+    private volatile Consumer<WebSocketSession> activityListener = session -> {};
+
+    private final LongAdder executedCount = new LongAdder();
+    private final LongAdder rejectedCount = new LongAdder();
+    private final LongAdder totalQueueNanos = new LongAdder();
+    private final LongAccumulator maxQueueNanos = new LongAccumulator(Math::max, 0);
+
+    public ExecutorHandlerDecorator(WebSocketHandler delegate, ExecutorService executor, int queueCapacity) {
+        super(delegate);
+        if (queueCapacity <= 0)
+            throw new IllegalArgumentException("Queue capacity must be positive, but was " + queueCapacity);
+        this.executor = executor;
+        this.queueCapacity = queueCapacity;
+    }
+
+    /** Sets the listener told about every inbound message, on the container's thread. */
+    public void setActivityListener(Consumer<WebSocketSession> activityListener) {
+        this.activityListener = activityListener;
+    }
+
+    @Override
+    public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+        queue(session).offer(() -> getDelegate().afterConnectionEstablished(session), true);
+    }
+
+    @Override
+    public void handleMessage(WebSocketSession session, WebSocketMessage<?> message) throws Exception {
+        activityListener.accept(session);
+        InboundQueue queue = queues.get(session);
+        if (queue == null) {
+            LOG.debug("Dropped a message of closed session `{}`.", session.getId());
+            return;
+        }
+        WebSocketMessage<?> retained = retain(message);
+        if (queue.offer(() -> getDelegate().handleMessage(session, retained), false))
+            return;
+
+        rejectedCount.increment();
+        LOG.debug("Inbound queue of session `{}` is full. Disconnecting...", session.getId());
+        if (session.isOpen())
+            session.close(CloseStatus.POLICY_VIOLATION);
+    }
+
+    @Override
+    public void handleTransportError(WebSocketSession session, Throwable exception) throws Exception {
+        InboundQueue queue = queues.get(session);
+        if (queue == null) {
+            LOG.debug("Dropped a transport error of closed session `{}`: {}", session.getId(), exception.toString());
+            return;
+        }
+        queue.offer(() -> getDelegate().handleTransportError(session, exception), true);
+    }
+
+    @Override
+    public void afterConnectionClosed(WebSocketSession session, CloseStatus closeStatus) throws Exception {
+        queue(session).offer(() -> {
+            try {
+                getDelegate().afterConnectionClosed(session, closeStatus);
+            } finally {
+                queues.remove(session);
+            }
+        }, true);
+    }
+
+    /** Number of calls waiting in all queues. */
+    public long getPendingCount() {
+        long total = 0;
+        for (InboundQueue queue : queues.values())
+            total += queue.size();
+        return total;
+    }
+
+    public long getExecutedCount() { return executedCount.sum(); }
+
+    /** Number of inbound messages rejected because their session's queue was full. */
+    public long getRejectedCount() { return rejectedCount.sum(); }
+
+    /** Mean time calls waited in their queue, in milliseconds. */
+    public double getMeanQueueMillis() {
+        long executed = executedCount.sum();
+        return executed == 0 ? 0 : totalQueueNanos.sum() / (double) executed / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /** Longest time a call waited in its queue, in milliseconds. */
+    public double getMaxQueueMillis() {
+        return maxQueueNanos.get() / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    ExecutorService getExecutor() { return executor; }
+
+    int getQueueCount() { return queues.size(); }
+
+    void onDequeued(long queueNanos) {
+        executedCount.increment();
+        totalQueueNanos.add(queueNanos);
+        maxQueueNanos.accumulate(queueNanos);
+    }
+
+    private InboundQueue queue(WebSocketSession session) {
+        return queues.computeIfAbsent(session, s -> new InboundQueue(s, this, queueCapacity));
+    }
+
+    /**
+     * Containers may reuse the buffer of a binary message once the handler has returned, so its
+     * payload is copied before the message is handed to another thread. Text payloads are
+     * immutable strings.
+     */
+    private static WebSocketMessage<?> retain(WebSocketMessage<?> message) {
+        if (!(message instanceof BinaryMessage))
+            return message;
+        ByteBuffer payload = ((BinaryMessage) message).getPayload();
+        ByteBuffer copy = ByteBuffer.allocate(payload.remaining());
+        copy.put(payload.duplicate());
+        copy.flip();
+        return new BinaryMessage(copy, message.isLast());
+    }
+}
@@ -0,0 +1,96 @@
+package com.wetrack.ws;
+
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Hands a message to each of a set of recipients, in parallel for large sets.
+ * <p>
+ * Recipient sets smaller than {@code parallelThreshold} are walked on the calling thread, which
+ * is the cheapest option for the usual small chat. Larger sets are split in half recursively on a
+ * {@link ForkJoinPool} until the shards hold at most {@code shardSize} recipients, so the last
+ * member of a huge chat is not served long after the first one.
+ * <p>
+ * {@link #fanOut} returns only after every recipient has been served. Fan-outs started one after
+ * another from the same thread therefore reach each recipient in that order.
+ */
+public class FanOutEngine {
+    private final ForkJoinPool pool;
+    private final int parallelThreshold;
+    private final int shardSize;
+
+    private final LongAdder serialCount = new LongAdder();
+    private final LongAdder parallelCount = new LongAdder();
+    private final LongAdder shardCount = new LongAdder();
+
+    public FanOutEngine(int parallelism, int parallelThreshold, int shardSize) {
+        if (shardSize <= 0)
+            throw new IllegalArgumentException("Shard size must be positive, but was " + shardSize);
+        this.pool = new ForkJoinPool(parallelism, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("fan-out-" + thread.getPoolIndex());
+            thread.setDaemon(true);
+            return thread;
+        }, null, false);
+        this.parallelThreshold = parallelThreshold;
+        this.shardSize = shardSize;
+    }
+
+    /** Passes every one of the given recipients to {@code delivery}. */
+    public void fanOut(Collection<String> recipients, Consumer<String> delivery) {
+        if (recipients.size() < parallelThreshold) {
+            serialCount.increment();
+            for (String recipient : recipients)
+                delivery.accept(recipient);
+            return;
+        }
+        parallelCount.increment();
+        String[] array = recipients.toArray(new String[recipients.size()]);
+        pool.invoke(new Shard(array, 0, array.length, delivery));
+    }
+
+    /** Number of fan-outs served on the calling thread. */
+    public long getSerialCount() { return serialCount.sum(); }
+
+    /** Number of fan-outs split into shards. */
+    public long getParallelCount() { return parallelCount.sum(); }
+
+    /** Number of shards delivered by parallel fan-outs. */
+    public long getShardCount() { return shardCount.sum(); }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    private class Shard extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final String[] recipients;
+        private final int from;
+        private final int to;
+        private final Consumer<String> delivery;
+
+        private Shard(String[] recipients, int from, int to, Consumer<String> delivery) {
+            this.recipients = recipients;
+            this.from = from;
+            this.to = to;
+            this.delivery = delivery;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= shardSize) {
+                shardCount.increment();
+                for (int i = from; i < to; i++)
+                    delivery.accept(recipients[i]);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new Shard(recipients, from, middle, delivery), new Shard(recipients, middle, to, delivery));
+        }
+    }
+}
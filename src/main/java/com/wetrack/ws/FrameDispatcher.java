@@ -0,0 +1,106 @@
+package com.wetrack.ws;
+
+import com.google.gson.stream.JsonReader;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Table of text frame handlers, keyed by the type prefix the frames start with.
+ * <p>
+ * A prefix is the frame type followed by its separator, which is either part of the body (the
+ * opening {@code {} or {@code [} of a JSON body, e.g. {@code chat_message}) or a trailing
+ * {@code :} (e.g. {@code Token:}). Lookup finds the end of the prefix with a single scan, and
+ * then only compares against registered prefixes of exactly that length, in place. So dispatch
+ * allocates nothing, costs the same however many types are registered, and never mistakes
+ * {@code chat_messages} for {@code chat_message}.
+ */
+public class FrameDispatcher {
+    static final int MAX_PREFIX_LENGTH = 32;
+
+    private final List<List<Registration>> byLength = new ArrayList<>(MAX_PREFIX_LENGTH + 1);
+
+    public FrameDispatcher() {
+        for (int i = 0; i <= MAX_PREFIX_LENGTH; i++)
+            byLength.add(new ArrayList<>(2));
+    }
+
+    /**
+     * Registers the handler for frames starting with the given prefix. Not thread-safe; all
+     * handlers are expected to be registered before the first frame is dispatched.
+     *
+     * @throws IllegalArgumentException if the prefix is too long, contains a separator before its
+     *         end, or is registered already.
+     */
+    public void register(String prefix, FrameHandler handler) {
+        if (prefix.isEmpty() || prefix.length() > MAX_PREFIX_LENGTH)
+            throw new IllegalArgumentException("Frame prefix `" + prefix + "` must have 1 to "
+                    + MAX_PREFIX_LENGTH + " characters.");
+        if (prefixLength(prefix) != prefix.length())
+            throw new IllegalArgumentException("Frame prefix `" + prefix + "` may only end with a separator.");
+        List<Registration> candidates = byLength.get(prefix.length());
+        for (Registration registration : candidates) {
+            if (registration.prefix.equals(prefix))
+                throw new IllegalArgumentException("Frame prefix `" + prefix + "` is registered already.");
+        }
+        candidates.add(new Registration(prefix, handler));
+    }
+
+    /**
+     * Hands the given payload to the handler registered for its prefix.
+     *
+     * @return {@code false} if no handler is registered for the payload's prefix.
+     */
+    public boolean dispatch(WebSocketSession session, String payload) throws Exception {
+        int length = prefixLength(payload);
+        if (length > MAX_PREFIX_LENGTH)
+            return false;
+        for (Registration registration : byLength.get(length)) {
+            if (payload.startsWith(registration.prefix)) {
+                registration.handler.handle(session, payload, length);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns a streaming JSON reader positioned at the given offset of the payload. The payload is
+     * read in place; nothing is copied out of it up front.
+     */
+    public static JsonReader jsonReader(String payload, int offset) throws IOException {
+        StringReader reader = new StringReader(payload);
+        reader.skip(offset);
+        return new JsonReader(reader);
+    }
+
+    /**
+     * Length of the prefix of the given text: everything before the first {@code {} or {@code [},
+     * or everything up to and including the first {@code :}. Scanning stops after
+     * {@link #MAX_PREFIX_LENGTH} characters.
+     */
+    private static int prefixLength(String text) {
+        int limit = Math.min(text.length(), MAX_PREFIX_LENGTH + 1);
+        for (int i = 0; i < limit; i++) {
+            char c = text.charAt(i);
+            if (c == '{' || c == '[')
+                return i;
+            if (c == ':')
+                return i + 1;
+        }
+        return limit;
+    }
+
+    private static class Registration {
+        private final String prefix;
+        private final FrameHandler handler;
+
+        private Registration(String prefix, FrameHandler handler) {
+            this.prefix = prefix;
+            this.handler = handler;
+        }
+    }
+}
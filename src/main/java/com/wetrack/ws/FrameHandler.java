@@ -0,0 +1,14 @@
+package com.wetrack.ws;
+
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * Handles one type of text frame. The frame's body starts at {@code bodyOffset} of the payload,
+ * right after the type prefix; handlers read it in place instead of cutting it out.
+ */
+@FunctionalInterface
+public interface FrameHandler {
+
+    void handle(WebSocketSession session, String payload, int bodyOffset) throws Exception;
+
+}
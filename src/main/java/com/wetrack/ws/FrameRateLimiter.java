@@ -0,0 +1,116 @@
+package com.wetrack.ws;
+
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the rate of inbound frames with a token bucket per session and another per user, so that
+ * a user cannot get around the session limit by opening more connections.
+ * <p>
+ * A bucket holds up to {@code burst} tokens and gains {@code ratePerSecond} tokens a second; every
+ * frame takes one token from the session's bucket and, once the session is authenticated, one from
+ * the user's. Each bucket is a single {@link AtomicLong} holding the time at which it will be full
+ * again (the generic cell rate algorithm), so taking a token is one compare-and-set and there is
+ * no refill timer. A rate of zero or less disables the respective limit.
+ * <p>
+ * User buckets are dropped when the user's last session goes away.
+ */
+public class FrameRateLimiter implements SessionRegistry.Listener {
+
+    private final Limit sessionLimit;
+    private final Limit userLimit;
+
+    private final ConcurrentHashMap<WebSocketSession, TokenBucket> sessionBuckets = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, TokenBucket> userBuckets = new ConcurrentHashMap<>();
+
+    private final LongAdder sessionRejectedCount = new LongAdder();
+    private final LongAdder userRejectedCount = new LongAdder();
+
+    public FrameRateLimiter(SessionRegistry sessionRegistry, int sessionBurst, double sessionRatePerSecond,
+                            int userBurst, double userRatePerSecond) {
+        this.sessionLimit = Limit.of(sessionBurst, sessionRatePerSecond);
+        this.userLimit = Limit.of(userBurst, userRatePerSecond);
+        sessionRegistry.addListener(this);
+    }
+
+    /**
+     * Takes a token for one frame received on the given session.
+     *
+     * @param username the user the session is bound to, or {@code null} if it is anonymous.
+     * @return {@code false} if the frame exceeds the limit of the session or the user and must be
+     *         rejected.
+     */
+    public boolean tryAcquire(WebSocketSession session, String username) {
+        if (sessionLimit != null
+                && !sessionBuckets.computeIfAbsent(session, key -> new TokenBucket()).tryAcquire(sessionLimit)) {
+            sessionRejectedCount.increment();
+            return false;
+        }
+        if (userLimit != null && username != null
+                && !userBuckets.computeIfAbsent(username, key -> new TokenBucket()).tryAcquire(userLimit)) {
+            userRejectedCount.increment();
+            return false;
+        }
+        return true;
+    }
+
+    public void remove(WebSocketSession session) {
+        sessionBuckets.remove(session);
+    }
+
+    @Override
+    public void onUserOnline(String username) {}
+
+    @Override
+    public void onUserOffline(String username) {
+        userBuckets.remove(username);
+    }
+
+    /** Number of frames rejected by the limit of their session. */
+    public long getSessionRejectedCount() { return sessionRejectedCount.sum(); }
+
+    /** Number of frames rejected by the limit of their user, across all of the user's sessions. */
+    public long getUserRejectedCount() { return userRejectedCount.sum(); }
+
+    private static class Limit {
+        /** Time it takes to gain one token. */
+        private final long intervalNanos;
+        /** Time it takes to refill an empty bucket. */
+        private final long capacityNanos;
+
+        private Limit(long intervalNanos, long capacityNanos) {
+            this.intervalNanos = intervalNanos;
+            this.capacityNanos = capacityNanos;
+        }
+
+        private static Limit of(int burst, double ratePerSecond) {
+            if (ratePerSecond <= 0)
+                return null;
+            if (burst <= 0)
+                throw new IllegalArgumentException("Burst must be positive, but was " + burst);
+            long intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond));
+            return new Limit(intervalNanos, intervalNanos * burst);
+        }
+    }
+
+    private static class TokenBucket {
+        /** When the bucket will be full again; a bucket full already holds a time in the past. */
+        private final AtomicLong fullNanos = new AtomicLong(System.nanoTime());
+
+        private boolean tryAcquire(Limit limit) {
+            while (true) {
+                long now = System.nanoTime();
+                long full = fullNanos.get();
+                long next = Math.max(full, now) + limit.intervalNanos;
+                if (next - now > limit.capacityNanos)
+                    return false;
+                if (fullNanos.compareAndSet(full, next))
+                    return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.wetrack.ws;
+
+import com.wetrack.cache.FriendCache;
+import com.wetrack.event.LocationListener;
+import com.wetrack.model.Location;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pushes the location fixes of a user to every online session of the user's friends.
+ * <p>
+ * Each subscribing session receives at most one round of updates per {@code minIntervalMillis}.
+ * Fixes arriving in between are held back, and a newer fix of the same friend replaces the one
+ * being held, so a subscriber that falls behind only ever receives the newest fix of each friend.
+ * The frames are sent with a per-friend coalescing key, which lets the outbound queue apply the
+ * same rule to fixes that are already waiting for the socket.
+ * <p>
+ * Friends connected to other nodes are reached through the {@link ClusterRouter}; the node they
+ * are connected to applies the rate limit for them.
+ */
+public class FriendLocationPusher implements LocationListener {
+    private static final String COALESCE_KEY_PREFIX = WsResponse.TYPE_LOCATION + ":";
+
+    private final FriendCache friendCache;
+    private final ClusterRouter clusterRouter;
+    private final SessionRegistry sessionRegistry;
+    private final OutboundDispatcher outboundDispatcher;
+    private final long minIntervalNanos;
+
+    private final Map<WebSocketSession, Subscriber> subscribers = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "friend-location-pusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final LongAdder pushedCount = new LongAdder();
+    private final LongAdder coalescedCount = new LongAdder();
+
+    public FriendLocationPusher(FriendCache friendCache, ClusterRouter clusterRouter,
+                                SessionRegistry sessionRegistry, OutboundDispatcher outboundDispatcher,
+                                long minIntervalMillis) {
+        this.friendCache = friendCache;
+        this.clusterRouter = clusterRouter;
+        this.sessionRegistry = sessionRegistry;
+        this.outboundDispatcher = outboundDispatcher;
+        this.minIntervalNanos = TimeUnit.MILLISECONDS.toNanos(minIntervalMillis);
+        clusterRouter.setRemoteLocationHandler(this::pushLocal);
+    }
+
+    @Override
+    public void onLocation(Location location) {
+        Set<String> friendNames = friendCache.getFriends(location.getUsername());
+        if (friendNames.isEmpty())
+            return;
+        OutboundFrame frame = OutboundFrame.location(location);
+        clusterRouter.forwardLocation(friendNames, frame);
+        pushLocal(location, frame, friendNames);
+    }
+
+    /** Pushes the given fix to the sessions of the given friends which are on this node. */
+    private void pushLocal(Location location, OutboundFrame frame, Collection<String> friendNames) {
+        for (String friendName : friendNames) {
+            for (WebSocketSession session : sessionRegistry.getSessions(friendName)) {
+                if (session.isOpen())
+                    subscribers.computeIfAbsent(session, Subscriber::new).offer(location, frame);
+            }
+        }
+    }
+
+    /** Forgets everything held back for the given session. */
+    public void remove(WebSocketSession session) {
+        subscribers.remove(session);
+    }
+
+    public int getSubscriberCount() { return subscribers.size(); }
+
+    public long getPushedCount() { return pushedCount.sum(); }
+
+    public long getCoalescedCount() { return coalescedCount.sum(); }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    private class Subscriber {
+        private final WebSocketSession session;
+        /** Newest fix held back per friend, in the order the friends first showed up. */
+        private final Map<String, Pending> pending = new LinkedHashMap<>();
+        private long lastFlushNanos;
+        private boolean flushScheduled;
+
+        private Subscriber(WebSocketSession session) {
+            this.session = session;
+            this.lastFlushNanos = System.nanoTime() - minIntervalNanos;
+        }
+
+        private void offer(Location location, OutboundFrame frame) {
+            long delayNanos;
+            synchronized (this) {
+                Pending current = pending.get(location.getUsername());
+                if (current != null) {
+                    coalescedCount.increment();
+                    if (current.time.isAfter(location.getTime()))
+                        return;
+                }
+                pending.put(location.getUsername(), new Pending(location.getTime(), frame));
+                if (flushScheduled)
+                    return;
+                flushScheduled = true;
+                delayNanos = lastFlushNanos + minIntervalNanos - System.nanoTime();
+            }
+
+            if (delayNanos <= 0)
+                flush();
+            else
+                scheduler.schedule(this::flush, delayNanos, TimeUnit.NANOSECONDS);
+        }
+
+        private void flush() {
+            Map<String, Pending> batch;
+            synchronized (this) {
+                flushScheduled = false;
+                lastFlushNanos = System.nanoTime();
+                if (pending.isEmpty())
+                    return;
+                batch = new LinkedHashMap<>(pending);
+                pending.clear();
+            }
+
+            if (!session.isOpen()) {
+                subscribers.remove(session, this);
+                return;
+            }
+            for (Map.Entry<String, Pending> entry : batch.entrySet()) {
+                outboundDispatcher.send(session, entry.getValue().frame.forSession(session), COALESCE_KEY_PREFIX + entry.getKey());
+                pushedCount.increment();
+            }
+        }
+    }
+
+    private static class Pending {
+        private final LocalDateTime time;
+        private final OutboundFrame frame;
+
+        private Pending(LocalDateTime time, OutboundFrame frame) {
+            this.time = time;
+            this.frame = frame;
+        }
+    }
+}
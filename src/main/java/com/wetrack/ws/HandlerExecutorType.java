@@ -0,0 +1,61 @@
+package com.wetrack.ws;
+
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Kind of threads the {@link ExecutorHandlerDecorator} runs WebSocket handlers on.
+ */
+public enum HandlerExecutorType {
+    /** A fixed number of platform threads, which bounds the concurrent database calls. */
+    PLATFORM {
+        @Override
+        public ExecutorService create(int threads) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), new HandlerThreadFactory());
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+    },
+    /**
+     * A virtual thread per task, on runtimes that have them. Looked up reflectively, as the code
+     * base targets Java 8; falls back to {@link #PLATFORM} elsewhere.
+     */
+    VIRTUAL {
+        @Override
+        public ExecutorService create(int threads) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException ex) {
+                LoggerFactory.getLogger(HandlerExecutorType.class).warn(
+                        "Virtual threads are not available on this runtime. Using {} platform threads instead.", threads);
+                return PLATFORM.create(threads);
+            }
+        }
+    };
+
+    /**
+     * Creates an executor of this type.
+     *
+     * @param threads number of platform threads; ignored by {@link #VIRTUAL} if it is available.
+     */
+    public abstract ExecutorService create(int threads);
+
+    private static class HandlerThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "ws-handler-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.wetrack.ws;
+
+import com.wetrack.util.TimerWheel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.PingMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Detects dead connections. A session that has been quiet for {@code pingIntervalMillis} is sent
+ * a WebSocket ping, and one that stays quiet for {@code idleTimeoutMillis} in total is closed and
+ * handed to the reap handler. Any inbound frame, including pongs, counts as activity.
+ * <p>
+ * Sessions are checked from a {@link TimerWheel} rather than with a timer each. Recording
+ * activity only stores a timestamp; when a session's check comes up and it turns out to have
+ * been active in the meantime, the check is simply pushed back. Idle sessions are closed and
+ * released on the {@code reapExecutor}, since closing a dead connection may block, and the
+ * wheel's thread serves the checks of every session.
+ */
+public class HeartbeatMonitor {
+    private static final Logger LOG = LoggerFactory.getLogger(HeartbeatMonitor.class);
+
+    private static final String PING_COALESCE_KEY = "ping";
+
+    private final OutboundDispatcher outboundDispatcher;
+    private final Executor reapExecutor;
+    private final long pingIntervalMillis;
+    private final long idleTimeoutMillis;
+    private final TimerWheel<Heartbeat> timerWheel;
+
+    private final Map<WebSocketSession, Heartbeat> heartbeats = new ConcurrentHashMap<>();
+    private volatile Consumer<WebSocketSession> reapHandler = session -> {};
+
+    private final LongAdder pingCount = new LongAdder();
+    private final LongAdder reapedCount = new LongAdder();
+
+    public HeartbeatMonitor(OutboundDispatcher outboundDispatcher, Executor reapExecutor, long pingIntervalMillis,
+                            long idleTimeoutMillis, long tickMillis, int wheelSize) {
+        this.outboundDispatcher = outboundDispatcher;
+        this.reapExecutor = reapExecutor;
+        this.pingIntervalMillis = pingIntervalMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.timerWheel = new TimerWheel<>("heartbeat-monitor", tickMillis, wheelSize, this::check);
+    }
+
+    /**
+     * Sets the handler called after a session has been closed for being idle. The container may
+     * not report such a close on its own if the connection is already dead.
+     */
+    public void setReapHandler(Consumer<WebSocketSession> reapHandler) {
+        this.reapHandler = reapHandler;
+    }
+
+    public void track(WebSocketSession session) {
+        Heartbeat heartbeat = new Heartbeat(session);
+        heartbeats.put(session, heartbeat);
+        timerWheel.schedule(heartbeat, pingIntervalMillis);
+    }
+
+    /** Records inbound activity on the given session. */
+    public void touch(WebSocketSession session) {
+        Heartbeat heartbeat = heartbeats.get(session);
+        if (heartbeat != null)
+            heartbeat.lastActivityNanos = System.nanoTime();
+    }
+
+    public void untrack(WebSocketSession session) {
+        heartbeats.remove(session);
+    }
+
+    public int getTrackedCount() { return heartbeats.size(); }
+
+    /** Every tracked session, i.e. every open session whether authenticated or not. */
+    public Set<WebSocketSession> getTrackedSessions() {
+        return Collections.unmodifiableSet(heartbeats.keySet());
+    }
+
+    public long getPingCount() { return pingCount.sum(); }
+
+    public long getReapedCount() { return reapedCount.sum(); }
+
+    public void shutdown() {
+        timerWheel.stop();
+    }
+
+    private void check(Heartbeat heartbeat) {
+        WebSocketSession session = heartbeat.session;
+        if (heartbeats.get(session) != heartbeat)
+            return;
+
+        long idleMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - heartbeat.lastActivityNanos);
+        if (idleMillis >= idleTimeoutMillis || !session.isOpen()) {
+            reap(heartbeat);
+            return;
+        }
+        if (idleMillis >= pingIntervalMillis) {
+            outboundDispatcher.send(session, new PingMessage(), PING_COALESCE_KEY);
+            pingCount.increment();
+            timerWheel.schedule(heartbeat, Math.min(pingIntervalMillis, idleTimeoutMillis - idleMillis));
+        } else
+            timerWheel.schedule(heartbeat, pingIntervalMillis - idleMillis);
+    }
+
+    private void reap(Heartbeat heartbeat) {
+        WebSocketSession session = heartbeat.session;
+        if (!heartbeats.remove(session, heartbeat))
+            return;
+        reapedCount.increment();
+        LOG.debug("Closing session `{}` which has been idle for too long", session.getId());
+        try {
+            reapExecutor.execute(() -> close(session));
+        } catch (RejectedExecutionException ex) {
+            // Shutting down; nothing else is left for the wheel to wait on
+            close(session);
+        }
+    }
+
+    private void close(WebSocketSession session) {
+        try {
+            session.close(CloseStatus.SESSION_NOT_RELIABLE);
+        } catch (IOException | RuntimeException ex) {
+            LOG.debug("Failed to close idle session `{}`: {}", session.getId(), ex.getMessage());
+        }
+        reapHandler.accept(session);
+    }
+
+    private static class Heartbeat {
+        private final WebSocketSession session;
+        private volatile long lastActivityNanos = System.nanoTime();
+
+        private Heartbeat(WebSocketSession session) {
+            this.session = session;
+        }
+    }
+}
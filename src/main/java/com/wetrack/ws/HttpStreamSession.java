@@ -0,0 +1,159 @@
+package com.wetrack.ws;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.PingMessage;
+import org.springframework.web.socket.PongMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.security.Principal;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A session of the {@code /notifications} endpoint carried over plain HTTP, for clients whose
+ * network blocks WebSockets. To the {@link WebSocketHandler} it is an ordinary session of the text
+ * protocol, so it receives exactly the frames a WebSocket client would; subclasses only decide how
+ * outbound frames reach the client.
+ * <p>
+ * A WebSocket ping is answered on the client's behalf once it has been passed on, since these
+ * transports have no pong of their own. Sessions are opened through {@link NotificationStreams}.
+ */
+public abstract class HttpStreamSession implements WebSocketSession {
+    private static final Logger LOG = LoggerFactory.getLogger(HttpStreamSession.class);
+
+    private final String id = UUID.randomUUID().toString();
+    private final String username;
+    private final InetSocketAddress remoteAddress;
+    private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+    private final AtomicBoolean open = new AtomicBoolean(true);
+
+    private volatile WebSocketHandler handler;
+    private volatile Runnable closeListener;
+    private volatile int textMessageSizeLimit;
+    private volatile int binaryMessageSizeLimit;
+
+    protected HttpStreamSession(String username, InetSocketAddress remoteAddress) {
+        this.username = username;
+        this.remoteAddress = remoteAddress;
+    }
+
+    /** The user whose token opened the session. */
+    public String getUsername() { return username; }
+
+    /** Writes the given text frame to the client. */
+    protected abstract void sendFrame(String frame) throws IOException;
+
+    /** Checks that the client is still there. */
+    protected abstract void sendPing() throws IOException;
+
+    /** Releases the underlying HTTP response, if any. */
+    protected abstract void onClose(CloseStatus status);
+
+    void open(WebSocketHandler handler, String token, Runnable closeListener) throws Exception {
+        this.handler = handler;
+        this.closeListener = closeListener;
+        handler.afterConnectionEstablished(this);
+        receive(new TextMessage(WebSocketService.TOKEN_PREFIX + token));
+    }
+
+    /** Hands a frame the client sent to the handler, just like an inbound WebSocket frame. */
+    public void receive(WebSocketMessage<?> message) {
+        try {
+            handler.handleMessage(this, message);
+        } catch (Exception ex) {
+            LOG.warn("Failed to handle message of HTTP stream session `" + id + "`: ", ex);
+        }
+    }
+
+    /** Records that the client is still there. */
+    protected void markActive() {
+        receive(new PongMessage());
+    }
+
+    @Override
+    public void sendMessage(WebSocketMessage<?> message) throws IOException {
+        if (!isOpen())
+            throw new IOException("HTTP stream session `" + id + "` is closed.");
+        if (message instanceof TextMessage)
+            sendFrame(((TextMessage) message).getPayload());
+        else if (message instanceof PingMessage)
+            sendPing();
+        else if (!(message instanceof PongMessage))
+            throw new IllegalArgumentException("Only text frames can be sent over an HTTP stream.");
+    }
+
+    @Override
+    public boolean isOpen() { return open.get(); }
+
+    @Override
+    public void close() throws IOException {
+        close(CloseStatus.NORMAL);
+    }
+
+    @Override
+    public void close(CloseStatus status) throws IOException {
+        if (!open.compareAndSet(true, false))
+            return;
+        onClose(status);
+        closeListener.run();
+        try {
+            handler.afterConnectionClosed(this, status);
+        } catch (Exception ex) {
+            LOG.warn("Failed to release HTTP stream session `" + id + "`: ", ex);
+        }
+    }
+
+    @Override
+    public String getId() { return id; }
+
+    @Override
+    public URI getUri() { return null; }
+
+    @Override
+    public HttpHeaders getHandshakeHeaders() { return new HttpHeaders(); }
+
+    @Override
+    public Map<String, Object> getAttributes() { return attributes; }
+
+    @Override
+    public Principal getPrincipal() { return null; }
+
+    @Override
+    public InetSocketAddress getLocalAddress() { return null; }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() { return remoteAddress; }
+
+    /** Always {@code null}: HTTP stream sessions speak the text protocol only. */
+    @Override
+    public String getAcceptedProtocol() { return null; }
+
+    @Override
+    public void setTextMessageSizeLimit(int messageSizeLimit) { this.textMessageSizeLimit = messageSizeLimit; }
+
+    @Override
+    public int getTextMessageSizeLimit() { return textMessageSizeLimit; }
+
+    @Override
+    public void setBinaryMessageSizeLimit(int messageSizeLimit) { this.binaryMessageSizeLimit = messageSizeLimit; }
+
+    @Override
+    public int getBinaryMessageSizeLimit() { return binaryMessageSizeLimit; }
+
+    @Override
+    public List<WebSocketExtension> getExtensions() { return Collections.emptyList(); }
+}
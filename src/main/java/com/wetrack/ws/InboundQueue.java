@@ -0,0 +1,109 @@
+package com.wetrack.ws;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Handler calls of a single {@link WebSocketSession} waiting to run on the handler executor.
+ * <p>
+ * Like the {@link OutboundQueue}, at most one drain task is scheduled per session at any time, so
+ * the calls run one after another in the order the container made them, while different sessions
+ * are handled in parallel.
+ */
+class InboundQueue implements Runnable {
+    private static final Logger LOG = LoggerFactory.getLogger(InboundQueue.class);
+
+    /** Maximum number of calls run in one drain run before yielding the handler thread. */
+    private static final int DRAIN_BATCH = 16;
+
+    /** A deferred call into the delegate handler. */
+    @FunctionalInterface
+    interface HandlerCall {
+        void run() throws Exception;
+    }
+
+    private final WebSocketSession session;
+    private final ExecutorHandlerDecorator decorator;
+    private final int capacity;
+
+    private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    InboundQueue(WebSocketSession session, ExecutorHandlerDecorator decorator, int capacity) {
+        this.session = session;
+        this.decorator = decorator;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Queues the given call.
+     *
+     * @param force whether to queue the call even if the queue is full; used for lifecycle
+     *              callbacks, which must never be lost.
+     * @return {@code false} if the queue is full and the call was rejected.
+     */
+    boolean offer(HandlerCall call, boolean force) {
+        synchronized (queue) {
+            if (!force && queue.size() >= capacity)
+                return false;
+            queue.addLast(new Entry(call, System.nanoTime()));
+        }
+        schedule();
+        return true;
+    }
+
+    int size() {
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    private void schedule() {
+        if (!scheduled.compareAndSet(false, true))
+            return;
+        try {
+            decorator.getExecutor().execute(this);
+        } catch (RejectedExecutionException ex) {
+            scheduled.set(false);
+            LOG.warn("Handler executor rejected the calls of session `{}`; it is probably shutting down.", session.getId());
+        }
+    }
+
+    @Override
+    public void run() {
+        for (int i = 0; i < DRAIN_BATCH; i++) {
+            Entry entry;
+            synchronized (queue) {
+                entry = queue.pollFirst();
+            }
+            if (entry == null)
+                break;
+            decorator.onDequeued(System.nanoTime() - entry.enqueuedNanos);
+            try {
+                entry.call.run();
+            } catch (Throwable ex) {
+                LOG.warn("Handler call for session `" + session.getId() + "` failed: ", ex);
+            }
+        }
+
+        scheduled.set(false);
+        // Calls offered after the last poll would otherwise wait for the next offer
+        if (size() > 0)
+            schedule();
+    }
+
+    private static class Entry {
+        private final HandlerCall call;
+        private final long enqueuedNanos;
+
+        private Entry(HandlerCall call, long enqueuedNanos) {
+            this.call = call;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+    }
+}
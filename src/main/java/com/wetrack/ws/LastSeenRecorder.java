@@ -0,0 +1,29 @@
+package com.wetrack.ws;
+
+import com.wetrack.model.Presence;
+import com.wetrack.util.GroupCommitWriter;
+
+import java.time.LocalDateTime;
+
+/**
+ * Records the time each user's last session on this node went away. The writes are offered to a
+ * {@link GroupCommitWriter} without waiting, since registry listeners must not block; while the
+ * writer is backlogged, the time is not recorded.
+ */
+public class LastSeenRecorder implements SessionRegistry.Listener {
+
+    private final GroupCommitWriter<Presence> presenceWriter;
+
+    public LastSeenRecorder(SessionRegistry sessionRegistry, GroupCommitWriter<Presence> presenceWriter) {
+        this.presenceWriter = presenceWriter;
+        sessionRegistry.addListener(this);
+    }
+
+    @Override
+    public void onUserOnline(String username) {}
+
+    @Override
+    public void onUserOffline(String username) {
+        presenceWriter.offer(new Presence(username, LocalDateTime.now()));
+    }
+}
@@ -0,0 +1,141 @@
+package com.wetrack.ws;
+
+import org.springframework.web.socket.CloseStatus;
+
+import javax.ws.rs.container.AsyncResponse;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An {@link HttpStreamSession} whose client fetches frames with one long poll after another.
+ * <p>
+ * Frames are numbered and kept until a later poll acknowledges them by passing the number of the
+ * last frame it received, so a poll response lost on the way is simply sent again. A poll returns
+ * as soon as there are unacknowledged frames, or empty after {@code pollTimeoutMillis}. Waiting
+ * polls are suspended {@link AsyncResponse}s and hold no request thread.
+ * <p>
+ * A session whose client stops polling is closed by the heartbeat monitor like an idle
+ * WebSocket, and one that lets more than {@code capacity} frames pile up is closed like a
+ * WebSocket whose send failed.
+ */
+public class LongPollSession extends HttpStreamSession {
+
+    private final int capacity;
+    private final long pollTimeoutMillis;
+
+    private final Deque<Frame> frames = new ArrayDeque<>();
+    private long lastFrameId;
+    private AsyncResponse waiting;
+
+    public LongPollSession(String username, InetSocketAddress remoteAddress, int capacity, long pollTimeoutMillis) {
+        super(username, remoteAddress);
+        this.capacity = capacity;
+        this.pollTimeoutMillis = pollTimeoutMillis;
+    }
+
+    /**
+     * Answers the given poll with the frames after {@code afterFrameId}, waiting for some if there
+     * are none yet. A poll still waiting for the session is answered empty.
+     */
+    public void poll(AsyncResponse response, long afterFrameId) {
+        markActive();
+        AsyncResponse superseded;
+        PolledFrames polled = null;
+        synchronized (this) {
+            while (!frames.isEmpty() && frames.peekFirst().id <= afterFrameId)
+                frames.pollFirst();
+            superseded = waiting;
+            waiting = null;
+            if (!frames.isEmpty() || !isOpen())
+                polled = drain();
+            else {
+                waiting = response;
+                response.setTimeoutHandler(this::onTimeout);
+                response.setTimeout(pollTimeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (superseded != null)
+            superseded.resume(empty());
+        if (polled != null)
+            response.resume(polled);
+    }
+
+    @Override
+    protected void sendFrame(String frame) throws IOException {
+        AsyncResponse response;
+        PolledFrames polled;
+        synchronized (this) {
+            if (frames.size() >= capacity)
+                throw new IOException("More than " + capacity + " frames are waiting to be polled.");
+            frames.addLast(new Frame(++lastFrameId, frame));
+            response = waiting;
+            waiting = null;
+            polled = response == null ? null : drain();
+        }
+        if (response != null)
+            response.resume(polled);
+    }
+
+    /** The client proves to be there by polling, so a ping only counts while a poll is waiting. */
+    @Override
+    protected void sendPing() {
+        boolean polling;
+        synchronized (this) {
+            polling = waiting != null;
+        }
+        if (polling)
+            markActive();
+    }
+
+    @Override
+    protected void onClose(CloseStatus status) {
+        AsyncResponse response;
+        PolledFrames polled;
+        synchronized (this) {
+            response = waiting;
+            waiting = null;
+            polled = drain();
+        }
+        if (response != null)
+            response.resume(polled);
+    }
+
+    private void onTimeout(AsyncResponse response) {
+        PolledFrames polled;
+        synchronized (this) {
+            if (waiting == response)
+                waiting = null;
+            polled = drain();
+        }
+        response.resume(polled);
+    }
+
+    /** The unacknowledged frames; they stay until acknowledged. */
+    private PolledFrames drain() {
+        List<String> payloads = new ArrayList<>(frames.size());
+        for (Frame frame : frames)
+            payloads.add(frame.payload);
+        return new PolledFrames(getId(), lastFrameId, payloads);
+    }
+
+    /** No frames, acknowledging only what the client has acknowledged already. */
+    private synchronized PolledFrames empty() {
+        long acknowledged = frames.isEmpty() ? lastFrameId : frames.peekFirst().id - 1;
+        return new PolledFrames(getId(), acknowledged, new ArrayList<>());
+    }
+
+    private static class Frame {
+        private final long id;
+        private final String payload;
+
+        private Frame(long id, String payload) {
+            this.id = id;
+            this.payload = payload;
+        }
+    }
+}
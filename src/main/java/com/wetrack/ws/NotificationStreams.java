@@ -0,0 +1,110 @@
+package com.wetrack.ws;
+
+import org.glassfish.jersey.server.ChunkedOutput;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.WebSocketHandler;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Opens {@link HttpStreamSession}s for the REST services, and finds them again by ID.
+ * <p>
+ * Lives in the root context, while the handler of the {@code /notifications} endpoint lives in
+ * the WebSocket context and is set here once that context has started. Until then, while its
+ * sessions are being drained, and once it has stopped, no stream can be opened.
+ */
+public class NotificationStreams {
+    private static final Logger LOG = LoggerFactory.getLogger(NotificationStreams.class);
+
+    private static final long DEFAULT_RETRY_AFTER_SECONDS = 5;
+
+    private final int longPollCapacity;
+    private final long pollTimeoutMillis;
+
+    private final ConcurrentHashMap<String, HttpStreamSession> sessions = new ConcurrentHashMap<>();
+
+    private volatile WebSocketHandler handler;
+    private volatile SessionDrainer sessionDrainer;
+
+    public NotificationStreams(int longPollCapacity, long pollTimeoutMillis) {
+        this.longPollCapacity = longPollCapacity;
+        this.pollTimeoutMillis = pollTimeoutMillis;
+    }
+
+    /** Sets the handler to open streams with, which stops accepting them while the given drainer runs. */
+    public void setHandler(WebSocketHandler handler, SessionDrainer sessionDrainer) {
+        this.sessionDrainer = sessionDrainer;
+        this.handler = handler;
+    }
+
+    public void clearHandler() {
+        this.handler = null;
+    }
+
+    public boolean isAvailable() {
+        SessionDrainer sessionDrainer = this.sessionDrainer;
+        return handler != null && (sessionDrainer == null || !sessionDrainer.isDraining());
+    }
+
+    /** Seconds a client turned away because streams are not available should wait before trying again. */
+    public long getRetryAfterSeconds() {
+        SessionDrainer sessionDrainer = this.sessionDrainer;
+        return sessionDrainer == null ? DEFAULT_RETRY_AFTER_SECONDS : sessionDrainer.getRetryAfterSeconds();
+    }
+
+    /**
+     * Opens an event stream on the given response for the user the given token belongs to. The
+     * token has to be checked beforehand; the session authenticates with it like a WebSocket
+     * client would, so the stream starts with the same frames.
+     *
+     * @return the session, or {@code null} if the WebSocket context is not running or is draining.
+     */
+    public SseSession openEventStream(String username, String token, InetSocketAddress remoteAddress,
+                                      ChunkedOutput<String> output) {
+        return open(new SseSession(username, remoteAddress, output), token);
+    }
+
+    /** Like {@link #openEventStream}, but for a client that polls. */
+    public LongPollSession openLongPoll(String username, String token, InetSocketAddress remoteAddress) {
+        return open(new LongPollSession(username, remoteAddress, longPollCapacity, pollTimeoutMillis), token);
+    }
+
+    /** @return the open session with the given ID, or {@code null} if there is none. */
+    public HttpStreamSession get(String id) {
+        return sessions.get(id);
+    }
+
+    public int getEventStreamCount() {
+        return count(SseSession.class);
+    }
+
+    public int getLongPollCount() {
+        return count(LongPollSession.class);
+    }
+
+    private int count(Class<? extends HttpStreamSession> type) {
+        int count = 0;
+        for (HttpStreamSession session : sessions.values()) {
+            if (type.isInstance(session))
+                count++;
+        }
+        return count;
+    }
+
+    private <S extends HttpStreamSession> S open(S session, String token) {
+        WebSocketHandler handler = this.handler;
+        if (handler == null || !isAvailable())
+            return null;
+        sessions.put(session.getId(), session);
+        try {
+            session.open(handler, token, () -> sessions.remove(session.getId()));
+        } catch (Exception ex) {
+            LOG.warn("Failed to open HTTP stream session for user `" + session.getUsername() + "`: ", ex);
+            sessions.remove(session.getId());
+            return null;
+        }
+        return session;
+    }
+}
@@ -0,0 +1,138 @@
+package com.wetrack.ws;
+
+import com.wetrack.dao.ChatMessageRepository;
+import com.wetrack.dao.ChatRepository;
+import com.wetrack.dao.DeliveryCursorRepository;
+import com.wetrack.model.Chat;
+import com.wetrack.model.ChatMessage;
+import com.wetrack.model.DeliveryCursor;
+import com.wetrack.util.GroupCommitWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends a user the chat messages that arrived while they were offline, right after one of their
+ * sessions authenticates.
+ * <p>
+ * Each user has a {@link DeliveryCursor}. Replay streams every message after the cursor across
+ * all the user's chats in one pass, {@code frameSize} messages per {@code chat_messages} frame,
+ * and then moves the cursor to the last message sent. When the user's last session goes away,
+ * the cursor is moved to that moment minus {@code safetyMarginMillis}. The margin covers messages
+ * that were saved just before the disconnect but not yet fanned out, so replay is at-least-once
+ * and clients are expected to drop messages whose ID they already have.
+ * <p>
+ * At most {@code maxMessages} are replayed per authentication, which keeps a long absence from
+ * overflowing the session's outbound queue; the rest follow on the next authentication, and the
+ * cursor of such a user is not moved on disconnect.
+ */
+public class OfflineReplayer implements SessionRegistry.Listener {
+    private static final Logger LOG = LoggerFactory.getLogger(OfflineReplayer.class);
+
+    private final ChatRepository chatRepository;
+    private final ChatMessageRepository chatMessageRepository;
+    private final DeliveryCursorRepository deliveryCursorRepository;
+    private final GroupCommitWriter<DeliveryCursor> cursorWriter;
+    private final OutboundDispatcher outboundDispatcher;
+    private final int frameSize;
+    private final int maxMessages;
+    private final long safetyMarginMillis;
+
+    /** Users with messages left over from a capped replay. */
+    private final Set<String> backlogged = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder replayedCount = new LongAdder();
+    private final LongAdder frameCount = new LongAdder();
+
+    public OfflineReplayer(ChatRepository chatRepository, ChatMessageRepository chatMessageRepository,
+                           DeliveryCursorRepository deliveryCursorRepository,
+                           GroupCommitWriter<DeliveryCursor> cursorWriter, SessionRegistry sessionRegistry,
+                           OutboundDispatcher outboundDispatcher, int frameSize, int maxMessages,
+                           long safetyMarginMillis) {
+        this.chatRepository = chatRepository;
+        this.chatMessageRepository = chatMessageRepository;
+        this.deliveryCursorRepository = deliveryCursorRepository;
+        this.cursorWriter = cursorWriter;
+        this.outboundDispatcher = outboundDispatcher;
+        this.frameSize = frameSize;
+        this.maxMessages = maxMessages;
+        this.safetyMarginMillis = safetyMarginMillis;
+        sessionRegistry.addListener(this);
+    }
+
+    /**
+     * Sends the given session every message the given user has not been delivered yet.
+     *
+     * @return the number of replayed messages.
+     */
+    public int replay(WebSocketSession session, String username) {
+        DeliveryCursor cursor = deliveryCursorRepository.findById(username);
+        if (cursor == null) {
+            // Nothing to catch up on before the user's first session; start tracking from now
+            deliveryCursorRepository.insert(new DeliveryCursor(username, LocalDateTime.now(), null));
+            return 0;
+        }
+
+        List<String> chatIds = new ArrayList<>();
+        for (Chat chat : chatRepository.getChatListByUsername(username))
+            chatIds.add(chat.getId());
+        if (chatIds.isEmpty())
+            return 0;
+
+        int replayed = 0;
+        LocalDateTime afterTime = cursor.getSendTime();
+        String afterId = cursor.getMessageId();
+        while (replayed < maxMessages) {
+            List<ChatMessage> frame = chatMessageRepository.getChatMessagesAfter(chatIds, afterTime, afterId,
+                    Math.min(frameSize, maxMessages - replayed));
+            if (frame.isEmpty())
+                break;
+            outboundDispatcher.send(session, BinaryProtocol.isBinary(session)
+                    ? BinaryProtocol.chatMessages(frame) : WsResponse.chatMessages(frame));
+            frameCount.increment();
+            replayed += frame.size();
+
+            ChatMessage last = frame.get(frame.size() - 1);
+            afterTime = last.getSendTime();
+            afterId = last.getId();
+            if (frame.size() < frameSize)
+                break;
+        }
+
+        if (replayed >= maxMessages)
+            backlogged.add(username);
+        else
+            backlogged.remove(username);
+        if (replayed > 0) {
+            deliveryCursorRepository.insert(new DeliveryCursor(username, afterTime, afterId));
+            replayedCount.add(replayed);
+            LOG.debug("Replayed {} messages to user `{}`", replayed, username);
+        }
+        return replayed;
+    }
+
+    @Override
+    public void onUserOnline(String username) {}
+
+    @Override
+    public void onUserOffline(String username) {
+        if (backlogged.remove(username))
+            return;
+        LocalDateTime position = LocalDateTime.now().minus(safetyMarginMillis, ChronoUnit.MILLIS);
+        // Registry listeners must not block; a cursor dropped here only makes the next
+        // replay resend messages the client has already seen
+        cursorWriter.offer(new DeliveryCursor(username, position, null));
+    }
+
+    public long getReplayedCount() { return replayedCount.sum(); }
+
+    public long getFrameCount() { return frameCount.sum(); }
+}
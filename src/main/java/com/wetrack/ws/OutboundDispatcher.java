@@ -0,0 +1,179 @@
+package com.wetrack.ws;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * Asynchronous sender for WebSocket messages.
+ * <p>
+ * Every session gets its own bounded {@link OutboundQueue}, drained on a shared pool of writer
+ * threads. Callers never block on the network, so a slow client can only fill up its own queue,
+ * which is then handled according to the configured {@link OverflowPolicy}.
+ */
+public class OutboundDispatcher {
+    private static final Logger LOG = LoggerFactory.getLogger(OutboundDispatcher.class);
+
+    private final int queueCapacity;
+    private final OverflowPolicy overflowPolicy;
+    private final ExecutorService writerExecutor;
+
+    private final ConcurrentHashMap<WebSocketSession, OutboundQueue> queues = new ConcurrentHashMap<>();
+
+    private final LongAdder sentCount = new LongAdder();
+    private final LongAdder droppedCount = new LongAdder();
+    private final LongAdder coalescedCount = new LongAdder();
+    private final LongAdder disconnectedCount = new LongAdder();
+    private final LongAdder failedCount = new LongAdder();
+
+    private volatile BiConsumer<WebSocketSession, Throwable> failureHandler = (session, ex) -> {};
+
+    public OutboundDispatcher(int queueCapacity, OverflowPolicy overflowPolicy, int writerThreads) {
+        if (queueCapacity <= 0)
+            throw new IllegalArgumentException("Queue capacity must be positive, but was " + queueCapacity);
+        this.queueCapacity = queueCapacity;
+        this.overflowPolicy = overflowPolicy;
+        this.writerExecutor = new ThreadPoolExecutor(writerThreads, writerThreads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), new WriterThreadFactory());
+        ((ThreadPoolExecutor) writerExecutor).allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Sets the callback invoked after a message could not be written to a session. The session has
+     * already been closed and its queue discarded when the callback runs.
+     */
+    public void setFailureHandler(BiConsumer<WebSocketSession, Throwable> failureHandler) {
+        this.failureHandler = failureHandler;
+    }
+
+    public void send(WebSocketSession session, WebSocketMessage<?> message) {
+        send(session, message, null);
+    }
+
+    /**
+     * Queues the given message for the given session.
+     *
+     * @param coalesceKey if not {@code null}, the message supersedes a still queued message with
+     *                    the same key.
+     */
+    public void send(WebSocketSession session, WebSocketMessage<?> message, String coalesceKey) {
+        if (!session.isOpen())
+            return;
+        OutboundQueue queue = queues.computeIfAbsent(session,
+                s -> new OutboundQueue(s, this, queueCapacity, overflowPolicy));
+        if (!queue.offer(message, coalesceKey)) {
+            LOG.debug("Outbound queue of session `{}` is full. Disconnecting...", session.hashCode());
+            disconnectedCount.increment();
+            remove(session);
+            closeQuietly(session, CloseStatus.SESSION_NOT_RELIABLE);
+        }
+    }
+
+    /**
+     * Discards the queue of the given session. Should be called once the session is closed.
+     */
+    public void remove(WebSocketSession session) {
+        OutboundQueue queue = queues.remove(session);
+        if (queue != null)
+            queue.clear();
+    }
+
+    /** Number of messages waiting in the queue of the given session. */
+    public int getQueueDepth(WebSocketSession session) {
+        OutboundQueue queue = queues.get(session);
+        return queue == null ? 0 : queue.size();
+    }
+
+    /**
+     * Whether every message queued for the given session has been written, including the one a
+     * writer may be busy with.
+     */
+    public boolean isFlushed(WebSocketSession session) {
+        OutboundQueue queue = queues.get(session);
+        return queue == null || queue.isIdle();
+    }
+
+    /** Number of messages waiting in all queues. */
+    public long getTotalQueueDepth() {
+        long total = 0;
+        for (OutboundQueue queue : queues.values())
+            total += queue.size();
+        return total;
+    }
+
+    /** Depth of the fullest queue. */
+    public int getMaxQueueDepth() {
+        int max = 0;
+        for (OutboundQueue queue : queues.values())
+            max = Math.max(max, queue.size());
+        return max;
+    }
+
+    public long getSentCount() { return sentCount.sum(); }
+
+    /** Number of messages discarded because their queue was full. */
+    public long getDroppedCount() { return droppedCount.sum(); }
+
+    /** Number of messages superseded by a newer message with the same coalescing key. */
+    public long getCoalescedCount() { return coalescedCount.sum(); }
+
+    /** Number of sessions closed because their queue was full. */
+    public long getDisconnectedCount() { return disconnectedCount.sum(); }
+
+    public long getFailedCount() { return failedCount.sum(); }
+
+    public OverflowPolicy getOverflowPolicy() { return overflowPolicy; }
+
+    public int getQueueCapacity() { return queueCapacity; }
+
+    public void shutdown() {
+        writerExecutor.shutdown();
+    }
+
+    ExecutorService getWriterExecutor() { return writerExecutor; }
+
+    void onSent() { sentCount.increment(); }
+
+    void onDropped() { droppedCount.increment(); }
+
+    void onCoalesced() { coalescedCount.increment(); }
+
+    void onSendFailure(WebSocketSession session, Throwable exception) {
+        LOG.debug("Closing session `" + session.hashCode() + "` due to exception: ", exception);
+        failedCount.increment();
+        remove(session);
+        closeQuietly(session, CloseStatus.SERVER_ERROR);
+        failureHandler.accept(session, exception);
+    }
+
+    private void closeQuietly(WebSocketSession session, CloseStatus status) {
+        if (session.isOpen()) {
+            try {
+                session.close(status);
+            } catch (Throwable ex) {}
+        }
+    }
+
+    private static class WriterThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "ws-writer-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
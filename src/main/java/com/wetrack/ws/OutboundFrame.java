@@ -0,0 +1,60 @@
+package com.wetrack.ws;
+
+import com.wetrack.model.ChatMessage;
+import com.wetrack.model.Location;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.function.Supplier;
+
+/**
+ * A frame sent to many sessions, some of which may speak the {@link BinaryProtocol}. The text
+ * encoding is always available and is what travels between nodes; the binary encoding is produced
+ * the first time a binary session needs it, so each encoding is done at most once per fan-out.
+ */
+public final class OutboundFrame {
+    private final TextMessage text;
+    private final Supplier<WebSocketMessage<?>> binaryEncoder;
+    private volatile WebSocketMessage<?> binary;
+
+    OutboundFrame(TextMessage text, Supplier<WebSocketMessage<?>> binaryEncoder) {
+        this.text = text;
+        this.binaryEncoder = binaryEncoder;
+    }
+
+    static OutboundFrame chatMessage(ChatMessage message) {
+        return new OutboundFrame(WsResponse.chatMessage(message), () -> BinaryProtocol.chatMessage(message));
+    }
+
+    static OutboundFrame location(Location location) {
+        return new OutboundFrame(WsResponse.location(location), () -> BinaryProtocol.location(location));
+    }
+
+    /** Wraps a text frame received from another node; it is transcoded only if needed. */
+    static OutboundFrame fromText(TextMessage text) {
+        return new OutboundFrame(text, () -> BinaryProtocol.transcode(text));
+    }
+
+    TextMessage getText() {
+        return text;
+    }
+
+    /** Returns the message to send to the given session, in the protocol it negotiated. */
+    WebSocketMessage<?> forSession(WebSocketSession session) {
+        if (!BinaryProtocol.isBinary(session))
+            return text;
+        WebSocketMessage<?> encoded = binary;
+        if (encoded == null) {
+            // Encoding twice in a race is harmless; both results are equal
+            encoded = binaryEncoder.get();
+            binary = encoded;
+        }
+        if (encoded instanceof BinaryMessage) {
+            // Transports consume the payload buffer while writing it, so each session gets its own view
+            return new BinaryMessage(((BinaryMessage) encoded).getPayload().duplicate(), true);
+        }
+        return encoded;
+    }
+}
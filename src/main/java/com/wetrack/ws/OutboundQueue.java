@@ -0,0 +1,142 @@
+package com.wetrack.ws;
+
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Bounded send queue of a single {@link WebSocketSession}.
+ * <p>
+ * Messages are written by a drain task running on the shared writer {@link Executor}. At most one
+ * drain task is scheduled per session at any time, so messages reach the client in the order they
+ * were offered, and a slow client only ever blocks its own writer.
+ * <p>
+ * A message offered with a coalescing key supersedes a queued message with the same key, which is
+ * replaced in place.
+ */
+class OutboundQueue implements Runnable {
+    /** Maximum number of messages written in one drain run before yielding the writer thread. */
+    private static final int DRAIN_BATCH = 32;
+
+    private final WebSocketSession session;
+    private final OutboundDispatcher dispatcher;
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+
+    private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    OutboundQueue(WebSocketSession session, OutboundDispatcher dispatcher, int capacity, OverflowPolicy overflowPolicy) {
+        this.session = session;
+        this.dispatcher = dispatcher;
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Queues the given message.
+     *
+     * @return {@code false} if the message was rejected and the session has to be disconnected.
+     */
+    boolean offer(WebSocketMessage<?> message, String coalesceKey) {
+        synchronized (queue) {
+            if (coalesceKey != null && replace(message, coalesceKey)) {
+                dispatcher.onCoalesced();
+                return true;
+            }
+            if (queue.size() >= capacity) {
+                if (overflowPolicy == OverflowPolicy.DISCONNECT)
+                    return false;
+                if (overflowPolicy != OverflowPolicy.COALESCE || !removeOldestCoalescible())
+                    queue.pollFirst();
+                dispatcher.onDropped();
+            }
+            queue.addLast(new Entry(message, coalesceKey));
+        }
+        schedule();
+        return true;
+    }
+
+    int size() {
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    /** Whether every offered message has been written, or has failed to be. */
+    boolean isIdle() {
+        return !scheduled.get() && size() == 0;
+    }
+
+    void clear() {
+        synchronized (queue) {
+            queue.clear();
+        }
+    }
+
+    private boolean replace(WebSocketMessage<?> message, String coalesceKey) {
+        for (Entry entry : queue) {
+            if (coalesceKey.equals(entry.coalesceKey)) {
+                entry.message = message;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean removeOldestCoalescible() {
+        Iterator<Entry> iterator = queue.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().coalesceKey != null) {
+                iterator.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true))
+            dispatcher.getWriterExecutor().execute(this);
+    }
+
+    @Override
+    public void run() {
+        for (int i = 0; i < DRAIN_BATCH; i++) {
+            WebSocketMessage<?> message;
+            synchronized (queue) {
+                Entry entry = queue.pollFirst();
+                if (entry == null)
+                    break;
+                message = entry.message;
+            }
+            try {
+                session.sendMessage(message);
+                dispatcher.onSent();
+            } catch (Throwable ex) {
+                clear();
+                dispatcher.onSendFailure(session, ex);
+                break;
+            }
+        }
+
+        scheduled.set(false);
+        // Messages offered after the last poll would otherwise wait for the next offer
+        if (size() > 0 && session.isOpen())
+            schedule();
+    }
+
+    private static class Entry {
+        private WebSocketMessage<?> message;
+        private final String coalesceKey;
+
+        private Entry(WebSocketMessage<?> message, String coalesceKey) {
+            this.message = message;
+            this.coalesceKey = coalesceKey;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.wetrack.ws;
+
+/**
+ * What an {@link OutboundQueue} does when a message is offered while the queue is full.
+ */
+public enum OverflowPolicy {
+    /** Discard the oldest queued message. */
+    DROP_OLDEST,
+    /**
+     * Discard the oldest queued message that carries a coalescing key, as such messages are
+     * only snapshots of a state which will be superseded anyway. Falls back to
+     * {@link #DROP_OLDEST} if no queued message has a key.
+     */
+    COALESCE,
+    /** Close the session. The client is expected to reconnect and resynchronize. */
+    DISCONNECT
+}
@@ -0,0 +1,25 @@
+package com.wetrack.ws;
+
+import java.util.List;
+
+/**
+ * Response to a long poll: the frames sent to the session since the frame the client
+ * acknowledged, and the ID to acknowledge with the next poll.
+ */
+public class PolledFrames {
+    private String streamId;
+    private long lastFrameId;
+    private List<String> frames;
+
+    public PolledFrames(String streamId, long lastFrameId, List<String> frames) {
+        this.streamId = streamId;
+        this.lastFrameId = lastFrameId;
+        this.frames = frames;
+    }
+
+    public String getStreamId() { return streamId; }
+
+    public long getLastFrameId() { return lastFrameId; }
+
+    public List<String> getFrames() { return frames; }
+}
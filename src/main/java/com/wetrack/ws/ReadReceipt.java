@@ -0,0 +1,29 @@
+package com.wetrack.ws;
+
+/**
+ * Read receipt of a chat: the user has read every message up to the given sequence number. Sent
+ * by clients without a username; the server fills it in before passing the receipt on.
+ */
+public class ReadReceipt {
+    private String chatId;
+    private String username;
+    private long sequence;
+
+    public ReadReceipt(String chatId, String username, long sequence) {
+        this.chatId = chatId;
+        this.username = username;
+        this.sequence = sequence;
+    }
+
+    public String getChatId() { return chatId; }
+
+    public void setChatId(String chatId) { this.chatId = chatId; }
+
+    public String getUsername() { return username; }
+
+    public void setUsername(String username) { this.username = username; }
+
+    public long getSequence() { return sequence; }
+
+    public void setSequence(long sequence) { this.sequence = sequence; }
+}
@@ -0,0 +1,114 @@
+package com.wetrack.ws;
+
+import com.wetrack.dao.ReadWatermarkRepository;
+import com.wetrack.model.ReadWatermark;
+import com.wetrack.util.GroupCommitWriter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collapses read receipts into one {@link ReadWatermark} per user and chat, and writes the
+ * watermarks in batches.
+ * <p>
+ * A receipt for a watermark that is already waiting to be written only raises the waiting
+ * watermark, so however many receipts a user sends for a chat, each batch writes it at most once.
+ * The writer is only handed the ID of a watermark when it starts waiting, and picks up its latest
+ * value when the batch is written. Watermarks of a batch that failed wait again for the next one.
+ * Receipts never block on the writer: if it has fallen too far behind, the watermark is dropped,
+ * and the user's next receipt for the chat starts a new one.
+ */
+public class ReadWatermarkTracker {
+
+    private final ReadWatermarkRepository readWatermarkRepository;
+    private final GroupCommitWriter<String> writer;
+
+    private final ConcurrentHashMap<String, ReadWatermark> pending = new ConcurrentHashMap<>();
+
+    private final LongAdder receiptCount = new LongAdder();
+    private final LongAdder collapsedCount = new LongAdder();
+
+    public ReadWatermarkTracker(ReadWatermarkRepository readWatermarkRepository, int maxBatchSize,
+                                long maxDelayMillis, int queueCapacity) {
+        this.readWatermarkRepository = readWatermarkRepository;
+        this.writer = new GroupCommitWriter<>("read-watermark-writer", maxBatchSize, maxDelayMillis, queueCapacity,
+                this::write);
+    }
+
+    /**
+     * Records that the given user has read the given chat up to the given sequence number.
+     *
+     * @return {@code false} if a watermark at least as far ahead is already waiting to be written,
+     *         in which case the receipt has no effect.
+     */
+    public boolean advance(String chatId, String username, long sequence) {
+        receiptCount.increment();
+        boolean[] advanced = { true };
+        boolean[] queued = { false };
+        String id = ReadWatermark.idOf(chatId, username);
+        pending.compute(id, (key, current) -> {
+            if (current == null) {
+                queued[0] = true;
+                return new ReadWatermark(chatId, username, sequence);
+            }
+            collapsedCount.increment();
+            if (current.getSequence() >= sequence) {
+                advanced[0] = false;
+                return current;
+            }
+            return new ReadWatermark(chatId, username, sequence);
+        });
+        if (queued[0])
+            queue(id);
+        return advanced[0];
+    }
+
+    /** The writer of the watermarks, e.g. to flush them. */
+    public GroupCommitWriter<String> getWriter() { return writer; }
+
+    public long getReceiptCount() { return receiptCount.sum(); }
+
+    /** Number of receipts merged into a watermark that was already waiting to be written. */
+    public long getCollapsedCount() { return collapsedCount.sum(); }
+
+    public void shutdown() {
+        writer.shutdown();
+    }
+
+    private void queue(String id) {
+        if (writer.offer(id).isCompletedExceptionally())
+            pending.remove(id);
+    }
+
+    private void write(List<String> ids) {
+        List<ReadWatermark> watermarks = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            ReadWatermark watermark = pending.remove(id);
+            if (watermark != null)
+                watermarks.add(watermark);
+        }
+        try {
+            readWatermarkRepository.advanceAll(watermarks);
+        } catch (RuntimeException ex) {
+            for (ReadWatermark watermark : watermarks)
+                restore(watermark);
+            throw ex;
+        }
+    }
+
+    /** Makes the given unwritten watermark wait again, unless a newer receipt has overtaken it. */
+    private void restore(ReadWatermark watermark) {
+        boolean[] queued = { false };
+        pending.compute(watermark.getId(), (key, current) -> {
+            if (current == null) {
+                queued[0] = true;
+                return watermark;
+            }
+            return current.getSequence() >= watermark.getSequence() ? current : watermark;
+        });
+        if (queued[0])
+            queue(watermark.getId());
+    }
+}
@@ -0,0 +1,23 @@
+package com.wetrack.ws;
+
+/**
+ * Tells a client that the server is about to close its session for a restart, and how long to
+ * wait before reconnecting.
+ */
+public class ReconnectHint {
+    private String message;
+    private long delayMillis;
+
+    public ReconnectHint(String message, long delayMillis) {
+        this.message = message;
+        this.delayMillis = delayMillis;
+    }
+
+    public String getMessage() { return message; }
+
+    public void setMessage(String message) { this.message = message; }
+
+    public long getDelayMillis() { return delayMillis; }
+
+    public void setDelayMillis(long delayMillis) { this.delayMillis = delayMillis; }
+}
@@ -0,0 +1,190 @@
+package com.wetrack.ws;
+
+import com.wetrack.util.GroupCommitWriter;
+import com.wetrack.util.KeyedExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.server.HandshakeInterceptor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Takes this node out of service without losing queued messages or having every client reconnect
+ * at the same instant. Runs when the WebSocket context shuts down, e.g. on a redeploy, and can be
+ * started earlier through {@link #drain()}.
+ * <p>
+ * Once draining, the handshake of new sessions is refused with {@code 503 Service Unavailable}.
+ * The open sessions are then closed in waves of {@code waveSize}, {@code waveIntervalMillis}
+ * apart. Before each wave the write-behind writers are flushed, and the delivery executors are
+ * waited for, so chat messages received so far are saved, acknowledged and fanned out. Each session of the wave is then sent a
+ * {@code reconnect} frame with a delay drawn uniformly from {@code [0, maxReconnectDelayMillis]},
+ * and is closed with {@link CloseStatus#SERVICE_RESTARTED} once its outbound queue is empty or
+ * {@code flushTimeoutMillis} have passed. Staggered closes and randomized delays together spread
+ * the reconnects, and the history requests that follow them, over a window instead of a spike.
+ */
+public class SessionDrainer implements HandshakeInterceptor {
+    private static final Logger LOG = LoggerFactory.getLogger(SessionDrainer.class);
+
+    private static final long FLUSH_POLL_MILLIS = 10;
+
+    private final HeartbeatMonitor heartbeatMonitor;
+    private final OutboundDispatcher outboundDispatcher;
+    private final List<GroupCommitWriter<?>> writers;
+    private final List<KeyedExecutor> deliveryExecutors;
+    private final int waveSize;
+    private final long waveIntervalMillis;
+    private final long flushTimeoutMillis;
+    private final long maxReconnectDelayMillis;
+
+    private volatile boolean draining;
+
+    public SessionDrainer(HeartbeatMonitor heartbeatMonitor, OutboundDispatcher outboundDispatcher,
+                          List<GroupCommitWriter<?>> writers, List<KeyedExecutor> deliveryExecutors,
+                          int waveSize, long waveIntervalMillis, long flushTimeoutMillis,
+                          long maxReconnectDelayMillis) {
+        if (waveSize <= 0)
+            throw new IllegalArgumentException("Wave size must be positive, but was " + waveSize);
+        this.heartbeatMonitor = heartbeatMonitor;
+        this.outboundDispatcher = outboundDispatcher;
+        this.writers = writers;
+        this.deliveryExecutors = deliveryExecutors;
+        this.waveSize = waveSize;
+        this.waveIntervalMillis = waveIntervalMillis;
+        this.flushTimeoutMillis = flushTimeoutMillis;
+        this.maxReconnectDelayMillis = maxReconnectDelayMillis;
+    }
+
+    public boolean isDraining() {
+        return draining;
+    }
+
+    @Override
+    public boolean beforeHandshake(ServerHttpRequest request, ServerHttpResponse response,
+                                   WebSocketHandler wsHandler, Map<String, Object> attributes) {
+        if (!draining)
+            return true;
+        response.setStatusCode(HttpStatus.SERVICE_UNAVAILABLE);
+        response.getHeaders().set("Retry-After", Long.toString(getRetryAfterSeconds()));
+        return false;
+    }
+
+    /** A randomized {@code Retry-After} for a client turned away during the drain. */
+    public long getRetryAfterSeconds() {
+        return TimeUnit.MILLISECONDS.toSeconds(randomReconnectDelayMillis()) + 1;
+    }
+
+    @Override
+    public void afterHandshake(ServerHttpRequest request, ServerHttpResponse response,
+                               WebSocketHandler wsHandler, Exception exception) {}
+
+    /**
+     * Stops accepting sessions and closes every open one in waves. Returns once the last wave has
+     * been closed.
+     *
+     * @return the number of sessions closed.
+     */
+    public synchronized int drain() {
+        draining = true;
+        List<WebSocketSession> sessions = new ArrayList<>(heartbeatMonitor.getTrackedSessions());
+        LOG.info("Draining {} WebSocket sessions in waves of {}", sessions.size(), waveSize);
+
+        for (int from = 0; from < sessions.size(); from += waveSize) {
+            if (from > 0 && !sleep(waveIntervalMillis))
+                break;
+            List<WebSocketSession> wave = sessions.subList(from, Math.min(from + waveSize, sessions.size()));
+            flushWriters();
+            for (WebSocketSession session : wave)
+                sendReconnectHint(session);
+            awaitOutbound(wave);
+            for (WebSocketSession session : wave)
+                close(session, CloseStatus.SERVICE_RESTARTED);
+        }
+
+        flushWriters();
+        LOG.info("Drained {} WebSocket sessions", sessions.size());
+        return sessions.size();
+    }
+
+    /**
+     * Tells the client of the given session, which was opened during the drain, to come back
+     * later, and closes it.
+     */
+    public void reject(WebSocketSession session) {
+        sendReconnectHint(session);
+        awaitOutbound(Collections.singletonList(session));
+        close(session, CloseStatus.SERVICE_RESTARTED);
+    }
+
+    public void shutdown() {
+        drain();
+    }
+
+    private void sendReconnectHint(WebSocketSession session) {
+        outboundDispatcher.send(session, WsResponse.reconnect("The server is restarting. Please reconnect later.",
+                randomReconnectDelayMillis()));
+    }
+
+    private long randomReconnectDelayMillis() {
+        return ThreadLocalRandom.current().nextLong(maxReconnectDelayMillis + 1);
+    }
+
+    /**
+     * Flushes the writers, then waits until the ACKs and fan-outs of what they wrote have been
+     * queued for sending, or the flush timeout.
+     */
+    private void flushWriters() {
+        try {
+            for (GroupCommitWriter<?> writer : writers)
+                writer.flush();
+            for (KeyedExecutor executor : deliveryExecutors) {
+                if (!executor.awaitSubmitted(flushTimeoutMillis, TimeUnit.MILLISECONDS))
+                    LOG.warn("Deliveries were still queued after {} ms of draining", flushTimeoutMillis);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Waits until the outbound queues of the given sessions are empty, or the flush timeout. */
+    private void awaitOutbound(List<WebSocketSession> sessions) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushTimeoutMillis);
+        for (WebSocketSession session : sessions) {
+            while (session.isOpen() && !outboundDispatcher.isFlushed(session)) {
+                if (System.nanoTime() - deadline >= 0 || !sleep(FLUSH_POLL_MILLIS))
+                    return;
+            }
+        }
+    }
+
+    private static void close(WebSocketSession session, CloseStatus status) {
+        if (!session.isOpen())
+            return;
+        try {
+            session.close(status);
+        } catch (IOException | RuntimeException ex) {
+            LOG.debug("Failed to close session `{}` while draining: {}", session.getId(), ex.getMessage());
+        }
+    }
+
+    private static boolean sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.wetrack.ws;
+
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Thread-safe registry of authenticated WebSocket sessions.
+ * <p>
+ * A user may be logged in on several sessions (devices) at the same time. Both directions are
+ * kept in {@link ConcurrentHashMap}s, so lookups are lock-free and updates only contend on the
+ * bin of the affected key.
+ */
+public class SessionRegistry {
+
+    /**
+     * Notified when a user's first session is registered and when the last one goes away.
+     * Callbacks for the same user never overlap, since they run while the user's entry is being
+     * updated; they must therefore be short, must not block and must not call back into the registry.
+     */
+    public interface Listener {
+        void onUserOnline(String username);
+
+        void onUserOffline(String username);
+    }
+
+    private final ConcurrentHashMap<WebSocketSession, String> sessionUsername = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<WebSocketSession>> usernameSessions = new ConcurrentHashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Binds the given session to the given user. If the session was bound to another user
+     * before, it is moved to the new one.
+     *
+     * @return the user the session was bound to before, or {@code null} if there was none.
+     */
+    public String register(WebSocketSession session, String username) {
+        String previous = sessionUsername.put(session, username);
+        if (previous != null && !previous.equals(username))
+            removeFromUser(previous, session);
+        usernameSessions.compute(username, (name, sessions) -> {
+            if (sessions == null) {
+                sessions = ConcurrentHashMap.newKeySet();
+                for (Listener listener : listeners)
+                    listener.onUserOnline(name);
+            }
+            sessions.add(session);
+            return sessions;
+        });
+        return previous;
+    }
+
+    /**
+     * Unbinds the given session.
+     *
+     * @return the user the session was bound to, or {@code null} if it was anonymous.
+     */
+    public String unregister(WebSocketSession session) {
+        String username = sessionUsername.remove(session);
+        if (username != null)
+            removeFromUser(username, session);
+        return username;
+    }
+
+    public String getUsername(WebSocketSession session) {
+        return sessionUsername.get(session);
+    }
+
+    public boolean isAuthenticated(WebSocketSession session) {
+        return sessionUsername.containsKey(session);
+    }
+
+    /**
+     * Returns a read-only view of the sessions the given user is logged in on; empty if the user
+     * is offline.
+     */
+    public Set<WebSocketSession> getSessions(String username) {
+        Set<WebSocketSession> sessions = usernameSessions.get(username);
+        return sessions == null ? Collections.emptySet() : Collections.unmodifiableSet(sessions);
+    }
+
+    public boolean isOnline(String username) {
+        return usernameSessions.containsKey(username);
+    }
+
+    /** Number of distinct users with at least one authenticated session. */
+    public long getUserCount() {
+        return usernameSessions.mappingCount();
+    }
+
+    /** Number of authenticated sessions. */
+    public long getSessionCount() {
+        return sessionUsername.mappingCount();
+    }
+
+    private void removeFromUser(String username, WebSocketSession session) {
+        usernameSessions.computeIfPresent(username, (name, sessions) -> {
+            sessions.remove(session);
+            if (!sessions.isEmpty())
+                return sessions;
+            for (Listener listener : listeners)
+                listener.onUserOffline(name);
+            return null;
+        });
+    }
+}
@@ -0,0 +1,51 @@
+package com.wetrack.ws;
+
+import org.glassfish.jersey.server.ChunkedOutput;
+import org.springframework.web.socket.CloseStatus;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * An {@link HttpStreamSession} that writes every frame to a {@code text/event-stream} response as
+ * a {@code data} event as soon as it is sent. Pings become comment lines, which also keep proxies
+ * from timing out the response.
+ * <p>
+ * The response is a {@link ChunkedOutput}, so no request thread is held while the stream is idle.
+ * A client that goes away is noticed when a write fails, at the latest on the next ping.
+ */
+public class SseSession extends HttpStreamSession {
+
+    private final ChunkedOutput<String> output;
+
+    public SseSession(String username, InetSocketAddress remoteAddress, ChunkedOutput<String> output) {
+        super(username, remoteAddress);
+        this.output = output;
+    }
+
+    public ChunkedOutput<String> getOutput() { return output; }
+
+    @Override
+    protected void sendFrame(String frame) throws IOException {
+        write("data: " + frame.replace("\n", "\ndata: ") + "\n\n");
+    }
+
+    @Override
+    protected void sendPing() throws IOException {
+        write(":\n\n");
+        markActive();
+    }
+
+    @Override
+    protected void onClose(CloseStatus status) {
+        try {
+            output.close();
+        } catch (IOException ignored) {}
+    }
+
+    private void write(String chunk) throws IOException {
+        if (output.isClosed())
+            throw new IOException("The event stream has been closed.");
+        output.write(chunk);
+    }
+}
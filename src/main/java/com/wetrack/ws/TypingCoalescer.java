@@ -0,0 +1,51 @@
+package com.wetrack.ws;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides which typing indicators are passed on to the other members of a chat.
+ * <p>
+ * Clients report typing on every keystroke or so. Per user and chat, one "typing" indicator is
+ * passed on per {@code minIntervalMillis}; clients are expected to show it for somewhat longer
+ * than that. A "stopped typing" indicator is always passed on and resets the interval. Nothing is
+ * persisted; the state kept here expires with the interval.
+ */
+public class TypingCoalescer {
+
+    private final Cache<String, Boolean> recent;
+
+    private final LongAdder forwardedCount = new LongAdder();
+    private final LongAdder suppressedCount = new LongAdder();
+
+    public TypingCoalescer(long minIntervalMillis, long maximumSize) {
+        this.recent = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(minIntervalMillis, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /** @return whether the given indicator is to be passed on. */
+    public boolean shouldForward(String chatId, String username, boolean typing) {
+        String key = chatId + ":" + username;
+        boolean forward;
+        if (!typing) {
+            recent.invalidate(key);
+            forward = true;
+        } else
+            forward = recent.asMap().putIfAbsent(key, Boolean.TRUE) == null;
+
+        if (forward)
+            forwardedCount.increment();
+        else
+            suppressedCount.increment();
+        return forward;
+    }
+
+    public long getForwardedCount() { return forwardedCount.sum(); }
+
+    public long getSuppressedCount() { return suppressedCount.sum(); }
+}
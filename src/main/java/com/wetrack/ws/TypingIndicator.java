@@ -0,0 +1,29 @@
+package com.wetrack.ws;
+
+/**
+ * Whether a user is typing in a chat. Sent by clients without a username; the server fills it in
+ * before passing the indicator on. Indicators are never persisted.
+ */
+public class TypingIndicator {
+    private String chatId;
+    private String username;
+    private boolean typing;
+
+    public TypingIndicator(String chatId, String username, boolean typing) {
+        this.chatId = chatId;
+        this.username = username;
+        this.typing = typing;
+    }
+
+    public String getChatId() { return chatId; }
+
+    public void setChatId(String chatId) { this.chatId = chatId; }
+
+    public String getUsername() { return username; }
+
+    public void setUsername(String username) { this.username = username; }
+
+    public boolean isTyping() { return typing; }
+
+    public void setTyping(boolean typing) { this.typing = typing; }
+}
@@ -0,0 +1,158 @@
+package com.wetrack.ws;
+
+import com.wetrack.metrics.Counter;
+import com.wetrack.metrics.Histogram;
+import com.wetrack.metrics.MetricsRegistry;
+import com.wetrack.util.GroupCommitWriter;
+
+/**
+ * Metrics of the {@code /notifications} endpoint, registered with the node's
+ * {@link MetricsRegistry}.
+ * <p>
+ * The hot paths only increment counters and record into lock-free histograms. Everything the
+ * WebSocket components count on their own, such as queue depths, send failures and the sessions
+ * they close, is read from them when the registry is scraped; see {@link #monitor}.
+ */
+public class WebSocketMetrics {
+    static final String PROTOCOL_TEXT = "text";
+    static final String PROTOCOL_BINARY = "binary";
+    static final String TYPE_INVALID = "invalid";
+
+    private static final String FRAMES = "ws_inbound_frames_total";
+    private static final String FRAMES_HELP = "Inbound frames by protocol and frame type.";
+
+    private final MetricsRegistry registry;
+
+    private final Counter invalidTextFrames;
+    private final Counter binaryChatMessageFrames;
+    private final Counter binaryLocationFrames;
+    private final Counter invalidBinaryFrames;
+    private final Counter handlerErrors;
+    private final Histogram handlerLatency;
+    private final Histogram fanOutLatency;
+
+    public WebSocketMetrics(MetricsRegistry registry) {
+        this.registry = registry;
+        this.invalidTextFrames = registry.counter(FRAMES, FRAMES_HELP, "protocol", PROTOCOL_TEXT, "type", TYPE_INVALID);
+        this.binaryChatMessageFrames = registry.counter(FRAMES, FRAMES_HELP,
+                "protocol", PROTOCOL_BINARY, "type", WsResponse.TYPE_CHAT_MESSAGE);
+        this.binaryLocationFrames = registry.counter(FRAMES, FRAMES_HELP,
+                "protocol", PROTOCOL_BINARY, "type", WsResponse.TYPE_LOCATION);
+        this.invalidBinaryFrames = registry.counter(FRAMES, FRAMES_HELP,
+                "protocol", PROTOCOL_BINARY, "type", TYPE_INVALID);
+        this.handlerErrors = registry.counter("ws_handler_errors_total",
+                "Inbound messages whose handler threw.");
+        this.handlerLatency = registry.histogram("ws_handler_latency_seconds",
+                "Time spent handling an inbound message, excluding the time it waited in the inbound queue.");
+        this.fanOutLatency = registry.histogram("ws_chat_fan_out_latency_seconds",
+                "Time from handling a chat message until it is queued for its last recipient on this node "
+                        + "or forwarded to the other nodes, including the write to the database.");
+    }
+
+    /**
+     * Wraps the given handler of text frames of the given type so that every frame it receives is
+     * counted.
+     */
+    FrameHandler counted(String type, FrameHandler handler) {
+        Counter frames = registry.counter(FRAMES, FRAMES_HELP, "protocol", PROTOCOL_TEXT, "type", type);
+        return (session, payload, bodyOffset) -> {
+            frames.increment();
+            handler.handle(session, payload, bodyOffset);
+        };
+    }
+
+    void onInvalidTextFrame() {
+        invalidTextFrames.increment();
+    }
+
+    void onBinaryFrame(byte opcode) {
+        if (opcode == BinaryProtocol.CHAT_MESSAGE)
+            binaryChatMessageFrames.increment();
+        else if (opcode == BinaryProtocol.LOCATION)
+            binaryLocationFrames.increment();
+        else
+            invalidBinaryFrames.increment();
+    }
+
+    void onInvalidBinaryFrame() {
+        invalidBinaryFrames.increment();
+    }
+
+    void onHandlerError() {
+        handlerErrors.increment();
+    }
+
+    Histogram getHandlerLatency() { return handlerLatency; }
+
+    Histogram getFanOutLatency() { return fanOutLatency; }
+
+    /** Registers the counts the given components keep on their own, read at scrape time. */
+    public void monitor(SessionRegistry sessionRegistry, HeartbeatMonitor heartbeatMonitor,
+                        OutboundDispatcher outboundDispatcher, ExecutorHandlerDecorator handlerDecorator,
+                        FrameRateLimiter frameRateLimiter) {
+        registry.gauge("ws_sessions", "Open WebSocket sessions, authenticated or not.",
+                heartbeatMonitor::getTrackedCount);
+        registry.gauge("ws_authenticated_sessions", "Open WebSocket sessions bound to a user.",
+                sessionRegistry::getSessionCount);
+        registry.gauge("ws_users", "Users with at least one open WebSocket session on this node.",
+                sessionRegistry::getUserCount);
+
+        registry.counter("ws_outbound_frames_total", "Frames written to sockets.",
+                outboundDispatcher::getSentCount);
+        registry.counter("ws_outbound_dropped_total", "Frames dropped from full outbound queues.",
+                outboundDispatcher::getDroppedCount);
+        registry.counter("ws_outbound_coalesced_total", "Frames replaced by a newer frame with the same key.",
+                outboundDispatcher::getCoalescedCount);
+        registry.counter("ws_send_failures_total", "Frames whose write to the socket failed.",
+                outboundDispatcher::getFailedCount);
+        registry.gauge("ws_outbound_queue_depth", "Frames waiting in all outbound queues.",
+                outboundDispatcher::getTotalQueueDepth);
+        registry.gauge("ws_outbound_queue_depth_max", "Frames waiting in the fullest outbound queue.",
+                outboundDispatcher::getMaxQueueDepth);
+
+        String closes = "ws_forced_closes_total";
+        String closesHelp = "Sessions closed by the server, by reason.";
+        registry.counter(closes, closesHelp, outboundDispatcher::getDisconnectedCount, "reason", "outbound_overflow");
+        registry.counter(closes, closesHelp, outboundDispatcher::getFailedCount, "reason", "send_failure");
+        registry.counter(closes, closesHelp, heartbeatMonitor::getReapedCount, "reason", "idle");
+        registry.counter(closes, closesHelp, handlerDecorator::getRejectedCount, "reason", "inbound_overflow");
+
+        String rateLimited = "ws_rate_limited_frames_total";
+        String rateLimitedHelp = "Inbound frames rejected for exceeding a rate limit, by the limit exceeded.";
+        registry.counter(rateLimited, rateLimitedHelp, frameRateLimiter::getSessionRejectedCount, "limit", "session");
+        registry.counter(rateLimited, rateLimitedHelp, frameRateLimiter::getUserRejectedCount, "limit", "user");
+
+        registry.gauge("ws_inbound_queue_depth", "Inbound messages waiting for a handler thread.",
+                handlerDecorator::getPendingCount);
+        registry.gauge("ws_inbound_queue_time_max_seconds", "Longest time an inbound message waited for a handler thread.",
+                () -> handlerDecorator.getMaxQueueMillis() / 1000.0);
+    }
+
+    public void monitor(NotificationStreams notificationStreams) {
+        String streams = "ws_http_streams";
+        String streamsHelp = "Open notification streams served over plain HTTP, by transport.";
+        registry.gauge(streams, streamsHelp, notificationStreams::getEventStreamCount, "transport", "sse");
+        registry.gauge(streams, streamsHelp, notificationStreams::getLongPollCount, "transport", "long_poll");
+    }
+
+    public void monitor(ReadWatermarkTracker readWatermarkTracker) {
+        registry.counter("ws_read_receipts_total", "Read receipts received.",
+                readWatermarkTracker::getReceiptCount);
+        registry.counter("ws_read_receipts_collapsed_total",
+                "Read receipts merged into a watermark already waiting to be written.",
+                readWatermarkTracker::getCollapsedCount);
+    }
+
+    public void monitor(TypingCoalescer typingCoalescer) {
+        String typing = "ws_typing_indicators_total";
+        String typingHelp = "Typing indicators received, by whether they were passed on.";
+        registry.counter(typing, typingHelp, typingCoalescer::getForwardedCount, "outcome", "forwarded");
+        registry.counter(typing, typingHelp, typingCoalescer::getSuppressedCount, "outcome", "suppressed");
+    }
+
+    /** Registers the items the given writer dropped because it was backlogged. */
+    public void monitor(String writerName, GroupCommitWriter<?> writer) {
+        registry.counter("ws_writer_rejected_total", "Items dropped because their writer was backlogged.",
+                writer::getRejectedCount, "writer", writerName);
+    }
+}
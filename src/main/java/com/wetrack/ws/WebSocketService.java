@@ -1,115 +1,423 @@
 package com.wetrack.ws;
 
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
 import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.wetrack.cache.ChatMembershipCache;
+import com.wetrack.event.LocationPublisher;
+import com.wetrack.json.GsonTypes;
 import com.wetrack.dao.ChatMessageRepository;
-import com.wetrack.dao.ChatRepository;
+import com.wetrack.dao.DuplicateEntityException;
 import com.wetrack.dao.UserTokenRepository;
-import com.wetrack.model.Chat;
 import com.wetrack.model.ChatMessage;
+import com.wetrack.model.Location;
 import com.wetrack.model.UserToken;
 import com.wetrack.util.CryptoUtils;
+import com.wetrack.util.GroupCommitWriter;
+import com.wetrack.util.KeyedExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.web.socket.BinaryMessage;
 import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.PongMessage;
+import org.springframework.web.socket.SubProtocolCapable;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketMessage;
 import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.socket.handler.AbstractWebSocketHandler;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 import static com.wetrack.ws.WsResponse.*;
 
-public class WebSocketService extends AbstractWebSocketHandler {
+/**
+ * Serves the {@code /notifications} endpoint. Every client speaks the prefix-tagged JSON text
+ * protocol; clients that negotiate the {@link BinaryProtocol} sub-protocol may send chat messages
+ * and location fixes as binary frames too, and receive those frame types in binary.
+ */
+public class WebSocketService extends AbstractWebSocketHandler implements SubProtocolCapable {
     private static final Logger LOG = LoggerFactory.getLogger(WebSocketService.class);
 
-    private static final String TOKEN_PREFIX = "Token:";
+    static final String TOKEN_PREFIX = "Token:";
+    private static final int CHAT_SYNC_DEFAULT_LIMIT = 100;
+    private static final int CHAT_SYNC_MAX_LIMIT = 500;
+    private static final String RATE_LIMITED_COALESCE_KEY = "rate_limited";
 
     @Autowired private Gson gson;
     @Autowired private UserTokenRepository userTokenRepository;
-    @Autowired private ChatRepository chatRepository;
+    @Autowired private ChatMembershipCache chatMembershipCache;
     @Autowired private ChatMessageRepository chatMessageRepository;
+    @Autowired private GroupCommitWriter<ChatMessage> chatMessageWriter;
+    @Autowired private GroupCommitWriter<Location> locationWriter;
+    @Autowired private LocationPublisher locationPublisher;
+    @Autowired private FriendLocationPusher friendLocationPusher;
+    @Autowired private SessionRegistry sessionRegistry;
+    @Autowired private OutboundDispatcher outboundDispatcher;
+    @Autowired private ClusterRouter clusterRouter;
+    @Autowired private HeartbeatMonitor heartbeatMonitor;
+    @Autowired private OfflineReplayer offlineReplayer;
+    @Autowired private WebSocketMetrics metrics;
+    @Autowired private FrameRateLimiter frameRateLimiter;
+    @Autowired private SessionDrainer sessionDrainer;
+    @Autowired private ReadWatermarkTracker readWatermarkTracker;
+    @Autowired private TypingCoalescer typingCoalescer;
+    @Autowired private NotificationStreams notificationStreams;
+    @Autowired @Qualifier("chatDeliveryExecutor") private KeyedExecutor chatDeliveryExecutor;
+    @Autowired @Qualifier("locationDeliveryExecutor") private KeyedExecutor locationDeliveryExecutor;
 
-    private BiMap<WebSocketSession, String> sessionUsername = HashBiMap.create();
+    private final FrameDispatcher frameDispatcher = new FrameDispatcher();
 
     private WebSocketMessage<String> sessionHello
             = hello("Hello, anonymous user! Please provide your token for authentication.");
     private WebSocketMessage<String> invalidMessage = invalidMessage("The message is not in valid format.");
+    private WebSocketMessage<String> rateLimited = rateLimited("Too many messages. Please slow down.");
+
+    @PostConstruct
+    public void init() {
+        // The dispatcher has already closed the session; make sure it no longer receives messages
+        outboundDispatcher.setFailureHandler((session, ex) -> sessionRegistry.unregister(session));
+        locationPublisher.addListener(friendLocationPusher);
+        // The container may never report the close of a dead connection
+        heartbeatMonitor.setReapHandler(this::release);
+
+        frameDispatcher.register(TOKEN_PREFIX, metrics.counted("token", this::onTokenFrame));
+        frameDispatcher.register(TYPE_CHAT_MESSAGE, metrics.counted(TYPE_CHAT_MESSAGE, this::onChatMessageFrame));
+        frameDispatcher.register(TYPE_LOCATION, metrics.counted(TYPE_LOCATION, this::onLocationFrame));
+        frameDispatcher.register(TYPE_CHAT_SYNC, metrics.counted(TYPE_CHAT_SYNC, this::onChatSyncFrame));
+        frameDispatcher.register(TYPE_CHAT_READ, metrics.counted(TYPE_CHAT_READ, this::onReadReceiptFrame));
+        frameDispatcher.register(TYPE_TYPING, metrics.counted(TYPE_TYPING, this::onTypingFrame));
+    }
+
+    @PreDestroy
+    public void destroy() {
+        // Runs before the drain, since this service depends on the drainer
+        notificationStreams.clearHandler();
+        locationPublisher.removeListener(friendLocationPusher);
+    }
 
     @Override
     public void afterConnectionEstablished(WebSocketSession session) throws Exception {
         LOG.debug("WebSocket session established with `{}:{}`",
                 session.getRemoteAddress().getAddress(), session.getRemoteAddress().getPort());
+        if (sessionDrainer.isDraining()) {
+            // The handshake raced with the start of the drain
+            sessionDrainer.reject(session);
+            return;
+        }
+        heartbeatMonitor.track(session);
         sendMessage(session, sessionHello);
     }
 
+    @Override
+    public void handleMessage(WebSocketSession session, WebSocketMessage<?> message) throws Exception {
+        if (!(message instanceof PongMessage)
+                && !frameRateLimiter.tryAcquire(session, sessionRegistry.getUsername(session))) {
+            // A client flooding the server gets one notice per outbound flush, not one per frame
+            outboundDispatcher.send(session, rateLimited, RATE_LIMITED_COALESCE_KEY);
+            return;
+        }
+        super.handleMessage(session, message);
+    }
+
+    @Override
+    public List<String> getSubProtocols() {
+        return Collections.singletonList(BinaryProtocol.SUB_PROTOCOL);
+    }
+
     @Override
     public void handleTextMessage(WebSocketSession session, TextMessage textMessage) throws Exception {
         String message = textMessage.getPayload();
 
         if (LOG.isDebugEnabled()) {
-            if (sessionUsername.containsKey(session))
-                LOG.debug("Received message `{}` from user `{}`.", message, sessionUsername.get(session));
+            String username = sessionRegistry.getUsername(session);
+            if (username != null)
+                LOG.debug("Received message `{}` from user `{}`.", message, username);
             else
                 LOG.debug("Received message `{}` from anonymous session `{}`.", message, session.hashCode());
         }
 
-        if (message.startsWith(TOKEN_PREFIX)) {
-            LOG.debug("Token messaged detected! Handling to corresponding method...");
-            onTokenAuthenticate(message.substring(TOKEN_PREFIX.length()), session);
+        if (!frameDispatcher.dispatch(session, message)) {
+            metrics.onInvalidTextFrame();
+            sendMessage(session, invalidMessage);
+        }
+    }
+
+    @Override
+    protected void handleBinaryMessage(WebSocketSession session, BinaryMessage message) throws Exception {
+        if (!BinaryProtocol.isBinary(session)) {
+            metrics.onInvalidBinaryFrame();
+            sendMessage(session, invalidMessage("Binary frames require the `" + BinaryProtocol.SUB_PROTOCOL
+                    + "` sub-protocol."));
+            return;
+        }
+
+        ByteBuffer buffer = message.getPayload();
+        byte opcode;
+        ChatMessage chatMessage = null;
+        List<Location> locations = null;
+        try {
+            opcode = BinaryProtocol.readHeader(buffer);
+            if (opcode == BinaryProtocol.CHAT_MESSAGE)
+                chatMessage = BinaryProtocol.readChatMessage(buffer);
+            else if (opcode == BinaryProtocol.LOCATION)
+                locations = BinaryProtocol.readLocations(buffer);
+        } catch (IllegalArgumentException | BufferUnderflowException ex) {
+            metrics.onInvalidBinaryFrame();
+            LOG.debug("Received malformed binary frame from session `{}`: {}", session.hashCode(), ex.getMessage());
+            sendMessage(session, invalidMessage);
             return;
         }
+        metrics.onBinaryFrame(opcode);
 
-        if (message.startsWith(WsResponse.TYPE_CHAT_MESSAGE)) {
-            ChatMessage chatMessage;
-            try {
-                chatMessage = gson.fromJson(message.substring(WsResponse.TYPE_CHAT_MESSAGE.length()), ChatMessage.class);
-            } catch (Exception ex) {
-                sendMessage(session, invalidMessage);
-                return;
-            }
+        if (chatMessage != null)
             onChatMessage(chatMessage, session);
+        else if (locations != null)
+            onLocations(locations, session);
+        else
+            sendMessage(session, invalidMessage);
+    }
+
+    private void onTokenFrame(WebSocketSession session, String payload, int bodyOffset) throws Exception {
+        onTokenAuthenticate(payload.substring(bodyOffset), session);
+    }
+
+    private void onChatMessageFrame(WebSocketSession session, String payload, int bodyOffset) throws Exception {
+        ChatMessage chatMessage;
+        try {
+            chatMessage = readBody(FrameDispatcher.jsonReader(payload, bodyOffset), ChatMessage.class);
+        } catch (Exception ex) {
+            sendMessage(session, invalidMessage);
             return;
         }
+        onChatMessage(chatMessage, session);
+    }
 
-        sendMessage(session, invalidMessage);
+    private void onLocationFrame(WebSocketSession session, String payload, int bodyOffset) {
+        List<Location> locations;
+        try {
+            JsonReader reader = FrameDispatcher.jsonReader(payload, bodyOffset);
+            if (reader.peek() == JsonToken.BEGIN_ARRAY)
+                locations = readBody(reader, GsonTypes.locationListType);
+            else
+                locations = Collections.singletonList(readBody(reader, Location.class));
+        } catch (Exception ex) {
+            sendMessage(session, invalidMessage);
+            return;
+        }
+        onLocations(locations, session);
     }
 
-    private void onChatMessage(ChatMessage message, WebSocketSession session) throws Exception {
-        if (!sessionUsername.containsKey(session)) {
-            sendMessage(session, notAuthenticated("You must log in first."));
+    private void onChatSyncFrame(WebSocketSession session, String payload, int bodyOffset) {
+        ChatSyncRequest request;
+        try {
+            request = readBody(FrameDispatcher.jsonReader(payload, bodyOffset), ChatSyncRequest.class);
+        } catch (Exception ex) {
+            sendMessage(session, invalidMessage);
             return;
         }
+        onChatSync(request, session);
+    }
 
-        String authenticatedUsername = sessionUsername.get(session);
-        Chat chat = chatRepository.findById(message.getChatId());
-        if (chat == null) {
-            sendMessage(session, invalidChatId("Chat with given ID `" + message.getChatId() + "` does not exist."));
+    private void onReadReceiptFrame(WebSocketSession session, String payload, int bodyOffset) {
+        ReadReceipt receipt;
+        try {
+            receipt = readBody(FrameDispatcher.jsonReader(payload, bodyOffset), ReadReceipt.class);
+        } catch (Exception ex) {
+            sendMessage(session, invalidMessage);
             return;
         }
-        if (!chat.getMemberNames().contains(authenticatedUsername)) {
-            sendMessage(session, notChatMember("You are not a member of this chat."));
+        onReadReceipt(receipt, session);
+    }
+
+    private void onTypingFrame(WebSocketSession session, String payload, int bodyOffset) {
+        TypingIndicator indicator;
+        try {
+            indicator = readBody(FrameDispatcher.jsonReader(payload, bodyOffset), TypingIndicator.class);
+        } catch (Exception ex) {
+            sendMessage(session, invalidMessage);
             return;
         }
+        onTyping(indicator, session);
+    }
+
+    /** Reads a frame body, which must be a single JSON value with nothing after it. */
+    private <T> T readBody(JsonReader reader, Type type) throws IOException {
+        T body = gson.fromJson(reader, type);
+        if (reader.peek() != JsonToken.END_DOCUMENT)
+            throw new JsonSyntaxException("Unexpected content after the frame body.");
+        return body;
+    }
+
+    /**
+     * Handles location fixes streamed by an authenticated session. A fix may be sent alone or in an
+     * array; fixes are written in batches together with those of other sessions and are not
+     * acknowledged individually. The session is only notified if a batch fails. Once written, the
+     * fixes are published to the user's online friends.
+     */
+    private void onLocations(List<Location> locations, WebSocketSession session) {
+        String authenticatedUsername = sessionRegistry.getUsername(session);
+        if (authenticatedUsername == null) {
+            sendMessage(session, notAuthenticated("You must log in first."));
+            return;
+        }
+
+        List<Location> accepted = new ArrayList<>(locations.size());
+        List<CompletableFuture<Void>> writes = new ArrayList<>(locations.size());
+        for (Location location : locations) {
+            if (location == null || location.getTime() == null)
+                continue;
+            if (location.getUsername() != null && !location.getUsername().trim().isEmpty()
+                    && !authenticatedUsername.equals(location.getUsername()))
+                continue;
+            location.setUsername(authenticatedUsername);
+            location.generateId();
+            accepted.add(location);
+            writes.add(locationWriter.submit(location));
+        }
+
+        // Published off the writer thread, which would otherwise wait on the listeners before the next batch
+        CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).whenCompleteAsync((ignored, ex) -> {
+            if (ex != null)
+                sendMessage(session, internalError("Failed to save " + writes.size() + " locations. Please send them again."));
+            else
+                locationPublisher.publish(accepted);
+        }, locationDeliveryExecutor.forKey(authenticatedUsername));
+    }
+
+    private void onChatMessage(ChatMessage message, WebSocketSession session) throws Exception {
+        long receivedNanos = System.nanoTime();
+        String authenticatedUsername = sessionRegistry.getUsername(session);
+        Set<String> memberNames = checkMembership(authenticatedUsername, message.getChatId(), session);
+        if (memberNames == null)
+            return;
 
         String providedId = message.getId();
         message.setId(CryptoUtils.md5Digest(String.format("%s:%s:%s", message.getChatId(), message.getFromUsername(), message.getSendTime().toString())));
-        message.setFromUsername(sessionUsername.get(session));
+        message.setFromUsername(authenticatedUsername);
         message.setSendTime(LocalDateTime.now());
-        chatMessageRepository.insert(message);
+        // Numbers are handed out by the repository only, so that they stay dense per chat
+        message.setSequence(null);
+
+        // Neither the ACK nor the fan-out may go out before the batch holding the message is durable.
+        // They run off the writer thread, which would otherwise hold up the next batch.
+        chatMessageWriter.submit(message).whenCompleteAsync((ignored, ex) -> {
+            if (ex instanceof DuplicateEntityException) {
+                // Stored already, or another message of the sender carried the same send time
+                sendMessage(session, invalidMessage("Message `" + providedId + "` has the same send time as one already saved."));
+                return;
+            }
+            if (ex != null) {
+                sendMessage(session, internalError("Failed to save message `" + providedId + "`. Please send it again."));
+                return;
+            }
+            sendMessage(session, BinaryProtocol.isBinary(session)
+                    ? BinaryProtocol.messageAck(providedId, message.getSendTime(), message.getSequence())
+                    : messageAck(providedId, message.getSendTime(), message.getSequence()));
+            // The sender's other devices receive the message as well; only the sending session is skipped.
+            clusterRouter.deliver(memberNames, OutboundFrame.chatMessage(message), session);
+            metrics.getFanOutLatency().recordSince(receivedNanos);
+        }, chatDeliveryExecutor.forKey(message.getChatId()));
+    }
 
-        session.sendMessage(messageAck(providedId, message.getSendTime()));
+    /**
+     * Sends the messages of a chat following a given sequence number, as a single
+     * {@code chat_messages} frame. The frame is empty if the client is up to date; a client that
+     * received a full frame should ask again from its last message.
+     */
+    private void onChatSync(ChatSyncRequest request, WebSocketSession session) {
+        String authenticatedUsername = sessionRegistry.getUsername(session);
+        if (checkMembership(authenticatedUsername, request.getChatId(), session) == null)
+            return;
 
-        for (String memberName : chat.getMemberNames()) {
-            if (memberName.equals(authenticatedUsername))
-                continue;
-            WebSocketSession memberSession = sessionUsername.inverse().get(memberName);
-            if (memberSession != null)
-                sendMessage(memberSession, chatMessage(message));
+        int limit = request.getLimit() <= 0 ? CHAT_SYNC_DEFAULT_LIMIT : Math.min(request.getLimit(), CHAT_SYNC_MAX_LIMIT);
+        List<ChatMessage> messages = chatMessageRepository.getChatMessagesAfterSequence(
+                request.getChatId(), request.getAfterSequence(), limit);
+        sendMessage(session, BinaryProtocol.isBinary(session)
+                ? BinaryProtocol.chatMessages(messages) : chatMessages(messages));
+    }
+
+    /**
+     * Moves the user's read watermark of a chat forward and passes the receipt on to the chat's
+     * members, including the user's other sessions. Receipts that do not move the watermark are
+     * dropped, and a receipt still queued for a session is replaced by a newer one from the same
+     * user.
+     */
+    private void onReadReceipt(ReadReceipt receipt, WebSocketSession session) {
+        String authenticatedUsername = sessionRegistry.getUsername(session);
+        Set<String> memberNames = checkMembership(authenticatedUsername, receipt.getChatId(), session);
+        if (memberNames == null)
+            return;
+        if (receipt.getSequence() <= 0) {
+            sendMessage(session, invalidMessage);
+            return;
+        }
+
+        if (!readWatermarkTracker.advance(receipt.getChatId(), authenticatedUsername, receipt.getSequence()))
+            return;
+        receipt.setUsername(authenticatedUsername);
+        clusterRouter.deliver(memberNames, OutboundFrame.fromText(readReceipt(receipt)), session,
+                TYPE_CHAT_READ + ":" + receipt.getChatId() + ":" + authenticatedUsername);
+    }
+
+    /**
+     * Passes a typing indicator on to the other members of the chat, unless the
+     * {@link TypingCoalescer} holds it back. Like read receipts, an indicator still queued for a
+     * session is replaced by a newer one from the same user.
+     */
+    private void onTyping(TypingIndicator indicator, WebSocketSession session) {
+        String authenticatedUsername = sessionRegistry.getUsername(session);
+        Set<String> memberNames = checkMembership(authenticatedUsername, indicator.getChatId(), session);
+        if (memberNames == null)
+            return;
+        if (!typingCoalescer.shouldForward(indicator.getChatId(), authenticatedUsername, indicator.isTyping()))
+            return;
+
+        indicator.setUsername(authenticatedUsername);
+        List<String> recipients = new ArrayList<>(memberNames.size());
+        for (String memberName : memberNames) {
+            if (!memberName.equals(authenticatedUsername))
+                recipients.add(memberName);
+        }
+        clusterRouter.deliver(recipients, OutboundFrame.fromText(typing(indicator)), session,
+                TYPE_TYPING + ":" + indicator.getChatId() + ":" + authenticatedUsername);
+    }
+
+    /**
+     * Checks that the given user is logged in and a member of the given chat, and tells the
+     * session what is wrong otherwise.
+     *
+     * @return the members of the chat, or {@code null} if the check failed.
+     */
+    private Set<String> checkMembership(String authenticatedUsername, String chatId, WebSocketSession session) {
+        if (authenticatedUsername == null) {
+            sendMessage(session, notAuthenticated("You must log in first."));
+            return null;
+        }
+
+        Set<String> memberNames = chatMembershipCache.getMembers(chatId);
+        if (memberNames == null) {
+            sendMessage(session, invalidChatId("Chat with given ID `" + chatId + "` does not exist."));
+            return null;
         }
+        if (!memberNames.contains(authenticatedUsername)) {
+            sendMessage(session, notChatMember("You are not a member of this chat."));
+            return null;
+        }
+        return memberNames;
     }
 
     private void onTokenAuthenticate(String token, WebSocketSession session) throws Exception {
@@ -117,49 +425,41 @@ public class WebSocketService extends AbstractWebSocketHandler {
         UserToken tokenInDB = userTokenRepository.findByTokenStr(token);
         if (tokenInDB == null || tokenInDB.getExpireTime().isBefore(LocalDateTime.now())) {
             LOG.debug("Token is invalid or has expired. Returning 401 Unauthorized...");
-            session.sendMessage(invalidToken("The given token `" + token + "` is invalid or has expired."));
+            sendMessage(session, invalidToken("The given token `" + token + "` is invalid or has expired."));
             return;
         }
 
         String username = tokenInDB.getUsername();
-        if (sessionUsername.containsValue(username)) {
-            LOG.debug("Token has already logged in another session. Logging out the old session...");
-            WebSocketSession oldSession = sessionUsername.inverse().get(tokenInDB.getUsername());
-            if (oldSession != session)
-                sendMessage(oldSession, tokenUsedInOtherSession("You has logged in on another session."));
-        }
-
-        sessionUsername.forcePut(session, username);
+        sessionRegistry.register(session, username);
         LOG.debug("Token authenticated. User `{}` logged in on session `{}`.", username, session.hashCode());
         sendMessage(session, tokenVerified("Authentication successful. Welcome, " + username + "."));
+        offlineReplayer.replay(session, username);
     }
 
     @Override
     public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
-        if (sessionUsername.containsKey(session))
-            LOG.info("WebSocket session of user `" + sessionUsername.get(session)
-                    + "` closed: " + status.toString());
+        String username = release(session);
+        if (username != null)
+            LOG.info("WebSocket session of user `" + username + "` closed: " + status.toString());
         else
             LOG.info("Anonymous WebSocket session `" + session.hashCode() + "` closed: " + status.toString());
     }
 
-    private void sendMessage(WebSocketSession session, WebSocketMessage<?> message) {
-        try {
-            session.sendMessage(message);
-        } catch (Throwable ex) {
-            // Exception occurred when trying to send message to the session.
-            // Close and unregister the session.
-            tryCloseWithError(session, ex);
-            sessionUsername.remove(session);
-        }
+    /**
+     * Drops every reference this node holds to the given session. Safe to call more than once.
+     *
+     * @return the user the session was bound to, or {@code null} if it was anonymous or had
+     *         already been released.
+     */
+    private String release(WebSocketSession session) {
+        heartbeatMonitor.untrack(session);
+        outboundDispatcher.remove(session);
+        friendLocationPusher.remove(session);
+        frameRateLimiter.remove(session);
+        return sessionRegistry.unregister(session);
     }
 
-    private void tryCloseWithError(WebSocketSession session, Throwable exception) {
-        LOG.debug("Closing session `" + session.hashCode() + "` due to exception: ", exception);
-        if (session.isOpen()) {
-            try {
-                session.close(CloseStatus.SERVER_ERROR);
-            } catch (Throwable ex) {}
-        }
+    private void sendMessage(WebSocketSession session, WebSocketMessage<?> message) {
+        outboundDispatcher.send(session, message);
     }
 }
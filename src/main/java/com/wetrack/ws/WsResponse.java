@@ -3,20 +3,32 @@ package com.wetrack.ws;
 import com.google.gson.FieldNamingPolicy;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.wetrack.json.GsonTypes;
 import com.wetrack.json.LocalDateTimeTypeAdapter;
+import com.wetrack.json.LocationTypeAdapter;
 import com.wetrack.model.ChatMessage;
+import com.wetrack.model.Location;
 import org.springframework.web.socket.TextMessage;
 
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.util.List;
 
 abstract class WsResponse {
     static final Gson gson = new GsonBuilder().setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES)
             .registerTypeAdapter(LocalDateTime.class, new LocalDateTimeTypeAdapter())
+            .registerTypeAdapter(Location.class, new LocationTypeAdapter())
             .create();
 
     static final String TYPE_CHAT_MESSAGE = "chat_message";
     static final String TYPE_CHAT_MESSAGE_ACK = "chat_message_ack";
+    static final String TYPE_CHAT_MESSAGES = "chat_messages";
+    static final String TYPE_CHAT_SYNC = "chat_sync";
     static final String TYPE_WS_MESSAGE = "message";
+    static final String TYPE_LOCATION = "location";
+    static final String TYPE_RECONNECT = "reconnect";
+    static final String TYPE_CHAT_READ = "chat_read";
+    static final String TYPE_TYPING = "typing";
 
     private static final int HELLO = 1000;
     private static final int TOKEN_VERIFIED = 1001;
@@ -25,7 +37,8 @@ abstract class WsResponse {
     private static final int NOT_CHAT_MEMBER = 2002;
     private static final int INVALID_CHAT_ID = 2003;
     private static final int INVALID_TOKEN = 2004;
-    private static final int TOKEN_USED_IN_OTHER_SESSION = 2005;
+    // 2005 meant the token was used in another session; retired, since deployed clients still know it
+    private static final int RATE_LIMITED = 2006;
     private static final int INTERNAL_ERROR = 3000;
 
     static TextMessage hello(String message) {
@@ -36,16 +49,39 @@ abstract class WsResponse {
         return jsonMessage(new WsMessage(INTERNAL_ERROR, message));
     }
 
+    /**
+     * Encodes the given chat message exactly once. The returned message is immutable and carries
+     * its UTF-8 encoded form as well, so the same instance can be sent to every recipient.
+     */
     static TextMessage chatMessage(ChatMessage message) {
-        return new TextMessage(TYPE_CHAT_MESSAGE + gson.toJson(message));
+        StringBuilder builder = new StringBuilder(TYPE_CHAT_MESSAGE);
+        gson.toJson(message, ChatMessage.class, builder);
+        return new TextMessage(builder.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Encodes a location fix pushed to friends. Like {@link #chatMessage(ChatMessage)}, the result
+     * is encoded once and shared by all recipients.
+     */
+    static TextMessage location(Location location) {
+        StringBuilder builder = new StringBuilder(TYPE_LOCATION);
+        gson.toJson(location, Location.class, builder);
+        return new TextMessage(builder.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Encodes a batch of chat messages as a single frame holding a JSON array. */
+    static TextMessage chatMessages(List<ChatMessage> messages) {
+        StringBuilder builder = new StringBuilder(TYPE_CHAT_MESSAGES);
+        gson.toJson(messages, GsonTypes.chatMessageListType, builder);
+        return new TextMessage(builder.toString().getBytes(StandardCharsets.UTF_8));
     }
 
     static TextMessage invalidMessage(String message) {
         return jsonMessage(new WsMessage(INVALID_MESSAGE, message));
     }
 
-    static TextMessage messageAck(String messageId, LocalDateTime sendTime) {
-        return new TextMessage(TYPE_CHAT_MESSAGE_ACK + gson.toJson(new ChatMessageAck(messageId, sendTime)));
+    static TextMessage messageAck(String messageId, LocalDateTime sendTime, Long sequence) {
+        return new TextMessage(TYPE_CHAT_MESSAGE_ACK + gson.toJson(new ChatMessageAck(messageId, sendTime, sequence)));
     }
 
     static TextMessage notAuthenticated(String message) {
@@ -64,8 +100,20 @@ abstract class WsResponse {
         return jsonMessage(new WsMessage(INVALID_TOKEN, message));
     }
 
-    static TextMessage tokenUsedInOtherSession(String message) {
-        return jsonMessage(new WsMessage(TOKEN_USED_IN_OTHER_SESSION, message));
+    static TextMessage rateLimited(String message) {
+        return jsonMessage(new WsMessage(RATE_LIMITED, message));
+    }
+
+    static TextMessage readReceipt(ReadReceipt receipt) {
+        return new TextMessage(TYPE_CHAT_READ + gson.toJson(receipt));
+    }
+
+    static TextMessage typing(TypingIndicator indicator) {
+        return new TextMessage(TYPE_TYPING + gson.toJson(indicator));
+    }
+
+    static TextMessage reconnect(String message, long delayMillis) {
+        return new TextMessage(TYPE_RECONNECT + gson.toJson(new ReconnectHint(message, delayMillis)));
     }
 
     static TextMessage tokenVerified(String message) {
@@ -0,0 +1,125 @@
+package com.wetrack.cache;
+
+import com.google.gson.Gson;
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.wetrack.cluster.InProcessCluster;
+import com.wetrack.cluster.MessageBus;
+import com.wetrack.config.SpringConfig;
+import com.wetrack.config.SpringTestConfig;
+import com.wetrack.dao.ChatRepository;
+import com.wetrack.dao.FriendRepository;
+import com.wetrack.dao.LocationRepository;
+import com.wetrack.model.Chat;
+import org.bson.Document;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = SpringTestConfig.class)
+public class ChatMembershipCacheTest {
+
+    @Autowired private MongoClient client;
+    @Autowired private ChatRepository chatRepository;
+    @Autowired private ChatMembershipCache chatMembershipCache;
+    @Autowired private FriendRepository friendRepository;
+    @Autowired private LocationRepository locationRepository;
+    @Autowired private Gson gson;
+
+    private MongoCollection<Document> chats;
+
+    private String chatName = "Membership Cache Test";
+
+    @Before
+    public void setUp() {
+        chats = client.getDatabase(SpringConfig.DEFAULT_DATABASE).getCollection("chats");
+        chatMembershipCache.invalidateAll();
+    }
+
+    @After
+    public void tearDown() {
+        chats.deleteMany(new Document("name", chatName));
+    }
+
+    @Test
+    public void testLoadsFromRepository() {
+        Chat chat = new Chat(chatName);
+        chat.addMember("robert-peng");
+        chat.addMember("windy-chan");
+        chatRepository.insert(chat);
+
+        assertThat(chatMembershipCache.chatExists(chat.getId()), is(true));
+        assertThat(chatMembershipCache.getMembers(chat.getId()).size(), is(2));
+        assertThat(chatMembershipCache.isMember(chat.getId(), "robert-peng"), is(true));
+        assertThat(chatMembershipCache.isMember(chat.getId(), "mr-dai"), is(false));
+    }
+
+    @Test
+    public void testNotExistChat() {
+        assertThat(chatMembershipCache.getMembers("BlahBlahNotExist"), nullValue());
+        assertThat(chatMembershipCache.chatExists("BlahBlahNotExist"), is(false));
+        assertThat(chatMembershipCache.isMember("BlahBlahNotExist", "robert-peng"), is(false));
+    }
+
+    @Test
+    public void testServesReadsFromMemory() {
+        Chat chat = new Chat(chatName);
+        chat.addMember("robert-peng");
+        chatRepository.insert(chat);
+        chatMembershipCache.getMembers(chat.getId());
+
+        chat.addMember("windy-chan");
+        chatRepository.update(chat);
+        assertThat(chatMembershipCache.isMember(chat.getId(), "windy-chan"), is(false));
+        assertThat(chatMembershipCache.stats().hitCount(), is(1L));
+
+        chatMembershipCache.update(chat);
+        assertThat(chatMembershipCache.isMember(chat.getId(), "windy-chan"), is(true));
+
+        chat.removeMember("windy-chan");
+        chatRepository.update(chat);
+        chatMembershipCache.invalidate(chat.getId());
+        assertThat(chatMembershipCache.isMember(chat.getId(), "windy-chan"), is(false));
+    }
+
+    @Test
+    public void testDropsChatsChangedOnOtherNodes() throws Exception {
+        InProcessCluster cluster = new InProcessCluster();
+        MessageBus busA = cluster.join("node-a");
+        MessageBus busB = cluster.join("node-b");
+        ChatMembershipCache cacheA = new ChatMembershipCache(chatRepository, 100, 10);
+        ChatMembershipCache cacheB = new ChatMembershipCache(chatRepository, 100, 10);
+        new ClusterCacheSync(busA, gson, new LatestLocationCache(locationRepository, 100, 10), cacheA,
+                new FriendCache(friendRepository, 100, 10));
+        new ClusterCacheSync(busB, gson, new LatestLocationCache(locationRepository, 100, 10), cacheB,
+                new FriendCache(friendRepository, 100, 10));
+        try {
+            Chat chat = new Chat(chatName);
+            chat.addMember("robert-peng");
+            chat.addMember("windy-chan");
+            chatRepository.insert(chat);
+            assertThat(cacheB.isMember(chat.getId(), "windy-chan"), is(true));
+
+            chat.removeMember("windy-chan");
+            chatRepository.update(chat);
+            cacheA.update(chat);
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (cacheB.isMember(chat.getId(), "windy-chan") && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            assertThat(cacheB.isMember(chat.getId(), "windy-chan"), is(false));
+        } finally {
+            busA.close();
+            busB.close();
+        }
+    }
+}
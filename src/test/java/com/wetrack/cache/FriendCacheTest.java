@@ -0,0 +1,105 @@
+package com.wetrack.cache;
+
+import com.google.gson.Gson;
+import com.wetrack.cluster.InProcessCluster;
+import com.wetrack.cluster.MessageBus;
+import com.wetrack.config.SpringTestConfig;
+import com.wetrack.dao.ChatRepository;
+import com.wetrack.dao.FriendRepository;
+import com.wetrack.dao.LocationRepository;
+import com.wetrack.model.Friend;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = SpringTestConfig.class)
+public class FriendCacheTest {
+
+    @Autowired private FriendRepository friendRepository;
+    @Autowired private FriendCache friendCache;
+    @Autowired private ChatRepository chatRepository;
+    @Autowired private LocationRepository locationRepository;
+    @Autowired private Gson gson;
+
+    private String ownerUsername = "friend-cache-robert-peng";
+
+    @Before
+    public void setUp() {
+        friendCache.invalidateAll();
+    }
+
+    @After
+    public void tearDown() {
+        Friend friend = friendRepository.findById(ownerUsername);
+        if (friend != null)
+            friendRepository.delete(friend);
+    }
+
+    @Test
+    public void testLoadsFromRepository() {
+        assertThat(friendCache.getFriends(ownerUsername).isEmpty(), is(true));
+        friendCache.invalidate(ownerUsername);
+
+        Friend friend = new Friend(ownerUsername);
+        friend.addFriend("windy-chan");
+        friend.addFriend("mr-dai");
+        friendRepository.insert(friend);
+
+        assertThat(friendCache.getFriends(ownerUsername).size(), is(2));
+        assertThat(friendCache.getFriends(ownerUsername).contains("windy-chan"), is(true));
+    }
+
+    @Test
+    public void testServesReadsFromMemory() {
+        Friend friend = new Friend(ownerUsername);
+        friend.addFriend("windy-chan");
+        friendRepository.insert(friend);
+        friendCache.getFriends(ownerUsername);
+
+        friend.addFriend("mr-dai");
+        friendRepository.update(friend);
+        assertThat(friendCache.getFriends(ownerUsername).contains("mr-dai"), is(false));
+
+        friendCache.update(friend);
+        assertThat(friendCache.getFriends(ownerUsername).contains("mr-dai"), is(true));
+    }
+
+    @Test
+    public void testDropsListsChangedOnOtherNodes() throws Exception {
+        InProcessCluster cluster = new InProcessCluster();
+        MessageBus busA = cluster.join("node-a");
+        MessageBus busB = cluster.join("node-b");
+        FriendCache cacheA = new FriendCache(friendRepository, 100, 10);
+        FriendCache cacheB = new FriendCache(friendRepository, 100, 10);
+        new ClusterCacheSync(busA, gson, new LatestLocationCache(locationRepository, 100, 10),
+                new ChatMembershipCache(chatRepository, 100, 10), cacheA);
+        new ClusterCacheSync(busB, gson, new LatestLocationCache(locationRepository, 100, 10),
+                new ChatMembershipCache(chatRepository, 100, 10), cacheB);
+        try {
+            Friend friend = new Friend(ownerUsername);
+            friend.addFriend("windy-chan");
+            friendRepository.insert(friend);
+            assertThat(cacheB.getFriends(ownerUsername).contains("windy-chan"), is(true));
+
+            friend.removeFriend("windy-chan");
+            friendRepository.update(friend);
+            cacheA.update(friend);
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (cacheB.getFriends(ownerUsername).contains("windy-chan") && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            assertThat(cacheB.getFriends(ownerUsername).contains("windy-chan"), is(false));
+        } finally {
+            busA.close();
+            busB.close();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.wetrack.cache;
+
+import com.google.gson.Gson;
+import com.mongodb.MongoClient;
+import com.wetrack.cluster.InProcessCluster;
+import com.wetrack.cluster.MessageBus;
+import com.wetrack.config.SpringConfig;
+import com.wetrack.config.SpringTestConfig;
+import com.wetrack.dao.ChatRepository;
+import com.wetrack.dao.FriendRepository;
+import com.wetrack.dao.LocationRepository;
+import com.wetrack.event.LocationPublisher;
+import com.wetrack.model.Location;
+import org.bson.Document;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.time.LocalDateTime;
+import java.util.Collections;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = SpringTestConfig.class)
+public class LatestLocationCacheTest {
+
+    @Autowired private MongoClient client;
+    @Autowired private Gson gson;
+    @Autowired private LocationRepository locationRepository;
+    @Autowired private LocationPublisher locationPublisher;
+    @Autowired private LatestLocationCache latestLocationCache;
+    @Autowired private ChatRepository chatRepository;
+    @Autowired private FriendRepository friendRepository;
+
+    private String username = "latest-location-robert-peng";
+    private LocalDateTime time = LocalDateTime.of(2016, 10, 24, 10, 0, 0);
+
+    @Before
+    public void setUp() {
+        latestLocationCache.invalidateAll();
+    }
+
+    @After
+    public void tearDown() {
+        client.getDatabase(SpringConfig.DEFAULT_DATABASE).getCollection("locations")
+                .deleteMany(new Document("username", username));
+    }
+
+    @Test
+    public void testLoadsFromRepositoryOnMiss() {
+        assertThat(latestLocationCache.getLatestLocation(username), nullValue());
+        latestLocationCache.invalidate(username);
+
+        locationRepository.insert(new Location(username, 22.322663, 114.257771, time));
+        locationRepository.insert(new Location(username, 22.333101, 114.263275, time.plusMinutes(30)));
+
+        assertThat(latestLocationCache.getLatestLocation(username).getTime(), is(time.plusMinutes(30)));
+    }
+
+    @Test
+    public void testOnlyNewerFixesReplaceCachedFix() {
+        assertThat(latestLocationCache.getLatestLocation(username), nullValue());
+
+        publish(new Location(username, 22.333101, 114.263275, time.plusMinutes(30)));
+        assertThat(latestLocationCache.getLatestLocation(username).getTime(), is(time.plusMinutes(30)));
+
+        // A fix uploaded late does not take the place of the latest one
+        publish(new Location(username, 22.322663, 114.257771, time));
+        assertThat(latestLocationCache.getLatestLocation(username).getTime(), is(time.plusMinutes(30)));
+
+        publish(new Location(username, 22.338022, 114.264158, time.plusMinutes(45)));
+        assertThat(latestLocationCache.getLatestLocation(username).getTime(), is(time.plusMinutes(45)));
+    }
+
+    @Test
+    public void testServesReadsFromMemory() {
+        locationRepository.insert(new Location(username, 22.322663, 114.257771, time));
+        latestLocationCache.getLatestLocation(username);
+
+        // Fixes that were not published are not seen until the entry is loaded again
+        locationRepository.insert(new Location(username, 22.333101, 114.263275, time.plusMinutes(30)));
+        assertThat(latestLocationCache.getLatestLocation(username).getTime(), is(time));
+
+        latestLocationCache.invalidate(username);
+        assertThat(latestLocationCache.getLatestLocation(username).getTime(), is(time.plusMinutes(30)));
+    }
+
+    @Test
+    public void testKeepsFixPublishedDuringLoad() {
+        locationRepository.insert(new Location(username, 22.322663, 114.257771, time));
+        Location published = new Location(username, 22.333101, 114.263275, time.plusMinutes(30));
+        LatestLocationCache[] cache = new LatestLocationCache[1];
+        // The fix is written and published after the load has read the database
+        LocationRepository slowRepository = (LocationRepository) Proxy.newProxyInstance(
+                LocationRepository.class.getClassLoader(), new Class<?>[] { LocationRepository.class },
+                (proxy, method, args) -> {
+                    Object result;
+                    try {
+                        result = method.invoke(locationRepository, args);
+                    } catch (InvocationTargetException ex) {
+                        throw ex.getCause();
+                    }
+                    if (method.getName().equals("getLatestLocation")) {
+                        locationRepository.insert(published);
+                        cache[0].onLocation(published);
+                    }
+                    return result;
+                });
+        cache[0] = new LatestLocationCache(slowRepository, 100, 10);
+
+        assertThat(cache[0].getLatestLocation(username).getTime(), is(time.plusMinutes(30)));
+        assertThat(cache[0].getLatestLocation(username).getTime(), is(time.plusMinutes(30)));
+    }
+
+    @Test
+    public void testTakesFixesPersistedOnOtherNodes() throws Exception {
+        InProcessCluster cluster = new InProcessCluster();
+        MessageBus busA = cluster.join("node-a");
+        MessageBus busB = cluster.join("node-b");
+        LocationPublisher publisherA = new LocationPublisher();
+        LatestLocationCache cacheA = new LatestLocationCache(locationRepository, 100, 10);
+        LatestLocationCache cacheB = new LatestLocationCache(locationRepository, 100, 10);
+        publisherA.addListener(cacheA);
+        publisherA.addListener(new ClusterCacheSync(busA, gson, cacheA,
+                new ChatMembershipCache(chatRepository, 100, 10), new FriendCache(friendRepository, 100, 10)));
+        new ClusterCacheSync(busB, gson, cacheB,
+                new ChatMembershipCache(chatRepository, 100, 10), new FriendCache(friendRepository, 100, 10));
+        try {
+            locationRepository.insert(new Location(username, 22.322663, 114.257771, time));
+            assertThat(cacheB.getLatestLocation(username).getTime(), is(time));
+
+            Location latest = new Location(username, 22.333101, 114.263275, time.plusMinutes(30));
+            locationRepository.insert(latest);
+            publisherA.publish(Collections.singletonList(latest));
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (cacheB.getLatestLocation(username).getTime().equals(time) && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            assertThat(cacheB.getLatestLocation(username).getTime(), is(time.plusMinutes(30)));
+            assertThat(cacheA.getLatestLocation(username).getTime(), is(time.plusMinutes(30)));
+        } finally {
+            busA.close();
+            busB.close();
+        }
+    }
+
+    private void publish(Location location) {
+        locationRepository.insert(location);
+        locationPublisher.publish(Collections.singletonList(location));
+    }
+}
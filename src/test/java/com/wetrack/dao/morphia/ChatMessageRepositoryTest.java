@@ -0,0 +1,172 @@
+package com.wetrack.dao.morphia;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.wetrack.config.SpringConfig;
+import com.wetrack.config.SpringTestConfig;
+import com.wetrack.dao.BulkInsertResult;
+import com.wetrack.dao.ChatMessageRepository;
+import com.wetrack.model.ChatMessage;
+import org.bson.Document;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = SpringTestConfig.class)
+public class ChatMessageRepositoryTest {
+
+    @Autowired private MongoClient client;
+    @Autowired private ChatMessageRepository chatMessageRepository;
+
+    private MongoCollection<Document> messages;
+
+    private String chatId = "1234567890abcdef1234567890abcdef";
+
+    @Before
+    public void setUp() {
+        messages = client.getDatabase(SpringConfig.DEFAULT_DATABASE).getCollection("messages");
+    }
+
+    @After
+    public void tearDown() {
+        messages.deleteMany(new Document("chatId", chatId));
+        client.getDatabase(SpringConfig.DEFAULT_DATABASE).getCollection("chat_sequences")
+                .deleteMany(new Document("_id", chatId));
+    }
+
+    @Test
+    public void testInsertAll() {
+        LocalDateTime baseTime = LocalDateTime.of(2016, 10, 24, 10, 0, 0);
+        List<ChatMessage> batch = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            ChatMessage message = new ChatMessage("robert-peng", chatId, "Message " + i);
+            message.setId("message-" + i);
+            message.setSendTime(baseTime.plusMinutes(i));
+            batch.add(message);
+        }
+        chatMessageRepository.insertAll(batch);
+
+        assertThat(messages.count(new Document("chatId", chatId)), is(10L));
+        List<ChatMessage> found = chatMessageRepository.getChatMessages(chatId, baseTime, baseTime.plusHours(1));
+        assertThat(found.size(), is(10));
+
+        // Saving the same batch again replaces the documents instead of duplicating them
+        batch.get(0).setContent("Edited");
+        chatMessageRepository.insertAll(batch);
+        assertThat(messages.count(new Document("chatId", chatId)), is(10L));
+        assertThat(chatMessageRepository.findById("message-0").getContent(), is("Edited"));
+    }
+
+    /**
+     * Duplicates are only covered one at a time: Fongo aborts a bulk write at the first duplicate
+     * key instead of reporting it per item as the server does.
+     */
+    @Test
+    public void testBulkInsert() {
+        List<ChatMessage> batch = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            ChatMessage message = new ChatMessage("robert-peng", chatId, "Message " + i);
+            message.setId("message-" + i);
+            batch.add(message);
+        }
+        BulkInsertResult result = chatMessageRepository.bulkInsert(batch);
+        assertThat(result.count(BulkInsertResult.Outcome.INSERTED), is(3));
+        assertThat(messages.count(new Document("chatId", chatId)), is(3L));
+
+        // A message whose ID is taken is reported instead of replacing the stored one
+        ChatMessage duplicate = new ChatMessage("robert-peng", chatId, "Edited");
+        duplicate.setId("message-1");
+        result = chatMessageRepository.bulkInsert(Collections.singletonList(duplicate));
+        assertThat(result.get(0), is(BulkInsertResult.Outcome.DUPLICATE));
+        assertThat(messages.count(new Document("chatId", chatId)), is(3L));
+        assertThat(chatMessageRepository.findById("message-1").getContent(), is("Message 1"));
+    }
+
+    @Test
+    public void testGetChatMessagesAfter() {
+        String otherChatId = "abcdef1234567890abcdef1234567890";
+        LocalDateTime baseTime = LocalDateTime.of(2016, 10, 24, 10, 0, 0);
+        List<ChatMessage> batch = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            // Every two messages share a send time, and every other message goes to the other chat
+            ChatMessage message = new ChatMessage("robert-peng", i % 2 == 0 ? chatId : otherChatId, "Message " + i);
+            message.setId("message-" + i);
+            message.setSendTime(baseTime.plusMinutes(i / 2));
+            batch.add(message);
+        }
+        chatMessageRepository.insertAll(batch);
+
+        try {
+            List<ChatMessage> found = chatMessageRepository.getChatMessagesAfter(
+                    Arrays.asList(chatId, otherChatId), baseTime, "message-0", 3);
+            assertThat(ids(found), is(Arrays.asList("message-1", "message-2", "message-3")));
+
+            ChatMessage last = found.get(found.size() - 1);
+            found = chatMessageRepository.getChatMessagesAfter(
+                    Arrays.asList(chatId, otherChatId), last.getSendTime(), last.getId(), 3);
+            assertThat(ids(found), is(Arrays.asList("message-4", "message-5")));
+
+            found = chatMessageRepository.getChatMessagesAfter(
+                    Collections.singletonList(chatId), baseTime, null, 10);
+            assertThat(ids(found), is(Arrays.asList("message-2", "message-4")));
+        } finally {
+            messages.deleteMany(new Document("chatId", otherChatId));
+        }
+    }
+
+    @Test
+    public void testSequenceNumbers() {
+        String otherChatId = "abcdef1234567890abcdef1234567890";
+        List<ChatMessage> batch = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            ChatMessage message = new ChatMessage("robert-peng", i < 3 ? chatId : otherChatId, "Message " + i);
+            message.setId("message-" + i);
+            batch.add(message);
+        }
+        chatMessageRepository.insertAll(batch);
+        ChatMessage single = new ChatMessage("robert-peng", chatId, "Message 5");
+        single.setId("message-5");
+        chatMessageRepository.insert(single);
+
+        try {
+            // Numbers are dense per chat, in the order the messages were inserted
+            List<ChatMessage> found = chatMessageRepository.getChatMessagesAfterSequence(chatId, 0, 10);
+            assertThat(ids(found), is(Arrays.asList("message-0", "message-1", "message-2", "message-5")));
+            for (int i = 0; i < found.size(); i++)
+                assertThat(found.get(i).getSequence(), is(i + 1L));
+            assertThat(chatMessageRepository.findById("message-4").getSequence(), is(2L));
+
+            found = chatMessageRepository.getChatMessagesAfterSequence(chatId, 1, 2);
+            assertThat(ids(found), is(Arrays.asList("message-1", "message-2")));
+
+            // Saving a numbered message again keeps its number
+            chatMessageRepository.insertAll(Collections.singletonList(single));
+            assertThat(chatMessageRepository.findById("message-5").getSequence(), is(4L));
+        } finally {
+            messages.deleteMany(new Document("chatId", otherChatId));
+            client.getDatabase(SpringConfig.DEFAULT_DATABASE).getCollection("chat_sequences")
+                    .deleteMany(new Document("_id", otherChatId));
+        }
+    }
+
+    private List<String> ids(List<ChatMessage> messages) {
+        List<String> ids = new ArrayList<>(messages.size());
+        for (ChatMessage message : messages)
+            ids.add(message.getId());
+        return ids;
+    }
+}
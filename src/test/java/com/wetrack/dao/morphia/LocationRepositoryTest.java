@@ -4,6 +4,7 @@ import com.mongodb.MongoClient;
 import com.mongodb.client.MongoCollection;
 import com.wetrack.config.SpringConfig;
 import com.wetrack.config.SpringTestConfig;
+import com.wetrack.dao.BulkInsertResult;
 import com.wetrack.dao.LocationRepository;
 import com.wetrack.model.Location;
 import org.bson.Document;
@@ -24,6 +25,7 @@ import java.util.Date;
 import java.util.List;
 
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.junit.Assert.assertThat;
 
@@ -115,6 +117,76 @@ public class LocationRepositoryTest {
         assertThat(location.getPoint(), is(hkustNorthGate));
     }
 
+    /**
+     * Only covers fixes that are all new: Fongo aborts a bulk write at the first duplicate key
+     * instead of reporting it per item as the server does.
+     */
+    @Test
+    public void testBulkInsert() {
+        List<Location> batch = new ArrayList<>();
+        for (int i = 0; i < LocationRepositoryImpl.BULK_INSERT_CHUNK_SIZE + 5; i++)
+            batch.add(new Location(username, hkustLibrary, hkustLibraryArriveTime.plusSeconds(i)));
+
+        BulkInsertResult result = locationRepository.bulkInsert(batch);
+        assertThat(result.size(), is(batch.size()));
+        assertThat(result.count(BulkInsertResult.Outcome.INSERTED), is(batch.size()));
+        assertThat(result.indicesOf(BulkInsertResult.Outcome.FAILED).isEmpty(), is(true));
+        assertThat(locations.count(new Document("username", username)), is((long) batch.size()));
+        assertThat(locationRepository.getLatestLocation(username).getTime(),
+                is(hkustLibraryArriveTime.plusSeconds(batch.size() - 1)));
+    }
+
+    @Test
+    public void testDeduplicate() {
+        // Two copies of one fix under random IDs, as retried uploads used to leave them
+        Location location = new Location(username, hkustLibrary, hkustLibraryArriveTime);
+        String contentId = location.getId();
+        location.setId("random-1");
+        locationRepository.insert(location);
+        location.setId("random-2");
+        locationRepository.insert(location);
+        // A third one under an ObjectId, as a fix uploaded without an ID got
+        Document copy = locations.find(new Document("_id", "random-1")).first();
+        copy.remove("_id");
+        locations.insertOne(copy);
+        // And fixes which are fine already
+        locationRepository.insert(new Location(username, hkustNorthGate, hkustNorthGateArriveTime));
+        locationRepository.insert(new Location(anotherUsername, hkustLibrary, hkustLibraryArriveTime));
+
+        assertThat(locationRepository.deduplicate(), is(2L));
+        assertThat(locations.count(new Document("username", username)), is(2L));
+        assertThat(locations.count(new Document("username", anotherUsername)), is(1L));
+        Location deduplicated = locationRepository.findById(contentId);
+        assertThat(deduplicated.getPoint(), is(hkustLibrary));
+        assertThat(deduplicated.getTime(), is(hkustLibraryArriveTime));
+
+        assertThat(locationRepository.deduplicate(), is(0L));
+    }
+
+    @Test
+    public void testContentBasedId() {
+        Location location = new Location(username, hkustLibrary, hkustLibraryArriveTime);
+        assertThat(new Location(username, hkustLibrary, hkustLibraryArriveTime).getId(), is(location.getId()));
+        assertThat(new Location(anotherUsername, hkustLibrary, hkustLibraryArriveTime).getId(),
+                not(location.getId()));
+        assertThat(new Location(username, hkustLibrary, hkustLibraryArriveTime.plusSeconds(1)).getId(),
+                not(location.getId()));
+    }
+
+    @Test
+    public void testContentBasedIdOfSubMillisecondTime() {
+        // The database keeps the time to the millisecond only
+        Location location = new Location(username, hkustLibrary, hkustLibraryArriveTime.plusNanos(123_456_789));
+        locationRepository.insert(location);
+
+        Location stored = locationRepository.findById(location.getId());
+        assertThat(stored.getTime(), is(hkustLibraryArriveTime.plusNanos(123_000_000)));
+        stored.generateId();
+        assertThat(stored.getId(), is(location.getId()));
+        assertThat(locationRepository.deduplicate(), is(0L));
+        assertThat(locationRepository.findById(location.getId()), notNullValue());
+    }
+
     private void insertTestLocations() {
         Location location = new Location(username, poLamMtrStation, poLamMtrStationArriveTime);
         locationRepository.insert(location);
@@ -0,0 +1,60 @@
+package com.wetrack.dao.morphia;
+
+import com.mongodb.MongoClient;
+import com.wetrack.config.SpringConfig;
+import com.wetrack.config.SpringTestConfig;
+import com.wetrack.dao.ReadWatermarkRepository;
+import com.wetrack.model.ReadWatermark;
+import org.bson.Document;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = SpringTestConfig.class)
+public class ReadWatermarkRepositoryTest {
+
+    @Autowired private ReadWatermarkRepository readWatermarkRepository;
+    @Autowired private MongoClient client;
+
+    private String chatId = "read-watermark-chat";
+
+    @After
+    public void cleanUp() {
+        client.getDatabase(SpringConfig.DEFAULT_DATABASE).getCollection("read_watermarks")
+                .deleteMany(new Document("chatId", chatId));
+    }
+
+    @Test
+    public void testAdvanceAllNeverMovesBack() {
+        readWatermarkRepository.advanceAll(Arrays.asList(
+                new ReadWatermark(chatId, "robert-peng", 5),
+                new ReadWatermark(chatId, "windy-chan", 9)));
+        readWatermarkRepository.advanceAll(Arrays.asList(
+                new ReadWatermark(chatId, "robert-peng", 7),
+                new ReadWatermark(chatId, "windy-chan", 3)));
+        readWatermarkRepository.advanceAll(Collections.emptyList());
+
+        List<ReadWatermark> watermarks = readWatermarkRepository.findByChatId(chatId);
+        assertThat(watermarks.size(), is(2));
+        Map<String, Long> sequences = new HashMap<>();
+        for (ReadWatermark watermark : watermarks) {
+            assertThat(watermark.getId(), is(ReadWatermark.idOf(chatId, watermark.getUsername())));
+            sequences.put(watermark.getUsername(), watermark.getSequence());
+        }
+        assertThat(sequences.get("robert-peng"), is(7L));
+        assertThat(sequences.get("windy-chan"), is(9L));
+    }
+}
@@ -0,0 +1,59 @@
+package com.wetrack.metrics;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+public class MetricsRegistryTest {
+
+    @Test
+    public void testHistogramBuckets() {
+        assertThat(Histogram.bucketOf(0), is(0));
+        assertThat(Histogram.bucketOf(Histogram.BASE_NANOS), is(0));
+        assertThat(Histogram.bucketOf(Histogram.BASE_NANOS + 1), is(1));
+        assertThat(Histogram.bucketOf(2 * Histogram.BASE_NANOS), is(1));
+        assertThat(Histogram.bucketOf(2 * Histogram.BASE_NANOS + 1), is(2));
+        assertThat(Histogram.bucketOf(Long.MAX_VALUE), is(Histogram.BUCKETS - 1));
+
+        Histogram histogram = new Histogram();
+        for (int i = 0; i < 99; i++)
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(50));
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(30));
+
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertThat(snapshot.getCount(), is(100L));
+        assertThat(snapshot.getMaxNanos(), is(TimeUnit.MILLISECONDS.toNanos(30)));
+        // 50µs falls into the bucket up to 80µs; the maximum caps the top quantile
+        assertThat(snapshot.getQuantileNanos(0.5), is(TimeUnit.MICROSECONDS.toNanos(80)));
+        assertThat(snapshot.getQuantileNanos(1.0), is(TimeUnit.MILLISECONDS.toNanos(30)));
+    }
+
+    @Test
+    public void testScrape() {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("frames_total", "Frames.", "type", "chat").add(2);
+        registry.counter("frames_total", "Frames.", "type", "location").increment();
+        registry.gauge("sessions", "Sessions.", () -> 5);
+        registry.histogram("latency_seconds", "Latency.").record(TimeUnit.MICROSECONDS.toNanos(15));
+
+        String text = registry.scrape();
+        assertThat(text, containsString("# TYPE frames_total counter\n"
+                + "frames_total{type=\"chat\"} 2\n"
+                + "frames_total{type=\"location\"} 1\n"));
+        assertThat(text, containsString("# TYPE sessions gauge\nsessions 5\n"));
+        assertThat(text, containsString("latency_seconds_bucket{le=\"1.0E-5\"} 0\n"));
+        assertThat(text, containsString("latency_seconds_bucket{le=\"2.0E-5\"} 1\n"));
+        assertThat(text, containsString("latency_seconds_bucket{le=\"+Inf\"} 1\n"));
+        assertThat(text, containsString("latency_seconds_count 1\n"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDuplicateSeries() {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("frames_total", "Frames.", "type", "chat");
+        registry.counter("frames_total", "Frames.", "type", "chat");
+    }
+}
@@ -1,8 +1,10 @@
 package com.wetrack.service;
 
+import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import com.google.gson.reflect.TypeToken;
 import com.wetrack.model.Location;
+import com.wetrack.model.LocationUploadMessage;
 import com.wetrack.test.QueryParam;
 import com.wetrack.test.WeTrackServerTestWithUserLoggedIn;
 import org.junit.Test;
@@ -10,6 +12,8 @@ import org.junit.Test;
 import javax.ws.rs.core.Response;
 import java.lang.reflect.Type;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -42,8 +46,13 @@ public class LocationServiceTest extends WeTrackServerTestWithUserLoggedIn {
 
         logResponse(response, "standard locations upload");
         assertReceivedNonemptyMessage(response, 200);
+        List<Location> uploaded = gson.fromJson(testInput, locationListType);
+        LocationUploadMessage report = gson.fromJson(response.readEntity(String.class), LocationUploadMessage.class);
+        assertThat(report.getInserted(), is(uploaded.size()));
+        assertThat(report.getDuplicates().isEmpty(), is(true));
+        assertThat(report.getFailed().isEmpty(), is(true));
 
-        testLocationGet(gson.fromJson(testInput, locationListType));
+        testLocationGet(uploaded);
     }
 
     @Test
@@ -61,6 +70,113 @@ public class LocationServiceTest extends WeTrackServerTestWithUserLoggedIn {
         testLocationGet(gson.fromJson(testInput, locationListType));
     }
 
+    @Test
+    public void testLocationUploadWithTokenAfterLocations() {
+        List<Location> uploaded = new ArrayList<>();
+        LocalDateTime time = LocalDateTime.of(2016, 10, 25, 8, 0, 0);
+        for (int i = 0; i < LocationService.INGEST_CHUNK_SIZE + 3; i++)
+            uploaded.add(new Location(robertPeng.getUsername(), 22.3 + i * 0.0001, 114.2, time.plusSeconds(i)));
+
+        // Fixes before the token are held until the token has been checked
+        JsonObject requestEntity = new JsonObject();
+        requestEntity.add("locations", gson.toJsonTree(uploaded, locationListType));
+        requestEntity.addProperty("token", tokenOf(robertPeng));
+        Response response = post("/users/" + robertPeng.getUsername() + "/locations", requestEntity.toString());
+
+        logResponse(response, "locations upload with token after locations");
+        assertReceivedNonemptyMessage(response, 200);
+        LocationUploadMessage report = gson.fromJson(response.readEntity(String.class), LocationUploadMessage.class);
+        assertThat(report.getInserted(), is(uploaded.size()));
+
+        testLocationGet(uploaded);
+    }
+
+    @Test
+    public void testLocationUploadWithInvalidLocations() {
+        String invalidLocations = "[null,{\"latitude\":22.3,\"longitude\":114.2}]";
+        JsonObject requestEntity = new JsonObject();
+        requestEntity.addProperty("token", tokenOf(robertPeng));
+        requestEntity.add("locations", gson.fromJson(invalidLocations, JsonArray.class));
+        Response response = post("/users/" + robertPeng.getUsername() + "/locations", requestEntity.toString());
+
+        // Invalid fixes are a client error, not a failure to save
+        logResponse(response, "invalid locations upload");
+        assertReceivedNonemptyMessage(response, 400);
+        LocationUploadMessage report = gson.fromJson(response.readEntity(String.class), LocationUploadMessage.class);
+        assertThat(report.getInvalid(), is(Arrays.asList(0, 1)));
+        assertThat(report.getFailed().isEmpty(), is(true));
+
+        JsonArray mixedLocations = gson.fromJson(invalidLocations, JsonArray.class);
+        mixedLocations.add(gson.toJsonTree(new Location(robertPeng.getUsername(), 22.3, 114.2,
+                LocalDateTime.of(2016, 10, 25, 8, 0, 0))));
+        requestEntity.add("locations", mixedLocations);
+        response = post("/users/" + robertPeng.getUsername() + "/locations", requestEntity.toString());
+        assertReceivedNonemptyMessage(response, 200);
+        report = gson.fromJson(response.readEntity(String.class), LocationUploadMessage.class);
+        assertThat(report.getInserted(), is(1));
+        assertThat(report.getInvalid(), is(Arrays.asList(0, 1)));
+    }
+
+    @Test
+    public void testLocationUploadWithMalformedBody() {
+        String requestEntity = "{\"token\":\"" + tokenOf(robertPeng) + "\",\"locations\":[{\"username\":";
+        Response response = post("/users/" + robertPeng.getUsername() + "/locations", requestEntity);
+
+        logResponse(response, "malformed locations upload");
+        assertReceivedNonemptyMessage(response, 400);
+
+        response = post("/users/" + robertPeng.getUsername() + "/locations", "{\"locations\":[]}");
+        assertReceivedNonemptyMessage(response, 400);
+
+        // Cut off before the token was read
+        response = post("/users/" + robertPeng.getUsername() + "/locations", "{\"locations\":[{\"latitude\":");
+        assertReceivedNonemptyMessage(response, 400);
+    }
+
+    @Test
+    public void testLocationHistoryPages() {
+        List<Location> uploaded = new ArrayList<>();
+        LocalDateTime time = LocalDateTime.of(2016, 10, 25, 8, 0, 0);
+        for (int i = 0; i < 25; i++)
+            uploaded.add(new Location(robertPeng.getUsername(), 22.3 + i * 0.0001, 114.2, time.plusSeconds(i / 2)));
+        JsonObject requestEntity = new JsonObject();
+        requestEntity.addProperty("token", tokenOf(robertPeng));
+        requestEntity.add("locations", gson.toJsonTree(uploaded, locationListType));
+        assertReceivedNonemptyMessage(post("/users/" + robertPeng.getUsername() + "/locations",
+                requestEntity.toString()), 200);
+
+        // Pages end between fixes with the same time too
+        List<Location> received = new ArrayList<>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            Response response = cursor == null
+                    ? get("/users/" + robertPeng.getUsername() + "/locations", QueryParam.of("limit", "10"))
+                    : get("/users/" + robertPeng.getUsername() + "/locations", QueryParam.of("limit", "10"),
+                            QueryParam.of("cursor", cursor));
+            cursor = response.getHeaderString(LocationService.NEXT_CURSOR_HEADER);
+            List<Location> page = assertReceivedEntity(response, 200, locationListType);
+            assertThat(page.size(), is(cursor == null ? 5 : 10));
+            received.addAll(page);
+            pages++;
+        } while (cursor != null);
+        assertThat(pages, is(3));
+        assertThat(received.stream().map(Location::getId).distinct().count(), is((long) uploaded.size()));
+        for (int i = 1; i < received.size(); i++)
+            assertThat(received.get(i).getTime().isBefore(received.get(i - 1).getTime()), is(false));
+
+        Response response = get("/users/" + robertPeng.getUsername() + "/locations",
+                QueryParam.of("since", time.plusSeconds(2).toString()), QueryParam.of("until", time.plusSeconds(4).toString()));
+        List<Location> page = assertReceivedEntity(response, 200, locationListType);
+        assertThat(page.size(), is(4));
+        assertThat(response.getHeaderString(LocationService.NEXT_CURSOR_HEADER) == null, is(true));
+
+        assertReceivedNonemptyMessage(get("/users/" + robertPeng.getUsername() + "/locations",
+                QueryParam.of("cursor", "not-a-cursor")), 400);
+        assertReceivedNonemptyMessage(get("/users/" + robertPeng.getUsername() + "/locations",
+                QueryParam.of("limit", "0")), 400);
+    }
+
     private void testLocationGet(List<Location> testLocations) {
         LocalDateTime sinceTime = LocalDateTime.of(2016, 10, 24, 17, 45, 0);
         Response response = get("/users/" + robertPeng.getUsername() + "/locations", QueryParam.of("since", sinceTime.toString()));
@@ -0,0 +1,83 @@
+package com.wetrack.service;
+
+import com.wetrack.metrics.MetricsRegistry;
+import com.wetrack.metrics.ScrapeAllowList;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.ws.rs.core.Response;
+import java.util.Arrays;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Calls the resource directly, since the Jetty test container does not provide the servlet request
+ * the resource checks the client's address with.
+ */
+public class MetricsServiceTest {
+
+    private MetricsService metricsService = new MetricsService();
+    private MetricsRegistry metricsRegistry = new MetricsRegistry();
+
+    @Before
+    public void setUp() {
+        ReflectionTestUtils.setField(metricsService, "metricsRegistry", metricsRegistry);
+        allowScrapesFrom("127.0.0.1", "::1");
+        metricsRegistry.counter("test_frames_total", "Frames.").add(3);
+    }
+
+    @Test
+    public void testScrapeFromLocalHost() {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        for (String address : new String[] { "127.0.0.1", "::1" }) {
+            request.setRemoteAddr(address);
+            Response response = metricsService.getMetrics(request);
+            assertThat(response.getStatus(), is(200));
+            assertThat(response.getMediaType().toString(), startsWith("text/plain"));
+            assertThat((String) response.getEntity(), containsString("\ntest_frames_total 3\n"));
+        }
+    }
+
+    @Test
+    public void testScrapeFromRemoteHost() {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setRemoteAddr("10.0.0.7");
+        assertThat(metricsService.getMetrics(request).getStatus(), is(403));
+    }
+
+    @Test
+    public void testScrapeThroughProxy() {
+        for (String header : new String[] { "X-Forwarded-For", "Forwarded" }) {
+            MockHttpServletRequest request = new MockHttpServletRequest();
+            request.setRemoteAddr("127.0.0.1");
+            request.addHeader(header, "203.0.113.9");
+            assertThat(metricsService.getMetrics(request).getStatus(), is(403));
+        }
+    }
+
+    @Test
+    public void testScrapeWithoutServletRequest() {
+        assertThat(metricsService.getMetrics(null).getStatus(), is(403));
+    }
+
+    @Test
+    public void testConfiguredAllowList() {
+        allowScrapesFrom("10.0.0.7");
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setRemoteAddr("10.0.0.7");
+        assertThat(metricsService.getMetrics(request).getStatus(), is(200));
+        request.setRemoteAddr("127.0.0.1");
+        assertThat(metricsService.getMetrics(request).getStatus(), is(403));
+
+        allowScrapesFrom("");
+        request.setRemoteAddr("10.0.0.7");
+        assertThat(metricsService.getMetrics(request).getStatus(), is(403));
+    }
+
+    private void allowScrapesFrom(String... addresses) {
+        ReflectionTestUtils.setField(metricsService, "scrapeAllowList", new ScrapeAllowList(Arrays.asList(addresses)));
+    }
+}
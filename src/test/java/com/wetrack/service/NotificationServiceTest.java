@@ -0,0 +1,127 @@
+package com.wetrack.service;
+
+import com.google.gson.JsonObject;
+import com.wetrack.config.SpringTestConfig;
+import com.wetrack.config.WeTrackApplication;
+import com.wetrack.config.WebSocketServiceConfig;
+import com.wetrack.test.QueryParam;
+import com.wetrack.test.WeTrackServerTestWithUserLoggedIn;
+import com.wetrack.ws.SessionDrainer;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.core.Application;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Runs against a context holding the WebSocket beans too, which in a deployment live in the
+ * context of their own servlet.
+ */
+public class NotificationServiceTest extends WeTrackServerTestWithUserLoggedIn {
+
+    private AnnotationConfigApplicationContext context;
+
+    @Override
+    protected Application configure() {
+        context = new AnnotationConfigApplicationContext(SpringTestConfig.class, WebSocketServiceConfig.class);
+        return new WeTrackApplication().property("contextConfig", context);
+    }
+
+    @After
+    public void closeContext() {
+        context.close();
+    }
+
+    @Test
+    public void testLongPoll() {
+        String token = tokenOf(robertPeng);
+        List<String> frames = new ArrayList<>();
+        JsonObject polled = pollUntil(frames, "message{\"code\":1001", QueryParam.of("token", token));
+        String streamId = polled.get("stream_id").getAsString();
+        assertThat(frames.get(0), startsWith("message{\"code\":1000"));
+
+        // Frames posted to the stream are handled like WebSocket frames
+        Response response = target("/notifications/" + streamId).queryParam("token", token).request()
+                .post(Entity.entity("chat_sync{\"chat_id\":\"not-a-chat\"}", MediaType.TEXT_PLAIN_TYPE));
+        assertThat(response.getStatus(), is(200));
+        frames.clear();
+        pollUntil(frames, "message{\"code\":2003", QueryParam.of("token", token),
+                QueryParam.of("streamId", streamId),
+                QueryParam.of("after", polled.get("last_frame_id").getAsString()));
+        assertThat(frames.size(), is(1));
+
+        // The stream belongs to the user who opened it
+        response = get("/notifications/poll", QueryParam.of("token", tokenOf(windyChan)),
+                QueryParam.of("streamId", streamId));
+        assertReceivedNonemptyMessage(response, 404);
+        response = get("/notifications/poll", QueryParam.of("token", "BlahBlahNotExist"));
+        assertReceivedNonemptyMessage(response, 401);
+    }
+
+    @Test
+    public void testRefuseStreamsWhileDraining() {
+        context.getBean(SessionDrainer.class).drain();
+
+        Response response = get("/notifications/poll", QueryParam.of("token", tokenOf(robertPeng)));
+        assertReceivedNonemptyMessage(response, 503);
+        assertThat(Integer.parseInt(response.getHeaderString("Retry-After")) >= 1, is(true));
+        response = target("/notifications/events").queryParam("token", tokenOf(robertPeng))
+                .request("text/event-stream").get();
+        assertThat(response.getStatus(), is(503));
+        assertThat(response.getHeaderString("Retry-After"), notNullValue());
+    }
+
+    @Test
+    public void testEventStream() throws Exception {
+        Response response = target("/notifications/events").queryParam("token", tokenOf(robertPeng))
+                .request("text/event-stream").get();
+        assertThat(response.getStatus(), is(200));
+        assertThat(response.getHeaderString("X-Stream-Id"), notNullValue());
+
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(response.readEntity(InputStream.class), StandardCharsets.UTF_8))) {
+            assertThat(reader.readLine(), startsWith("data: message{\"code\":1000"));
+            assertThat(reader.readLine(), is(""));
+            assertThat(reader.readLine(), startsWith("data: message{\"code\":1001"));
+        } finally {
+            response.close();
+        }
+
+        response = target("/notifications/events").queryParam("token", "BlahBlahNotExist")
+                .request("text/event-stream").get();
+        response.bufferEntity();
+        assertReceivedNonemptyMessage(response, 401);
+    }
+
+    /** Polls the same stream until a frame with the given prefix arrives, collecting every frame. */
+    private JsonObject pollUntil(List<String> frames, String prefix, QueryParam... params) {
+        List<QueryParam> query = new ArrayList<>();
+        for (QueryParam param : params)
+            query.add(param);
+        for (int i = 0; i < 10; i++) {
+            Response response = get("/notifications/poll", query.toArray(new QueryParam[query.size()]));
+            assertThat(response.getStatus(), is(200));
+            JsonObject polled = gson.fromJson(response.readEntity(String.class), JsonObject.class);
+            polled.getAsJsonArray("frames").forEach(frame -> frames.add(frame.getAsString()));
+            if (frames.stream().anyMatch(frame -> frame.startsWith(prefix)))
+                return polled;
+
+            query.removeIf(param -> param.getName().equals("streamId") || param.getName().equals("after"));
+            query.add(QueryParam.of("streamId", polled.get("stream_id").getAsString()));
+            query.add(QueryParam.of("after", polled.get("last_frame_id").getAsString()));
+        }
+        throw new AssertionError("No frame starting with `" + prefix + "` arrived, only " + frames);
+    }
+}
@@ -0,0 +1,66 @@
+package com.wetrack.service.chat;
+
+import com.google.gson.JsonObject;
+import com.google.gson.reflect.TypeToken;
+import com.wetrack.model.ChatMessage;
+import com.wetrack.test.QueryParam;
+import org.junit.Test;
+
+import javax.ws.rs.core.Response;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ChatMessageSyncTest extends ChatServiceTestWithChatCreated {
+
+    @Test
+    public void testMessagesAfterSequence() {
+        String chatId = chatIdOf(robertAndWindy);
+        for (int i = 0; i < 3; i++) {
+            JsonObject message = new JsonObject();
+            message.addProperty("id", "sync-message-" + i);
+            message.addProperty("content", "Message " + i);
+            Response response = post("/chats/" + chatId + "/messages", gson.toJson(message),
+                    QueryParam.of("token", tokenOf(robertPeng)));
+            assertReceivedCreatedMessage(response);
+        }
+
+        Response response = get("/chats/" + chatId + "/messages",
+                QueryParam.of("token", tokenOf(windyChan)), QueryParam.of("afterSequence", "1"));
+        logResponse(response, "getting messages after sequence 1");
+        List<ChatMessage> messages = assertReceivedEntity(response, 200, new TypeToken<List<ChatMessage>>(){}.getType());
+        assertThat(messages.size(), is(2));
+        assertThat(messages.get(0).getSequence(), is(2L));
+        assertThat(messages.get(0).getContent(), is("Message 1"));
+        assertThat(messages.get(1).getSequence(), is(3L));
+    }
+
+    @Test
+    public void testSequenceSentByClientIsIgnored() {
+        String chatId = chatIdOf(robertAndWindy);
+        for (int i = 0; i < 2; i++) {
+            JsonObject message = new JsonObject();
+            message.addProperty("id", "forged-message-" + i);
+            message.addProperty("content", "Forged " + i);
+            message.addProperty("sequence", 100);
+            assertReceivedCreatedMessage(post("/chats/" + chatId + "/messages", gson.toJson(message),
+                    QueryParam.of("token", tokenOf(robertPeng))));
+        }
+
+        Response response = get("/chats/" + chatId + "/messages",
+                QueryParam.of("token", tokenOf(windyChan)), QueryParam.of("afterSequence", "0"));
+        List<ChatMessage> messages = assertReceivedEntity(response, 200, new TypeToken<List<ChatMessage>>(){}.getType());
+        assertThat(messages.size(), is(2));
+        assertThat(messages.get(0).getSequence(), is(1L));
+        assertThat(messages.get(1).getSequence(), is(2L));
+    }
+
+    @Test
+    public void testInvalidSequence() {
+        Response response = get("/chats/" + chatIdOf(robertAndWindy) + "/messages",
+                QueryParam.of("token", tokenOf(windyChan)), QueryParam.of("afterSequence", "latest"));
+        logResponse(response, "getting messages after an invalid sequence");
+        assertReceivedNonemptyMessage(response, 400);
+    }
+}
@@ -0,0 +1,45 @@
+package com.wetrack.service.friend;
+
+import com.google.gson.reflect.TypeToken;
+import com.wetrack.model.Presence;
+import com.wetrack.test.QueryParam;
+import org.junit.Test;
+
+import javax.ws.rs.core.Response;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class FriendPresenceGettingTest extends FriendServiceTestWithFriendAdded {
+
+    @Test
+    public void testGetFriendsPresence() {
+        Response response = get("/users/" + robertPeng.getUsername() + "/friends/presence",
+                QueryParam.of("token", tokenOf(robertPeng)));
+        logResponse(response, "getting friends' presence");
+        List<Presence> presences = assertReceivedEntity(response, 200, new TypeToken<List<Presence>>(){}.getType());
+        assertThat(presences.size(), is(2));
+        for (Presence presence : presences) {
+            assertThat(presence.isOnline(), is(false));
+            assertThat(presence.getLastSeen(), nullValue());
+        }
+    }
+
+    @Test
+    public void testGetFriendsPresenceWithoutToken() {
+        Response response = get("/users/" + robertPeng.getUsername() + "/friends/presence");
+        logResponse(response, "getting friends' presence without token");
+        assertReceivedNonemptyMessage(response, 400); // Bad Request for empty token
+    }
+
+    @Test
+    public void testGetFriendsPresenceWithOthersToken() {
+        Response response = get("/users/" + robertPeng.getUsername() + "/friends/presence",
+                QueryParam.of("token", tokenOf(windyChan)));
+        logResponse(response, "getting friends' presence with other's token");
+        assertReceivedNonemptyMessage(response, 401); // Unauthorized for token owner mismatch
+    }
+
+}
@@ -0,0 +1,106 @@
+package com.wetrack.test;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.security.Principal;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * In-memory {@link WebSocketSession} which records every message sent to it.
+ */
+public class StubWebSocketSession implements WebSocketSession {
+    private static int counter = 0;
+
+    private final String id;
+    private final Map<String, Object> attributes = new HashMap<>();
+    private final List<WebSocketMessage<?>> sentMessages = new CopyOnWriteArrayList<>();
+    private volatile boolean open = true;
+    private volatile CloseStatus closeStatus;
+    private String acceptedProtocol;
+
+    public StubWebSocketSession() {
+        synchronized (StubWebSocketSession.class) {
+            this.id = "stub-" + (counter++);
+        }
+    }
+
+    public List<WebSocketMessage<?>> getSentMessages() {
+        return sentMessages;
+    }
+
+    public CloseStatus getCloseStatus() {
+        return closeStatus;
+    }
+
+    public void setAcceptedProtocol(String acceptedProtocol) {
+        this.acceptedProtocol = acceptedProtocol;
+    }
+
+    @Override
+    public String getId() { return id; }
+
+    @Override
+    public URI getUri() { return URI.create("ws://localhost/notifications"); }
+
+    @Override
+    public HttpHeaders getHandshakeHeaders() { return new HttpHeaders(); }
+
+    @Override
+    public Map<String, Object> getAttributes() { return attributes; }
+
+    @Override
+    public Principal getPrincipal() { return null; }
+
+    @Override
+    public InetSocketAddress getLocalAddress() { return new InetSocketAddress("127.0.0.1", 8080); }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() { return new InetSocketAddress("127.0.0.1", 40000); }
+
+    @Override
+    public String getAcceptedProtocol() { return acceptedProtocol; }
+
+    @Override
+    public void setTextMessageSizeLimit(int messageSizeLimit) {}
+
+    @Override
+    public int getTextMessageSizeLimit() { return Integer.MAX_VALUE; }
+
+    @Override
+    public void setBinaryMessageSizeLimit(int messageSizeLimit) {}
+
+    @Override
+    public int getBinaryMessageSizeLimit() { return Integer.MAX_VALUE; }
+
+    @Override
+    public List<WebSocketExtension> getExtensions() { return Collections.emptyList(); }
+
+    @Override
+    public void sendMessage(WebSocketMessage<?> message) {
+        if (!open)
+            throw new IllegalStateException("Session `" + id + "` is closed.");
+        sentMessages.add(message);
+    }
+
+    @Override
+    public boolean isOpen() { return open; }
+
+    @Override
+    public void close() { close(CloseStatus.NORMAL); }
+
+    @Override
+    public void close(CloseStatus status) {
+        open = false;
+        closeStatus = status;
+    }
+
+    @Override
+    public String toString() { return id; }
+}
@@ -0,0 +1,178 @@
+package com.wetrack.util;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class GroupCommitWriterTest {
+
+    private List<List<Integer>> flushedBatches = new CopyOnWriteArrayList<>();
+    private GroupCommitWriter<Integer> writer;
+
+    @After
+    public void tearDown() {
+        writer.shutdown();
+    }
+
+    @Test
+    public void testBatchesBySize() throws Exception {
+        CountDownLatch firstBatchStarted = new CountDownLatch(1);
+        CountDownLatch releaseFirstBatch = new CountDownLatch(1);
+        writer = new GroupCommitWriter<>("test-writer", 4, 1000, 100, batch -> {
+            flushedBatches.add(new ArrayList<>(batch));
+            firstBatchStarted.countDown();
+            await(releaseFirstBatch);
+        });
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 4; i++)
+            futures.add(writer.submit(i));
+        firstBatchStarted.await(5, TimeUnit.SECONDS);
+        // Submitted while the first batch is being written
+        for (int i = 4; i < 10; i++)
+            futures.add(writer.submit(i));
+        assertThat(futures.get(0).isDone(), is(false));
+        releaseFirstBatch.countDown();
+
+        for (CompletableFuture<Void> future : futures)
+            future.get(5, TimeUnit.SECONDS);
+        assertThat(flushedBatches.size(), is(3));
+        assertThat(flushedBatches.get(0).size(), is(4));
+        assertThat(flushedBatches.get(1).size(), is(4));
+        assertThat(flushedBatches.get(2).size(), is(2));
+        assertThat(writer.getItemCount(), is(10L));
+        assertThat(writer.getBatchCount(), is(3L));
+    }
+
+    @Test
+    public void testItemFailures() throws Exception {
+        writer = GroupCommitWriter.withItemFailures("test-writer", 4, 1000, 100, batch -> {
+            flushedBatches.add(new ArrayList<>(batch));
+            Map<Integer, Throwable> failures = new HashMap<>();
+            for (int i = 0; i < batch.size(); i++) {
+                if (batch.get(i) % 2 == 1)
+                    failures.put(i, new IllegalStateException("Odd item " + batch.get(i)));
+            }
+            return failures;
+        });
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 4; i++)
+            futures.add(writer.submit(i));
+
+        // Only the items the flusher reported fail
+        futures.get(0).get(5, TimeUnit.SECONDS);
+        futures.get(2).get(5, TimeUnit.SECONDS);
+        for (int i : new int[] { 1, 3 }) {
+            try {
+                futures.get(i).get(5, TimeUnit.SECONDS);
+                fail("Item " + i + " should have failed");
+            } catch (ExecutionException ex) {
+                assertThat(ex.getCause().getMessage(), is("Odd item " + i));
+            }
+        }
+        assertThat(flushedBatches.size(), is(1));
+        assertThat(writer.getFailedItemCount(), is(2L));
+        assertThat(writer.getFailedBatchCount(), is(0L));
+    }
+
+    @Test
+    public void testBatchesByDelay() throws Exception {
+        writer = new GroupCommitWriter<>("test-writer", 100, 5, 100, batch -> flushedBatches.add(new ArrayList<>(batch)));
+
+        writer.submit(1).get(5, TimeUnit.SECONDS);
+        writer.submit(2).get(5, TimeUnit.SECONDS);
+
+        assertThat(flushedBatches.size(), is(2));
+    }
+
+    @Test
+    public void testFailedFlushFailsWholeBatch() throws Exception {
+        writer = new GroupCommitWriter<>("test-writer", 2, 1000, 100, batch -> {
+            throw new IllegalStateException("Database is down");
+        });
+
+        CompletableFuture<Void> first = writer.submit(1);
+        CompletableFuture<Void> second = writer.submit(2);
+        for (CompletableFuture<Void> future : Arrays.asList(first, second)) {
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                fail("Expected the flush failure to be propagated.");
+            } catch (ExecutionException ex) {
+                assertThat(ex.getCause(), instanceOf(IllegalStateException.class));
+            }
+        }
+        assertThat(writer.getFailedBatchCount(), is(1L));
+    }
+
+    @Test
+    public void testOfferDropsWhenFull() throws Exception {
+        CountDownLatch firstBatchStarted = new CountDownLatch(1);
+        CountDownLatch releaseFirstBatch = new CountDownLatch(1);
+        writer = new GroupCommitWriter<>("test-writer", 1, 1000, 2, batch -> {
+            flushedBatches.add(new ArrayList<>(batch));
+            firstBatchStarted.countDown();
+            await(releaseFirstBatch);
+        });
+
+        CompletableFuture<Void> first = writer.offer(1);
+        firstBatchStarted.await(5, TimeUnit.SECONDS);
+        // The writer is stuck on the first batch, so only the queue's capacity is taken
+        CompletableFuture<Void> second = writer.offer(2);
+        CompletableFuture<Void> third = writer.offer(3);
+        CompletableFuture<Void> dropped = writer.offer(4);
+        try {
+            dropped.getNow(null);
+            fail("Expected the item to be dropped.");
+        } catch (CompletionException ex) {
+            assertThat(ex.getCause(), instanceOf(RejectedExecutionException.class));
+        }
+        assertThat(writer.getRejectedCount(), is(1L));
+        releaseFirstBatch.countDown();
+
+        for (CompletableFuture<Void> future : Arrays.asList(first, second, third))
+            future.get(5, TimeUnit.SECONDS);
+        assertThat(writer.getItemCount(), is(3L));
+    }
+
+    @Test
+    public void testFlushAndShutdown() throws Exception {
+        writer = new GroupCommitWriter<>("test-writer", 100, 50, 100, batch -> flushedBatches.add(new ArrayList<>(batch)));
+
+        writer.submit(1);
+        writer.submit(2);
+        writer.flush();
+        assertThat(flushedBatches.size(), is(1));
+
+        CompletableFuture<Void> last = writer.submit(3);
+        writer.shutdown();
+        assertThat(last.isDone(), is(true));
+        assertThat(flushedBatches.size(), is(2));
+        assertThat(writer.submit(4).isCompletedExceptionally(), is(true));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
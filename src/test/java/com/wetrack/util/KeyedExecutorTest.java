@@ -0,0 +1,62 @@
+package com.wetrack.util;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class KeyedExecutorTest {
+
+    private KeyedExecutor executor = new KeyedExecutor("test-keyed", 4);
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void testKeepsOrderOfSameKey() throws Exception {
+        List<Integer> ran = new CopyOnWriteArrayList<>();
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            int task = i;
+            expected.add(task);
+            executor.forKey("chat-a").execute(() -> ran.add(task));
+        }
+
+        assertThat(executor.awaitSubmitted(5, TimeUnit.SECONDS), is(true));
+        assertThat(ran, is(expected));
+    }
+
+    @Test
+    public void testOtherKeysDoNotWaitForBlockedOne() throws Exception {
+        String blockedKey = "chat-a";
+        String otherKey = "chat-b";
+        // Make sure the keys land on different threads
+        for (int i = 0; executor.forKey(otherKey) == executor.forKey(blockedKey); i++)
+            otherKey = "chat-b" + i;
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch otherRan = new CountDownLatch(1);
+
+        executor.forKey(blockedKey).execute(() -> {
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        executor.forKey(otherKey).execute(otherRan::countDown);
+
+        assertThat(otherRan.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(executor.awaitSubmitted(50, TimeUnit.MILLISECONDS), is(false));
+        release.countDown();
+        assertThat(executor.awaitSubmitted(5, TimeUnit.SECONDS), is(true));
+    }
+}
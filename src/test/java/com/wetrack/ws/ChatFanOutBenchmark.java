@@ -0,0 +1,62 @@
+package com.wetrack.ws;
+
+import com.wetrack.model.ChatMessage;
+import org.springframework.web.socket.TextMessage;
+
+import java.time.LocalDateTime;
+
+/**
+ * Compares encoding a chat message once per recipient against encoding it once per fan-out.
+ * <p>
+ * Not a unit test; run {@link #main(String[])} directly. Every "send" asks the message for its
+ * UTF-8 length, which is what a transport has to compute before writing the frame.
+ */
+public class ChatFanOutBenchmark {
+    private static final int[] GROUP_SIZES = { 2, 10, 50, 200, 1000 };
+    private static final int WARMUP_ROUNDS = 2000;
+    private static final int MEASURED_ROUNDS = 2000;
+
+    private static long sink;
+
+    public static void main(String[] args) {
+        ChatMessage message = new ChatMessage("robert-peng", "1234567890abcdef1234567890abcdef",
+                "Meet at the HKUST north gate at 6pm? I will bring the tickets and some snacks.");
+        message.setSendTime(LocalDateTime.now());
+
+        System.out.println(String.format("%10s %18s %18s %10s", "members", "per-recipient(us)", "serialize-once(us)", "speedup"));
+        for (int groupSize : GROUP_SIZES) {
+            int rounds = Math.max(20, MEASURED_ROUNDS * 10 / groupSize);
+            for (int i = 0; i < WARMUP_ROUNDS * 10 / groupSize; i++) {
+                perRecipient(message, groupSize);
+                serializeOnce(message, groupSize);
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds; i++)
+                perRecipient(message, groupSize);
+            double perRecipientMicros = (System.nanoTime() - start) / 1000.0 / rounds;
+
+            start = System.nanoTime();
+            for (int i = 0; i < rounds; i++)
+                serializeOnce(message, groupSize);
+            double serializeOnceMicros = (System.nanoTime() - start) / 1000.0 / rounds;
+
+            System.out.println(String.format("%10d %18.2f %18.2f %9.1fx", groupSize,
+                    perRecipientMicros, serializeOnceMicros, perRecipientMicros / serializeOnceMicros));
+        }
+        System.out.println("(checksum " + sink + ")");
+    }
+
+    private static void perRecipient(ChatMessage message, int groupSize) {
+        for (int i = 0; i < groupSize; i++) {
+            TextMessage textMessage = new TextMessage(WsResponse.TYPE_CHAT_MESSAGE + WsResponse.gson.toJson(message));
+            sink += textMessage.getPayloadLength();
+        }
+    }
+
+    private static void serializeOnce(ChatMessage message, int groupSize) {
+        TextMessage textMessage = WsResponse.chatMessage(message);
+        for (int i = 0; i < groupSize; i++)
+            sink += textMessage.getPayloadLength();
+    }
+}
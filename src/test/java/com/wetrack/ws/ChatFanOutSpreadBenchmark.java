@@ -0,0 +1,104 @@
+package com.wetrack.ws;
+
+import com.wetrack.cluster.InProcessCluster;
+import com.wetrack.model.ChatMessage;
+import com.wetrack.test.StubWebSocketSession;
+import org.springframework.web.socket.WebSocketMessage;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reports how far apart in time the members of a large chat receive the same message, delivering
+ * on the calling thread only and with the sharded {@link FanOutEngine}.
+ * <p>
+ * Not a unit test; run {@link #main(String[])} directly. Each member has one session, which
+ * records when the outbound writer hands it the frame; the spread is the time between the first
+ * and the last member receiving it.
+ */
+public class ChatFanOutSpreadBenchmark {
+    private static final int[] GROUP_SIZES = { 500, 2000, 10000, 50000 };
+    private static final int WARMUP_ROUNDS = 20;
+    private static final int MEASURED_ROUNDS = 20;
+
+    public static void main(String[] args) throws Exception {
+        ChatMessage message = new ChatMessage("robert-peng", "1234567890abcdef1234567890abcdef",
+                "Meet at the HKUST north gate at 6pm? I will bring the tickets and some snacks.");
+        message.setSendTime(LocalDateTime.now());
+        int processors = Runtime.getRuntime().availableProcessors();
+
+        System.out.println(String.format("%8s %10s %12s %12s %12s %12s", "members", "engine",
+                "p50(ms)", "p99(ms)", "last(ms)", "spread(ms)"));
+        for (int groupSize : GROUP_SIZES) {
+            run(groupSize, "serial", new FanOutEngine(processors, Integer.MAX_VALUE, 250), message);
+            run(groupSize, "sharded", new FanOutEngine(processors, 1000, 250), message);
+        }
+    }
+
+    private static void run(int groupSize, String name, FanOutEngine engine, ChatMessage message) throws Exception {
+        InProcessCluster cluster = new InProcessCluster();
+        SessionRegistry registry = new SessionRegistry();
+        OutboundDispatcher dispatcher = new OutboundDispatcher(16, OverflowPolicy.DROP_OLDEST, 16);
+        ClusterRouter router = new ClusterRouter(cluster.join("benchmark"), cluster.getPresenceDirectory(),
+                registry, dispatcher, engine);
+
+        List<String> members = new ArrayList<>(groupSize);
+        TimedSession[] sessions = new TimedSession[groupSize];
+        for (int i = 0; i < groupSize; i++) {
+            members.add("member-" + i);
+            sessions[i] = new TimedSession();
+            registry.register(sessions[i], members.get(i));
+        }
+
+        double[] totals = new double[4];
+        for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+            CountDownLatch received = new CountDownLatch(groupSize);
+            for (TimedSession session : sessions)
+                session.reset(received);
+            long start = System.nanoTime();
+            router.deliver(members, OutboundFrame.chatMessage(message), null);
+            received.await(30, TimeUnit.SECONDS);
+            if (round < WARMUP_ROUNDS)
+                continue;
+
+            long[] times = new long[groupSize];
+            for (int i = 0; i < groupSize; i++)
+                times[i] = sessions[i].receivedNanos - start;
+            Arrays.sort(times);
+            totals[0] += times[groupSize / 2];
+            totals[1] += times[groupSize * 99 / 100];
+            totals[2] += times[groupSize - 1];
+            totals[3] += times[groupSize - 1] - times[0];
+        }
+
+        System.out.println(String.format("%8d %10s %12.2f %12.2f %12.2f %12.2f", groupSize, name,
+                millis(totals[0]), millis(totals[1]), millis(totals[2]), millis(totals[3])));
+        router.shutdown();
+        dispatcher.shutdown();
+        engine.shutdown();
+    }
+
+    private static double millis(double totalNanos) {
+        return totalNanos / MEASURED_ROUNDS / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /** Records when it was handed a frame instead of keeping the frames. */
+    private static class TimedSession extends StubWebSocketSession {
+        private volatile long receivedNanos;
+        private volatile CountDownLatch received;
+
+        private void reset(CountDownLatch received) {
+            this.received = received;
+        }
+
+        @Override
+        public void sendMessage(WebSocketMessage<?> message) {
+            receivedNanos = System.nanoTime();
+            received.countDown();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.wetrack.ws;
+
+import com.wetrack.cluster.InProcessCluster;
+import com.wetrack.model.ChatMessage;
+import com.wetrack.model.Location;
+import com.wetrack.test.StubWebSocketSession;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.web.socket.BinaryMessage;
+
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.startsWith;
+import static org.junit.Assert.assertThat;
+
+public class ClusterRouterTest {
+
+    private InProcessCluster cluster;
+    private Node nodeA;
+    private Node nodeB;
+
+    @Before
+    public void setUp() {
+        cluster = new InProcessCluster();
+        nodeA = new Node("node-a");
+        nodeB = new Node("node-b");
+    }
+
+    @After
+    public void tearDown() {
+        nodeA.shutdown();
+        nodeB.shutdown();
+    }
+
+    @Test
+    public void testDeliversAcrossNodes() throws Exception {
+        StubWebSocketSession senderSession = nodeA.connect("robert-peng");
+        StubWebSocketSession senderOtherDevice = nodeB.connect("robert-peng");
+        StubWebSocketSession localSession = nodeA.connect("windy-chan");
+        StubWebSocketSession remoteSession = nodeB.connect("mr-dai");
+        StubWebSocketSession remoteBinarySession = nodeB.connect("mr-dai");
+        remoteBinarySession.setAcceptedProtocol(BinaryProtocol.SUB_PROTOCOL);
+
+        ChatMessage message = new ChatMessage("robert-peng", "1234567890abcdef", "Hello");
+        message.setId("cluster-router-message");
+        nodeA.router.deliver(Arrays.asList("robert-peng", "windy-chan", "mr-dai", "offline-user"),
+                OutboundFrame.chatMessage(message), senderSession);
+
+        awaitMessages(localSession, 1);
+        awaitMessages(remoteSession, 1);
+        awaitMessages(remoteBinarySession, 1);
+        awaitMessages(senderOtherDevice, 1);
+        assertThat((String) remoteSession.getSentMessages().get(0).getPayload(), startsWith("chat_message{"));
+        // The bus carries text; the receiving node transcodes it for its binary sessions
+        ByteBuffer binary = ((BinaryMessage) remoteBinarySession.getSentMessages().get(0)).getPayload();
+        assertThat(BinaryProtocol.readHeader(binary), is(BinaryProtocol.CHAT_MESSAGE));
+        assertThat(senderSession.getSentMessages().size(), is(0));
+        // Both remote recipients share one bus message
+        assertThat(nodeA.router.getForwardedCount(), is(1L));
+    }
+
+    @Test
+    public void testPresenceDirectoryFollowsSessions() throws Exception {
+        StubWebSocketSession first = nodeA.connect("robert-peng");
+        StubWebSocketSession second = nodeA.connect("robert-peng");
+        nodeB.connect("robert-peng");
+        assertThat(nodes("robert-peng").size(), is(2));
+
+        nodeA.registry.unregister(first);
+        assertThat(nodes("robert-peng").size(), is(2));
+        nodeA.registry.unregister(second);
+        assertThat(nodes("robert-peng"), is(Collections.singleton("node-b")));
+
+        nodeB.shutdown();
+        assertThat(nodes("robert-peng").isEmpty(), is(true));
+    }
+
+    @Test
+    public void testForwardsLocations() throws Exception {
+        nodeB.connect("windy-chan");
+        List<Location> received = new ArrayList<>();
+        nodeB.router.setRemoteLocationHandler((location, message, friendNames) -> {
+            synchronized (received) {
+                received.add(location);
+            }
+        });
+
+        Location location = new Location("robert-peng", 22.33, 114.26, LocalDateTime.of(2016, 10, 25, 10, 0));
+        location.generateId();
+        nodeA.router.forwardLocation(Arrays.asList("windy-chan", "mr-dai"), OutboundFrame.location(location));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (received.isEmpty() && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        assertThat(received.size(), is(1));
+        assertThat(received.get(0).getUsername(), is("robert-peng"));
+        assertThat(received.get(0).getTime(), is(location.getTime()));
+    }
+
+    private Set<String> nodes(String username) {
+        Set<String> nodes = cluster.getPresenceDirectory().findNodes(Collections.singleton(username)).get(username);
+        return nodes == null ? Collections.emptySet() : nodes;
+    }
+
+    private void awaitMessages(StubWebSocketSession session, int expectedCount) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (session.getSentMessages().size() < expectedCount && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        assertThat(session.getSentMessages().size(), is(expectedCount));
+    }
+
+    /** Everything one backend node needs for delivery, sharing the test's cluster. */
+    private class Node {
+        private final SessionRegistry registry = new SessionRegistry();
+        private final OutboundDispatcher dispatcher = new OutboundDispatcher(16, OverflowPolicy.DROP_OLDEST, 1);
+        private final FanOutEngine fanOutEngine = new FanOutEngine(2, 1000, 250);
+        private final ClusterRouter router;
+
+        private Node(String nodeId) {
+            router = new ClusterRouter(cluster.join(nodeId), cluster.getPresenceDirectory(), registry, dispatcher, fanOutEngine);
+        }
+
+        private StubWebSocketSession connect(String username) {
+            StubWebSocketSession session = new StubWebSocketSession();
+            registry.register(session, username);
+            return session;
+        }
+
+        private void shutdown() {
+            router.shutdown();
+            dispatcher.shutdown();
+            fanOutEngine.shutdown();
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.wetrack.ws;
+
+import com.wetrack.test.StubWebSocketSession;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.AbstractWebSocketHandler;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ExecutorHandlerDecoratorTest {
+
+    private ExecutorService executor;
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testKeepsPerSessionOrder() throws Exception {
+        executor = HandlerExecutorType.PLATFORM.create(4);
+        RecordingHandler handler = new RecordingHandler();
+        ExecutorHandlerDecorator decorator = new ExecutorHandlerDecorator(handler, executor, 1000);
+
+        List<StubWebSocketSession> sessions = new ArrayList<>();
+        for (int i = 0; i < 8; i++)
+            sessions.add(new StubWebSocketSession());
+        for (StubWebSocketSession session : sessions)
+            decorator.afterConnectionEstablished(session);
+        for (int i = 0; i < 500; i++) {
+            for (StubWebSocketSession session : sessions)
+                decorator.handleMessage(session, new TextMessage(String.valueOf(i)));
+        }
+        for (StubWebSocketSession session : sessions)
+            decorator.afterConnectionClosed(session, CloseStatus.NORMAL);
+
+        assertThat(handler.closed.await(5, TimeUnit.SECONDS), is(true));
+        for (StubWebSocketSession session : sessions) {
+            List<String> calls = handler.calls.get(session);
+            assertThat(calls.size(), is(502));
+            assertThat(calls.get(0), is("established"));
+            for (int i = 0; i < 500; i++)
+                assertThat(calls.get(i + 1), is(String.valueOf(i)));
+            assertThat(calls.get(501), is("closed"));
+        }
+        assertThat(decorator.getExecutedCount(), is(8L * 502));
+        assertThat(decorator.getPendingCount(), is(0L));
+        assertThat(decorator.getMaxQueueMillis() >= decorator.getMeanQueueMillis(), is(true));
+    }
+
+    @Test
+    public void testRetainsBinaryPayloads() throws Exception {
+        executor = HandlerExecutorType.PLATFORM.create(1);
+        RecordingHandler handler = new RecordingHandler();
+        ExecutorHandlerDecorator decorator = new ExecutorHandlerDecorator(handler, executor, 16);
+        StubWebSocketSession session = new StubWebSocketSession();
+        decorator.afterConnectionEstablished(session);
+
+        // The container reuses its buffer as soon as the call returns
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[] { 1, 2, 3 });
+        decorator.handleMessage(session, new BinaryMessage(buffer));
+        buffer.put(0, (byte) 9);
+        decorator.afterConnectionClosed(session, CloseStatus.NORMAL);
+
+        assertThat(handler.closed.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(handler.calls.get(session).get(1), is("binary 1"));
+    }
+
+    @Test
+    public void testClosesFloodingSession() throws Exception {
+        executor = HandlerExecutorType.PLATFORM.create(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorHandlerDecorator decorator = new ExecutorHandlerDecorator(new AbstractWebSocketHandler() {
+            @Override
+            protected void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
+                release.await(5, TimeUnit.SECONDS);
+            }
+        }, executor, 4);
+        StubWebSocketSession session = new StubWebSocketSession();
+        decorator.afterConnectionEstablished(session);
+
+        // One message is being handled, four are queued, the sixth overflows the queue
+        for (int i = 0; i < 6; i++) {
+            decorator.handleMessage(session, new TextMessage(String.valueOf(i)));
+            Thread.sleep(i == 0 ? 50 : 0);
+        }
+        release.countDown();
+
+        assertThat(session.isOpen(), is(false));
+        assertThat(session.getCloseStatus(), is(CloseStatus.POLICY_VIOLATION));
+        assertThat(decorator.getRejectedCount(), is(1L));
+    }
+
+    @Test
+    public void testReportsActivityBeforeQueueing() throws Exception {
+        executor = HandlerExecutorType.PLATFORM.create(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorHandlerDecorator decorator = new ExecutorHandlerDecorator(new AbstractWebSocketHandler() {
+            @Override
+            protected void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
+                release.await(5, TimeUnit.SECONDS);
+            }
+        }, executor, 16);
+        List<WebSocketSession> active = Collections.synchronizedList(new ArrayList<>());
+        decorator.setActivityListener(active::add);
+        StubWebSocketSession session = new StubWebSocketSession();
+        decorator.afterConnectionEstablished(session);
+
+        // The first message holds the only handler thread, the others wait in the queue
+        for (int i = 0; i < 3; i++)
+            decorator.handleMessage(session, new TextMessage(String.valueOf(i)));
+        assertThat(active.size(), is(3));
+        release.countDown();
+    }
+
+    @Test
+    public void testDropsCallsAfterClose() throws Exception {
+        executor = HandlerExecutorType.PLATFORM.create(1);
+        RecordingHandler handler = new RecordingHandler();
+        ExecutorHandlerDecorator decorator = new ExecutorHandlerDecorator(handler, executor, 10);
+        StubWebSocketSession session = new StubWebSocketSession();
+        decorator.afterConnectionEstablished(session);
+        decorator.afterConnectionClosed(session, CloseStatus.NORMAL);
+        // The only handler thread is done with the close once it runs the next task
+        executor.submit(() -> {}).get(5, TimeUnit.SECONDS);
+
+        // Late calls of the closed session neither reach the handler nor bring its queue back
+        decorator.handleMessage(session, new TextMessage("late"));
+        decorator.handleTransportError(session, new IllegalStateException("Broken pipe"));
+        executor.submit(() -> {}).get(5, TimeUnit.SECONDS);
+        assertThat(decorator.getQueueCount(), is(0));
+        assertThat(handler.calls.get(session), is(Arrays.asList("established", "closed")));
+    }
+
+    @Test
+    public void testVirtualThreadsFallBack() throws Exception {
+        // Virtual threads on runtimes that have them, platform threads elsewhere; both must work
+        executor = HandlerExecutorType.VIRTUAL.create(2);
+        CountDownLatch ran = new CountDownLatch(1);
+        executor.execute(ran::countDown);
+        assertThat(ran.await(5, TimeUnit.SECONDS), is(true));
+    }
+
+    private static class RecordingHandler extends AbstractWebSocketHandler {
+        private final Map<WebSocketSession, List<String>> calls = new ConcurrentHashMap<>();
+        private final CountDownLatch closed = new CountDownLatch(1);
+        private final Map<WebSocketSession, Boolean> open = new ConcurrentHashMap<>();
+
+        @Override
+        public void afterConnectionEstablished(WebSocketSession session) {
+            record(session, "established");
+            open.put(session, true);
+        }
+
+        @Override
+        protected void handleTextMessage(WebSocketSession session, TextMessage message) {
+            record(session, message.getPayload());
+        }
+
+        @Override
+        protected void handleBinaryMessage(WebSocketSession session, BinaryMessage message) {
+            record(session, "binary " + message.getPayload().get(0));
+        }
+
+        @Override
+        public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
+            record(session, "closed");
+            open.remove(session);
+            if (open.isEmpty())
+                closed.countDown();
+        }
+
+        private void record(WebSocketSession session, String call) {
+            calls.computeIfAbsent(session, s -> Collections.synchronizedList(new ArrayList<>())).add(call);
+        }
+    }
+}
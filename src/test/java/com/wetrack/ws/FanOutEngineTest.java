@@ -0,0 +1,59 @@
+package com.wetrack.ws;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class FanOutEngineTest {
+
+    private FanOutEngine engine = new FanOutEngine(4, 100, 16);
+
+    @After
+    public void tearDown() {
+        engine.shutdown();
+    }
+
+    @Test
+    public void testSmallSetsStayOnCallingThread() {
+        Thread caller = Thread.currentThread();
+        List<String> served = new ArrayList<>();
+        engine.fanOut(recipients(99), recipient -> {
+            assertThat(Thread.currentThread(), is(caller));
+            served.add(recipient);
+        });
+
+        assertThat(served, is(recipients(99)));
+        assertThat(engine.getSerialCount(), is(1L));
+        assertThat(engine.getParallelCount(), is(0L));
+    }
+
+    @Test
+    public void testLargeSetsAreSharded() {
+        Map<String, AtomicInteger> served = new ConcurrentHashMap<>();
+        engine.fanOut(recipients(1000), recipient ->
+                served.computeIfAbsent(recipient, key -> new AtomicInteger()).incrementAndGet());
+
+        // Every recipient is served exactly once before fanOut returns
+        assertThat(served.size(), is(1000));
+        for (AtomicInteger count : served.values())
+            assertThat(count.get(), is(1));
+        assertThat(engine.getParallelCount(), is(1L));
+        // 1000 recipients halved until at most 16 remain: 64 shards of 15 or 16
+        assertThat(engine.getShardCount(), is(64L));
+    }
+
+    private static List<String> recipients(int count) {
+        List<String> recipients = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            recipients.add("member-" + i);
+        return recipients;
+    }
+}
@@ -0,0 +1,53 @@
+package com.wetrack.ws;
+
+import com.wetrack.test.StubWebSocketSession;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+public class FrameDispatcherTest {
+
+    private FrameDispatcher dispatcher = new FrameDispatcher();
+    private WebSocketSession session = new StubWebSocketSession();
+    private List<String> received = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        dispatcher.register("Token:", (session, payload, offset) -> received.add("token " + payload.substring(offset)));
+        dispatcher.register("chat_message", (session, payload, offset) -> received.add("chat_message " + payload.substring(offset)));
+        dispatcher.register("chat_messages", (session, payload, offset) -> received.add("chat_messages " + payload.substring(offset)));
+    }
+
+    @Test
+    public void testDispatchByPrefix() throws Exception {
+        assertThat(dispatcher.dispatch(session, "Token:abcdef"), is(true));
+        assertThat(dispatcher.dispatch(session, "chat_message{\"content\":\"Hi: there\"}"), is(true));
+        assertThat(dispatcher.dispatch(session, "chat_messages[]"), is(true));
+
+        assertThat(received.size(), is(3));
+        assertThat(received.get(0), is("token abcdef"));
+        assertThat(received.get(1), is("chat_message {\"content\":\"Hi: there\"}"));
+        assertThat(received.get(2), is("chat_messages []"));
+    }
+
+    @Test
+    public void testUnknownFrames() throws Exception {
+        assertThat(dispatcher.dispatch(session, ""), is(false));
+        assertThat(dispatcher.dispatch(session, "{\"content\":\"Hi\"}"), is(false));
+        assertThat(dispatcher.dispatch(session, "chat_messag{}"), is(false));
+        assertThat(dispatcher.dispatch(session, "Token"), is(false));
+        assertThat(dispatcher.dispatch(session, "a_frame_type_that_is_way_too_long_to_be_registered{}"), is(false));
+        assertThat(received.isEmpty(), is(true));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDuplicatePrefix() {
+        dispatcher.register("chat_message", (session, payload, offset) -> {});
+    }
+}
@@ -0,0 +1,55 @@
+package com.wetrack.ws;
+
+import com.wetrack.test.StubWebSocketSession;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class FrameRateLimiterTest {
+
+    @Test
+    public void testSessionLimit() throws Exception {
+        FrameRateLimiter limiter = new FrameRateLimiter(new SessionRegistry(), 5, 50, 0, 0);
+        StubWebSocketSession session = new StubWebSocketSession();
+        StubWebSocketSession anotherSession = new StubWebSocketSession();
+
+        int accepted = 0;
+        for (int i = 0; i < 10; i++) {
+            if (limiter.tryAcquire(session, null))
+                accepted++;
+        }
+        // Refill may add a token while the loop runs, but never five
+        assertThat(accepted >= 5 && accepted < 10, is(true));
+        assertThat(limiter.tryAcquire(anotherSession, null), is(true));
+
+        // One token comes back every 20 milliseconds
+        Thread.sleep(60);
+        assertThat(limiter.tryAcquire(session, null), is(true));
+        assertThat(limiter.getSessionRejectedCount(), is(10L - accepted));
+    }
+
+    @Test
+    public void testUserLimit() {
+        SessionRegistry sessionRegistry = new SessionRegistry();
+        FrameRateLimiter limiter = new FrameRateLimiter(sessionRegistry, 100, 1, 4, 0.001);
+        StubWebSocketSession session = new StubWebSocketSession();
+        StubWebSocketSession anotherSession = new StubWebSocketSession();
+        sessionRegistry.register(session, "robert");
+        sessionRegistry.register(anotherSession, "robert");
+
+        for (int i = 0; i < 2; i++) {
+            assertThat(limiter.tryAcquire(session, "robert"), is(true));
+            assertThat(limiter.tryAcquire(anotherSession, "robert"), is(true));
+        }
+        assertThat(limiter.tryAcquire(anotherSession, "robert"), is(false));
+        assertThat(limiter.tryAcquire(session, null), is(true));
+        assertThat(limiter.getUserRejectedCount(), is(1L));
+
+        // The user's bucket starts over once the user has been offline
+        sessionRegistry.unregister(session);
+        sessionRegistry.unregister(anotherSession);
+        sessionRegistry.register(session, "robert");
+        assertThat(limiter.tryAcquire(session, "robert"), is(true));
+    }
+}
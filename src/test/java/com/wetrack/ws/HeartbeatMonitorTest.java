@@ -0,0 +1,124 @@
+package com.wetrack.ws;
+
+import com.wetrack.test.StubWebSocketSession;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.PingMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class HeartbeatMonitorTest {
+
+    private OutboundDispatcher dispatcher;
+    private ExecutorService reapExecutor = Executors.newCachedThreadPool();
+    private HeartbeatMonitor monitor;
+    private final List<WebSocketSession> reaped = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        dispatcher = new OutboundDispatcher(16, OverflowPolicy.COALESCE, 1);
+        monitor = new HeartbeatMonitor(dispatcher, reapExecutor, 100, 300, 10, 16);
+        monitor.setReapHandler(session -> {
+            synchronized (reaped) {
+                reaped.add(session);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        monitor.shutdown();
+        dispatcher.shutdown();
+        reapExecutor.shutdownNow();
+    }
+
+    @Test
+    public void testPingsAndReapsIdleSession() throws Exception {
+        StubWebSocketSession session = new StubWebSocketSession();
+        monitor.track(session);
+
+        Thread.sleep(200);
+        assertThat(session.getSentMessages().isEmpty(), is(false));
+        assertThat(session.getSentMessages().get(0), instanceOf(PingMessage.class));
+        assertThat(session.isOpen(), is(true));
+
+        Thread.sleep(300);
+        awaitReaped(1);
+        assertThat(session.isOpen(), is(false));
+        assertThat(session.getCloseStatus(), is(CloseStatus.SESSION_NOT_RELIABLE));
+        assertThat(reaped.size(), is(1));
+        assertThat(monitor.getTrackedCount(), is(0));
+    }
+
+    @Test
+    public void testActivityKeepsSessionAlive() throws Exception {
+        StubWebSocketSession session = new StubWebSocketSession();
+        monitor.track(session);
+
+        for (int i = 0; i < 12; i++) {
+            Thread.sleep(50);
+            monitor.touch(session);
+        }
+        assertThat(session.isOpen(), is(true));
+        assertThat(session.getSentMessages().size(), is(0));
+        assertThat(reaped.size(), is(0));
+
+        monitor.untrack(session);
+        Thread.sleep(400);
+        assertThat(session.isOpen(), is(true));
+    }
+
+    @Test
+    public void testBlockedCloseDoesNotHoldUpOtherSessions() throws Exception {
+        CountDownLatch releaseClose = new CountDownLatch(1);
+        StubWebSocketSession dead = new StubWebSocketSession() {
+            @Override
+            public void close(CloseStatus status) {
+                try {
+                    releaseClose.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.close(status);
+            }
+        };
+        monitor.track(dead);
+        Thread.sleep(50);
+        StubWebSocketSession healthy = new StubWebSocketSession();
+        monitor.track(healthy);
+
+        // The healthy session is still pinged and reaped while the dead one's close hangs
+        Thread.sleep(500);
+        assertThat(healthy.getSentMessages().isEmpty(), is(false));
+        awaitReaped(1);
+        assertThat(healthy.isOpen(), is(false));
+        assertThat(dead.isOpen(), is(true));
+
+        releaseClose.countDown();
+        awaitReaped(2);
+        assertThat(dead.isOpen(), is(false));
+    }
+
+    private void awaitReaped(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            synchronized (reaped) {
+                if (reaped.size() >= count)
+                    return;
+            }
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.wetrack.ws;
+
+import com.google.gson.JsonElement;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.wetrack.json.GsonTypes;
+import com.wetrack.model.ChatMessage;
+import com.wetrack.model.Location;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compares the bytes allocated per inbound frame by the former {@code startsWith} chain, which
+ * parsed a {@code substring} of every frame, against the {@link FrameDispatcher} table, which
+ * parses the frame body in place.
+ * <p>
+ * Not a unit test; run {@link #main(String[])} directly on a HotSpot JVM, which reports the bytes
+ * allocated by the current thread.
+ */
+public class MessageDispatchBenchmark {
+    private static final int WARMUP_ROUNDS = 50000;
+    private static final int MEASURED_ROUNDS = 200000;
+
+    private static final String CHAT_MESSAGE_FRAME = WsResponse.TYPE_CHAT_MESSAGE
+            + "{\"chat_id\":\"1234567890abcdef1234567890abcdef\",\"content\":\"Meet at the HKUST north gate at 6pm? "
+            + "I will bring the tickets and some snacks.\"}";
+    private static final String LOCATION_FRAME = WsResponse.TYPE_LOCATION
+            + "[{\"latitude\":22.3364,\"longitude\":114.2655,\"time\":\"2016-10-25T10:02:00+08:00\"},"
+            + "{\"latitude\":22.3365,\"longitude\":114.2656,\"time\":\"2016-10-25T10:02:05+08:00\"},"
+            + "{\"latitude\":22.3366,\"longitude\":114.2657,\"time\":\"2016-10-25T10:02:10+08:00\"}]";
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static final FrameDispatcher DISPATCHER = new FrameDispatcher();
+    private static long sink;
+
+    public static void main(String[] args) throws Exception {
+        DISPATCHER.register("Token:", (session, payload, offset) -> sink += payload.substring(offset).length());
+        DISPATCHER.register(WsResponse.TYPE_CHAT_MESSAGE, (session, payload, offset) -> {
+            ChatMessage message = WsResponse.gson.fromJson(FrameDispatcher.jsonReader(payload, offset), ChatMessage.class);
+            sink += message.getContent().length();
+        });
+        DISPATCHER.register(WsResponse.TYPE_LOCATION, (session, payload, offset) -> {
+            JsonReader reader = FrameDispatcher.jsonReader(payload, offset);
+            List<Location> locations = reader.peek() == JsonToken.BEGIN_ARRAY
+                    ? WsResponse.gson.fromJson(reader, GsonTypes.locationListType)
+                    : Collections.singletonList(WsResponse.gson.fromJson(reader, Location.class));
+            sink += locations.size();
+        });
+
+        System.out.println(String.format("%14s %16s %16s %16s %16s", "frame",
+                "chain(B/frame)", "table(B/frame)", "chain(ns/frame)", "table(ns/frame)"));
+        run("chat_message", CHAT_MESSAGE_FRAME);
+        run("location", LOCATION_FRAME);
+        System.out.println("(checksum " + sink + ")");
+    }
+
+    private static void run(String name, String frame) throws Exception {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            chain(frame);
+            DISPATCHER.dispatch(null, frame);
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long bytes = THREADS.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ROUNDS; i++)
+            chain(frame);
+        double chainNanos = (System.nanoTime() - start) / (double) MEASURED_ROUNDS;
+        double chainBytes = (THREADS.getThreadAllocatedBytes(threadId) - bytes) / (double) MEASURED_ROUNDS;
+
+        bytes = THREADS.getThreadAllocatedBytes(threadId);
+        start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ROUNDS; i++)
+            DISPATCHER.dispatch(null, frame);
+        double tableNanos = (System.nanoTime() - start) / (double) MEASURED_ROUNDS;
+        double tableBytes = (THREADS.getThreadAllocatedBytes(threadId) - bytes) / (double) MEASURED_ROUNDS;
+
+        System.out.println(String.format("%14s %16.0f %16.0f %16.0f %16.0f", name,
+                chainBytes, tableBytes, chainNanos, tableNanos));
+    }
+
+    /** The dispatch formerly done by {@code WebSocketService.handleTextMessage}. */
+    private static void chain(String message) {
+        if (message.startsWith("Token:")) {
+            sink += message.substring("Token:".length()).length();
+            return;
+        }
+        if (message.startsWith(WsResponse.TYPE_CHAT_MESSAGE)) {
+            ChatMessage chatMessage = WsResponse.gson.fromJson(
+                    message.substring(WsResponse.TYPE_CHAT_MESSAGE.length()), ChatMessage.class);
+            sink += chatMessage.getContent().length();
+            return;
+        }
+        if (message.startsWith(WsResponse.TYPE_LOCATION)) {
+            JsonElement json = WsResponse.gson.fromJson(
+                    message.substring(WsResponse.TYPE_LOCATION.length()), JsonElement.class);
+            List<Location> locations = json.isJsonArray()
+                    ? WsResponse.gson.fromJson(json, GsonTypes.locationListType)
+                    : Collections.singletonList(WsResponse.gson.fromJson(json, Location.class));
+            sink += locations.size();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.wetrack.ws;
+
+import com.wetrack.test.StubWebSocketSession;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class OutboundDispatcherTest {
+
+    private OutboundDispatcher dispatcher;
+
+    @After
+    public void tearDown() {
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void testSlowSessionDoesNotBlockOthers() throws Exception {
+        dispatcher = new OutboundDispatcher(16, OverflowPolicy.DROP_OLDEST, 2);
+        BlockingSession slowSession = new BlockingSession();
+        StubWebSocketSession fastSession = new StubWebSocketSession();
+
+        dispatcher.send(slowSession, new TextMessage("slow"));
+        slowSession.sending.await(5, TimeUnit.SECONDS);
+        for (int i = 0; i < 10; i++)
+            dispatcher.send(fastSession, new TextMessage("fast-" + i));
+
+        waitUntilDrained(fastSession, 10);
+        assertThat(payloads(fastSession.getSentMessages()).get(9), is("fast-9"));
+        assertThat(dispatcher.getQueueDepth(slowSession), is(0));
+        slowSession.release.countDown();
+    }
+
+    @Test
+    public void testDropOldest() throws Exception {
+        dispatcher = new OutboundDispatcher(3, OverflowPolicy.DROP_OLDEST, 1);
+        BlockingSession session = new BlockingSession();
+
+        dispatcher.send(session, new TextMessage("0"));
+        session.sending.await(5, TimeUnit.SECONDS);
+        for (int i = 1; i <= 5; i++)
+            dispatcher.send(session, new TextMessage(String.valueOf(i)));
+        assertThat(dispatcher.getQueueDepth(session), is(3));
+        assertThat(dispatcher.getDroppedCount(), is(2L));
+
+        session.release.countDown();
+        waitUntilDrained(session, 4);
+        assertThat(payloads(session.getSentMessages()), is(payloads("0", "3", "4", "5")));
+    }
+
+    @Test
+    public void testCoalesce() throws Exception {
+        dispatcher = new OutboundDispatcher(3, OverflowPolicy.COALESCE, 1);
+        BlockingSession session = new BlockingSession();
+
+        dispatcher.send(session, new TextMessage("0"));
+        session.sending.await(5, TimeUnit.SECONDS);
+        dispatcher.send(session, new TextMessage("location-a-1"), "location:a");
+        dispatcher.send(session, new TextMessage("chat-1"));
+        dispatcher.send(session, new TextMessage("location-a-2"), "location:a");
+        dispatcher.send(session, new TextMessage("location-b-1"), "location:b");
+        assertThat(dispatcher.getCoalescedCount(), is(1L));
+
+        // Queue is full: the oldest keyed message is discarded instead of the chat message
+        dispatcher.send(session, new TextMessage("chat-2"));
+        assertThat(dispatcher.getDroppedCount(), is(1L));
+
+        session.release.countDown();
+        waitUntilDrained(session, 4);
+        assertThat(payloads(session.getSentMessages()), is(payloads("0", "chat-1", "location-b-1", "chat-2")));
+    }
+
+    @Test
+    public void testDisconnect() throws Exception {
+        dispatcher = new OutboundDispatcher(2, OverflowPolicy.DISCONNECT, 1);
+        BlockingSession session = new BlockingSession();
+
+        dispatcher.send(session, new TextMessage("0"));
+        session.sending.await(5, TimeUnit.SECONDS);
+        for (int i = 1; i <= 3; i++)
+            dispatcher.send(session, new TextMessage(String.valueOf(i)));
+
+        assertThat(session.isOpen(), is(false));
+        assertThat(session.getCloseStatus(), is(CloseStatus.SESSION_NOT_RELIABLE));
+        assertThat(dispatcher.getDisconnectedCount(), is(1L));
+        assertThat(dispatcher.getQueueDepth(session), is(0));
+        session.release.countDown();
+    }
+
+    private void waitUntilDrained(StubWebSocketSession session, int expectedCount) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (session.getSentMessages().size() < expectedCount && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertThat(session.getSentMessages().size(), is(expectedCount));
+    }
+
+    private List<String> payloads(List<WebSocketMessage<?>> messages) {
+        return messages.stream().map(m -> (String) m.getPayload()).collect(Collectors.toList());
+    }
+
+    private List<String> payloads(String... payloads) {
+        return Arrays.asList(payloads);
+    }
+
+    /** Session whose first send blocks until released, simulating a client on a bad network. */
+    private static class BlockingSession extends StubWebSocketSession {
+        private final CountDownLatch sending = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public void sendMessage(WebSocketMessage<?> message) {
+            sending.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            super.sendMessage(message);
+        }
+    }
+}
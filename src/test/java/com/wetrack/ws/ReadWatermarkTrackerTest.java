@@ -0,0 +1,136 @@
+package com.wetrack.ws;
+
+import com.wetrack.dao.morphia.ReadWatermarkRepositoryImpl;
+import com.wetrack.model.ReadWatermark;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class ReadWatermarkTrackerTest {
+
+    private final List<List<ReadWatermark>> batches = Collections.synchronizedList(new ArrayList<>());
+
+    private final AtomicInteger failuresLeft = new AtomicInteger();
+
+    private final ReadWatermarkTracker tracker = new ReadWatermarkTracker(new ReadWatermarkRepositoryImpl() {
+        @Override
+        public void advanceAll(Collection<ReadWatermark> watermarks) {
+            if (failuresLeft.getAndDecrement() > 0)
+                throw new IllegalStateException("Database is down");
+            batches.add(new ArrayList<>(watermarks));
+        }
+    }, 100, 60_000, 1000);
+
+    @After
+    public void tearDown() {
+        tracker.shutdown();
+    }
+
+    @Test
+    public void testReceiptsCollapseIntoOneWrite() throws Exception {
+        assertTrue(tracker.advance("chat", "robert-peng", 3));
+        assertTrue(tracker.advance("chat", "robert-peng", 8));
+        assertFalse(tracker.advance("chat", "robert-peng", 5));
+        assertTrue(tracker.advance("chat", "windy-chan", 1));
+        tracker.getWriter().flush();
+
+        assertThat(batches.size(), is(1));
+        List<ReadWatermark> batch = batches.get(0);
+        assertThat(batch.size(), is(2));
+        assertThat(batch.get(0).getUsername(), is("robert-peng"));
+        assertThat(batch.get(0).getSequence(), is(8L));
+        assertThat(batch.get(1).getSequence(), is(1L));
+        assertThat(tracker.getReceiptCount(), is(4L));
+        assertThat(tracker.getCollapsedCount(), is(2L));
+
+        // Once written, the next receipt starts a new watermark
+        assertTrue(tracker.advance("chat", "robert-peng", 2));
+        tracker.getWriter().flush();
+        assertThat(batches.size(), is(2));
+        assertThat(batches.get(1).get(0).getSequence(), is(2L));
+    }
+
+    @Test
+    public void testFailedWatermarksWaitForNextBatch() throws Exception {
+        failuresLeft.set(1);
+        tracker.advance("chat", "robert-peng", 3);
+        tracker.getWriter().flush();
+        assertThat(batches.size(), is(0));
+
+        // A receipt that arrived after the failure is kept over the older, unwritten watermark
+        tracker.advance("chat", "robert-peng", 5);
+        tracker.advance("chat", "windy-chan", 1);
+        tracker.getWriter().flush();
+        assertThat(batches.size(), is(1));
+        List<ReadWatermark> batch = batches.get(0);
+        assertThat(batch.size(), is(2));
+        assertThat(batch.get(0).getUsername(), is("robert-peng"));
+        assertThat(batch.get(0).getSequence(), is(5L));
+        assertThat(tracker.getWriter().getFailedBatchCount(), is(1L));
+    }
+
+    @Test
+    public void testReceiptsDoNotBlockOnFullWriter() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ReadWatermarkTracker full = new ReadWatermarkTracker(new ReadWatermarkRepositoryImpl() {
+            @Override
+            public void advanceAll(Collection<ReadWatermark> watermarks) {
+                started.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                batches.add(new ArrayList<>(watermarks));
+            }
+        }, 1, 60_000, 1);
+        try {
+            // The writer is stuck on the first watermark and its queue holds one more
+            full.advance("chat-0", "robert-peng", 1);
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            full.advance("chat-1", "robert-peng", 1);
+            full.advance("chat-2", "robert-peng", 1);
+            assertThat(full.getWriter().getRejectedCount(), is(1L));
+            release.countDown();
+            full.getWriter().flush();
+
+            // A dropped watermark does not swallow the next receipt for its chat
+            batches.clear();
+            assertTrue(full.advance("chat-2", "robert-peng", 2));
+            full.getWriter().flush();
+            assertThat(batches.size(), is(1));
+            assertThat(batches.get(0).get(0).getChatId(), is("chat-2"));
+            assertThat(batches.get(0).get(0).getSequence(), is(2L));
+        } finally {
+            release.countDown();
+            full.shutdown();
+        }
+    }
+
+    @Test
+    public void testTypingCoalescer() throws Exception {
+        TypingCoalescer coalescer = new TypingCoalescer(200, 100);
+        assertTrue(coalescer.shouldForward("chat", "robert-peng", true));
+        assertFalse(coalescer.shouldForward("chat", "robert-peng", true));
+        assertTrue(coalescer.shouldForward("chat", "windy-chan", true));
+        assertTrue(coalescer.shouldForward("chat", "robert-peng", false));
+        assertTrue(coalescer.shouldForward("chat", "robert-peng", true));
+        Thread.sleep(300);
+        assertTrue(coalescer.shouldForward("chat", "robert-peng", true));
+        assertThat(coalescer.getForwardedCount(), is(5L));
+        assertThat(coalescer.getSuppressedCount(), is(1L));
+    }
+}
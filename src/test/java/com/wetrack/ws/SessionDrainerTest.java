@@ -0,0 +1,119 @@
+package com.wetrack.ws;
+
+import com.wetrack.test.StubWebSocketSession;
+import com.wetrack.util.GroupCommitWriter;
+import com.wetrack.util.KeyedExecutor;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.http.server.ServletServerHttpRequest;
+import org.springframework.http.server.ServletServerHttpResponse;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.startsWith;
+import static org.junit.Assert.assertThat;
+
+public class SessionDrainerTest {
+
+    private OutboundDispatcher outboundDispatcher = new OutboundDispatcher(16, OverflowPolicy.DROP_OLDEST, 2);
+    private HeartbeatMonitor heartbeatMonitor = new HeartbeatMonitor(outboundDispatcher, Runnable::run, 60_000, 120_000, 1000, 16);
+    private List<Integer> written = new CopyOnWriteArrayList<>();
+    // Only flushes on demand within the test's lifetime
+    private GroupCommitWriter<Integer> writer = new GroupCommitWriter<>("drain-test-writer", 1000, 60_000, 100, written::addAll);
+
+    @After
+    public void tearDown() {
+        writer.shutdown();
+        heartbeatMonitor.shutdown();
+        outboundDispatcher.shutdown();
+    }
+
+    @Test
+    public void testDrainInWaves() throws Exception {
+        SessionDrainer drainer = new SessionDrainer(heartbeatMonitor, outboundDispatcher,
+                Collections.singletonList(writer), Collections.emptyList(), 2, 50, 2000, 5000);
+        List<StubWebSocketSession> sessions = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            StubWebSocketSession session = new StubWebSocketSession();
+            sessions.add(session);
+            heartbeatMonitor.track(session);
+        }
+        CompletableFuture<Void> write = writer.submit(42);
+
+        long startNanos = System.nanoTime();
+        assertThat(drainer.drain(), is(5));
+        // Three waves, two intervals between them
+        assertThat(System.nanoTime() - startNanos >= 100_000_000L, is(true));
+        assertThat(write.isDone(), is(true));
+        assertThat(written, is(Collections.singletonList(42)));
+
+        for (StubWebSocketSession session : sessions) {
+            assertThat(session.isOpen(), is(false));
+            assertThat(session.getCloseStatus(), is(CloseStatus.SERVICE_RESTARTED));
+            List<WebSocketMessage<?>> messages = session.getSentMessages();
+            assertThat(messages.size(), is(1));
+            String payload = (String) messages.get(0).getPayload();
+            assertThat(payload, startsWith(WsResponse.TYPE_RECONNECT + "{"));
+            ReconnectHint hint = WsResponse.gson.fromJson(
+                    payload.substring(WsResponse.TYPE_RECONNECT.length()), ReconnectHint.class);
+            assertThat(hint.getDelayMillis() >= 0 && hint.getDelayMillis() <= 5000, is(true));
+        }
+    }
+
+    @Test
+    public void testDrainWaitsForDeliveries() throws Exception {
+        KeyedExecutor delivery = new KeyedExecutor("drain-test-delivery", 2);
+        try {
+            SessionDrainer drainer = new SessionDrainer(heartbeatMonitor, outboundDispatcher,
+                    Collections.singletonList(writer), Collections.singletonList(delivery), 2, 50, 2000, 5000);
+            StubWebSocketSession session = new StubWebSocketSession();
+            heartbeatMonitor.track(session);
+            // Acknowledged once written, like a chat message
+            writer.submit(42).whenCompleteAsync((ignored, ex) -> {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                outboundDispatcher.send(session, new TextMessage("ack"));
+            }, delivery.forKey("chat"));
+
+            drainer.drain();
+
+            List<WebSocketMessage<?>> messages = session.getSentMessages();
+            assertThat(messages.size(), is(2));
+            assertThat(messages.get(0).getPayload(), is("ack"));
+            assertThat(session.getCloseStatus(), is(CloseStatus.SERVICE_RESTARTED));
+        } finally {
+            delivery.shutdown();
+        }
+    }
+
+    @Test
+    public void testRefuseHandshakeWhileDraining() throws Exception {
+        SessionDrainer drainer = new SessionDrainer(heartbeatMonitor, outboundDispatcher,
+                Collections.emptyList(), Collections.emptyList(), 2, 50, 2000, 5000);
+        MockHttpServletResponse servletResponse = new MockHttpServletResponse();
+        ServletServerHttpRequest request = new ServletServerHttpRequest(new MockHttpServletRequest());
+        ServletServerHttpResponse response = new ServletServerHttpResponse(servletResponse);
+
+        assertThat(drainer.beforeHandshake(request, response, null, new HashMap<>()), is(true));
+        drainer.drain();
+        assertThat(drainer.isDraining(), is(true));
+        assertThat(drainer.beforeHandshake(request, response, null, new HashMap<>()), is(false));
+        response.flush();
+        assertThat(servletResponse.getStatus(), is(503));
+        assertThat(Integer.parseInt(servletResponse.getHeader("Retry-After")) >= 1, is(true));
+    }
+}
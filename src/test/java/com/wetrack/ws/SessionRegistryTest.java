@@ -0,0 +1,96 @@
+package com.wetrack.ws;
+
+import com.wetrack.test.StubWebSocketSession;
+import org.junit.Test;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+public class SessionRegistryTest {
+
+    private SessionRegistry registry = new SessionRegistry();
+
+    @Test
+    public void testMultipleDevices() {
+        WebSocketSession phone = new StubWebSocketSession();
+        WebSocketSession tablet = new StubWebSocketSession();
+
+        registry.register(phone, "robert-peng");
+        registry.register(tablet, "robert-peng");
+
+        assertThat(registry.getSessions("robert-peng").size(), is(2));
+        assertThat(registry.getUsername(phone), is("robert-peng"));
+        assertThat(registry.getUsername(tablet), is("robert-peng"));
+        assertThat(registry.getUserCount(), is(1L));
+        assertThat(registry.getSessionCount(), is(2L));
+
+        assertThat(registry.unregister(phone), is("robert-peng"));
+        assertThat(registry.getSessions("robert-peng").size(), is(1));
+        assertThat(registry.isOnline("robert-peng"), is(true));
+
+        assertThat(registry.unregister(tablet), is("robert-peng"));
+        assertThat(registry.isOnline("robert-peng"), is(false));
+        assertThat(registry.getSessions("robert-peng").isEmpty(), is(true));
+        assertThat(registry.getUserCount(), is(0L));
+        assertThat(registry.getSessionCount(), is(0L));
+    }
+
+    @Test
+    public void testReauthenticateAsAnotherUser() {
+        WebSocketSession session = new StubWebSocketSession();
+
+        assertThat(registry.register(session, "robert-peng"), nullValue());
+        assertThat(registry.register(session, "windy-chan"), is("robert-peng"));
+
+        assertThat(registry.isOnline("robert-peng"), is(false));
+        assertThat(registry.getUsername(session), is("windy-chan"));
+        assertThat(registry.getSessionCount(), is(1L));
+    }
+
+    @Test
+    public void testUnregisterAnonymousSession() {
+        assertThat(registry.unregister(new StubWebSocketSession()), nullValue());
+    }
+
+    @Test
+    public void testConcurrentRegistration() throws Exception {
+        int threads = 8;
+        int sessionsPerThread = 500;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch latch = new CountDownLatch(threads);
+        List<List<WebSocketSession>> allSessions = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            List<WebSocketSession> sessions = new ArrayList<>();
+            for (int j = 0; j < sessionsPerThread; j++)
+                sessions.add(new StubWebSocketSession());
+            allSessions.add(sessions);
+        }
+
+        for (List<WebSocketSession> sessions : allSessions) {
+            executor.submit(() -> {
+                for (int j = 0; j < sessions.size(); j++)
+                    registry.register(sessions.get(j), "user-" + (j % 10));
+                for (int j = 0; j < sessions.size(); j += 2)
+                    registry.unregister(sessions.get(j));
+                latch.countDown();
+            });
+        }
+        latch.await(10, TimeUnit.SECONDS);
+        executor.shutdown();
+
+        assertThat(registry.getSessionCount(), is((long) threads * sessionsPerThread / 2));
+        assertThat(registry.getUserCount(), is(5L));
+        int registeredSessions = 0;
+        for (int i = 0; i < 10; i++)
+            registeredSessions += registry.getSessions("user-" + i).size();
+        assertThat(registeredSessions, is(threads * sessionsPerThread / 2));
+    }
+}
@@ -0,0 +1,480 @@
+package com.wetrack.ws;
+
+import com.wetrack.cache.FriendCache;
+import com.wetrack.cluster.PresenceDirectory;
+import com.wetrack.config.SpringTestConfig;
+import com.wetrack.config.WebSocketServiceConfig;
+import com.wetrack.dao.ChatMessageRepository;
+import com.wetrack.dao.ChatRepository;
+import com.wetrack.dao.DeliveryCursorRepository;
+import com.wetrack.dao.FriendRepository;
+import com.wetrack.dao.LocationRepository;
+import com.wetrack.dao.PresenceRepository;
+import com.wetrack.dao.ReadWatermarkRepository;
+import com.wetrack.dao.UserTokenRepository;
+import com.wetrack.json.GsonTypes;
+import com.wetrack.metrics.MetricsRegistry;
+import com.wetrack.model.Chat;
+import com.wetrack.model.ChatMessage;
+import com.wetrack.model.DeliveryCursor;
+import com.wetrack.model.Friend;
+import com.wetrack.model.Location;
+import com.wetrack.model.Presence;
+import com.wetrack.model.ReadWatermark;
+import com.wetrack.model.UserToken;
+import com.wetrack.test.StubWebSocketSession;
+import com.wetrack.util.GroupCommitWriter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.startsWith;
+import static org.junit.Assert.assertThat;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = { SpringTestConfig.class, WebSocketServiceConfig.class })
+public class WebSocketServiceTest {
+
+    @Autowired protected WebSocketService webSocketService;
+    @Autowired protected OutboundDispatcher outboundDispatcher;
+    @Autowired protected UserTokenRepository userTokenRepository;
+    @Autowired protected LocationRepository locationRepository;
+    @Autowired protected GroupCommitWriter<Location> locationWriter;
+    @Autowired protected FriendRepository friendRepository;
+    @Autowired protected FriendCache friendCache;
+    @Autowired protected PresenceDirectory presenceDirectory;
+    @Autowired protected PresenceRepository presenceRepository;
+    @Autowired protected GroupCommitWriter<Presence> presenceWriter;
+    @Autowired protected ChatRepository chatRepository;
+    @Autowired protected ChatMessageRepository chatMessageRepository;
+    @Autowired protected DeliveryCursorRepository deliveryCursorRepository;
+    @Autowired protected GroupCommitWriter<DeliveryCursor> deliveryCursorWriter;
+    @Autowired protected MetricsRegistry metricsRegistry;
+    @Autowired protected ReadWatermarkTracker readWatermarkTracker;
+    @Autowired protected ReadWatermarkRepository readWatermarkRepository;
+
+    protected String username = "ws-robert-peng";
+    protected UserToken token;
+    protected List<StubWebSocketSession> sessions = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        token = new UserToken(username, 1, ChronoUnit.DAYS);
+        userTokenRepository.insert(token);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (StubWebSocketSession session : sessions)
+            close(session);
+        userTokenRepository.deleteByUsername(username);
+    }
+
+    @Test
+    public void testAuthentication() throws Exception {
+        StubWebSocketSession session = connect();
+        authenticate(session);
+        assertThat(lastPayload(session), startsWith(WsResponse.TYPE_WS_MESSAGE + "{\"code\":1001"));
+
+        StubWebSocketSession anotherSession = connect();
+        send(anotherSession, "Token:" + "BlahBlahNotExist");
+        awaitMessages(anotherSession, 2);
+        assertThat(lastPayload(anotherSession), startsWith(WsResponse.TYPE_WS_MESSAGE + "{\"code\":2004"));
+    }
+
+    @Test
+    public void testLocationStreaming() throws Exception {
+        StubWebSocketSession session = connect();
+        send(session, WsResponse.TYPE_LOCATION + "{\"latitude\":22.33,\"longitude\":114.26,\"time\":\"2016-10-24T10:00:00+08:00\"}");
+        awaitMessages(session, 2);
+        assertThat(lastPayload(session), startsWith(WsResponse.TYPE_WS_MESSAGE + "{\"code\":2001"));
+
+        authenticate(session);
+        send(session, WsResponse.TYPE_LOCATION + "{\"latitude\":22.33,\"longitude\":114.26,\"time\":\"2016-10-24T10:00:00+08:00\"}");
+        send(session, WsResponse.TYPE_LOCATION + "[{\"latitude\":22.34,\"longitude\":114.27,\"time\":\"2016-10-24T10:01:00+08:00\"},"
+                + "{\"username\":\"someone-else\",\"latitude\":22.35,\"longitude\":114.28,\"time\":\"2016-10-24T10:02:00+08:00\"},"
+                + "{\"latitude\":22.36,\"longitude\":114.29,\"time\":\"2016-10-24T10:03:00+08:00\"}]");
+        locationWriter.flush();
+
+        List<Location> locations = locationRepository.findLocationsSince(username, LocalDateTime.of(2016, 1, 1, 0, 0));
+        assertThat(locations.size(), is(3));
+        for (Location location : locations)
+            assertThat(location.getUsername(), is(username));
+
+        send(session, WsResponse.TYPE_LOCATION + "{\"latitude\":\"north\"}");
+        awaitMessages(session, 4);
+        assertThat(lastPayload(session), startsWith(WsResponse.TYPE_WS_MESSAGE + "{\"code\":2000"));
+    }
+
+    @Test
+    public void testFriendLocationPush() throws Exception {
+        String friendName = "ws-windy-chan";
+        Friend friend = new Friend(username);
+        friend.addFriend(friendName);
+        friendRepository.insert(friend);
+        friendCache.invalidate(username);
+        UserToken friendToken = new UserToken(friendName, 1, ChronoUnit.DAYS);
+        userTokenRepository.insert(friendToken);
+
+        try {
+            StubWebSocketSession session = connect();
+            authenticate(session);
+            StubWebSocketSession friendSession = connect();
+            send(friendSession, "Token:" + friendToken.getToken());
+            awaitMessages(friendSession, 2);
+
+            // The first fix goes out right away; the next two arrive within the push interval and
+            // only the newest of them is delivered
+            for (int minute = 0; minute < 3; minute++) {
+                send(session, WsResponse.TYPE_LOCATION + "{\"latitude\":22.33,\"longitude\":114.26,"
+                        + "\"time\":\"2016-10-25T10:0" + minute + ":00+08:00\"}");
+                locationWriter.flush();
+                if (minute == 0)
+                    awaitMessages(friendSession, 3);
+            }
+            awaitMessages(friendSession, 4);
+            assertThat(lastPayload(friendSession), startsWith(WsResponse.TYPE_LOCATION + "{\"id\""));
+            assertThat(lastPayload(friendSession).contains("\"time\":\"2016-10-25T02:02Z\""), is(true));
+            assertThat(session.getSentMessages().size(), is(2));
+        } finally {
+            friendRepository.delete(friend);
+            friendCache.invalidate(username);
+            userTokenRepository.deleteByUsername(friendName);
+        }
+    }
+
+    @Test
+    public void testPresence() throws Exception {
+        StubWebSocketSession session = connect();
+        authenticate(session);
+        StubWebSocketSession anotherSession = connect();
+        authenticate(anotherSession);
+        assertThat(presenceDirectory.findNodes(Collections.singleton(username)).containsKey(username), is(true));
+
+        close(session);
+        assertThat(presenceDirectory.findNodes(Collections.singleton(username)).containsKey(username), is(true));
+        close(anotherSession);
+        assertThat(presenceDirectory.findNodes(Collections.singleton(username)).containsKey(username), is(false));
+
+        presenceWriter.flush();
+        Presence presence = presenceRepository.findById(username);
+        assertThat(presence.getLastSeen().isAfter(LocalDateTime.now().minusMinutes(1)), is(true));
+        presenceRepository.delete(presence);
+    }
+
+    @Test
+    public void testOfflineReplay() throws Exception {
+        Chat chat = new Chat("Offline Replay Test");
+        chat.addMember(username);
+        chat.addMember("ws-windy-chan");
+        chatRepository.insert(chat);
+        LocalDateTime lastSeen = LocalDateTime.of(2016, 10, 24, 10, 0);
+        deliveryCursorWriter.flush();
+        deliveryCursorRepository.insert(new DeliveryCursor(username, lastSeen, null));
+
+        List<ChatMessage> missed = new ArrayList<>();
+        for (int i = 0; i < 250; i++) {
+            ChatMessage message = new ChatMessage("ws-windy-chan", chat.getId(), "Message " + i);
+            message.setId(String.format("offline-replay-%03d", i));
+            message.setSendTime(lastSeen.plusSeconds(i - 9));
+            missed.add(message);
+        }
+        chatMessageRepository.insertAll(missed);
+
+        try {
+            // 240 messages were sent after the cursor, in frames of at most 100 messages
+            StubWebSocketSession session = connect();
+            send(session, "Token:" + token.getToken());
+            awaitMessages(session, 5);
+            assertThat(lastPayload(session), startsWith(WsResponse.TYPE_CHAT_MESSAGES + "[{\"chat_id\""));
+            List<ChatMessage> lastFrame = WsResponse.gson.fromJson(
+                    lastPayload(session).substring(WsResponse.TYPE_CHAT_MESSAGES.length()), GsonTypes.chatMessageListType);
+            assertThat(lastFrame.size(), is(40));
+            assertThat(lastFrame.get(39).getId(), is("offline-replay-249"));
+
+            // Nothing is replayed twice
+            StubWebSocketSession anotherSession = connect();
+            authenticate(anotherSession);
+            Thread.sleep(100);
+            assertThat(anotherSession.getSentMessages().size(), is(2));
+        } finally {
+            chatRepository.delete(chat);
+            for (ChatMessage message : missed)
+                chatMessageRepository.delete(message);
+            deliveryCursorRepository.delete(deliveryCursorRepository.findById(username));
+        }
+    }
+
+    @Test
+    public void testChatSync() throws Exception {
+        Chat chat = new Chat("Chat Sync Test");
+        chat.addMember(username);
+        chatRepository.insert(chat);
+        List<ChatMessage> history = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            ChatMessage message = new ChatMessage("ws-windy-chan", chat.getId(), "Message " + i);
+            message.setId(String.format("chat-sync-%d", i));
+            history.add(message);
+        }
+        chatMessageRepository.insertAll(history);
+
+        try {
+            StubWebSocketSession session = connect();
+            authenticate(session);
+            send(session, WsResponse.TYPE_CHAT_SYNC + "{\"chat_id\":\"" + chat.getId() + "\",\"after_sequence\":1,\"limit\":2}");
+            awaitMessages(session, 3);
+            List<ChatMessage> synced = WsResponse.gson.fromJson(
+                    lastPayload(session).substring(WsResponse.TYPE_CHAT_MESSAGES.length()), GsonTypes.chatMessageListType);
+            assertThat(synced.size(), is(2));
+            assertThat(synced.get(0).getId(), is("chat-sync-1"));
+            assertThat(synced.get(1).getSequence(), is(3L));
+
+            // Messages sent over the WebSocket are numbered too, whatever number the client sent,
+            // and the ACK says which number they got
+            send(session, WsResponse.TYPE_CHAT_MESSAGE + "{\"id\":\"client-id\",\"chat_id\":\"" + chat.getId()
+                    + "\",\"content\":\"Hi\",\"sequence\":2,\"send_time\":\"2016-10-25T10:00:00+08:00\"}");
+            awaitMessages(session, 4);
+            assertThat(lastPayload(session), startsWith(WsResponse.TYPE_CHAT_MESSAGE_ACK + "{\"id\":\"client-id\""));
+            assertThat(lastPayload(session).contains("\"sequence\":6"), is(true));
+
+            // Another message with the same send time does not replace the first one
+            send(session, WsResponse.TYPE_CHAT_MESSAGE + "{\"id\":\"client-id-2\",\"chat_id\":\"" + chat.getId()
+                    + "\",\"content\":\"Hello\",\"send_time\":\"2016-10-25T10:00:00+08:00\"}");
+            awaitMessages(session, 5);
+            assertThat(lastPayload(session), startsWith(WsResponse.TYPE_WS_MESSAGE + "{\"code\":2000"));
+            List<ChatMessage> saved = chatMessageRepository.getChatMessagesAfterSequence(chat.getId(), 5, 10);
+            assertThat(saved.size(), is(1));
+            assertThat(saved.get(0).getContent(), is("Hi"));
+
+            send(session, WsResponse.TYPE_CHAT_SYNC + "{\"chat_id\":\"not-a-chat\",\"after_sequence\":0}");
+            awaitMessages(session, 6);
+            assertThat(lastPayload(session), startsWith(WsResponse.TYPE_WS_MESSAGE + "{\"code\":2003"));
+        } finally {
+            chatRepository.delete(chat);
+            for (ChatMessage message : chatMessageRepository.getChatMessagesAfterSequence(chat.getId(), 0, 10))
+                chatMessageRepository.delete(message);
+        }
+    }
+
+    @Test
+    public void testBinaryProtocol() throws Exception {
+        String friendName = "ws-windy-chan";
+        Chat chat = new Chat("Binary Protocol Test");
+        chat.addMember(username);
+        chat.addMember(friendName);
+        chatRepository.insert(chat);
+        UserToken friendToken = new UserToken(friendName, 1, ChronoUnit.DAYS);
+        userTokenRepository.insert(friendToken);
+
+        try {
+            // Binary frames are only accepted once the sub-protocol has been negotiated
+            StubWebSocketSession textSession = connect();
+            webSocketService.handleMessage(textSession, binaryChatMessage("binary-1", chat.getId(), "Hi"));
+            awaitMessages(textSession, 2);
+            assertThat(lastPayload(textSession), startsWith(WsResponse.TYPE_WS_MESSAGE + "{\"code\":2000"));
+
+            StubWebSocketSession session = connect();
+            session.setAcceptedProtocol(BinaryProtocol.SUB_PROTOCOL);
+            authenticate(session);
+            StubWebSocketSession friendSession = connect();
+            send(friendSession, "Token:" + friendToken.getToken());
+            awaitMessages(friendSession, 2);
+
+            // A binary chat message is acknowledged in binary and reaches text clients as text
+            webSocketService.handleMessage(session, binaryChatMessage("binary-1", chat.getId(), "Hi"));
+            awaitMessages(session, 3);
+            ByteBuffer ack = ((BinaryMessage) session.getSentMessages().get(2)).getPayload();
+            assertThat(BinaryProtocol.readHeader(ack), is(BinaryProtocol.CHAT_MESSAGE_ACK));
+            byte[] ackedId = new byte[ack.get() - 1];
+            ack.get(ackedId);
+            assertThat(new String(ackedId, StandardCharsets.UTF_8), is("binary-1"));
+            awaitMessages(friendSession, 3);
+            assertThat(lastPayload(friendSession), startsWith(WsResponse.TYPE_CHAT_MESSAGE + "{"));
+            assertThat(lastPayload(friendSession).contains("\"content\":\"Hi\""), is(true));
+
+            LocalDateTime time = LocalDateTime.of(2015, 6, 1, 10, 0);
+            ByteBuffer locations = ByteBuffer.allocate(64);
+            locations.put(BinaryProtocol.VERSION).put(BinaryProtocol.LOCATION).put((byte) 2);
+            for (int i = 0; i < 2; i++) {
+                locations.putDouble(22.33).putDouble(114.26);
+                locations.putLong(time.plusMinutes(i).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+            }
+            locations.flip();
+            webSocketService.handleMessage(session, new BinaryMessage(locations));
+            locationWriter.flush();
+            long saved = locationRepository.findLocationsSince(username, time.minusMinutes(1)).stream()
+                    .filter(location -> location.getTime().getYear() == 2015).count();
+            assertThat(saved, is(2L));
+
+            webSocketService.handleMessage(session, new BinaryMessage(new byte[] { BinaryProtocol.VERSION, BinaryProtocol.LOCATION, 5 }));
+            awaitMessages(session, 4);
+            assertThat(lastPayload(session), startsWith(WsResponse.TYPE_WS_MESSAGE + "{\"code\":2000"));
+        } finally {
+            chatRepository.delete(chat);
+            userTokenRepository.deleteByUsername(friendName);
+        }
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        String invalidFrames = "ws_inbound_frames_total{protocol=\"text\",type=\"invalid\"}";
+        String tokenFrames = "ws_inbound_frames_total{protocol=\"text\",type=\"token\"}";
+        String before = metricsRegistry.scrape();
+
+        StubWebSocketSession session = connect();
+        authenticate(session);
+        send(session, "Blah:{}");
+        awaitMessages(session, 3);
+
+        String after = metricsRegistry.scrape();
+        assertThat(sample(after, invalidFrames) - sample(before, invalidFrames), is(1.0));
+        assertThat(sample(after, tokenFrames) - sample(before, tokenFrames), is(1.0));
+        assertThat(sample(after, "ws_sessions"), is(1.0));
+        assertThat(sample(after, "ws_authenticated_sessions"), is(1.0));
+        assertThat(sample(after, "ws_users"), is(1.0));
+    }
+
+    @Test
+    public void testReadReceiptsAndTyping() throws Exception {
+        String friendName = "ws-windy-chan";
+        UserToken friendToken = new UserToken(friendName, 1, ChronoUnit.DAYS);
+        userTokenRepository.insert(friendToken);
+        Chat chat = new Chat("Read Receipt Test");
+        chat.addMember(username);
+        chat.addMember(friendName);
+        chatRepository.insert(chat);
+
+        try {
+            StubWebSocketSession session = connect();
+            authenticate(session);
+            StubWebSocketSession otherSession = connect();
+            authenticate(otherSession);
+            StubWebSocketSession friendSession = connect();
+            send(friendSession, "Token:" + friendToken.getToken());
+            awaitMessages(friendSession, 2);
+
+            // Receipts go to every member and the reader's other sessions; stale ones go nowhere
+            send(session, WsResponse.TYPE_CHAT_READ + "{\"chat_id\":\"" + chat.getId() + "\",\"sequence\":4}");
+            awaitMessages(friendSession, 3);
+            assertThat(lastPayload(friendSession), is(WsResponse.TYPE_CHAT_READ + "{\"chat_id\":\"" + chat.getId()
+                    + "\",\"username\":\"" + username + "\",\"sequence\":4}"));
+            awaitMessages(otherSession, 3);
+            send(otherSession, WsResponse.TYPE_CHAT_READ + "{\"chat_id\":\"" + chat.getId() + "\",\"sequence\":2}");
+
+            // Typing goes to the other members only, once per interval
+            send(session, WsResponse.TYPE_TYPING + "{\"chat_id\":\"" + chat.getId() + "\",\"typing\":true}");
+            send(session, WsResponse.TYPE_TYPING + "{\"chat_id\":\"" + chat.getId() + "\",\"typing\":true}");
+            awaitMessages(friendSession, 4);
+            assertThat(lastPayload(friendSession), startsWith(WsResponse.TYPE_TYPING + "{\"chat_id\""));
+            send(session, WsResponse.TYPE_TYPING + "{\"chat_id\":\"" + chat.getId() + "\",\"typing\":false}");
+            awaitMessages(friendSession, 5);
+            assertThat(lastPayload(friendSession).contains("\"typing\":false"), is(true));
+            awaitMessages(otherSession, 3);
+            awaitMessages(session, 2);
+
+            readWatermarkTracker.getWriter().flush();
+            List<ReadWatermark> watermarks = readWatermarkRepository.findByChatId(chat.getId());
+            assertThat(watermarks.size(), is(1));
+            assertThat(watermarks.get(0).getSequence(), is(4L));
+
+            send(friendSession, WsResponse.TYPE_CHAT_READ + "{\"chat_id\":\"" + chat.getId() + "\",\"sequence\":0}");
+            awaitMessages(friendSession, 6);
+            assertThat(lastPayload(friendSession), startsWith(WsResponse.TYPE_WS_MESSAGE + "{\"code\""));
+        } finally {
+            chatRepository.delete(chat);
+            userTokenRepository.deleteByUsername(friendName);
+        }
+    }
+
+    @Test
+    public void testRateLimit() throws Exception {
+        StubWebSocketSession session = connect();
+        authenticate(session);
+        for (int i = 0; i < 100; i++)
+            send(session, WsResponse.TYPE_CHAT_SYNC + "{\"chat_id\":\"1234567890abcdef1234567890abcdef\"}");
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline && session.getSentMessages().stream().noneMatch(
+                message -> ((String) message.getPayload()).startsWith(WsResponse.TYPE_WS_MESSAGE + "{\"code\":2006")))
+            Thread.sleep(5);
+        assertThat(session.getSentMessages().stream().anyMatch(
+                message -> ((String) message.getPayload()).startsWith(WsResponse.TYPE_WS_MESSAGE + "{\"code\":2006")), is(true));
+        // Rejected frames never reach their handler
+        long invalidChatReplies = session.getSentMessages().stream().filter(
+                message -> ((String) message.getPayload()).startsWith(WsResponse.TYPE_WS_MESSAGE + "{\"code\":2003")).count();
+        assertThat(invalidChatReplies < 99, is(true));
+    }
+
+    private static double sample(String scrape, String series) {
+        for (String line : scrape.split("\n")) {
+            if (line.startsWith(series + " "))
+                return Double.parseDouble(line.substring(series.length() + 1));
+        }
+        return 0;
+    }
+
+    private BinaryMessage binaryChatMessage(String id, String chatId, String content) {
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        buffer.put(BinaryProtocol.VERSION).put(BinaryProtocol.CHAT_MESSAGE);
+        for (String value : new String[] { id, chatId, content }) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            buffer.put((byte) (bytes.length + 1)).put(bytes);
+        }
+        buffer.putLong(System.currentTimeMillis());
+        buffer.flip();
+        return new BinaryMessage(buffer);
+    }
+
+    protected StubWebSocketSession connect() throws Exception {
+        StubWebSocketSession session = new StubWebSocketSession();
+        sessions.add(session);
+        webSocketService.afterConnectionEstablished(session);
+        awaitMessages(session, 1);
+        return session;
+    }
+
+    protected void authenticate(StubWebSocketSession session) throws Exception {
+        int received = session.getSentMessages().size();
+        send(session, "Token:" + token.getToken());
+        awaitMessages(session, received + 1);
+    }
+
+    protected void send(StubWebSocketSession session, String payload) throws Exception {
+        webSocketService.handleMessage(session, new TextMessage(payload));
+    }
+
+    protected void close(StubWebSocketSession session) throws Exception {
+        session.close();
+        webSocketService.afterConnectionClosed(session, CloseStatus.NORMAL);
+    }
+
+    protected void awaitMessages(StubWebSocketSession session, int expectedCount) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (session.getSentMessages().size() < expectedCount && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        assertThat(session.getSentMessages().size(), is(expectedCount));
+    }
+
+    protected String lastPayload(StubWebSocketSession session) {
+        List<WebSocketMessage<?>> messages = session.getSentMessages();
+        return (String) messages.get(messages.size() - 1).getPayload();
+    }
+}